@@ -37,6 +37,7 @@ public class Application {
 
     public final EventLoopWrapper controlEventLoop;
     public final RESPControllerHolder respControllerHolder;
+    public final MetricsControllerHolder metricsControllerHolder;
 
     public final SidecarHolder sidecarHolder;
     public final SmartLBGroupHolder smartLBGroupHolder;
@@ -53,6 +54,7 @@ public class Application {
         SelectorEventLoop _controlEventLoop = SelectorEventLoop.open();
         this.controlEventLoop = new EventLoopWrapper("ControlEventLoop", _controlEventLoop);
         this.respControllerHolder = new RESPControllerHolder();
+        this.metricsControllerHolder = new MetricsControllerHolder();
         this.socks5ServerHolder = new Socks5ServerHolder();
 
         this.sidecarHolder = new SidecarHolder();
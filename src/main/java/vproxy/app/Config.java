@@ -18,6 +18,39 @@ public class Config {
     // usually mtu is set to 1500, but some routers might set the value to 1480, 1440 or lower
     // we use 1400 here
 
+    // max connections to accept when a listening socket is readable
+    // the left ones are accepted in the next loop round, so that other events on the acceptor loop won't starve
+    public static int acceptBatch = 64;
+
+    // listen backlog of tcp-lb and socks5-server
+    // 0 means using the jdk default value (50), the os may cap the value (e.g. net.core.somaxconn)
+    public static int backlog = 0;
+
+    // refuse new connections when pending tasks of all worker loops exceed this value
+    // 0 means no limit
+    public static int workerQueueLimit = 0;
+
+    // max running health checks of all server groups, the others wait until some checks are done
+    // 0 means no limit
+    public static int healthCheckMaxInFlight = 1024;
+
+    // health checks of servers added when loading the config file are started randomly in this window (ms)
+    // instead of all at once, the window is also capped by the check period
+    // 0 means starting immediately
+    public static int healthCheckStartupSpread = 5000;
+
+    // the process is started to take over the listening ports of an old process,
+    // so lbs bind the ports which are still held by the old process
+    public static volatile boolean upgrading = false;
+
+    // when handing over to a new process, the old process waits for the existing sessions to finish
+    // for at most this time (ms) before exiting
+    public static int drainTimeout = 30_000;
+
+    // record latency histograms for each server,
+    // otherwise only for each server group, since a histogram costs a few KB on each event loop
+    public static boolean serverLatency = false;
+
     // service mesh mode:
     // all resources become readonly
     // and resources will be handled by smart-lb-group or sidecar
@@ -3,10 +3,13 @@ package vproxy.app;
 import vproxy.app.cmd.SystemCommand;
 import vproxy.app.cmd.handle.param.AddrHandle;
 import vproxy.app.mesh.ServiceMeshMain;
+import vproxy.component.app.ConfigJournal;
+import vproxy.component.app.GracefulUpgrade;
 import vproxy.component.app.Shutdown;
 import vproxy.component.app.StdIOController;
 import vproxy.component.exception.AlreadyExistException;
 import vproxy.dns.Resolver;
+import vproxy.util.AccessLog;
 import vproxy.util.Callback;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
@@ -20,6 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.Security;
+import java.util.Arrays;
 
 public class Main {
     private static final String _HELP_STR_ = "" +
@@ -30,6 +34,8 @@ public class Main {
         "\n" +
         "\n\t\tresp-controller ${address} ${password}       Start the resp-controller, will" +
         "\n\t\t                                             be named as `resp-controller`" +
+        "\n\t\tmetrics-controller ${address}                Start the metrics-controller, will" +
+        "\n\t\t                                             be named as `metrics-controller`" +
         "\n\t\tallowSystemCallInNonStdIOController          Allow system call in all controllers" +
         "\n" +
         "\n\t\tnoStdIOController                            StdIOController will not start" +
@@ -41,6 +47,35 @@ public class Main {
         "\n\t\tpidFile                                      Set the pid file path" +
         "\n" +
         "\n\t\tnoLoadLast                                   Do not load last config on start up" +
+        "\n" +
+        "\n\t\tacceptBatch ${n}                             Max connections to accept in one" +
+        "\n\t\t                                             loop round, default 64" +
+        "\n\t\tbacklog ${n}                                 Listen backlog of lbs, should be set" +
+        "\n\t\t                                             before `load`, default 50" +
+        "\n\t\tworkerQueueLimit ${n}                        Refuse new connections when all worker" +
+        "\n\t\t                                             loops have more pending events, default" +
+        "\n\t\t                                             0 (no limit)" +
+        "\n\t\thealthCheckMaxInFlight ${n}                  Max running health checks, default" +
+        "\n\t\t                                             1024, 0 means no limit" +
+        "\n\t\thealthCheckStartupSpread ${ms}               Start health checks of the loaded" +
+        "\n\t\t                                             servers randomly in this window," +
+        "\n\t\t                                             default 5000, 0 means no delay" +
+        "\n" +
+        "\n\t\tupgrade                                      Take over the lbs of the running" +
+        "\n\t\t                                             process in the pid file, which stops" +
+        "\n\t\t                                             accepting and exits after sessions" +
+        "\n\t\t                                             are drained" +
+        "\n\t\tdrainTimeout ${ms}                           Max time to wait for sessions when" +
+        "\n\t\t                                             taken over, default 30000" +
+        "\n" +
+        "\n\t\tserverLatency                                Record latency histograms for each" +
+        "\n\t\t                                             server, by default they are only" +
+        "\n\t\t                                             recorded for each server-group" +
+        "\n" +
+        "\n\t\taccessLog ${filename}                        Write access log of sessions and http" +
+        "\n\t\t                                             requests into the file" +
+        "\n\t\taccessLogSample ${rate}                       Fraction of sessions and requests to" +
+        "\n\t\t                                             log, in (0, 1], default 1" +
         "";
 
     private static void beforeStart() {
@@ -109,9 +144,14 @@ public class Main {
         // every other thing should start after the loop
 
         // load config if specified in args
+        boolean upgrade = Arrays.asList(args).contains("upgrade");
+        // should be set before loading, so the lbs can bind the ports held by the old process
+        Config.upgrading = upgrade;
         boolean loaded = false;
         boolean noStdIOController = false;
         String pidFilePath = null;
+        String accessLogPath = null;
+        double accessLogSample = 1;
         for (int i = 0; i < args.length; ++i) {
             String arg = args[i];
             String next = i + 1 < args.length ? args[i + 1] : null;
@@ -172,6 +212,33 @@ public class Main {
                         return;
                     }
                     break;
+                case "metrics-controller":
+                    if (next == null) {
+                        System.err.println("invalid system call for `metrics-controller`: should specify an address");
+                        System.exit(1);
+                        return;
+                    }
+                    // handle metrics-controller, so increase the cursor
+                    ++i;
+                    InetSocketAddress metricsCtrlAddr;
+                    try {
+                        metricsCtrlAddr = AddrHandle.get(next, true, true);
+                    } catch (Exception e) {
+                        System.err.println("invalid address: " + next);
+                        System.exit(1);
+                        return;
+                    }
+                    try {
+                        Application.get().metricsControllerHolder.add("metrics-controller", metricsCtrlAddr);
+                    } catch (AlreadyExistException e) {
+                        // should not happen
+                        throw new RuntimeException(e);
+                    } catch (IOException e) {
+                        System.err.println("start metrics-controller failed");
+                        System.exit(1);
+                        return;
+                    }
+                    break;
                 case "allowSystemCallInNonStdIOController":
                     SystemCommand.allowNonStdIOController = true;
                     break;
@@ -229,6 +296,69 @@ public class Main {
                 case "noSave":
                     Config.configSavingDisabled = true;
                     break;
+                case "upgrade":
+                    // already handled before parsing the args
+                    break;
+                case "serverLatency":
+                    Config.serverLatency = true;
+                    break;
+                case "acceptBatch":
+                case "backlog":
+                case "workerQueueLimit":
+                case "healthCheckMaxInFlight":
+                case "healthCheckStartupSpread":
+                case "drainTimeout":
+                    int n;
+                    try {
+                        n = Integer.parseInt(next);
+                    } catch (Exception e) {
+                        n = -1;
+                    }
+                    if (n < 0 || (n == 0 && arg.equals("acceptBatch"))) {
+                        System.err.println("invalid value for `" + arg + "`: " + next);
+                        System.exit(1);
+                        return;
+                    }
+                    // handle the value, so increase the cursor
+                    ++i;
+                    if (arg.equals("acceptBatch")) {
+                        Config.acceptBatch = n;
+                    } else if (arg.equals("backlog")) {
+                        Config.backlog = n;
+                    } else if (arg.equals("workerQueueLimit")) {
+                        Config.workerQueueLimit = n;
+                    } else if (arg.equals("healthCheckMaxInFlight")) {
+                        Config.healthCheckMaxInFlight = n;
+                    } else if (arg.equals("healthCheckStartupSpread")) {
+                        Config.healthCheckStartupSpread = n;
+                    } else {
+                        Config.drainTimeout = n;
+                    }
+                    break;
+                case "accessLog":
+                    if (next == null) {
+                        System.err.println("invalid value for `accessLog`: " + next);
+                        System.exit(1);
+                        return;
+                    }
+                    ++i;
+                    accessLogPath = next;
+                    break;
+                case "accessLogSample":
+                    double rate;
+                    try {
+                        rate = Double.parseDouble(next);
+                    } catch (Exception e) {
+                        rate = -1;
+                    }
+                    if (rate <= 0 || rate > 1) {
+                        System.err.println("invalid value for `accessLogSample`: " + next);
+                        System.exit(1);
+                        return;
+                    }
+                    ++i;
+                    accessLogSample = rate;
+                    break;
                 default:
                     System.err.println("unknown argument `" + arg + "`");
                     System.exit(1);
@@ -237,7 +367,7 @@ public class Main {
         }
         if (!loaded && !Config.configLoadingDisabled) {
             File f = new File(Shutdown.defaultFilePath());
-            if (f.exists()) {
+            if (f.exists() || new File(ConfigJournal.journalPath(f.getAbsolutePath())).exists()) {
                 // load last config
                 System.out.println("trying to load from last saved config " + f.getAbsolutePath());
                 System.out.println("if the process fails to start, remove " + f.getAbsolutePath() + " and start from scratch");
@@ -249,6 +379,32 @@ public class Main {
             }
         }
 
+        if (accessLogPath != null) {
+            if (accessLogPath.startsWith("~")) {
+                accessLogPath = System.getProperty("user.home") + accessLogPath.substring("~".length());
+            }
+            try {
+                AccessLog.start(accessLogPath, accessLogSample, AccessLog.DEFAULT_MAX_FILE_SIZE, AccessLog.DEFAULT_MAX_FILES);
+            } catch (IOException e) {
+                System.err.println("start access log failed! " + Utils.formatErr(e));
+                System.exit(1);
+                return;
+            }
+        }
+
+        if (upgrade) {
+            // the old pid should be retrieved before the pid file is overwritten
+            try {
+                pendingLoads.setOldPid(GracefulUpgrade.readOldPid(pidFilePath));
+            } catch (IOException e) {
+                System.err.println("cannot find the process to upgrade from: " + Utils.formatErr(e));
+                System.exit(1);
+                return;
+            }
+        }
+        // the old process is notified when all config files are loaded
+        pendingLoads.loadDone();
+
         // write pid file
         try {
             Shutdown.writePid(pidFilePath);
@@ -270,7 +426,15 @@ public class Main {
         if (appClass == null) {
             // init signal hooks
             Shutdown.initSignal();
-            // start scheduled saving task
+            if (!Config.configSavingDisabled) {
+                // record the changes as they are applied
+                try {
+                    Shutdown.startJournal();
+                } catch (IOException e) {
+                    Logger.error(LogType.SYS_ERROR, "starting config journal failed", e);
+                }
+            }
+            // start scheduled saving task, which also compacts the journal
             Application.get().controlEventLoop.getSelectorEventLoop().period(60 * 60 * 1000, Main::saveConfig);
         } else if (appClass.equals("Sidecar")) {
             // run side car app
@@ -288,10 +452,25 @@ public class Main {
         }
     }
 
+    private static final GracefulUpgrade.PendingLoads pendingLoads = new GracefulUpgrade.PendingLoads(Main::notifyOldProcess);
+
+    private static void notifyOldProcess(long pid) {
+        try {
+            GracefulUpgrade.notifyOldProcess(pid);
+        } catch (IOException e) {
+            Logger.error(LogType.ALERT, "notifying the old process failed, " +
+                "use `System call: drain` in the old process instead: " + Utils.formatErr(e));
+        }
+    }
+
     private static class CallbackInMain extends Callback<String, Throwable> {
+        CallbackInMain() {
+            pendingLoads.loadStarted();
+        }
+
         @Override
         protected void onSucceeded(String value) {
-            // do nothing if succeeded
+            pendingLoads.loadDone();
         }
 
         @Override
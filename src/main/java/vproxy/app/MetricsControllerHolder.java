@@ -0,0 +1,43 @@
+package vproxy.app;
+
+import vproxy.component.app.MetricsController;
+import vproxy.component.exception.AlreadyExistException;
+import vproxy.component.exception.NotFoundException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MetricsControllerHolder {
+    private final Map<String, MetricsController> map = new HashMap<>();
+
+    public List<String> names() {
+        return new ArrayList<>(map.keySet());
+    }
+
+    public MetricsController add(String alias,
+                                 InetSocketAddress address) throws AlreadyExistException, IOException {
+        if (map.containsKey(alias))
+            throw new AlreadyExistException();
+        MetricsController rc = new MetricsController(alias, address);
+        map.put(alias, rc);
+        return rc;
+    }
+
+    public MetricsController get(String alias) throws NotFoundException {
+        MetricsController rc = map.get(alias);
+        if (rc == null)
+            throw new NotFoundException();
+        return rc;
+    }
+
+    public void removeAndStop(String alias) throws NotFoundException {
+        MetricsController g = map.remove(alias);
+        if (g == null)
+            throw new NotFoundException();
+        g.stop();
+    }
+}
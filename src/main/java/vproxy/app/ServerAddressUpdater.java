@@ -1,7 +1,7 @@
 package vproxy.app;
 
-import vproxy.component.exception.NotFoundException;
 import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.ServerHostNameIndex;
 import vproxy.dns.ResolveListener;
 import vproxy.dns.Resolver;
 import vproxy.util.Callback;
@@ -13,11 +13,10 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
 
 public class ServerAddressUpdater implements ResolveListener {
     private static ServerAddressUpdater updater = new ServerAddressUpdater();
@@ -56,25 +55,8 @@ public class ServerAddressUpdater implements ResolveListener {
         addresses.addAll(c.ipv4);
         addresses.addAll(c.ipv6);
 
-        List<String> groupNames = Application.get().serverGroupHolder.names();
-
-        for (String groupName : groupNames) {
-            ServerGroup grp;
-            try {
-                grp = Application.get().serverGroupHolder.get(groupName);
-            } catch (NotFoundException ignore) {
-                // ignore if it's deleted
-                continue;
-            }
-
-            List<ServerGroup.ServerHandle> handles = grp.getServerHandles();
-            for (ServerGroup.ServerHandle h : handles) {
-                // host name matches, and the address is not in new record
-                if (host.equals(/*may be null*/h.hostName) && !addresses.contains(h.server.getAddress())) {
-                    doReplace(grp, c, h);
-                }
-            }
-        }
+        // the address is not in new record
+        replace(host, c, h -> !addresses.contains(h.server.getAddress()));
     }
 
     private static void checkMissing(String host, Resolver.Cache newCache, Resolver.Cache oldCache) {
@@ -92,61 +74,47 @@ public class ServerAddressUpdater implements ResolveListener {
             }
         }
         if (!missing.isEmpty()) {
-            handleMissing(host, newCache, missing);
+            // the address is missing
+            replace(host, newCache, h -> missing.contains(h.server.getAddress()));
         }
     }
 
-    private static void handleMissing(String host, Resolver.Cache c, Set<InetAddress> missing) {
-        List<String> groupNames = Application.get().serverGroupHolder.names();
-
-        for (String groupName : groupNames) {
-            ServerGroup grp;
-            try {
-                grp = Application.get().serverGroupHolder.get(groupName);
-            } catch (NotFoundException ignore) {
-                // ignore if it's deleted
-                continue;
+    private static void replace(String host, Resolver.Cache c, Predicate<ServerGroup.ServerHandle> needReplace) {
+        // only servers with the host name are retrieved from the index
+        Map<ServerGroup, List<ServerGroup.ServerHandle>> groups = ServerHostNameIndex.lookup(host);
+
+        for (Map.Entry<ServerGroup, List<ServerGroup.ServerHandle>> entry : groups.entrySet()) {
+            ServerGroup grp = entry.getKey();
+            Map<String, InetAddress> newIps = new LinkedHashMap<>();
+            for (ServerGroup.ServerHandle h : entry.getValue()) {
+                if (!needReplace.test(h))
+                    continue;
+                InetAddress newIp = nextAddress(c, h);
+                if (newIp == null)
+                    continue;
+                Logger.info(LogType.RESOLVE_REPLACE,
+                    "replace grp=" + grp.alias +
+                        ", server=" + h.alias +
+                        ", old=" + h.server.getAddress() +
+                        ", new=" + newIp);
+                newIps.put(h.alias, newIp);
             }
-
-            List<ServerGroup.ServerHandle> handles = grp.getServerHandles();
-            for (ServerGroup.ServerHandle h : handles) {
-                // host name matches, and the address is missing
-                if (host.equals(/*may be null*/h.hostName) && missing.contains(h.server.getAddress())) {
-                    doReplace(grp, c, h);
-                }
+            // replace all servers in the group at once
+            if (!newIps.isEmpty()) {
+                grp.replaceIp(newIps);
             }
         }
     }
 
-    private static void doReplace(ServerGroup grp, Resolver.Cache c, ServerGroup.ServerHandle h) {
+    // null if no address of the same family
+    private static InetAddress nextAddress(Resolver.Cache c, ServerGroup.ServerHandle h) {
         Tuple<Inet4Address, Inet6Address> tup = c.next();
         if (h.server.getAddress() instanceof Inet4Address) {
-            if (tup.left != null) {
-                Logger.info(LogType.RESOLVE_REPLACE,
-                    "replace grp=" + grp.alias +
-                        ", server=" + h.alias +
-                        ", old=" + h.server.getAddress() +
-                        ", new=" + tup.left);
-                try {
-                    grp.replaceIp(h.alias, tup.left);
-                } catch (NotFoundException ignore) {
-                    // ignore if it's deleted
-                }
-            }
+            return tup.left;
         } else if (h.server.getAddress() instanceof Inet6Address) {
-            if (tup.right != null) {
-                Logger.info(LogType.RESOLVE_REPLACE,
-                    "replace grp=" + grp.alias +
-                        ", server=" + h.alias +
-                        ", old=" + h.server.getAddress() +
-                        ", new=" + tup.right);
-                try {
-                    grp.replaceIp(h.alias, tup.right);
-                } catch (NotFoundException ignore) {
-                    // ignore if it's deleted
-                }
-            }
+            return tup.right;
         } // else should not happen, we ignore
+        return null;
     }
 
     @Override
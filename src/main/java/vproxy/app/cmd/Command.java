@@ -3,6 +3,7 @@ package vproxy.app.cmd;
 import vproxy.app.Application;
 import vproxy.app.Config;
 import vproxy.app.cmd.handle.resource.*;
+import vproxy.component.app.ConfigJournal;
 import vproxy.component.auto.SmartLBGroup;
 import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.NotFoundException;
@@ -10,16 +11,22 @@ import vproxy.component.exception.XException;
 import vproxy.component.proxy.Session;
 import vproxy.component.secure.SecurityGroup;
 import vproxy.component.secure.SecurityGroupRule;
+import vproxy.component.svrgroup.ServerGroup;
 import vproxy.connection.BindServer;
 import vproxy.connection.Connection;
 import vproxy.dns.Resolver;
+import vproxy.selector.SelectorEventLoop;
 import vproxy.util.Callback;
+import vproxy.util.LatencyHistogram;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class Command {
@@ -457,6 +464,25 @@ public class Command {
                         throw new Exception("unsupported action " + cmd.action.fullname + " for " + cmd.resource.type.fullname);
                 }
                 break;
+            case trace:
+                switch (cmd.action) {
+                    case a:
+                    case r:
+                    case R:
+                        // modification not supported for trace resources
+                        throw new Exception("cannot run " + cmd.action.fullname + " on " + cmd.resource.type.fullname);
+                    case L:
+                    case l:
+                        if (targetResource == null)
+                            throw new Exception("cannot find " + cmd.resource.type.fullname + " on top level");
+                        if (targetResource.type != ResourceType.conn)
+                            throw new Exception(targetResource.type.fullname + " does not contain " + cmd.resource.type.fullname);
+                        ConnectionHandle.checkConnection(targetResource.parentResource);
+                        break;
+                    default:
+                        throw new Exception("unsupported action " + cmd.action.fullname + " for " + cmd.resource.type.fullname);
+                }
+                break;
             case acceptedconncount: // accepted-connections
                 switch (cmd.action) {
                     case a:
@@ -475,6 +501,38 @@ public class Command {
                         throw new Exception("unsupported action " + cmd.action.fullname + " for " + cmd.resource.type.fullname);
                 }
                 break;
+            case latency:
+                lsw:
+                switch (cmd.action) {
+                    case a:
+                    case r:
+                    case R:
+                        // modification not supported for latency resources
+                        throw new Exception("cannot run " + cmd.action.fullname + " on " + cmd.resource.type.fullname);
+                    case L:
+                    case l:
+                        if (targetResource == null)
+                            throw new Exception("cannot find " + cmd.resource.type.fullname + " on top level");
+                        switch (targetResource.type) {
+                            case tl:
+                                TcpLBHandle.checkTcpLB(targetResource);
+                                break lsw;
+                            case socks5:
+                                Socks5ServerHandle.checkSocks5Server(targetResource);
+                                break lsw;
+                            case sg:
+                                ServerGroupHandle.checkServerGroup(targetResource);
+                                break lsw;
+                            case svr:
+                                ServerHandle.checkServer(targetResource);
+                                break lsw;
+                            default:
+                                throw new Exception(targetResource.type.fullname + " does not contain " + cmd.resource.type.fullname);
+                        }
+                    default:
+                        throw new Exception("unsupported action " + cmd.action.fullname + " for " + cmd.resource.type.fullname);
+                }
+                break;
             case el: // event loop
                 switch (cmd.action) {
                     case a:
@@ -675,20 +733,253 @@ public class Command {
             CmdResult res;
             try {
                 res = runThrow();
-            } catch (AlreadyExistException e) {
-                cb.failed(new XException("the resource already exists"));
-                return;
-            } catch (NotFoundException e) {
-                cb.failed(new XException("the resource could not be found"));
-                return;
             } catch (Throwable t) {
-                cb.failed(t);
+                cb.failed(formatRunErr(t));
                 return;
             }
+            ConfigJournal.record(this);
             cb.succeeded(res);
         });
     }
 
+    private static Throwable formatRunErr(Throwable t) {
+        if (t instanceof AlreadyExistException) {
+            return new XException("the resource already exists");
+        } else if (t instanceof NotFoundException) {
+            return new XException("the resource could not be found");
+        } else {
+            return t;
+        }
+    }
+
+    /**
+     * Run the commands one by one in one tick of the control event loop.
+     * <p>
+     * The server groups changed by the commands are put into batch mode until all commands are done,
+     * so the method related structures of each group are rebuilt only once,
+     * and the changes are visible to the load balancers at the same time.
+     * The commands after a failed one are not run, but the changes already made are kept.
+     *
+     * @param cb the result is the count of commands run
+     */
+    public static void runBatch(List<Command> commands, Callback<CmdResult, Throwable> cb) {
+        Application.get().controlEventLoop.getSelectorEventLoop().nextTick(() -> {
+            Set<ServerGroup> groups = new HashSet<>();
+            int done = 0;
+            Throwable err = null;
+            try {
+                for (Command cmd : commands) {
+                    ServerGroup g = batchTarget(cmd);
+                    if (g != null && groups.add(g)) {
+                        g.beginBatch();
+                    }
+                    try {
+                        cmd.runThrow();
+                    } catch (Throwable t) {
+                        err = batchErr(cmd, t);
+                        break;
+                    }
+                    ConfigJournal.record(cmd);
+                    ++done;
+                }
+            } finally {
+                for (ServerGroup g : groups) {
+                    g.commitBatch();
+                }
+            }
+            if (err != null) {
+                cb.failed(err);
+            } else {
+                cb.succeeded(new CmdResult(done, done, "" + done));
+            }
+        });
+    }
+
+    private static XException batchErr(Command cmd, Throwable t) {
+        return new XException("command `" + cmd + "` failed: " + Utils.formatErr(formatRunErr(t)));
+    }
+
+    // whether all commands in the batch are `add server ... to server-group ...` on the same group
+    public static boolean isAddServerBatch(List<Command> batch) {
+        String key = null;
+        for (Command cmd : batch) {
+            if (cmd.action != Action.a || cmd.resource.type != ResourceType.svr || cmd.prepositionResource == null)
+                return false;
+            String k = cmd.prepositionResource.toString();
+            if (key == null) {
+                key = k;
+            } else if (!key.equals(k)) {
+                return false;
+            }
+        }
+        return key != null;
+    }
+
+    /**
+     * Run batches of `add server` commands at the same time on the executor.
+     * <p>
+     * Resolving the addresses and starting the health checks of thousands of servers take time,
+     * and servers of different groups do not depend on each other,
+     * so only the server groups are retrieved on the control event loop,
+     * and the servers are added on the executor, each group in batch.
+     * The batches should be checked with {@link #isAddServerBatch(List)}
+     * and should be on different server groups.
+     *
+     * @param firstCheckSpread ms, the first health checks of the added servers run randomly in the window
+     *                         instead of all at once, 0 means immediately
+     * @param cb               called on the control event loop when all batches are done,
+     *           the result is the count of commands run
+     */
+    public static void runAddServerBatchesInParallel(List<List<Command>> batches, Executor executor, int firstCheckSpread, Callback<CmdResult, Throwable> cb) {
+        SelectorEventLoop loop = Application.get().controlEventLoop.getSelectorEventLoop();
+        loop.nextTick(() -> {
+            List<ServerGroup> groups = new ArrayList<>(batches.size());
+            for (List<Command> batch : batches) {
+                Command first = batch.get(0);
+                try {
+                    groups.add(ServerGroupHandle.get(first.prepositionResource));
+                } catch (Throwable t) {
+                    cb.failed(batchErr(first, t));
+                    return;
+                }
+            }
+            AtomicInteger remaining = new AtomicInteger(batches.size());
+            AtomicInteger done = new AtomicInteger(0);
+            AtomicReference<Throwable> err = new AtomicReference<>();
+            for (int i = 0; i < batches.size(); ++i) {
+                List<Command> batch = batches.get(i);
+                ServerGroup g = groups.get(i);
+                executor.execute(() -> {
+                    g.beginBatch();
+                    try {
+                        for (Command cmd : batch) {
+                            if (err.get() != null)
+                                break; // stop when any batch fails
+                            try {
+                                ServerHandle.add(g, cmd, firstCheckSpread);
+                            } catch (Throwable t) {
+                                err.compareAndSet(null, batchErr(cmd, t));
+                                break;
+                            }
+                            done.incrementAndGet();
+                        }
+                    } finally {
+                        g.commitBatch();
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        loop.runOnLoop(() -> {
+                            Throwable t = err.get();
+                            if (t != null) {
+                                cb.failed(t);
+                            } else {
+                                int n = done.get();
+                                cb.succeeded(new CmdResult(n, n, "" + n));
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    // the server group modified by the command, or null if it's not modifying a server group
+    private static Resource batchResource(Command cmd) {
+        if (cmd.action == Action.l || cmd.action == Action.L)
+            return null;
+        if (cmd.resource.type == ResourceType.svr) {
+            // `add server ... to server-group ...` or `update/remove server ... in server-group ...`
+            return cmd.resource.parentResource == null ? cmd.prepositionResource : cmd.resource.parentResource;
+        }
+        if (cmd.resource.type == ResourceType.sg && cmd.action == Action.u) {
+            return cmd.resource;
+        }
+        return null;
+    }
+
+    private static ServerGroup batchTarget(Command cmd) {
+        Resource r = batchResource(cmd);
+        if (r == null || r.type != ResourceType.sg)
+            return null;
+        try {
+            return ServerGroupHandle.get(r);
+        } catch (Exception e) {
+            return null; // the command will raise the error when running
+        }
+    }
+
+    /**
+     * Commands queued between `begin` and `commit` in a controller session,
+     * which are run with {@link #runBatch(List, Callback)} when committed.
+     */
+    public static class Batch {
+        private List<Command> commands = null; // null means not in batch
+
+        public static boolean isBatchCommand(String line) {
+            return line.equals("begin") || line.equals("commit") || line.equals("abort");
+        }
+
+        // returns true if the command is queued, otherwise the command should be run directly
+        public boolean queue(Command cmd) {
+            if (commands == null)
+                return false;
+            if (cmd.action == Action.l || cmd.action == Action.L)
+                return false; // list commands do not modify anything
+            commands.add(cmd);
+            return true;
+        }
+
+        public void handle(String line, Callback<CmdResult, Throwable> cb) {
+            switch (line) {
+                case "begin":
+                    if (commands != null) {
+                        cb.failed(new XException("already in batch"));
+                        return;
+                    }
+                    commands = new ArrayList<>();
+                    cb.succeeded(new CmdResult());
+                    return;
+                case "commit":
+                case "abort":
+                    if (commands == null) {
+                        cb.failed(new XException("not in batch"));
+                        return;
+                    }
+                    List<Command> ls = commands;
+                    commands = null;
+                    if (line.equals("commit")) {
+                        runBatch(ls, cb);
+                    } else {
+                        cb.succeeded(new CmdResult());
+                    }
+                    return;
+                default:
+                    cb.failed(new XException("unknown batch command " + line));
+            }
+        }
+    }
+
+    /**
+     * Split the commands into batches for {@link #runBatch(List, Callback)}.
+     * Consecutive commands modifying the same server group are put into one batch,
+     * and each of the other commands is in a batch of its own.
+     */
+    public static List<List<Command>> splitIntoBatches(List<Command> commands) {
+        List<List<Command>> batches = new ArrayList<>();
+        List<Command> current = null;
+        String currentKey = null;
+        for (Command cmd : commands) {
+            Resource r = batchResource(cmd);
+            String key = r == null ? null : r.toString();
+            if (current == null || key == null || !key.equals(currentKey)) {
+                current = new ArrayList<>();
+                batches.add(current);
+            }
+            current.add(cmd);
+            currentKey = key;
+        }
+        return batches;
+    }
+
     private static String utilJoinList(List<?> ls) {
         StringBuilder sb = new StringBuilder();
         boolean isFirst = true;
@@ -706,6 +997,18 @@ public class Command {
     private CmdResult runThrow() throws Exception {
         Resource targetResource = resource.parentResource == null ? prepositionResource : resource.parentResource;
         switch (resource.type) {
+            case latency:
+                switch (action) {
+                    case l:
+                        List<String> latencyNames = LatencyHandle.names(targetResource);
+                        return new CmdResult(latencyNames, latencyNames, utilJoinList(latencyNames));
+                    case L:
+                        List<LatencyHistogram.Snapshot> snapshots = LatencyHandle.detail(targetResource);
+                        List<String> snapshotStrList = snapshots.stream().map(Object::toString).collect(Collectors.toList());
+                        return new CmdResult(snapshots, snapshotStrList, utilJoinList(snapshots));
+                    default:
+                        throw new Exception("unsupported action " + action.fullname + " for " + resource.type.fullname);
+                }
             case conn: // can be retrieved from tl or el
                 switch (action) {
                     case l:
@@ -756,6 +1059,13 @@ public class Command {
                         long boutRes = StatisticHandle.bytesOut(targetResource);
                         return new CmdResult(boutRes, boutRes, "" + boutRes);
                 }
+            case trace:
+                switch (action) {
+                    case l:
+                    case L:
+                        List<String> traceLines = ConnectionHandle.trace(targetResource);
+                        return new CmdResult(traceLines, traceLines, utilJoinList(traceLines));
+                }
             case acceptedconncount:
                 switch (action) {
                     case l:
@@ -816,9 +1126,11 @@ public class Command {
             case el: // can only be retrieved from event loop group
                 switch (action) {
                     case l:
-                    case L:
                         List<String> elNames = EventLoopHandle.names(targetResource);
                         return new CmdResult(elNames, elNames, utilJoinList(elNames));
+                    case L:
+                        List<String> elDetails = EventLoopHandle.detail(targetResource);
+                        return new CmdResult(elDetails, elDetails, utilJoinList(elDetails));
                     case a:
                         EventLoopHandle.add(this);
                         return new CmdResult();
@@ -939,7 +1251,8 @@ public class Command {
                         List<Object> cacheStrList = caches.stream().map(c -> Arrays.asList(
                             c.host,
                             c.ipv4.stream().map(i -> Utils.ipStr(i.getAddress())).collect(Collectors.toList()),
-                            c.ipv6.stream().map(i -> Utils.ipStr(i.getAddress())).collect(Collectors.toList())
+                            c.ipv6.stream().map(i -> Utils.ipStr(i.getAddress())).collect(Collectors.toList()),
+                            c.ttl
                         )).collect(Collectors.toList());
                         return new CmdResult(caches, cacheStrList, utilJoinList(caches));
                     case R:
@@ -6,6 +6,11 @@ public enum Flag {
 
     allownonbackend("allow-non-backend"),
     denynonbackend("deny-non-backend"),
+
+    persistent("persistent"),
+
+    outlierdetection("outlier-detection"),
+    nooutlierdetection("no-outlier-detection"),
     ;
     public final String fullname;
 
@@ -119,6 +119,18 @@ public class HelpCommand {
             .append(withMaxLen("use `man action|resource|param_name` to get detailed doc." +
                     "use `man add-to|remove-from` to see info about `add ... to ...` or `remove ... from ...`",
                 descrMaxLen, descrSpaces))
+            .append("\n        ")
+            .append(withSpaces("begin", maxLenOfFullName))
+            .append(withSpaces(null, maxLenOfShortName))
+            .append(withMaxLen("start a batch, the following commands (except list commands) are queued", descrMaxLen, descrSpaces))
+            .append("\n        ")
+            .append(withSpaces("commit", maxLenOfFullName))
+            .append(withSpaces(null, maxLenOfShortName))
+            .append(withMaxLen("run the queued commands, changes of each server group are applied at once", descrMaxLen, descrSpaces))
+            .append("\n        ")
+            .append(withSpaces("abort", maxLenOfFullName))
+            .append(withSpaces(null, maxLenOfShortName))
+            .append(withMaxLen("drop the queued commands", descrMaxLen, descrSpaces))
             .append(SystemCommand.systemCallHelpStr)
             .append("\n    Available actions:");
         for (ActMan actMan : ActMan.values()) {
@@ -386,6 +398,8 @@ public class HelpCommand {
         servergroups("server-groups", "sgs", "server groups"),
         inbuffersize("in-buffer-size", null, "in buffer size"),
         outbuffersize("out-buffer-size", null, "out buffer size"),
+        connrate("conn-rate", null, "max new connections per second from one source ip, 0 means no limit"),
+        maxconn("max-conn", null, "max concurrent connections from one source ip, 0 means no limit"),
         securitygroup("security-group", "secg", "security group"),
         timeout("timeout", null, "health check timeout"),
         period("period", null, "health check period"),
@@ -397,7 +411,11 @@ public class HelpCommand {
         network("network", "net", "network: $network/$mask"),
         protocol("protocol", null, "" +
             "for tcp-lb: the application layer protocol, " +
-            "for security-group: the transport layer protocol: tcp or udp"),
+            "for security-group: the transport layer protocol: tcp or udp, " +
+            "for server-group: the health check protocol"),
+        uri("uri", null, "uri of http health check requests"),
+        status("status", null, "expected status of http health check responses: $code or $nxx"),
+        body("body", null, "http health check response body should contain this string"),
         portrange("port-range", null, "an integer tuple $i,$j"),
         service("service", null, "service name"),
         zone("zone", null, "zone name"),
@@ -423,6 +441,9 @@ public class HelpCommand {
         noipv6("noipv6", null, "do not use ipv6 address. Use the flag with param: address"),
         allownonbackend("allow-non-backend", null, "allow to access non backend endpoints"),
         denynonbackend("deny-non-backend", null, "only able to access backend endpoints"),
+        persistent("persistent", null, "keep the health check connection alive and reuse it for the next check. Use the flag with param: protocol"),
+        outlierdetection("outlier-detection", null, "eject servers which fail or slow down proxied connections from the group for a while"),
+        nooutlierdetection("no-outlier-detection", null, "disable outlier detection"),
         ;
         public final String flag;
         public final String shortVer;
@@ -448,6 +469,8 @@ public class HelpCommand {
                     , new ResActParamMan(ParamMan.protocol, "the protocol used by tcp-lb. available options: tcp, http, h2, http/1.x, dubbo, framed-int32, or your customized protocol. See doc for more info", "tcp")
                     , new ResActParamMan(ParamMan.certkey, "the certificates and keys used by tcp-lb. Multiple cert-key(s) are separated with `,`")
                     , new ResActParamMan(ParamMan.securitygroup, "specify a security group for the lb", "allow any")
+                    , new ResActParamMan(ParamMan.connrate, "max new connections per second from one source ip (ipv6 /64)", "0")
+                    , new ResActParamMan(ParamMan.maxconn, "max concurrent connections from one source ip (ipv6 /64)", "0")
                 ),
                 Collections.singletonList(
                     new Tuple<>(
@@ -468,14 +491,16 @@ public class HelpCommand {
                 Collections.singletonList(
                     new Tuple<>(
                         "list-detail tcp-lb",
-                        "1) \"lb0 -> acceptor elg0 worker elg0 bind 127.0.0.1:18080 backends sgs0 in-buffer-size 16384 out-buffer-size 16384 protocol tcp security-group secg0\""
+                        "1) \"lb0 -> acceptor elg0 worker elg0 bind 127.0.0.1:18080 backends sgs0 in-buffer-size 16384 out-buffer-size 16384 protocol tcp security-group secg0 conn-rate 0 max-conn 0\""
                     )
                 ))
-            , new ResActMan(ActMan.update, "update in-buffer-size or out-buffer-size of an lb",
+            , new ResActMan(ActMan.update, "update in-buffer-size or out-buffer-size or connection limits of an lb",
                 Arrays.asList(
                     new ResActParamMan(ParamMan.inbuffersize, "input buffer size", "not changed")
                     , new ResActParamMan(ParamMan.outbuffersize, "output buffer size", "not changed")
                     , new ResActParamMan(ParamMan.securitygroup, "the security group", "not changed")
+                    , new ResActParamMan(ParamMan.connrate, "max new connections per second from one source ip", "not changed")
+                    , new ResActParamMan(ParamMan.maxconn, "max concurrent connections from one source ip", "not changed")
                 ),
                 Collections.singletonList(
                     new Tuple<>(
@@ -625,12 +650,24 @@ public class HelpCommand {
                         new ResActParamMan(ParamMan.up, "set server status to UP after succeeded for `${up}` times"),
                         new ResActParamMan(ParamMan.down, "set server status to DOWN after failed for `${down}` times"),
                         new ResActParamMan(ParamMan.method, "loadbalancing algorithm, you can choose `wrr`, `wlc`, `source`", "wrr"),
-                        new ResActParamMan(ParamMan.eventloopgroup, "choose a event-loop-group for the server group. health check operations will be performed on the event loop group", Application.DEFAULT_CONTROL_EVENT_LOOP_GROUP_NAME)
+                        new ResActParamMan(ParamMan.eventloopgroup, "choose a event-loop-group for the server group. health check operations will be performed on the event loop group", Application.DEFAULT_CONTROL_EVENT_LOOP_GROUP_NAME),
+                        new ResActParamMan(ParamMan.protocol, "health check protocol, you can choose `tcp`, `tcpDelay`, `http`, `resp`, `dubbo`", "tcp"),
+                        new ResActParamMan(ParamMan.uri, "the uri to request when protocol is `http`", "/"),
+                        new ResActParamMan(ParamMan.status, "the expected response status when protocol is `http`, e.g. 200 or 2xx", "2xx"),
+                        new ResActParamMan(ParamMan.body, "the response body should contain this string when protocol is `http`", "not checked")
                     ),
-                    Collections.singletonList(
+                    Arrays.asList(
+                        new ResActFlagMan(FlagMan.persistent, "keep the health check connection alive for the next check, only for `http`, `resp`, `dubbo`", false),
+                        new ResActFlagMan(FlagMan.outlierdetection, "temporarily eject servers with consecutive connect failures, high error rate or high latency", false)
+                    ),
+                    Arrays.asList(
                         new Tuple<>(
                             "add server-group sg0 timeout 500 period 800 up 4 down 5 method wrr elg elg0",
                             "\"OK\""
+                        ),
+                        new Tuple<>(
+                            "add server-group sg1 timeout 500 period 800 up 4 down 5 protocol http uri /health status 200 body ok persistent",
+                            "\"OK\""
                         )
                     )),
                 new ResActMan(ActMan.addto, "attach an existing server group into a `server-groups` resource",
@@ -660,7 +697,8 @@ public class HelpCommand {
                     Arrays.asList(
                         new Tuple<>(
                             "list-detail server-group",
-                            "1) \"sg0 -> timeout 500 period 800 up 4 down 5 method wrr event-loop-group elg0\""
+                            "1) \"sg0 -> timeout 500 period 800 up 4 down 5 method wrr event-loop-group elg0\"\n" +
+                                "2) \"sg1 -> timeout 500 period 800 up 4 down 5 protocol http uri /health status 200 body ok persistent method wrr event-loop-group elg0\""
                         ),
                         new Tuple<>(
                             "list-detail server-group in server-groups sgs0",
@@ -677,9 +715,17 @@ public class HelpCommand {
                         new ResActParamMan(ParamMan.period, "do check every `${period}` milliseconds", "not changed"),
                         new ResActParamMan(ParamMan.up, "set server status to UP after succeeded for `${up}` times", "not changed"),
                         new ResActParamMan(ParamMan.down, "set server status to DOWN after failed for `${down}` times", "not changed"),
+                        new ResActParamMan(ParamMan.protocol, "health check protocol", "tcp"),
+                        new ResActParamMan(ParamMan.uri, "the uri of http check", "/"),
+                        new ResActParamMan(ParamMan.status, "the expected status of http check", "2xx"),
+                        new ResActParamMan(ParamMan.body, "the expected body substring of http check", "not checked"),
                         new ResActParamMan(ParamMan.method, "loadbalancing algorithm, you can choose `wrr`, `wlc`, `source`", "not changed"),
                         new ResActParamMan(ParamMan.weight, "the weight of group in this server-groups resource", "not changed")
                     ),
+                    Arrays.asList(
+                        new ResActFlagMan(FlagMan.outlierdetection, "enable outlier detection", false),
+                        new ResActFlagMan(FlagMan.nooutlierdetection, "disable outlier detection and re-admit all ejected servers", false)
+                    ),
                     Arrays.asList(
                         new Tuple<>(
                             "update server-group sg0 timeout 500 period 600 up 3 down 2",
@@ -689,6 +735,10 @@ public class HelpCommand {
                             "update server-group sg0 method wlc",
                             "\"OK\""
                         ),
+                        new Tuple<>(
+                            "update server-group sg0 outlier-detection",
+                            "\"OK\""
+                        ),
                         new Tuple<>(
                             "update server-group sg0 in server-groups sgs0 weight 5",
                             "\"OK\""
@@ -723,14 +773,18 @@ public class HelpCommand {
                     )),
                 new ResActMan(ActMan.list, "retrieve names of all event loops in a event loop group",
                     Collections.emptyList(),
-                    Arrays.asList(
+                    Collections.singletonList(
                         new Tuple<>(
                             "list event-loop in event-loop-group elg0",
                             "1) \"el0\""
-                        ),
+                        )
+                    )),
+                new ResActMan(ActMan.listdetail, "retrieve saturation statistics of all event loops in a event loop group",
+                    Collections.emptyList(),
+                    Collections.singletonList(
                         new Tuple<>(
                             "list-detail event-loop in event-loop-group elg0",
-                            "1) \"el0\""
+                            "1) \"el0 -> queue 0 iterations 1520 busy 0.31% avg-iteration 12us max-iteration 950us handling 15033us non-select 3207us avg-keys 1.20 max-keys 4 empty-selects 601 max-queue 3 timers 2 max-timer-lag 1ms wakeups 480\""
                         )
                     )),
                 new ResActMan(ActMan.removefrom, "remove a event loop from event loop group",
@@ -925,14 +979,16 @@ public class HelpCommand {
                     "\n" +
                     "host.\n" +
                     "ipv4 ip list.\n" +
-                    "ipv6 ip list",
+                    "ipv6 ip list.\n" +
+                    "ttl in milliseconds",
                     Collections.emptyList(),
                     Collections.singletonList(
                         new Tuple<>(
                             "list-detail dns-cache in resolver (default)",
                             "1) 1) \"localhost\"\n" +
                                 "   2) 1) \"127.0.0.1\"\n" +
-                                "   3) 1) \"[0000:0000:0000:0000:0000:0000:0000:0001]\""
+                                "   3) 1) \"[0000:0000:0000:0000:0000:0000:0000:0001]\"\n" +
+                                "   4) (integer) 60000"
                         )
                     )),
                 new ResActMan(ActMan.forceremove, "specify the host and remove the dns cache",
@@ -1134,6 +1190,51 @@ public class HelpCommand {
                         )
                     ))
             )),
+        latency("latency", null, "statistics: latency histograms in microseconds",
+            Arrays.asList(
+                new ResActMan(ActMan.list, "get names of the latency histograms of a resource",
+                    Collections.emptyList(),
+                    Arrays.asList(
+                        new Tuple<>(
+                            "list latency in tcp-lb lb0",
+                            "1) \"connect\"\n" +
+                                "2) \"first-byte\"\n" +
+                                "3) \"session\""
+                        ),
+                        new Tuple<>(
+                            "list latency in server svr0 in sg sg0",
+                            "1) \"connect\"\n" +
+                                "2) \"first-byte\"\n" +
+                                "3) \"session\"\n" +
+                                "4) \"health-check\""
+                        )
+                    )),
+                new ResActMan(ActMan.listdetail, "get count, average, percentiles and max value of the latency histograms",
+                    Collections.emptyList(),
+                    Collections.singletonList(
+                        new Tuple<>(
+                            "list-detail latency in server svr0 in sg sg0",
+                            "1) \"connect -> count 10 avg 312us p50 300us p90 416us p99 480us max 487us\"\n" +
+                                "2) \"first-byte -> count 10 avg 1020us p50 992us p90 1216us p99 1344us max 1302us\"\n" +
+                                "3) \"session -> count 8 avg 15034us p50 14848us p90 16896us p99 16896us max 16450us\"\n" +
+                                "4) \"health-check -> count 120 avg 201us p50 196us p90 244us p99 308us max 316us\""
+                        )
+                    ))
+            )),
+        trace("trace", null, "debugging: recent events of a traced connection",
+            Collections.singletonList(
+                new ResActMan(ActMan.list, "get recent events of a connection, the connection should be traced via `System call: add connection-trace`",
+                    Collections.emptyList(),
+                    Collections.singletonList(
+                        new Tuple<>(
+                            "list trace in connection 127.0.0.1:63536/127.0.0.1:18080 in tl lb0",
+                            "1) \"+0us accepted remote-port=63536 local-port=18080\"\n" +
+                                "2) \"+97us registered ops=1\"\n" +
+                                "3) \"+1204us read bytes=39 in-buffer-used=39\"\n" +
+                                "4) \"+1650us write bytes=128 out-buffer-used=0\""
+                        )
+                    ))
+            )),
         slg("smart-lb-group", null, "A binding for an lb and a server-group with info from service mesh network",
             Arrays.asList(
                 new ResActMan(ActMan.add, "create a new smart-lb-group binding",
@@ -11,6 +11,8 @@ public enum Param {
     sgs("server-groups"),
     inbuffersize("in-buffer-size"),
     outbuffersize("out-buffer-size"),
+    connrate("conn-rate"),
+    maxconn("max-conn"),
     meth("method"),
     w("weight"),
     secg("security-group"),
@@ -30,6 +32,10 @@ public enum Param {
     cert("cert"),
     key("key"),
     ck("cert-key"),
+
+    uri("uri"),
+    status("status"),
+    body("body"),
     ;
     public final String fullname;
 
@@ -14,6 +14,8 @@ public enum ResourceType {
     bin("bytes-in"),
     bout("bytes-out"),
     acceptedconncount("accepted-conn-count"),
+    latency("latency"),
+    trace("trace"),
     secg("security-group"),
     secgr("security-group-rule"),
     resolver("resolver"),
@@ -1,14 +1,18 @@
 package vproxy.app.cmd;
 
 import vproxy.app.Application;
+import vproxy.app.MetricsControllerHolder;
 import vproxy.app.RESPControllerHolder;
 import vproxy.app.cmd.handle.param.AddrHandle;
+import vproxy.component.app.GracefulUpgrade;
+import vproxy.component.app.MetricsController;
 import vproxy.component.app.RESPController;
 import vproxy.component.app.Shutdown;
 import vproxy.component.app.StdIOController;
 import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.NotFoundException;
 import vproxy.component.exception.XException;
+import vproxy.connection.ConnectionTrace;
 import vproxy.util.Callback;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
@@ -35,6 +39,18 @@ public class SystemCommand {
         "\n        System call: remove resp-controller        stop resp controller" +
         "\n                               ${name}" +
         "\n        System call: list-detail resp-controller   check resp controller" +
+        "\n        System call: add metrics-controller        start metrics controller" +
+        "\n                               ${alias}" +
+        "\n                               address  ${bind addr}" +
+        "\n        System call: remove metrics-controller     stop metrics controller" +
+        "\n                               ${name}" +
+        "\n        System call: list-detail metrics-controller  check metrics controller" +
+        "\n        System call: add connection-trace          trace one of every n accepted connections" +
+        "\n                               sample   ${n}" +
+        "\n        System call: add connection-trace          trace connections accepted from a network" +
+        "\n                               network  ${cidr}" +
+        "\n        System call: remove connection-trace       stop tracing new connections" +
+        "\n        System call: list connection-trace         show the connection trace rule" +
         "\n        System call: list config                   show current config";
 
     public static boolean allowNonStdIOController = false;
@@ -61,6 +77,14 @@ public class SystemCommand {
                 Shutdown.shutdown();
                 cb.succeeded(new CmdResult());
                 break;
+            case "drain":
+                if (!from.equals(StdIOController.class.getName())) {
+                    cb.failed(new XException("you can only call drain via StdIOController"));
+                    break;
+                }
+                GracefulUpgrade.drain();
+                cb.succeeded(new CmdResult());
+                break;
             default:
                 if (cmd.startsWith("load ")) {
                     if (!from.equals(StdIOController.class.getName())) {
@@ -83,7 +107,7 @@ public class SystemCommand {
                         Shutdown.load(filename.toString(), new Callback<String, Throwable>() {
                             @Override
                             protected void onSucceeded(String value) {
-                                cb.succeeded(new CmdResult());
+                                cb.succeeded(new CmdResult(value));
                             }
 
                             @Override
@@ -131,6 +155,18 @@ public class SystemCommand {
                                 handleAddRespController(arr, cb);
                                 break outswitch;
                             }
+                            break;
+                        case "metrics-controller":
+                            if (arr.length == 5) {
+                                handleAddMetricsController(arr, cb);
+                                break outswitch;
+                            }
+                            break;
+                        case "connection-trace":
+                            if (arr.length == 4) {
+                                handleAddConnectionTrace(arr, cb);
+                                break outswitch;
+                            }
                     }
                 } else if (cmd.startsWith("remove ")) {
                     String[] arr = cmd.split(" ");
@@ -144,6 +180,19 @@ public class SystemCommand {
                                 handleRemoveController(arr, cb);
                                 break outswitch;
                             }
+                            break;
+                        case "metrics-controller":
+                            if (arr.length == 3) {
+                                handleRemoveMetricsController(arr, cb);
+                                break outswitch;
+                            }
+                            break;
+                        case "connection-trace":
+                            if (arr.length == 2) {
+                                ConnectionTrace.disable();
+                                cb.succeeded(new CmdResult());
+                                break outswitch;
+                            }
                     }
                 } else if (cmd.startsWith("list ")) {
                     String[] arr = cmd.split(" ");
@@ -157,11 +206,31 @@ public class SystemCommand {
                                 handleListController(false, cb);
                                 break outswitch;
                             }
+                            break;
+                        case "metrics-controller":
+                            if (arr.length == 2) {
+                                handleListMetricsController(false, cb);
+                                break outswitch;
+                            }
+                            break;
                         case "config":
                             if (arr.length == 2) {
                                 handleListConfig(cb);
                                 break outswitch;
                             }
+                            break;
+                        case "connection-trace":
+                            if (arr.length == 2) {
+                                handleListConnectionTrace(cb);
+                                break outswitch;
+                            }
+                            break;
+                        case "drain":
+                            if (arr.length == 2) {
+                                String status = GracefulUpgrade.status();
+                                cb.succeeded(new CmdResult(status));
+                                break outswitch;
+                            }
                     }
                 } else if (cmd.startsWith("list-detail ")) {
                     String[] arr = cmd.split(" ");
@@ -175,6 +244,12 @@ public class SystemCommand {
                                 handleListController(true, cb);
                                 break outswitch;
                             }
+                            break;
+                        case "metrics-controller":
+                            if (arr.length == 2) {
+                                handleListMetricsController(true, cb);
+                                break outswitch;
+                            }
                     }
                 }
                 cb.failed(new XException("unknown or invalid system call `" + cmd + "`"));
@@ -187,6 +262,55 @@ public class SystemCommand {
         cb.succeeded(new CmdResult(config, lines, config));
     }
 
+    private static void handleAddConnectionTrace(String[] arr, Callback<CmdResult, ? super XException> cb) {
+        switch (arr[2]) {
+            case "sample":
+                int sample;
+                try {
+                    sample = Integer.parseInt(arr[3]);
+                } catch (NumberFormatException e) {
+                    cb.failed(new XException("invalid sample " + arr[3]));
+                    return;
+                }
+                if (sample < 1) {
+                    cb.failed(new XException("invalid sample " + arr[3] + ", should be >= 1"));
+                    return;
+                }
+                ConnectionTrace.sample(sample);
+                break;
+            case "network":
+                String[] net = arr[3].split("/");
+                byte[] addr;
+                byte[] mask;
+                try {
+                    if (net.length != 2)
+                        throw new IllegalArgumentException();
+                    addr = Utils.blockParseAddress(net[0]);
+                    mask = Utils.parseMask(Integer.parseInt(net[1]));
+                    if (!Utils.validNetwork(addr, mask))
+                        throw new IllegalArgumentException();
+                } catch (Exception e) {
+                    cb.failed(new XException("invalid network " + arr[3]));
+                    return;
+                }
+                ConnectionTrace.network(addr, mask);
+                break;
+            default:
+                cb.failed(new XException("unknown connection trace rule " + arr[2] + ", should be `sample` or `network`"));
+                return;
+        }
+        cb.succeeded(new CmdResult());
+    }
+
+    private static void handleListConnectionTrace(Callback<CmdResult, ? super XException> cb) {
+        String rule = ConnectionTrace.currentRule();
+        if (rule == null) {
+            cb.succeeded(new CmdResult());
+        } else {
+            cb.succeeded(new CmdResult(rule, rule, rule));
+        }
+    }
+
     private static void handleAddRespController(String[] arr, Callback<CmdResult, ? super XException> cb) {
         Command cmd;
         try {
@@ -266,4 +390,74 @@ public class SystemCommand {
         List<String> lines = Arrays.asList(resps.split("\n"));
         cb.succeeded(new CmdResult(controllers, lines, resps));
     }
+
+    private static void handleAddMetricsController(String[] arr, Callback<CmdResult, ? super XException> cb) {
+        Command cmd;
+        try {
+            cmd = Command.statm(Arrays.asList(arr));
+        } catch (Exception e) {
+            cb.failed(new XException("invalid system call: " + Utils.formatErr(e)));
+            return;
+        }
+        if (!cmd.args.containsKey(Param.addr)) {
+            cb.failed(new XException("missing address"));
+            return;
+        }
+        InetSocketAddress addr;
+        try {
+            AddrHandle.check(cmd);
+            addr = AddrHandle.get(cmd);
+        } catch (Exception e) {
+            cb.failed(new XException("invalid system call"));
+            return;
+        }
+
+        // start
+        try {
+            Application.get().metricsControllerHolder.add(cmd.resource.alias, addr);
+        } catch (AlreadyExistException e) {
+            cb.failed(new XException("the MetricsController is already started"));
+            return;
+        } catch (IOException e) {
+            cb.failed(new XException("got exception when starting MetricsController: " + Utils.formatErr(e)));
+            return;
+        }
+        cb.succeeded(new CmdResult());
+    }
+
+    private static void handleRemoveMetricsController(String[] arr, Callback<CmdResult, ? super XException> cb) {
+        try {
+            Application.get().metricsControllerHolder.removeAndStop(arr[2]);
+        } catch (NotFoundException e) {
+            cb.failed(new XException("not found"));
+            return;
+        }
+        cb.succeeded(new CmdResult());
+    }
+
+    private static void handleListMetricsController(boolean detail, Callback<CmdResult, ? super XException> cb) {
+        MetricsControllerHolder h = Application.get().metricsControllerHolder;
+        List<MetricsController> controllers = new LinkedList<>();
+        StringBuilder sb = new StringBuilder();
+        for (String name : h.names()) {
+            MetricsController c;
+            try {
+                c = h.get(name);
+            } catch (NotFoundException e) {
+                // should not happen if no concurrency. just ignore
+                continue;
+            }
+            if (!controllers.isEmpty()) {
+                sb.append("\n");
+            }
+            controllers.add(c);
+            sb.append(c.alias);
+            if (detail) {
+                sb.append(" -> ").append(c.server.id());
+            }
+        }
+        String resps = sb.toString();
+        List<String> lines = Arrays.asList(resps.split("\n"));
+        cb.succeeded(new CmdResult(controllers, lines, resps));
+    }
 }
@@ -0,0 +1,24 @@
+package vproxy.app.cmd.handle.param;
+
+import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Param;
+
+public class ConnRateHandle {
+    private ConnRateHandle() {
+    }
+
+    public static void check(Command cmd) throws Exception {
+        try {
+            get(cmd);
+        } catch (Exception e) {
+            throw new Exception("invalid " + Param.connrate.fullname);
+        }
+    }
+
+    public static int get(Command cmd) throws Exception {
+        int rate = Integer.parseInt(cmd.args.get(Param.connrate));
+        if (rate < 0 || rate > 1_000_000)
+            throw new Exception("invalid " + Param.connrate.fullname);
+        return rate;
+    }
+}
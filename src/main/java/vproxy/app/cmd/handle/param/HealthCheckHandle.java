@@ -1,7 +1,9 @@
 package vproxy.app.cmd.handle.param;
 
 import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Flag;
 import vproxy.app.cmd.Param;
+import vproxy.component.check.CheckProtocol;
 import vproxy.component.check.HealthCheckConfig;
 
 public class HealthCheckHandle {
@@ -16,6 +18,42 @@ public class HealthCheckHandle {
 
         if (timeout < 0 || period < 0 || up < 0 || down < 0)
             throw new Exception("invalid health check config");
-        return new HealthCheckConfig(timeout, period, up, down);
+
+        CheckProtocol protocol = CheckProtocol.tcp;
+        if (cmd.args.containsKey(Param.protocol)) {
+            try {
+                protocol = CheckProtocol.valueOf(cmd.args.get(Param.protocol));
+            } catch (IllegalArgumentException e) {
+                throw new Exception("invalid health check protocol " + cmd.args.get(Param.protocol));
+            }
+        }
+        String uri = cmd.args.getOrDefault(Param.uri, HealthCheckConfig.DEFAULT_HTTP_URI);
+        String status = cmd.args.getOrDefault(Param.status, HealthCheckConfig.DEFAULT_HTTP_STATUS);
+        String body = cmd.args.get(Param.body);
+        boolean persistent = cmd.flags.contains(Flag.persistent);
+        try {
+            return new HealthCheckConfig(timeout, period, up, down, protocol, persistent, uri, status, body);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("invalid health check config: " + e.getMessage());
+        }
+    }
+
+    // the protocol related arguments, empty for tcp checks
+    public static String protocolArgs(HealthCheckConfig c) {
+        if (c.checkProtocol == CheckProtocol.tcp)
+            return "";
+        StringBuilder sb = new StringBuilder();
+        sb.append(" ").append(Param.protocol.fullname).append(" ").append(c.checkProtocol);
+        if (c.checkProtocol == CheckProtocol.http) {
+            sb.append(" ").append(Param.uri.fullname).append(" ").append(c.httpUri);
+            sb.append(" ").append(Param.status.fullname).append(" ").append(c.httpStatus);
+            if (c.httpBody != null) {
+                sb.append(" ").append(Param.body.fullname).append(" ").append(c.httpBody);
+            }
+        }
+        if (c.persistent) {
+            sb.append(" ").append(Flag.persistent.fullname);
+        }
+        return sb.toString();
     }
 }
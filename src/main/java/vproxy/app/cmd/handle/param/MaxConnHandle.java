@@ -0,0 +1,24 @@
+package vproxy.app.cmd.handle.param;
+
+import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Param;
+
+public class MaxConnHandle {
+    private MaxConnHandle() {
+    }
+
+    public static void check(Command cmd) throws Exception {
+        try {
+            get(cmd);
+        } catch (Exception e) {
+            throw new Exception("invalid " + Param.maxconn.fullname);
+        }
+    }
+
+    public static int get(Command cmd) throws Exception {
+        int max = Integer.parseInt(cmd.args.get(Param.maxconn));
+        if (max < 0)
+            throw new Exception("invalid " + Param.maxconn.fullname);
+        return max;
+    }
+}
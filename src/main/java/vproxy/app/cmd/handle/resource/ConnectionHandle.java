@@ -8,6 +8,7 @@ import vproxy.component.exception.NotFoundException;
 import vproxy.component.proxy.Session;
 import vproxy.component.svrgroup.ServerGroup;
 import vproxy.connection.Connection;
+import vproxy.connection.ConnectionTrace;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -42,6 +43,13 @@ public class ConnectionHandle {
             .orElseThrow(NotFoundException::new);
     }
 
+    public static List<String> trace(Resource resource) throws Exception {
+        ConnectionTrace trace = get(resource).getTrace();
+        if (trace == null)
+            throw new Exception("the connection is not traced");
+        return trace.dump();
+    }
+
     public static int count(Resource parent) throws Exception {
         if (parent.type == ResourceType.tl || parent.type == ResourceType.socks5) {
 
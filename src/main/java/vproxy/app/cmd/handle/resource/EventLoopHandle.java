@@ -8,6 +8,7 @@ import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.elgroup.EventLoopWrapper;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class EventLoopHandle {
     private EventLoopHandle() {
@@ -31,6 +32,13 @@ public class EventLoopHandle {
         return g.names();
     }
 
+    public static List<String> detail(Resource targetResource) throws Exception {
+        EventLoopGroup g = EventLoopGroupHandle.get(targetResource);
+        return g.list().stream().map(w -> w.alias
+            + " -> queue " + w.getSelectorEventLoop().queueSize()
+            + " " + w.getSelectorEventLoop().stats()).collect(Collectors.toList());
+    }
+
     public static void add(Command cmd) throws Exception {
         EventLoopGroup g = EventLoopGroupHandle.get(cmd.prepositionResource);
         if (Application.isDefaultEventLoopGroupName(g.alias))
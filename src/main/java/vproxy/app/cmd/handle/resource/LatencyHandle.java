@@ -0,0 +1,44 @@
+package vproxy.app.cmd.handle.resource;
+
+import vproxy.app.cmd.Resource;
+import vproxy.app.cmd.ResourceType;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.util.LatencyHistogram;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class LatencyHandle {
+    private LatencyHandle() {
+    }
+
+    private static List<LatencyHistogram> histograms(Resource parent) throws Exception {
+        if (parent.type == ResourceType.tl) {
+            return TcpLBHandle.get(parent).latency.histograms();
+        } else if (parent.type == ResourceType.socks5) {
+            return Socks5ServerHandle.get(parent).latency.histograms();
+        } else if (parent.type == ResourceType.sg) {
+            ServerGroup sg = ServerGroupHandle.get(parent);
+            List<LatencyHistogram> ls = new LinkedList<>(sg.latency.histograms());
+            ls.add(sg.healthCheckLatency);
+            return ls;
+        } else if (parent.type == ResourceType.svr) {
+            ServerGroup.ServerHandle h = ServerHandle.get(parent);
+            if (h.latency == null)
+                throw new Exception("latency of each server is not recorded, start with `serverLatency` or use the server-group");
+            List<LatencyHistogram> ls = new LinkedList<>(h.latency.histograms());
+            ls.add(h.healthCheckLatency);
+            return ls;
+        } else
+            throw new Exception("i don't think that " + parent.type + " contains latency histograms");
+    }
+
+    public static List<String> names(Resource parent) throws Exception {
+        return histograms(parent).stream().map(h -> h.name).collect(Collectors.toList());
+    }
+
+    public static List<LatencyHistogram.Snapshot> detail(Resource parent) throws Exception {
+        return histograms(parent).stream().map(LatencyHistogram::snapshot).collect(Collectors.toList());
+    }
+}
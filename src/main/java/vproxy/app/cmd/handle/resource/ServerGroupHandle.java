@@ -3,6 +3,7 @@ package vproxy.app.cmd.handle.resource;
 import vproxy.app.Application;
 import vproxy.app.ServerGroupHolder;
 import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Flag;
 import vproxy.app.cmd.Param;
 import vproxy.app.cmd.Resource;
 import vproxy.app.cmd.ResourceType;
@@ -13,6 +14,7 @@ import vproxy.component.auto.SmartLBGroup;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.exception.NotFoundException;
+import vproxy.component.svrgroup.OutlierDetectionConfig;
 import vproxy.component.svrgroup.ServerGroup;
 import vproxy.component.svrgroup.ServerGroups;
 
@@ -149,7 +151,10 @@ public class ServerGroupHandle {
             String eventLoopGroupName = cmd.args.get(Param.elg);
             EventLoopGroup elg = EventLoopGroupHandle.get(eventLoopGroupName);
             HealthCheckConfig c = HealthCheckHandle.getHealthCheckConfig(cmd);
-            Application.get().serverGroupHolder.add(alias, elg, c, MethHandle.get(cmd));
+            ServerGroup g = Application.get().serverGroupHolder.add(alias, elg, c, MethHandle.get(cmd));
+            if (cmd.flags.contains(Flag.outlierdetection)) {
+                g.setOutlierDetectionConfig(OutlierDetectionConfig.DEFAULT);
+            }
         } else {
             // add into serverGroups
             int weight = WeightHandle.get(cmd);
@@ -200,6 +205,11 @@ public class ServerGroupHandle {
             if (cmd.args.containsKey(Param.meth)) {
                 g.setMethod(MethHandle.get(cmd));
             }
+            if (cmd.flags.contains(Flag.outlierdetection)) {
+                g.setOutlierDetectionConfig(OutlierDetectionConfig.DEFAULT);
+            } else if (cmd.flags.contains(Flag.nooutlierdetection)) {
+                g.setOutlierDetectionConfig(null);
+            }
         } else {
             ServerGroups.ServerGroupHandle h = getHandle(cmd.resource);
             if (cmd.args.containsKey(Param.w)) {
@@ -229,8 +239,9 @@ public class ServerGroupHandle {
         public String toString() {
             HealthCheckConfig c = g.getHealthCheckConfig();
             return alias + " -> timeout " + c.timeout + " period " + c.period +
-                " up " + c.up + " down " + c.down + " method " + g.getMethod() +
+                " up " + c.up + " down " + c.down + HealthCheckHandle.protocolArgs(c) + " method " + g.getMethod() +
                 " event-loop-group " + g.eventLoopGroup.alias +
+                (g.getOutlierDetectionConfig() == null ? "" : " " + Flag.outlierdetection.fullname) +
                 (h == null ? "" : " weight " + h.getWeight());
         }
     }
@@ -54,6 +54,16 @@ public class ServerHandle {
     }
 
     public static void add(Command cmd) throws Exception {
+        add(ServerGroupHandle.get(cmd.prepositionResource), cmd);
+    }
+
+    // the group is already retrieved, so this method can run outside of the control event loop
+    public static void add(ServerGroup group, Command cmd) throws Exception {
+        add(group, cmd, 0);
+    }
+
+    // the first health check runs randomly in `firstCheckSpread` ms
+    public static void add(ServerGroup group, Command cmd, int firstCheckSpread) throws Exception {
         String name = cmd.resource.alias;
 
         String host;
@@ -64,8 +74,7 @@ public class ServerHandle {
         // no need to check whether host is an ip
         // will be check in `group.add()`
 
-        ServerGroupHandle.get(cmd.prepositionResource)
-            .add(name, host, AddrHandle.get(cmd), WeightHandle.get(cmd));
+        group.add(name, host, AddrHandle.get(cmd), WeightHandle.get(cmd), firstCheckSpread);
     }
 
     public static void forceRemove(Command cmd) throws Exception {
@@ -104,7 +113,8 @@ public class ServerHandle {
                 + (h.hostName == null ? "" : " host " + h.hostName /* now connected to */)
                 + " connect-to " + Utils.ipStr(h.server.getAddress().getAddress()) + ":" + h.server.getPort()
                 + " weight " + h.getWeight()
-                + " currently " + (h.healthy ? "UP" : "DOWN");
+                + " currently " + (h.healthy ? "UP" : "DOWN")
+                + (h.isEjected() ? " ejected" : "");
         }
     }
 }
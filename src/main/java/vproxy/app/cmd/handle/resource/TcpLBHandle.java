@@ -6,10 +6,7 @@ import vproxy.app.cmd.Command;
 import vproxy.app.cmd.Param;
 import vproxy.app.cmd.Resource;
 import vproxy.app.cmd.ResourceType;
-import vproxy.app.cmd.handle.param.AddrHandle;
-import vproxy.app.cmd.handle.param.InBufferSizeHandle;
-import vproxy.app.cmd.handle.param.OutBufferSizeHandle;
-import vproxy.app.cmd.handle.param.TimeoutHandle;
+import vproxy.app.cmd.handle.param.*;
 import vproxy.component.app.TcpLB;
 import vproxy.component.auto.SmartLBGroup;
 import vproxy.component.elgroup.EventLoopGroup;
@@ -53,6 +50,12 @@ public class TcpLBHandle {
 
         if (cmd.args.containsKey(Param.timeout))
             TimeoutHandle.get(cmd);
+
+        if (cmd.args.containsKey(Param.connrate))
+            ConnRateHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.maxconn))
+            MaxConnHandle.check(cmd);
     }
 
     public static void checkUpdateTcpLB(Command cmd) throws Exception {
@@ -61,6 +64,12 @@ public class TcpLBHandle {
 
         if (cmd.args.containsKey(Param.outbuffersize))
             OutBufferSizeHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.connrate))
+            ConnRateHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.maxconn))
+            MaxConnHandle.check(cmd);
     }
 
     public static TcpLB get(Resource tcplb) throws NotFoundException {
@@ -122,6 +131,13 @@ public class TcpLBHandle {
         Application.get().tcpLBHolder.add(
             alias, acceptor, worker, addr, backend, timeout, inBufferSize, outBufferSize, protocol, certKeys, secg
         );
+        TcpLB tcpLB = Application.get().tcpLBHolder.get(alias);
+        if (cmd.args.containsKey(Param.connrate)) {
+            tcpLB.connectionLimiter.setRate(ConnRateHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.maxconn)) {
+            tcpLB.connectionLimiter.setMaxConnections(MaxConnHandle.get(cmd));
+        }
     }
 
     public static void preCheckRemove(Command cmd) throws Exception {
@@ -154,6 +170,12 @@ public class TcpLBHandle {
         if (cmd.args.containsKey(Param.secg)) {
             tcpLB.securityGroup = Application.get().securityGroupHolder.get(cmd.args.get(Param.secg));
         }
+        if (cmd.args.containsKey(Param.connrate)) {
+            tcpLB.connectionLimiter.setRate(ConnRateHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.maxconn)) {
+            tcpLB.connectionLimiter.setMaxConnections(MaxConnHandle.get(cmd));
+        }
     }
 
     public static class TcpLBRef {
@@ -171,7 +193,9 @@ public class TcpLBHandle {
                 + " timeout " + tcpLB.getTimeout()
                 + " in-buffer-size " + tcpLB.getInBufferSize() + " out-buffer-size " + tcpLB.getOutBufferSize()
                 + " protocol " + tcpLB.protocol
-                + " security-group " + tcpLB.securityGroup.alias;
+                + " security-group " + tcpLB.securityGroup.alias
+                + " conn-rate " + tcpLB.connectionLimiter.getRate()
+                + " max-conn " + tcpLB.connectionLimiter.getMaxConnections();
         }
     }
 }
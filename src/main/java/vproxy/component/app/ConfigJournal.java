@@ -0,0 +1,246 @@
+package vproxy.component.app;
+
+import vproxy.app.Application;
+import vproxy.app.cmd.Action;
+import vproxy.app.cmd.Command;
+import vproxy.app.cmd.ResourceType;
+import vproxy.util.Blocking;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.Utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only journal of the applied commands, kept beside the config snapshot file.
+ * <p>
+ * Each command modifying the saved config is appended as one line and fsync'd on a background thread,
+ * so a save costs as much as the change instead of the whole config.
+ * When the journal grows too long, or when the config is saved, the journal is compacted:
+ * the current config is written into a temp file, fsync'd and renamed over the snapshot,
+ * then the journal is truncated. Loading the snapshot replays the journal after it.
+ */
+public class ConfigJournal {
+    public static final int DEFAULT_COMPACT_THRESHOLD = 1000; // commands
+
+    // the resources saved in the config, see Shutdown.currentConfig()
+    private static final Set<ResourceType> persistedTypes = EnumSet.of(
+        ResourceType.ck, ResourceType.elg, ResourceType.el,
+        ResourceType.sg, ResourceType.sgs, ResourceType.svr,
+        ResourceType.secg, ResourceType.secgr,
+        ResourceType.tl, ResourceType.socks5, ResourceType.slg);
+
+    private static volatile ConfigJournal current = null;
+    private static final AtomicInteger paused = new AtomicInteger(0);
+
+    public static ConfigJournal get() {
+        return current;
+    }
+
+    public static String journalPath(String snapshotPath) {
+        return snapshotPath + ".journal";
+    }
+
+    /**
+     * start journaling for the snapshot file
+     *
+     * @param snapshotPath     the config file
+     * @param replayed         whether the existing journal is already replayed,
+     *                         if not, the journal is moved to a backup file since it does not belong to the current config,
+     *                         and the current config is compacted into the snapshot
+     * @param compactThreshold compact when the journal has more commands than this
+     * @throws IOException open file failed
+     */
+    public static synchronized void start(String snapshotPath, boolean replayed, int compactThreshold) throws IOException {
+        if (current != null)
+            throw new IllegalStateException("config journal is already started: " + current.snapshotPath);
+        ConfigJournal j = new ConfigJournal(snapshotPath, replayed, compactThreshold);
+        current = j;
+        if (!replayed) {
+            // the snapshot is not what's running, e.g. another file is loaded or nothing is loaded,
+            // so it's replaced by the current config, otherwise the journal would be replayed on a wrong config
+            Application.get().controlEventLoop.getSelectorEventLoop().runOnLoop(() -> j.compact(Shutdown.currentConfigCommands()));
+        }
+    }
+
+    @Blocking // waits until all commands are written
+    public static synchronized void stop() {
+        ConfigJournal j = current;
+        if (j == null)
+            return;
+        current = null;
+        j.close();
+    }
+
+    // commands are not recorded while loading, the config is compacted after loading instead
+    public static void pause() {
+        paused.incrementAndGet();
+    }
+
+    public static void resume() {
+        paused.decrementAndGet();
+    }
+
+    /**
+     * record a command which is successfully applied.
+     * it's cheap when journal is not started, or the command does not modify the saved config
+     */
+    public static void record(Command cmd) {
+        ConfigJournal j = current;
+        if (j == null || paused.get() > 0)
+            return;
+        if (cmd.action == Action.l || cmd.action == Action.L)
+            return;
+        if (!persistedTypes.contains(cmd.resource.type))
+            return;
+        j.append(cmd.toString());
+    }
+
+    /**
+     * read the commands in the journal,
+     * the last line is ignored if it's not complete, which means the process crashed while writing it
+     */
+    public static List<String> readJournal(String snapshotPath) throws IOException {
+        List<String> lines = new ArrayList<>();
+        File f = new File(journalPath(snapshotPath));
+        if (!f.exists())
+            return lines;
+        String content = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        int start = 0;
+        int idx;
+        while ((idx = content.indexOf('\n', start)) != -1) {
+            String line = content.substring(start, idx);
+            if (!line.isBlank()) {
+                lines.add(line);
+            }
+            start = idx + 1;
+        }
+        if (start < content.length()) {
+            Logger.warn(LogType.ALERT, "ignore incomplete command in config journal: " + content.substring(start));
+        }
+        return lines;
+    }
+
+    /**
+     * write the lines into the file atomically: write a temp file, fsync, then rename.
+     * the old file is kept as a `.bak` file
+     */
+    @Blocking
+    public static void writeAtomically(String filepath, List<String> lines) throws IOException {
+        Path path = Paths.get(filepath);
+        Path tmp = Paths.get(filepath + ".tmp");
+        try (FileChannel chnl = FileChannel.open(tmp,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             BufferedWriter bw = new BufferedWriter(Channels.newWriter(chnl, StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                bw.write(line);
+                bw.write('\n');
+            }
+            bw.flush();
+            chnl.force(true);
+        }
+        if (Files.exists(path)) {
+            Files.copy(path, Paths.get(filepath + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rename is durable only after the directory is fsync'd,
+        // it must be done before the journal is truncated
+        try (FileChannel dir = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+
+    public final String snapshotPath;
+    private final int compactThreshold;
+    private final ExecutorService writer;
+    private final FileChannel journal;
+    private int recorded = 0; // commands recorded since last compaction, modified on control event loop
+    private boolean compacting = false;
+
+    private ConfigJournal(String snapshotPath, boolean replayed, int compactThreshold) throws IOException {
+        this.snapshotPath = snapshotPath;
+        this.compactThreshold = compactThreshold;
+
+        Path journalPath = Paths.get(journalPath(snapshotPath));
+        if (!replayed && Files.exists(journalPath)) {
+            Files.move(journalPath, Paths.get(journalPath(snapshotPath) + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        this.journal = FileChannel.open(journalPath,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "config-journal");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void append(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        writer.execute(() -> {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining()) {
+                    journal.write(buf);
+                }
+                journal.force(false);
+            } catch (IOException e) {
+                Logger.error(LogType.SYS_ERROR, "writing config journal failed", e);
+            }
+        });
+        if (++recorded > compactThreshold && !compacting) {
+            compacting = true;
+            // let the current command finish first
+            Application.get().controlEventLoop.getSelectorEventLoop().nextTick(() -> {
+                try {
+                    compact(Shutdown.currentConfigCommands());
+                } catch (Exception e) {
+                    Logger.error(LogType.SYS_ERROR, "compacting config journal failed", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * write the snapshot and truncate the journal on the writer thread,
+     * the commands recorded before this call are all included in the snapshot
+     *
+     * @param lines current config
+     * @return completes when the snapshot is written
+     */
+    public Future<?> compact(List<String> lines) {
+        recorded = 0;
+        compacting = false;
+        return writer.submit(() -> {
+            writeAtomically(snapshotPath, lines);
+            journal.truncate(0);
+            journal.force(true);
+            return null;
+        });
+    }
+
+    private void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                Logger.warn(LogType.ALERT, "config journal is not fully written");
+            }
+        } catch (InterruptedException ignore) {
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Logger.warn(LogType.SYS_ERROR, "closing config journal failed: " + Utils.formatErr(e));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package vproxy.component.app;
+
+import vproxy.app.Application;
+import vproxy.app.Config;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.proxy.Proxy;
+import vproxy.selector.PeriodicEvent;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Hand the listening ports over to a new process without dropping sessions.
+ * <p>
+ * The new process is started with `upgrade` and the same config. Its lbs bind the same addresses
+ * with SO_REUSEPORT, and when the config is loaded, it sends SIGUSR1 to the old process found in the pid file.
+ * <p>
+ * The old process then closes the listening sockets of all lbs on every acceptor loop,
+ * waits for the existing sessions to finish, and exits when no session is left or the deadline is reached.
+ * It does not save the config any more, which belongs to the new process since then.
+ */
+public class GracefulUpgrade {
+    private GracefulUpgrade() {
+    }
+
+    private static class Drain {
+        final long beginTime;
+        final long deadline;
+        final List<String> lbs = new ArrayList<>();
+        final List<Proxy> proxies = new ArrayList<>();
+        final Runnable quit;
+        int initialSessions;
+        PeriodicEvent checker;
+
+        Drain(int timeout, Runnable quit) {
+            beginTime = Config.currentTimestamp;
+            deadline = beginTime + timeout;
+            this.quit = quit;
+        }
+
+        int sessions() {
+            int cnt = 0;
+            for (Proxy pxy : proxies) {
+                cnt += pxy.sessionCount();
+            }
+            return cnt;
+        }
+    }
+
+    private static volatile Drain drain = null;
+
+    /**
+     * notify the old process when all config files are loaded
+     */
+    public static class PendingLoads {
+        private final AtomicInteger pending = new AtomicInteger(1); // 1 for the creator itself
+        private final LongConsumer notifier;
+        private volatile long oldPid = -1;
+
+        public PendingLoads(LongConsumer notifier) {
+            this.notifier = notifier;
+        }
+
+        public void setOldPid(long oldPid) {
+            this.oldPid = oldPid;
+        }
+
+        public void loadStarted() {
+            pending.incrementAndGet();
+        }
+
+        public void loadDone() {
+            if (pending.decrementAndGet() != 0)
+                return;
+            if (oldPid == -1)
+                return;
+            notifier.accept(oldPid);
+        }
+    }
+
+    /**
+     * read the pid of the old process, should be called before the new pid is written
+     *
+     * @param pidFilePath the pid file, null for the default one
+     */
+    public static long readOldPid(String pidFilePath) throws IOException {
+        String path = Shutdown.pidFilePath(pidFilePath);
+        String content = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8).trim();
+        long pid;
+        try {
+            pid = Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid pid in " + path + ": " + content);
+        }
+        if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+            return pid;
+        }
+        throw new IOException("the old process " + pid + " in " + path + " is not running");
+    }
+
+    /**
+     * tell the old process to stop accepting and drain its sessions,
+     * should be called after the config is loaded and the lbs are listening
+     */
+    public static void notifyOldProcess(long pid) throws IOException {
+        Config.upgrading = false;
+        Process p = new ProcessBuilder("kill", "-USR1", "" + pid).redirectErrorStream(true).start();
+        int exitCode;
+        try {
+            exitCode = p.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted when sending signal to " + pid);
+        }
+        if (exitCode != 0) {
+            String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            throw new IOException("sending signal to " + pid + " failed: " + out);
+        }
+        Logger.alert("the old process " + pid + " is notified to drain");
+    }
+
+    /**
+     * stop accepting on all lbs and exit when the sessions are drained,
+     * it's safe to call this method multiple times
+     */
+    public static void drain() {
+        Application.get().controlEventLoop.getSelectorEventLoop().runOnLoop(() -> drain(Config.drainTimeout, () -> Shutdown.endSaveAndQuit(0)));
+    }
+
+    /**
+     * should be called on the control event loop
+     *
+     * @param timeout max time to wait for the sessions
+     * @param quit    called on the control event loop when drained or the deadline is reached
+     */
+    public static void drain(int timeout, Runnable quit) {
+        if (drain != null)
+            return;
+        Drain d = new Drain(timeout, quit);
+        drain = d;
+
+        // the new process owns the config from now on
+        Config.configSavingDisabled = true;
+        ConfigJournal.stop();
+
+        Application app = Application.get();
+        List<TcpLB> lbs = new ArrayList<>();
+        for (String name : app.tcpLBHolder.names()) {
+            try {
+                lbs.add(app.tcpLBHolder.get(name));
+            } catch (NotFoundException ignore) {
+            }
+        }
+        for (String name : app.socks5ServerHolder.names()) {
+            try {
+                lbs.add(app.socks5ServerHolder.get(name));
+            } catch (NotFoundException ignore) {
+            }
+        }
+        for (TcpLB lb : lbs) {
+            // the proxies are removed from the lb when stopping, so record them first
+            d.proxies.addAll(lb.servers.values());
+            lb.stop();
+            d.lbs.add(lb.alias);
+        }
+        d.initialSessions = d.sessions();
+        Logger.alert("stop accepting on " + d.lbs.size() + " lb(s), draining " + d.initialSessions + " session(s)");
+
+        check(d);
+        if (drain == d) {
+            d.checker = app.controlEventLoop.getSelectorEventLoop().period(1000, () -> check(d));
+        }
+    }
+
+    private static void check(Drain d) {
+        int left = d.sessions();
+        if (left > 0 && Config.currentTimestamp < d.deadline) {
+            Logger.info(LogType.ALERT, status());
+            return;
+        }
+        if (d.checker != null) {
+            d.checker.cancel();
+        }
+        if (left == 0) {
+            Logger.alert("all sessions are drained, exit");
+        } else {
+            Logger.alert("drain deadline reached, exit with " + left + " session(s) left");
+        }
+        drain = null;
+        d.quit.run();
+    }
+
+    public static boolean isDraining() {
+        return drain != null;
+    }
+
+    // progress of draining
+    public static String status() {
+        Drain d = drain;
+        if (d == null)
+            return "not draining";
+        return "draining: " + d.sessions() + "/" + d.initialSessions + " session(s) left"
+            + ", stopped accepting on " + d.lbs.size() + " lb(s)"
+            + ", " + (Config.currentTimestamp - d.beginTime) + "ms passed"
+            + ", " + Math.max(0, d.deadline - Config.currentTimestamp) + "ms before deadline";
+    }
+}
@@ -0,0 +1,72 @@
+package vproxy.component.app;
+
+import vproxy.app.Application;
+import vproxy.connection.BindServer;
+import vproxy.connection.NetEventLoop;
+import vproxy.http.HttpContext;
+import vproxy.http.HttpProtocolHandler;
+import vproxy.processor.http1.entity.Request;
+import vproxy.protocol.ProtocolHandlerContext;
+import vproxy.protocol.ProtocolServerConfig;
+import vproxy.protocol.ProtocolServerHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Serve runtime statistics in OpenMetrics text format on the control event loop,
+ * so that they can be scraped by prometheus.
+ */
+public class MetricsController {
+    public final String alias;
+    public final BindServer server;
+
+    public MetricsController(String alias, InetSocketAddress address) throws IOException {
+        this.alias = alias;
+        server = BindServer.create(address);
+        NetEventLoop loop = Application.get().controlEventLoop;
+        ProtocolServerHandler.apply(loop, server,
+            new ProtocolServerConfig().setInBufferSize(16384).setOutBufferSize(16384),
+            new MetricsHttpHandler());
+    }
+
+    public void stop() {
+        server.close();
+    }
+}
+
+class MetricsHttpHandler extends HttpProtocolHandler {
+    MetricsHttpHandler() {
+        super(false);
+    }
+
+    @Override
+    protected void request(ProtocolHandlerContext<HttpContext> ctx) {
+        Request req = ctx.data.result;
+        if (!req.method.equals("GET")) {
+            sendError(ctx, "invalid method for retrieving metrics");
+            return;
+        }
+        String uri = req.uri;
+        if (uri.contains("?")) {
+            uri = uri.substring(0, uri.indexOf("?"));
+        }
+        if (!uri.equals("/metrics") && !uri.equals("/")) {
+            String body = "<html><body><h1>not found, use /metrics</h1></body></html>\r\n";
+            ctx.write(("" +
+                "HTTP/1.1 404 Not Found\r\n" +
+                "Connection: Keep-Alive\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "\r\n" +
+                body).getBytes());
+            return;
+        }
+        ctx.write(("" +
+            "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: " + OpenMetricsRenderer.CONTENT_TYPE + "\r\n" +
+            "Transfer-Encoding: chunked\r\n" +
+            "\r\n").getBytes());
+        // the body is rendered and sent chunk by chunk
+        new OpenMetricsRenderer(ctx).start();
+    }
+}
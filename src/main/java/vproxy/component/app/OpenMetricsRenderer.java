@@ -0,0 +1,369 @@
+package vproxy.component.app;
+
+import vproxy.app.Application;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.connection.BindServer;
+import vproxy.protocol.ProtocolHandlerContext;
+import vproxy.selector.SelectorEventLoopStats;
+import vproxy.util.LatencyHistogram;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Render the metrics and send them in http chunks.
+ * <br>
+ * Only one chunk is rendered in each loop round, and the next chunk is rendered
+ * after the previous one is written into the out buffer,
+ * so the memory is bounded and the control loop is never blocked for a long time.
+ * <br>
+ * The rendered values are aggregated on resources (e.g. servers and lbs),
+ * the connections and sessions are counted but never iterated.
+ */
+class OpenMetricsRenderer {
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final int CHUNK_SIZE = 16384;
+    // in seconds
+    private static final String[] LATENCY_BOUNDS = {
+        "0.0001", "0.0005", "0.001", "0.005", "0.01", "0.05", "0.1", "0.5", "1", "5", "10", "60"
+    };
+    private static final long[] LATENCY_BOUNDS_MICROS = {
+        100, 500, 1_000, 5_000, 10_000, 50_000, 100_000, 500_000, 1_000_000, 5_000_000, 10_000_000, 60_000_000
+    };
+
+    private final ProtocolHandlerContext<?> ctx;
+    private final StringBuilder sb = new StringBuilder(CHUNK_SIZE + 1024);
+    private final List<Family<?>> families;
+    private int familyCursor = 0;
+    private int itemCursor = -1; // -1 means the family header is not rendered yet
+    private List<?> currentItems;
+
+    // the resources are retrieved once in one scrape
+    private List<TcpLB> lbList;
+    private List<ServerGroup.ServerHandle> serverList;
+    private List<ServerGroup> serverGroupList; // the group of each server
+    private List<ServerGroup> groupList;
+    private List<EventLoopWrapper> loopList;
+    private List<EventLoopGroup> loopGroupList; // the group of each loop
+
+    OpenMetricsRenderer(ProtocolHandlerContext<?> ctx) {
+        this.ctx = ctx;
+        this.families = Arrays.asList(
+            new Family<>("vproxy_tcp_lb_sessions", "gauge", "current sessions of the lb",
+                this::lbs, (lb, s) -> sample(s, "vproxy_tcp_lb_sessions", lbLabels(lb), lb.sessionCount())),
+            new Family<>("vproxy_tcp_lb_accepted_connections", "counter", "connections accepted by the lb",
+                this::lbs, (lb, s) -> {
+                    long n = 0;
+                    for (BindServer bs : lb.servers.keySet()) {
+                        n += bs.getHistoryAcceptedConnectionCount();
+                    }
+                    sample(s, "vproxy_tcp_lb_accepted_connections_total", lbLabels(lb), n);
+                }),
+            new Family<>("vproxy_tcp_lb_received_bytes", "counter", "bytes received from clients",
+                this::lbs, (lb, s) -> {
+                    long n = 0;
+                    for (BindServer bs : lb.servers.keySet()) {
+                        n += bs.getFromRemoteBytes();
+                    }
+                    sample(s, "vproxy_tcp_lb_received_bytes_total", lbLabels(lb), n);
+                }),
+            new Family<>("vproxy_tcp_lb_sent_bytes", "counter", "bytes sent to clients",
+                this::lbs, (lb, s) -> {
+                    long n = 0;
+                    for (BindServer bs : lb.servers.keySet()) {
+                        n += bs.getToRemoteBytes();
+                    }
+                    sample(s, "vproxy_tcp_lb_sent_bytes_total", lbLabels(lb), n);
+                }),
+            new Family<>("vproxy_tcp_lb_refused_connections", "counter", "connections refused by the connection limiter",
+                this::lbs, (lb, s) -> {
+                    sample(s, "vproxy_tcp_lb_refused_connections_total", lbLabels(lb) + ",reason=\"conn-rate\"",
+                        lb.connectionLimiter.getRateRefusedCount());
+                    sample(s, "vproxy_tcp_lb_refused_connections_total", lbLabels(lb) + ",reason=\"max-conn\"",
+                        lb.connectionLimiter.getMaxConnRefusedCount());
+                }),
+            new Family<>("vproxy_tcp_lb_latency_seconds", "histogram", "latency of sessions proxied by the lb",
+                this::lbs, (lb, s) -> {
+                    for (LatencyHistogram h : lb.latency.histograms()) {
+                        histogram(s, "vproxy_tcp_lb_latency_seconds", lbLabels(lb) + ",type=\"" + h.name + "\"", h);
+                    }
+                }),
+            new Family<>("vproxy_server_up", "gauge", "health check result of the server, 1 for UP, 0 for DOWN",
+                this::servers, (i, s) -> sample(s, "vproxy_server_up", serverLabels(i), serverList.get(i).healthy ? 1 : 0)),
+            new Family<>("vproxy_server_connections", "gauge", "current connections to the server",
+                this::servers, (i, s) -> sample(s, "vproxy_server_connections", serverLabels(i), serverList.get(i).connectionCount())),
+            new Family<>("vproxy_server_received_bytes", "counter", "bytes received from the server",
+                this::servers, (i, s) -> sample(s, "vproxy_server_received_bytes_total", serverLabels(i), serverList.get(i).getFromRemoteBytes())),
+            new Family<>("vproxy_server_sent_bytes", "counter", "bytes sent to the server",
+                this::servers, (i, s) -> sample(s, "vproxy_server_sent_bytes_total", serverLabels(i), serverList.get(i).getToRemoteBytes())),
+            new Family<>("vproxy_server_group_latency_seconds", "histogram", "latency of connections and health checks to the servers in the group",
+                this::serverGroups, (sg, s) -> {
+                    String labels = "server_group=\"" + escape(sg.alias) + "\"";
+                    for (LatencyHistogram lh : sg.latency.histograms()) {
+                        histogram(s, "vproxy_server_group_latency_seconds", labels + ",type=\"" + lh.name + "\"", lh);
+                    }
+                    histogram(s, "vproxy_server_group_latency_seconds", labels + ",type=\"" + sg.healthCheckLatency.name + "\"", sg.healthCheckLatency);
+                }),
+            new Family<>("vproxy_server_latency_seconds", "histogram", "latency of connections and health checks to the server, only when serverLatency is set",
+                this::servers, (i, s) -> {
+                    ServerGroup.ServerHandle h = serverList.get(i);
+                    if (h.latency == null)
+                        return;
+                    for (LatencyHistogram lh : h.latency.histograms()) {
+                        histogram(s, "vproxy_server_latency_seconds", serverLabels(i) + ",type=\"" + lh.name + "\"", lh);
+                    }
+                    histogram(s, "vproxy_server_latency_seconds", serverLabels(i) + ",type=\"" + h.healthCheckLatency.name + "\"", h.healthCheckLatency);
+                }),
+            new Family<>("vproxy_event_loop_queue_size", "gauge", "events waiting to run on the event loop",
+                this::loops, (i, s) -> sample(s, "vproxy_event_loop_queue_size", loopLabels(i),
+                    loopList.get(i).getSelectorEventLoop().queueSize())),
+            new Family<>("vproxy_event_loop_iterations", "counter", "rounds of the event loop",
+                this::loops, (i, s) -> sample(s, "vproxy_event_loop_iterations_total", loopLabels(i),
+                    loopStats(i).getIterations())),
+            new Family<>("vproxy_event_loop_seconds", "counter", "time spent by the event loop",
+                this::loops, (i, s) -> {
+                    SelectorEventLoopStats stats = loopStats(i);
+                    sample(s, "vproxy_event_loop_seconds_total", loopLabels(i) + ",phase=\"handling\"", stats.getHandlingNanos() / 1_000_000_000d);
+                    sample(s, "vproxy_event_loop_seconds_total", loopLabels(i) + ",phase=\"non-select\"", stats.getNonSelectNanos() / 1_000_000_000d);
+                    sample(s, "vproxy_event_loop_seconds_total", loopLabels(i) + ",phase=\"select\"", stats.getSelectNanos() / 1_000_000_000d);
+                }),
+            new Family<>("vproxy_event_loop_selected_keys", "counter", "keys selected by the event loop",
+                this::loops, (i, s) -> sample(s, "vproxy_event_loop_selected_keys_total", loopLabels(i),
+                    loopStats(i).getSelectedKeys())),
+            new Family<>("vproxy_event_loop_wakeups", "counter", "times the event loop is waken up by other threads",
+                this::loops, (i, s) -> sample(s, "vproxy_event_loop_wakeups_total", loopLabels(i),
+                    loopStats(i).getWakeups())),
+            new Family<>("vproxy_event_loop_timers", "gauge", "timer events pending on the event loop",
+                this::loops, (i, s) -> sample(s, "vproxy_event_loop_timers", loopLabels(i),
+                    loopStats(i).getTimers()))
+        );
+    }
+
+    private static class Family<T> {
+        final String name;
+        final String type;
+        final String help;
+        final Supplier<List<T>> items;
+        final BiConsumer<T, StringBuilder> render;
+
+        Family(String name, String type, String help, Supplier<List<T>> items, BiConsumer<T, StringBuilder> render) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.items = items;
+            this.render = render;
+        }
+
+        @SuppressWarnings("unchecked")
+        void render(Object item, StringBuilder sb) {
+            render.accept((T) item, sb);
+        }
+    }
+
+    void start() {
+        step();
+    }
+
+    private void step() {
+        if (ctx.connection.isClosed())
+            return; // the client is gone, stop rendering
+        while (sb.length() < CHUNK_SIZE) {
+            if (!renderNext()) {
+                sb.append("# EOF\n");
+                flush();
+                ctx.write("0\r\n\r\n".getBytes()); // the last chunk
+                return;
+            }
+        }
+        flush();
+        // render the next chunk after this one is written into the out buffer
+        ctx.whenWritesDone(this::step);
+    }
+
+    // render the header or one item
+    // return false if everything is rendered
+    private boolean renderNext() {
+        while (familyCursor < families.size()) {
+            Family<?> f = families.get(familyCursor);
+            if (itemCursor == -1) {
+                sb.append("# TYPE ").append(f.name).append(" ").append(f.type).append("\n");
+                sb.append("# HELP ").append(f.name).append(" ").append(f.help).append("\n");
+                currentItems = f.items.get();
+                itemCursor = 0;
+                return true;
+            }
+            if (itemCursor < currentItems.size()) {
+                f.render(currentItems.get(itemCursor++), sb);
+                return true;
+            }
+            ++familyCursor;
+            itemCursor = -1;
+            currentItems = null;
+        }
+        return false;
+    }
+
+    private void flush() {
+        if (sb.length() == 0)
+            return;
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        sb.setLength(0);
+        byte[] head = (Integer.toHexString(body.length) + "\r\n").getBytes();
+        byte[] chunk = new byte[head.length + body.length + 2];
+        System.arraycopy(head, 0, chunk, 0, head.length);
+        System.arraycopy(body, 0, chunk, head.length, body.length);
+        chunk[chunk.length - 2] = '\r';
+        chunk[chunk.length - 1] = '\n';
+        ctx.write(chunk);
+    }
+
+    private List<TcpLB> lbs() {
+        if (lbList == null) {
+            lbList = new ArrayList<>();
+            Application app = Application.get();
+            for (String name : app.tcpLBHolder.names()) {
+                try {
+                    lbList.add(app.tcpLBHolder.get(name));
+                } catch (NotFoundException ignore) {
+                    // removed when retrieving
+                }
+            }
+            for (String name : app.socks5ServerHolder.names()) {
+                try {
+                    lbList.add(app.socks5ServerHolder.get(name));
+                } catch (NotFoundException ignore) {
+                    // removed when retrieving
+                }
+            }
+        }
+        return lbList;
+    }
+
+    private List<ServerGroup> serverGroups() {
+        if (groupList == null) {
+            groupList = new ArrayList<>();
+            Application app = Application.get();
+            for (String name : app.serverGroupHolder.names()) {
+                try {
+                    groupList.add(app.serverGroupHolder.get(name));
+                } catch (NotFoundException ignore) {
+                    // removed when retrieving
+                }
+            }
+        }
+        return groupList;
+    }
+
+    // return indexes, use the index to retrieve the server and its group
+    private List<Integer> servers() {
+        if (serverList == null) {
+            serverList = new ArrayList<>();
+            serverGroupList = new ArrayList<>();
+            Application app = Application.get();
+            for (String name : app.serverGroupHolder.names()) {
+                ServerGroup sg;
+                try {
+                    sg = app.serverGroupHolder.get(name);
+                } catch (NotFoundException ignore) {
+                    continue; // removed when retrieving
+                }
+                for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+                    if (h.isLogicDelete())
+                        continue; // it's being replaced and has the same alias as another one
+                    serverList.add(h);
+                    serverGroupList.add(sg);
+                }
+            }
+        }
+        return indexes(serverList.size());
+    }
+
+    private List<Integer> loops() {
+        if (loopList == null) {
+            loopList = new ArrayList<>();
+            loopGroupList = new ArrayList<>();
+            Application app = Application.get();
+            for (String name : app.eventLoopGroupHolder.names()) {
+                EventLoopGroup elg;
+                try {
+                    elg = app.eventLoopGroupHolder.get(name);
+                } catch (NotFoundException ignore) {
+                    continue; // removed when retrieving
+                }
+                for (EventLoopWrapper w : elg.list()) {
+                    loopList.add(w);
+                    loopGroupList.add(elg);
+                }
+            }
+        }
+        return indexes(loopList.size());
+    }
+
+    private static List<Integer> indexes(int size) {
+        List<Integer> ls = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            ls.add(i);
+        }
+        return ls;
+    }
+
+    private static String lbLabels(TcpLB lb) {
+        return "lb=\"" + escape(lb.alias) + "\",kind=\"" + (lb instanceof Socks5Server ? "socks5-server" : "tcp-lb") + "\"";
+    }
+
+    private String serverLabels(int i) {
+        return "server_group=\"" + escape(serverGroupList.get(i).alias) + "\",server=\"" + escape(serverList.get(i).alias) + "\"";
+    }
+
+    private String loopLabels(int i) {
+        return "event_loop_group=\"" + escape(loopGroupList.get(i).alias) + "\",event_loop=\"" + escape(loopList.get(i).alias) + "\"";
+    }
+
+    private SelectorEventLoopStats loopStats(int i) {
+        return loopList.get(i).getSelectorEventLoop().stats();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append("{").append(labels).append("} ").append(value).append("\n");
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append("{").append(labels).append("} ").append(value).append("\n");
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        LatencyHistogram.Snapshot snapshot = h.snapshot();
+        for (int i = 0; i < LATENCY_BOUNDS.length; ++i) {
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(LATENCY_BOUNDS[i]).append("\"} ")
+                .append(snapshot.countBelow(LATENCY_BOUNDS_MICROS[i])).append("\n");
+        }
+        // the count is read separately from the buckets, use the sum of buckets instead
+        long count = snapshot.countBelow(Long.MAX_VALUE);
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append("\n");
+        sb.append(name).append("_count{").append(labels).append("} ").append(count).append("\n");
+        sb.append(name).append("_sum{").append(labels).append("} ").append(snapshot.sum / 1_000_000d).append("\n");
+    }
+
+    static String escape(String label) {
+        StringBuilder sb = null;
+        for (int i = 0; i < label.length(); ++i) {
+            char c = label.charAt(i);
+            if (c == '\\' || c == '"' || c == '\n') {
+                if (sb == null) {
+                    sb = new StringBuilder(label.substring(0, i));
+                }
+                sb.append('\\').append(c == '\n' ? 'n' : c);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? label : sb.toString();
+    }
+}
@@ -39,10 +39,14 @@ public class RESPController {
     }
 }
 
-class RESPControllerApplication implements RESPApplication<RESPApplicationContext> {
+class RESPControllerContext extends RESPApplicationContext {
+    final Command.Batch batch = new Command.Batch();
+}
+
+class RESPControllerApplication implements RESPApplication<RESPControllerContext> {
     @Override
-    public RESPApplicationContext context() {
-        return new RESPApplicationContext();
+    public RESPControllerContext context() {
+        return new RESPControllerContext();
     }
 
     @Override
@@ -51,7 +55,7 @@ class RESPControllerApplication implements RESPApplication<RESPApplicationContex
     }
 
     @Override
-    public void handle(Object o, RESPApplicationContext respApplicationContext, Callback<Object, Throwable> cb) {
+    public void handle(Object o, RESPControllerContext ctx, Callback<Object, Throwable> cb) {
         if (o == null) {
             cb.failed(new XException("cannot accept null"));
             return;
@@ -119,7 +123,9 @@ class RESPControllerApplication implements RESPApplication<RESPApplicationContex
             }
         };
 
-        if (SystemCommand.isSystemCall(line)) {
+        if (Command.Batch.isBatchCommand(line)) {
+            ctx.batch.handle(line, callback);
+        } else if (SystemCommand.isSystemCall(line)) {
             if (!SystemCommand.allowNonStdIOController) {
                 cb.failed(new XException("system call denied in RESPController"));
                 return;
@@ -137,6 +143,10 @@ class RESPControllerApplication implements RESPApplication<RESPApplicationContex
                 cb.failed(e); // callback failed
                 return;
             }
+            if (ctx.batch.queue(cmd)) {
+                cb.succeeded("QUEUED");
+                return;
+            }
             isListAction[0] = cmd.action == Action.l || cmd.action == Action.L;
             cmd.run(callback);
         }
@@ -3,6 +3,8 @@ package vproxy.component.app;
 import vproxy.app.*;
 import vproxy.app.cmd.CmdResult;
 import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Flag;
+import vproxy.app.cmd.handle.param.HealthCheckHandle;
 import vproxy.app.mesh.ServiceMeshMain;
 import vproxy.app.mesh.SmartLBGroupHolder;
 import vproxy.component.auto.AutoConfig;
@@ -21,6 +23,7 @@ import vproxy.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Shutdown {
     private Shutdown() {
@@ -54,6 +57,12 @@ public class Shutdown {
         } catch (Exception e) {
             System.err.println("SIGHUP not handled");
         }
+        try {
+            SignalHook.getInstance().sigUsr1(GracefulUpgrade::drain);
+            assert Logger.lowLevelDebug("SIGUSR1 handled");
+        } catch (Exception e) {
+            System.err.println("SIGUSR1 not handled");
+        }
         new Thread(() -> {
             while (true) {
                 sigIntTimes = 0;
@@ -70,12 +79,14 @@ public class Shutdown {
         endSaveAndQuit(0);
     }
 
-    private static void endSaveAndQuit(int exitCode) {
+    static void endSaveAndQuit(int exitCode) {
         end();
-        try {
-            save(null);
-        } catch (Exception e) {
-            Logger.shouldNotHappen("save failed", e);
+        if (!Config.configSavingDisabled) {
+            try {
+                save(null);
+            } catch (Exception e) {
+                Logger.shouldNotHappen("save failed", e);
+            }
         }
         System.exit(exitCode);
     }
@@ -105,13 +116,18 @@ public class Shutdown {
             throw new Exception("backup the file failed: " + bakF.getPath());
     }
 
-    public static void writePid(String filepath) throws Exception {
+    public static String pidFilePath(String filepath) {
         if (filepath == null) {
             filepath = System.getProperty("user.home") + File.separator + ".vproxy.pid";
         }
         if (filepath.startsWith("~")) {
             filepath = System.getProperty("user.home") + filepath.substring("~".length());
         }
+        return filepath;
+    }
+
+    public static void writePid(String filepath) throws Exception {
+        filepath = pidFilePath(filepath);
 
         backupAndRemove(filepath);
         File f = new File(filepath);
@@ -139,23 +155,30 @@ public class Shutdown {
         if (filepath.startsWith("~")) {
             filepath = System.getProperty("user.home") + filepath.substring("~".length());
         }
-        backupAndRemove(filepath);
-        File f = new File(filepath);
-        if (!f.createNewFile()) {
-            throw new Exception("create new file failed");
+        List<String> commands = currentConfigCommands();
+        ConfigJournal journal = ConfigJournal.get();
+        if (journal != null && journal.snapshotPath.equals(filepath)) {
+            // write the snapshot and truncate the journal
+            try {
+                journal.compact(commands).get();
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        } else {
+            ConfigJournal.writeAtomically(filepath, commands);
         }
-        FileOutputStream fos = new FileOutputStream(f);
-        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
-
-        String fileContent = currentConfig();
-        bw.write(fileContent);
-        bw.flush();
-
-        fos.close();
     }
 
     public static String currentConfig() {
-        List<String> commands = new LinkedList<>();
+        StringBuilder sb = new StringBuilder();
+        for (String cmd : currentConfigCommands()) {
+            sb.append(cmd).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public static List<String> currentConfigCommands() {
+        List<String> commands = new ArrayList<>();
 
         Application app = Application.get();
 
@@ -282,7 +305,11 @@ public class Shutdown {
 
                 String cmd = "add server-group " + sg.alias +
                     " timeout " + c.timeout + " period " + c.period + " up " + c.up + " down " + c.down +
+                    HealthCheckHandle.protocolArgs(c) +
                     " method " + sg.getMethod() + " event-loop-group " + sg.eventLoopGroup.alias;
+                if (sg.getOutlierDetectionConfig() != null) {
+                    cmd += " " + Flag.outlierdetection.fullname;
+                }
                 commands.add(cmd);
                 serverGroups.add(sg);
                 serverGroupsNames.add(name);
@@ -398,6 +425,12 @@ public class Shutdown {
                 if (!tl.securityGroup.alias.equals(SecurityGroup.defaultName)) {
                     cmd.append(" security-group ").append(tl.securityGroup.alias);
                 }
+                if (tl.connectionLimiter.getRate() != 0) {
+                    cmd.append(" conn-rate ").append(tl.connectionLimiter.getRate());
+                }
+                if (tl.connectionLimiter.getMaxConnections() != 0) {
+                    cmd.append(" max-conn ").append(tl.connectionLimiter.getMaxConnections());
+                }
                 if (tl.certKeys != null) {
                     cmd.append(" cert-key ").append(tl.certKeys[0].alias);
                     for (int i = 1; i < tl.certKeys.length; ++i) {
@@ -498,11 +531,7 @@ public class Shutdown {
                 }
             }
         }
-        StringBuilder sb = new StringBuilder();
-        for (String cmd : commands) {
-            sb.append(cmd).append("\n");
-        }
-        return sb.toString();
+        return commands;
     }
 
     @Blocking // the reading file process is blocking
@@ -517,46 +546,286 @@ public class Shutdown {
             filepath = System.getProperty("user.home") + filepath.substring("~".length());
         }
         File f = new File(filepath);
-        FileInputStream fis = new FileInputStream(f);
-        BufferedReader br = new BufferedReader(new InputStreamReader(fis));
         List<String> lines = new ArrayList<>();
-        String l;
-        while ((l = br.readLine()) != null) {
-            lines.add(l);
+        // the default file may not exist if the process crashed before the first compaction
+        if (f.exists() || !filepath.equals(defaultFilePath())) {
+            FileInputStream fis = new FileInputStream(f);
+            BufferedReader br = new BufferedReader(new InputStreamReader(fis));
+            String l;
+            while ((l = br.readLine()) != null) {
+                lines.add(l);
+            }
         }
-        List<Command> commands = new ArrayList<>();
+        // the journal only exists for the default file
+        List<String> journalLines;
+        if (filepath.equals(defaultFilePath())) {
+            journalLines = ConfigJournal.readJournal(filepath);
+            journalReplayed = true;
+        } else {
+            journalLines = Collections.emptyList();
+        }
+        long begin = System.nanoTime();
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "config-loading");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Command> commands;
+        try {
+            commands = parseOnLoading(lines, executor);
+        } catch (Exception e) {
+            executor.shutdown();
+            throw e;
+        }
+        LoadingReport report = new LoadingReport(begin, commands.size() + journalLines.size());
+        report.phaseDone("parse");
+
+        ConfigJournal.pause();
+        Callback<String, Throwable> done = new Callback<>() {
+            @Override
+            protected void onSucceeded(String value) {
+                ConfigJournal.resume();
+                executor.shutdown();
+                ConfigJournal journal = ConfigJournal.get();
+                if (journal != null) {
+                    // the commands are not recorded while loading,
+                    // and the loaded file may not be the snapshot,
+                    // so the snapshot is replaced by the current config
+                    journal.compact(currentConfigCommands());
+                }
+                String str = report.toString();
+                Logger.info(LogType.ALERT, str);
+                cb.succeeded(str);
+            }
+
+            @Override
+            protected void onFailed(Throwable err) {
+                ConfigJournal.resume();
+                executor.shutdown();
+                cb.failed(err);
+            }
+        };
+        runCommandsOnLoading(planLoading(commands), 0, executor, report, new Callback<>() {
+            @Override
+            protected void onSucceeded(String value) {
+                if (journalLines.isEmpty()) {
+                    done.succeeded(value);
+                    return;
+                }
+                replayJournal(journalLines, 0, new Callback<>() {
+                    @Override
+                    protected void onSucceeded(Void v) {
+                        report.phaseDone("journal");
+                        done.succeeded(value);
+                    }
+
+                    @Override
+                    protected void onFailed(Throwable err) {
+                        done.failed(err);
+                    }
+                });
+            }
+
+            @Override
+            protected void onFailed(Throwable err) {
+                done.failed(err);
+            }
+        });
+    }
+
+    private static volatile boolean journalReplayed = false;
+
+    /**
+     * start journaling the changes of the default config file,
+     * should be called after the last config is loaded (or not loaded)
+     */
+    public static void startJournal() throws IOException {
+        ConfigJournal.start(defaultFilePath(), journalReplayed, ConfigJournal.DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    // the journal is written after the snapshot, so a command may fail
+    // if the change is already in the snapshot, just log it and go on
+    private static void replayJournal(List<String> lines, int idx, Callback<Void, Throwable> cb) {
+        if (idx >= lines.size()) {
+            cb.succeeded(null);
+            return;
+        }
+        String line = lines.get(idx);
+        Command cmd;
+        try {
+            cmd = Command.parseStrCmd(line);
+        } catch (Exception e) {
+            Logger.warn(LogType.ALERT, "parse journal command `" + line + "` failed: " + Utils.formatErr(e));
+            replayJournal(lines, idx + 1, cb);
+            return;
+        }
+        cmd.run(new Callback<>() {
+            @Override
+            protected void onSucceeded(CmdResult value) {
+                replayJournal(lines, idx + 1, cb);
+            }
+
+            @Override
+            protected void onFailed(Throwable err) {
+                Logger.warn(LogType.ALERT, "replay journal command `" + line + "` failed: " + Utils.formatErr(err));
+                replayJournal(lines, idx + 1, cb);
+            }
+        });
+    }
+
+    // parsing may resolve host names, so the lines are parsed on the executor
+    // the result is in the same order as the lines
+    private static List<Command> parseOnLoading(List<String> lines, ExecutorService executor) throws Exception {
+        List<Future<Command>> futures = new ArrayList<>(lines.size());
         for (String line : lines) {
-            Logger.info(LogType.BEFORE_PARSING_CMD, line);
-            Command cmd;
+            futures.add(executor.submit(() -> {
+                Logger.info(LogType.BEFORE_PARSING_CMD, line);
+                Command cmd;
+                try {
+                    cmd = Command.parseStrCmd(line);
+                } catch (Exception e) {
+                    Logger.warn(LogType.AFTER_PARSING_CMD, "parse command `" + line + "` failed");
+                    throw e;
+                }
+                Logger.info(LogType.AFTER_PARSING_CMD, cmd.toString());
+                return cmd;
+            }));
+        }
+        List<Command> commands = new ArrayList<>(lines.size());
+        for (Future<Command> future : futures) {
             try {
-                cmd = Command.parseStrCmd(line);
-            } catch (Exception e) {
-                Logger.warn(LogType.AFTER_PARSING_CMD, "parse command `" + line + "` failed");
+                commands.add(future.get());
+            } catch (ExecutionException e) {
+                for (Future<Command> fu : futures) {
+                    fu.cancel(false);
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
                 throw e;
             }
-            Logger.info(LogType.AFTER_PARSING_CMD, cmd.toString());
-            commands.add(cmd);
         }
-        runCommandsOnLoading(commands, 0, cb);
+        return commands;
+    }
+
+    // a group of batches which run one by one,
+    // or at the same time if they are `add server` batches on different server groups
+    private static class LoadingStage {
+        final List<List<Command>> batches = new ArrayList<>();
+        final Set<String> serverGroups = new HashSet<>();
+        final boolean parallel;
+        final String phase; // resource type, used in the report
+
+        LoadingStage(boolean parallel, String phase) {
+            this.parallel = parallel;
+            this.phase = phase;
+        }
+    }
+
+    // the commands keep their order, which already follows the dependency of resources
+    // (event-loop-groups -> server-groups -> servers -> lbs) when the file is saved by vproxy,
+    // and only the consecutive `add server` batches on different server groups are run in parallel
+    private static List<LoadingStage> planLoading(List<Command> commands) {
+        List<LoadingStage> stages = new ArrayList<>();
+        LoadingStage last = null;
+        for (List<Command> batch : Command.splitIntoBatches(commands)) {
+            String phase = batch.get(0).resource.type.fullname;
+            if (Command.isAddServerBatch(batch)) {
+                String sg = batch.get(0).prepositionResource.toString();
+                if (last == null || !last.parallel || last.serverGroups.contains(sg)) {
+                    last = new LoadingStage(true, phase);
+                    stages.add(last);
+                }
+                last.serverGroups.add(sg);
+            } else if (last == null || last.parallel || !last.phase.equals(phase)) {
+                last = new LoadingStage(false, phase);
+                stages.add(last);
+            }
+            last.batches.add(batch);
+        }
+        return stages;
     }
 
-    private static void runCommandsOnLoading(List<Command> commands, int idx, Callback<String, Throwable> cb) {
-        if (idx >= commands.size()) {
+    private static void runCommandsOnLoading(List<LoadingStage> stages, int idx, Executor executor, LoadingReport report, Callback<String, Throwable> cb) {
+        if (idx >= stages.size()) {
             // done
             cb.succeeded("");
             return;
         }
-        Command cmd = commands.get(idx);
-        cmd.run(new Callback<>() {
+        LoadingStage stage = stages.get(idx);
+        Callback<CmdResult, Throwable> next = new Callback<>() {
             @Override
             protected void onSucceeded(CmdResult value) {
-                runCommandsOnLoading(commands, idx + 1, cb);
+                report.phaseDone(stage.phase);
+                runCommandsOnLoading(stages, idx + 1, executor, report, cb);
             }
 
             @Override
             protected void onFailed(Throwable err) {
                 cb.failed(err);
             }
-        });
+        };
+        if (stage.parallel) {
+            // only the servers being loaded spread their first health checks
+            Command.runAddServerBatchesInParallel(stage.batches, executor, Config.healthCheckStartupSpread, next);
+        } else {
+            runBatchesOnLoading(stage.batches, 0, next);
+        }
+    }
+
+    private static void runBatchesOnLoading(List<List<Command>> batches, int idx, Callback<CmdResult, Throwable> cb) {
+        if (idx >= batches.size()) {
+            cb.succeeded(new CmdResult());
+            return;
+        }
+        List<Command> batch = batches.get(idx);
+        Callback<CmdResult, Throwable> next = new Callback<>() {
+            @Override
+            protected void onSucceeded(CmdResult value) {
+                runBatchesOnLoading(batches, idx + 1, cb);
+            }
+
+            @Override
+            protected void onFailed(Throwable err) {
+                cb.failed(err);
+            }
+        };
+        if (batch.size() == 1) {
+            batch.get(0).run(next);
+        } else {
+            Command.runBatch(batch, next);
+        }
+    }
+
+    // time cost of each phase of loading
+    private static class LoadingReport {
+        private final long begin;
+        private final int commandCount;
+        private final Map<String, Long> phases = new LinkedHashMap<>(); // phase -> nanos
+        private long last;
+
+        LoadingReport(long begin, int commandCount) {
+            this.begin = begin;
+            this.last = begin;
+            this.commandCount = commandCount;
+        }
+
+        void phaseDone(String phase) {
+            long now = System.nanoTime();
+            phases.merge(phase, now - last, Long::sum);
+            last = now;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(commandCount).append(" commands loaded in ").append((last - begin) / 1_000_000).append("ms:");
+            for (Map.Entry<String, Long> e : phases.entrySet()) {
+                sb.append(" ").append(e.getKey()).append(" ").append(e.getValue() / 1_000_000).append("ms,");
+            }
+            sb.setLength(sb.length() - 1);
+            return sb.toString();
+        }
     }
 }
@@ -12,6 +12,7 @@ import java.util.Scanner;
 
 public class StdIOController {
     private static final String STARTER = "> ";
+    private static final Command.Batch batch = new Command.Batch();
 
     @SuppressWarnings("InfiniteLoopStatement")
     public void start() {
@@ -33,7 +34,9 @@ public class StdIOController {
                 stdoutSync(Application.get().version);
                 continue;
             }
-            if (SystemCommand.isSystemCall(line)) {
+            if (Command.Batch.isBatchCommand(line)) {
+                batch.handle(line, new ResultCallback(line));
+            } else if (SystemCommand.isSystemCall(line)) {
                 handleSystemCall(line);
             } else {
                 handleCommand(line);
@@ -46,6 +49,7 @@ public class StdIOController {
     }
 
     private static final String DONE_STR = "(done)";
+    private static final String QUEUED_STR = "(queued)";
 
     private static void stdoutSync(String msg) {
         System.out.println(msg);
@@ -77,6 +81,10 @@ public class StdIOController {
             stderrSync("parse cmd failed! " + Utils.formatErr(e) + " ... type `help` to show the help message");
             return;
         }
+        if (batch.queue(c)) {
+            stdoutSync(QUEUED_STR);
+            return;
+        }
         c.run(new ResultCallback(line));
     }
 
@@ -1,5 +1,6 @@
 package vproxy.component.app;
 
+import vproxy.app.Config;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.elgroup.EventLoopGroupAttach;
 import vproxy.component.elgroup.EventLoopWrapper;
@@ -7,6 +8,7 @@ import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.ClosedException;
 import vproxy.component.exception.NotFoundException;
 import vproxy.component.proxy.*;
+import vproxy.component.secure.ConnectionLimiter;
 import vproxy.component.secure.SecurityGroup;
 import vproxy.component.ssl.CertKey;
 import vproxy.component.svrgroup.ServerGroups;
@@ -76,6 +78,9 @@ public class TcpLB {
     public final SSLContext sslContext;
     public final CertKey[] certKeys;
     public SecurityGroup securityGroup;
+    // limits connections from each source, checked before buffers are allocated
+    public final ConnectionLimiter connectionLimiter = new ConnectionLimiter();
+    public final SessionLatency latency = new SessionLatency();
     // the modifiable fields only have effect when new connection arrives
 
     // true means the lb is stopped, but it can still re-start.
@@ -180,20 +185,36 @@ public class TcpLB {
     private ProxyNetConfig getProxyNetConfig(BindServer server, NetEventLoop eventLoop) {
         return new ProxyNetConfig()
             .setConnGen(provideConnectorGen())
-            .setHandleLoopProvider(() -> {
-                // get a event loop from group
-                EventLoopWrapper w = workerGroup.next();
-                if (w == null)
-                    return null; // return null if cannot get any
-                assert Logger.lowLevelDebug("use event loop: " + w.alias);
-                return w;
+            .setHandleLoopProvider(new NetEventLoopProvider() {
+                @Override
+                public NetEventLoop get() {
+                    // get a event loop from group
+                    EventLoopWrapper w = workerGroup.next(maxWorkerQueueSize());
+                    if (w == null)
+                        return null; // return null if cannot get any
+                    assert Logger.lowLevelDebug("use event loop: " + w.alias);
+                    return w;
+                }
+
+                @Override
+                public boolean busy() {
+                    int limit = Config.workerQueueLimit;
+                    return limit > 0 && workerGroup.isBusy(limit);
+                }
             })
             .setTimeout(timeout)
             .setInBufferSize(inBufferSize)
             .setOutBufferSize(outBufferSize)
             .setServer(server)
             .setAcceptLoop(eventLoop)
-            .setSslContext(sslContext);
+            .setSslContext(sslContext)
+            .setConnectionLimiter(connectionLimiter)
+            .setLatency(latency);
+    }
+
+    private static int maxWorkerQueueSize() {
+        int limit = Config.workerQueueLimit;
+        return limit > 0 ? limit : Integer.MAX_VALUE;
     }
 
     public void start() throws IOException {
@@ -219,13 +240,16 @@ public class TcpLB {
             }
 
             // check for binding
-            BindServer.checkBind(this.bindAddress);
+            // when upgrading, the address is still held by the old process, and will be shared by SO_REUSEPORT
+            if (!Config.upgrading) {
+                BindServer.checkBind(this.bindAddress);
+            }
             for (EventLoopWrapper w : eventLoops) {
                 if (alreadyBondLoops.contains(w))
                     continue; // ignore already bond loops
 
                 // start one server for each new event loop
-                BindServer server = BindServer.create(this.bindAddress);
+                BindServer server = BindServer.create(this.bindAddress, Config.backlog);
                 ProxyNetConfig proxyNetConfig = getProxyNetConfig(server, w);
                 Proxy proxy = new Proxy(proxyNetConfig, proxyEventHandler);
 
@@ -3,4 +3,7 @@ package vproxy.component.check;
 public enum CheckProtocol {
     tcp,
     tcpDelay,
+    http, // send a GET request and check the status and body of the response
+    resp, // send a redis PING command and expect PONG
+    dubbo, // send a dubbo heartbeat request and expect an OK heartbeat response
 }
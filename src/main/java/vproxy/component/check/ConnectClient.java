@@ -2,6 +2,7 @@ package vproxy.component.check;
 
 import vproxy.connection.*;
 import vproxy.selector.TimerEvent;
+import vproxy.util.ByteArrayChannel;
 import vproxy.util.Callback;
 import vproxy.util.Logger;
 import vproxy.util.RingBuffer;
@@ -12,6 +13,8 @@ import java.nio.channels.InterruptedByTimeoutException;
 
 // connect to target address then close the connection
 // it's useful when running health check
+// for application layer protocols, a request is sent and the response is checked,
+// and the connection may be kept for next checks
 public class ConnectClient {
     class ConnectClientConnectionHandler implements ClientConnectionHandler {
         private final Callback<Void, IOException> callback;
@@ -101,23 +104,145 @@ public class ConnectClient {
         }
     }
 
+    class ProbeConnectionHandler implements ClientConnectionHandler {
+        private final ClientConnection conn;
+        private boolean connected = false;
+        private Callback<Void, IOException> callback; // the running check, null if idle
+        private TimerEvent timeoutEvent;
+
+        ProbeConnectionHandler(ClientConnection conn) {
+            this.conn = conn;
+        }
+
+        void check(Callback<Void, IOException> cb) {
+            callback = cb;
+            // the timeout covers connecting, sending the request and receiving the response
+            timeoutEvent = eventLoop.getSelectorEventLoop().delay(timeout, () -> {
+                assert Logger.lowLevelDebug("timeout when doing health check " + conn);
+                timeoutEvent = null;
+                finish(new InterruptedByTimeoutException());
+            });
+            if (connected) {
+                sendRequest();
+            }
+        }
+
+        private void sendRequest() {
+            byte[] req = probe.request();
+            if (conn.getOutBuffer().storeBytesFrom(ByteArrayChannel.fromFull(req)) != req.length) {
+                finish(new IOException("the health check request is too large"));
+            }
+        }
+
+        @Override
+        public void connected(ClientConnectionHandlerContext ctx) {
+            connected = true;
+            if (callback != null) {
+                sendRequest();
+            }
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            if (callback == null) {
+                // not expecting any data when idle
+                assert Logger.lowLevelDebug("got unexpected data from " + conn + ", close it");
+                conn.close();
+                return;
+            }
+            int res = probe.feed(conn.getInBuffer());
+            if (res == HealthCheckProbe.WANT_MORE)
+                return;
+            if (res == HealthCheckProbe.SUCCEEDED) {
+                finish(null);
+            } else {
+                finish(new IOException(probe.errorMessage));
+            }
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            // the request is small enough to be stored in the out buffer
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            assert Logger.lowLevelDebug("exception when doing health check, conn = " + conn + ", err = " + err);
+            conn.close();
+            finish(err);
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            // the check fails if the remote closes the connection before responding
+            finish(new IOException("remote closed"));
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            conn.close();
+            finish(new IOException("removed from event loop"));
+        }
+
+        // err == null means the check succeeded
+        private void finish(IOException err) {
+            Callback<Void, IOException> cb = callback;
+            callback = null;
+            if (timeoutEvent != null) {
+                timeoutEvent.cancel();
+                timeoutEvent = null;
+            }
+            // only keep the connection when it's healthy
+            if (err != null || !persistent || probe.remoteWantsClose) {
+                conn.close();
+            }
+            if (cb == null || cb.isCalled() || stopped)
+                return;
+            if (err == null) {
+                cb.succeeded(null);
+            } else {
+                cb.failed(err);
+            }
+        }
+    }
+
+    private static final int PROBE_BUFFER_SIZE = 4096;
+
     public final NetEventLoop eventLoop;
     public final InetSocketAddress remote;
     public final CheckProtocol checkProtocol;
     public final int timeout;
     private boolean stopped = false;
 
+    private final HealthCheckProbe probe; // null for tcp checks
+    private final boolean persistent;
+    // the connection kept for the next check, may be null or closed
+    private ClientConnection probeConn;
+    private ProbeConnectionHandler probeHandler;
+
     public ConnectClient(NetEventLoop eventLoop,
                          InetSocketAddress remote,
                          CheckProtocol checkProtocol,
                          int timeout) {
+        this(eventLoop, remote, new HealthCheckConfig(timeout, 0, 0, 0, checkProtocol));
+    }
+
+    public ConnectClient(NetEventLoop eventLoop,
+                         InetSocketAddress remote,
+                         HealthCheckConfig config) {
         this.eventLoop = eventLoop;
         this.remote = remote;
-        this.checkProtocol = checkProtocol;
-        this.timeout = timeout;
+        this.checkProtocol = config.checkProtocol;
+        this.timeout = config.timeout;
+        this.probe = HealthCheckProbe.create(config, remote);
+        this.persistent = probe != null && config.persistent;
     }
 
     public void handle(Callback<Void, IOException> cb) {
+        if (probe != null) {
+            handleProbe(cb);
+            return;
+        }
         // connect to remote
         ClientConnection conn;
         try {
@@ -147,7 +272,43 @@ public class ConnectClient {
         }
     }
 
+    private void handleProbe(Callback<Void, IOException> cb) {
+        if (probeConn != null && !probeConn.isClosed()) {
+            // reuse the connection
+            probeHandler.check(cb);
+            return;
+        }
+        ClientConnection conn;
+        try {
+            conn = ClientConnection.create(remote, ConnectionOpts.getDefault(),
+                RingBuffer.allocate(PROBE_BUFFER_SIZE), RingBuffer.allocate(PROBE_BUFFER_SIZE));
+        } catch (IOException e) {
+            if (!stopped) cb.failed(e);
+            return;
+        }
+        ProbeConnectionHandler handler = new ProbeConnectionHandler(conn);
+        handler.check(cb); // the request will be sent when connected
+        try {
+            eventLoop.addClientConnection(conn, null, handler);
+        } catch (IOException e) {
+            conn.close();
+            handler.finish(e);
+            return;
+        }
+        if (persistent) {
+            probeConn = conn;
+            probeHandler = handler;
+        }
+    }
+
     public void stop() {
         stopped = true;
+        ClientConnection conn = probeConn;
+        probeConn = null;
+        probeHandler = null;
+        if (conn != null) {
+            // close the kept connection on loop thread
+            eventLoop.getSelectorEventLoop().runOnLoop(conn::close);
+        }
     }
 }
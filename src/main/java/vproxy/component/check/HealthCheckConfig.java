@@ -1,26 +1,73 @@
 package vproxy.component.check;
 
 public class HealthCheckConfig {
+    public static final String DEFAULT_HTTP_URI = "/";
+    public static final String DEFAULT_HTTP_STATUS = "2xx";
+
     public final int timeout;
     public final int period;
     public final int up;
     public final int down;
     public final CheckProtocol checkProtocol;
+    // keep one connection for checking instead of making a new connection every period
+    // only used by application layer protocols: http, resp and dubbo
+    public final boolean persistent;
+    // the following fields are only used by http checks
+    public final String httpUri;
+    public final String httpStatus; // e.g. 200 or 2xx
+    public final String httpBody; // the response body should contain this string, may be null
 
     public HealthCheckConfig(int timeout, int period, int up, int down) {
         this(timeout, period, up, down, CheckProtocol.tcp);
     }
 
     public HealthCheckConfig(int timeout, int period, int up, int down, CheckProtocol checkProtocol) {
+        this(timeout, period, up, down, checkProtocol, false, DEFAULT_HTTP_URI, DEFAULT_HTTP_STATUS, null);
+    }
+
+    public HealthCheckConfig(int timeout, int period, int up, int down, CheckProtocol checkProtocol,
+                             boolean persistent, String httpUri, String httpStatus, String httpBody) {
+        if (!validHttpStatus(httpStatus))
+            throw new IllegalArgumentException("invalid http status " + httpStatus);
+        if (httpUri == null || !httpUri.startsWith("/"))
+            throw new IllegalArgumentException("invalid http uri " + httpUri);
         this.timeout = timeout;
         this.period = period;
         this.up = up;
         this.down = down;
         this.checkProtocol = checkProtocol;
+        this.persistent = persistent;
+        this.httpUri = httpUri;
+        this.httpStatus = httpStatus;
+        this.httpBody = httpBody;
     }
 
     public HealthCheckConfig(HealthCheckConfig c) {
-        this(c.timeout, c.period, c.up, c.down, c.checkProtocol);
+        this(c.timeout, c.period, c.up, c.down, c.checkProtocol, c.persistent, c.httpUri, c.httpStatus, c.httpBody);
+    }
+
+    // 3 digits, or a digit followed by xx
+    public static boolean validHttpStatus(String status) {
+        if (status == null || status.length() != 3)
+            return false;
+        char c = status.charAt(0);
+        if (c < '1' || c > '5')
+            return false;
+        if (status.endsWith("xx"))
+            return true;
+        for (int i = 1; i < 3; ++i) {
+            c = status.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    boolean httpStatusMatch(int statusCode) {
+        if (httpStatus.endsWith("xx")) {
+            return statusCode / 100 == httpStatus.charAt(0) - '0';
+        }
+        return statusCode == Integer.parseInt(httpStatus);
     }
 
     @Override
@@ -31,6 +78,10 @@ public class HealthCheckConfig {
             ", up=" + up +
             ", down=" + down +
             ", checkProtocol=\"" + checkProtocol + '\"' +
+            ", persistent=" + persistent +
+            ", httpUri=\"" + httpUri + '\"' +
+            ", httpStatus=\"" + httpStatus + '\"' +
+            ", httpBody=" + (httpBody == null ? "null" : "\"" + httpBody + '\"') +
             '}';
     }
 }
@@ -0,0 +1,220 @@
+package vproxy.component.check;
+
+import vproxy.http.HttpRespParser;
+import vproxy.processor.http1.entity.Chunk;
+import vproxy.processor.http1.entity.Header;
+import vproxy.processor.http1.entity.Response;
+import vproxy.redis.RESPParser;
+import vproxy.redis.entity.RESP;
+import vproxy.redis.entity.RESPError;
+import vproxy.redis.entity.RESPString;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.RingBuffer;
+import vproxy.util.Utils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The request and response of an application layer health check.
+ * <p>
+ * One probe object is used for all checks on one backend,
+ * and the checks are done one by one, so a probe handles only one pending response at a time.
+ */
+abstract class HealthCheckProbe {
+    static final int WANT_MORE = 0;
+    static final int SUCCEEDED = 1;
+    static final int FAILED = 2;
+
+    String errorMessage;
+    // set when the remote wants the connection to be closed after the response
+    boolean remoteWantsClose = false;
+
+    // start a new check and return the request to send
+    abstract byte[] request();
+
+    // feed the received bytes, returns WANT_MORE, SUCCEEDED or FAILED
+    abstract int feed(RingBuffer in);
+
+    static HealthCheckProbe create(HealthCheckConfig config, InetSocketAddress remote) {
+        switch (config.checkProtocol) {
+            case http:
+                return new Http(config, remote);
+            case resp:
+                return new RespPing();
+            case dubbo:
+                return new DubboHeartbeat();
+            default:
+                return null; // tcp checks do not send anything
+        }
+    }
+
+    static class Http extends HealthCheckProbe {
+        private final HealthCheckConfig config;
+        private final byte[] request;
+        private HttpRespParser parser;
+
+        Http(HealthCheckConfig config, InetSocketAddress remote) {
+            this.config = config;
+            this.request = ("" +
+                "GET " + config.httpUri + " HTTP/1.1\r\n" +
+                "Host: " + Utils.ipStr(remote.getAddress().getAddress()) + ":" + remote.getPort() + "\r\n" +
+                "User-Agent: vproxy-health-check\r\n" +
+                "Connection: " + (config.persistent ? "keep-alive" : "close") + "\r\n" +
+                "\r\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        byte[] request() {
+            parser = new HttpRespParser(true);
+            return request;
+        }
+
+        @Override
+        int feed(RingBuffer in) {
+            if (parser.feed(in) != 0) {
+                if (parser.getErrorMessage() != null) {
+                    errorMessage = "invalid http response: " + parser.getErrorMessage();
+                    return FAILED;
+                }
+                return WANT_MORE;
+            }
+            Response resp = parser.getResult();
+            if (resp.headers != null) {
+                for (Header h : resp.headers) {
+                    if (h.key.trim().equalsIgnoreCase("connection") && h.value.trim().equalsIgnoreCase("close")) {
+                        remoteWantsClose = true;
+                        break;
+                    }
+                }
+            }
+            if (!config.httpStatusMatch(resp.statusCode)) {
+                errorMessage = "unexpected http status " + resp.statusCode;
+                return FAILED;
+            }
+            if (config.httpBody != null && !body(resp).contains(config.httpBody)) {
+                errorMessage = "http response body does not contain " + config.httpBody;
+                return FAILED;
+            }
+            return SUCCEEDED;
+        }
+
+        private static String body(Response resp) {
+            if (resp.body != null) {
+                return new String(resp.body.toJavaArray(), StandardCharsets.UTF_8);
+            }
+            if (resp.chunks != null) {
+                StringBuilder sb = new StringBuilder();
+                for (Chunk c : resp.chunks) {
+                    if (c.content != null) {
+                        sb.append(new String(c.content.toJavaArray(), StandardCharsets.UTF_8));
+                    }
+                }
+                return sb.toString();
+            }
+            return "";
+        }
+    }
+
+    static class RespPing extends HealthCheckProbe {
+        private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.UTF_8);
+        private RESPParser parser;
+
+        @Override
+        byte[] request() {
+            parser = new RESPParser(64);
+            return PING;
+        }
+
+        @Override
+        int feed(RingBuffer in) {
+            if (parser.feed(in) != 0) {
+                if (parser.getErrorMessage() != null) {
+                    errorMessage = "invalid resp response: " + parser.getErrorMessage();
+                    return FAILED;
+                }
+                return WANT_MORE;
+            }
+            RESP resp = parser.getResult();
+            if (resp instanceof RESPString && ((RESPString) resp).string.toString().equalsIgnoreCase("PONG")) {
+                return SUCCEEDED;
+            }
+            // the server requires auth, but it's still able to handle commands
+            if (resp instanceof RESPError && ((RESPError) resp).error.toString().startsWith("NOAUTH")) {
+                return SUCCEEDED;
+            }
+            errorMessage = "unexpected response for PING: " + resp;
+            return FAILED;
+        }
+    }
+
+    static class DubboHeartbeat extends HealthCheckProbe {
+        private static final int HEAD_LEN = 16;
+        private static final byte FLAG_REQUEST = (byte) 0x80;
+        private static final byte FLAG_TWO_WAY = 0x40;
+        private static final byte FLAG_EVENT = 0x20;
+        private static final byte HESSIAN2 = 2;
+        private static final byte STATUS_OK = 20;
+
+        private long requestId = 0;
+        private final byte[] head = new byte[HEAD_LEN];
+        private final ByteArrayChannel headChnl = ByteArrayChannel.fromEmpty(head);
+        private int bodyLeft = -1; // -1 means reading the head
+
+        @Override
+        byte[] request() {
+            ++requestId;
+            headChnl.reset();
+            bodyLeft = -1;
+
+            byte[] req = new byte[HEAD_LEN + 1];
+            req[0] = (byte) 0xda;
+            req[1] = (byte) 0xbb;
+            req[2] = (byte) (FLAG_REQUEST | FLAG_TWO_WAY | FLAG_EVENT | HESSIAN2);
+            req[3] = 0; // status is not used in requests
+            for (int i = 0; i < 8; ++i) {
+                req[4 + i] = (byte) (requestId >> (8 * (7 - i)));
+            }
+            req[15] = 1; // body length
+            req[16] = 'N'; // hessian2 null, the heartbeat data
+            return req;
+        }
+
+        @Override
+        int feed(RingBuffer in) {
+            if (bodyLeft == -1) {
+                in.writeTo(headChnl);
+                if (headChnl.free() != 0)
+                    return WANT_MORE;
+                if (head[0] != (byte) 0xda || head[1] != (byte) 0xbb) {
+                    errorMessage = "invalid dubbo magic";
+                    return FAILED;
+                }
+                long id = 0;
+                for (int i = 0; i < 8; ++i) {
+                    id = (id << 8) | (head[4 + i] & 0xff);
+                }
+                if ((head[2] & FLAG_REQUEST) != 0 || (head[2] & FLAG_EVENT) == 0 || id != requestId) {
+                    errorMessage = "not a response of the heartbeat";
+                    return FAILED;
+                }
+                if (head[3] != STATUS_OK) {
+                    errorMessage = "unexpected dubbo status " + head[3];
+                    return FAILED;
+                }
+                bodyLeft = ((head[12] & 0xff) << 24) | ((head[13] & 0xff) << 16) | ((head[14] & 0xff) << 8) | (head[15] & 0xff);
+                if (bodyLeft < 0) {
+                    errorMessage = "invalid dubbo body length";
+                    return FAILED;
+                }
+            }
+            // skip the body
+            while (bodyLeft > 0 && in.used() > 0) {
+                byte[] skip = new byte[Math.min(bodyLeft, in.used())];
+                in.writeTo(ByteArrayChannel.fromEmpty(skip));
+                bodyLeft -= skip.length;
+            }
+            return bodyLeft == 0 ? SUCCEEDED : WANT_MORE;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package vproxy.component.check;
+
+import vproxy.app.Config;
+import vproxy.connection.NetEventLoop;
+import vproxy.selector.PeriodicEvent;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.Callback;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs health checks of all servers.
+ * <p>
+ * Checks with the same remote address and the same check config are merged into one target,
+ * which is checked once per period, and the result is dispatched to all subscribers on their own loops.
+ * Each event loop has one scheduler, which spreads the checks across the period window with random jitter,
+ * and the count of running checks of all loops is capped by {@link Config#healthCheckMaxInFlight}.
+ * When a large config is being loaded, the first checks of the new targets can be spread
+ * over a window given on subscribing instead of running all at once.
+ */
+public class HealthCheckScheduler {
+    private static final int TICK = 10; // ms
+    private static final double JITTER = 0.1; // each period is randomly changed by at most 10%
+
+    interface Subscriber {
+        NetEventLoop eventLoop();
+
+        // called on the subscriber's event loop
+        void onResult(boolean succeeded, long costNanos);
+    }
+
+    private static class Key {
+        final InetSocketAddress remote;
+        final HealthCheckConfig config;
+
+        Key(InetSocketAddress remote, HealthCheckConfig config) {
+            this.remote = remote;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            HealthCheckConfig c = key.config;
+            // up and down are counted by each subscriber
+            return remote.equals(key.remote) &&
+                config.timeout == c.timeout &&
+                config.period == c.period &&
+                config.checkProtocol == c.checkProtocol &&
+                config.persistent == c.persistent &&
+                config.httpUri.equals(c.httpUri) &&
+                config.httpStatus.equals(c.httpStatus) &&
+                Objects.equals(config.httpBody, c.httpBody);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remote, config.timeout, config.period, config.checkProtocol);
+        }
+    }
+
+    private static class Target {
+        final Key key;
+        final HealthCheckScheduler scheduler;
+        final ConnectClient client;
+        final List<Subscriber> subscribers = new CopyOnWriteArrayList<>(); // modified with the lock held
+
+        // the following fields are only accessed on the scheduler's loop
+        long scheduledAt; // nanos
+        boolean first = true;
+        boolean waiting = false;
+        boolean running = false;
+        boolean removed = false;
+
+        Target(Key key, HealthCheckScheduler scheduler) {
+            this.key = key;
+            this.scheduler = scheduler;
+            this.client = new ConnectClient(scheduler.loop, key.remote, key.config);
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final Target target;
+
+        Entry(long time, Target target) {
+            this.time = time;
+            this.target = target;
+        }
+    }
+
+    public static class Subscription {
+        private final Key key;
+        private final Subscriber subscriber;
+
+        private Subscription(Key key, Subscriber subscriber) {
+            this.key = key;
+            this.subscriber = subscriber;
+        }
+
+        public void cancel() {
+            unsubscribe(key, subscriber);
+        }
+    }
+
+    private static final Object lock = new Object();
+    private static final Map<Key, Target> targets = new HashMap<>(); // guarded by lock
+    private static final Map<SelectorEventLoop, HealthCheckScheduler> schedulers = new HashMap<>(); // guarded by lock
+    private static final AtomicInteger inFlight = new AtomicInteger(0);
+    private static final LongAdder deferred = new LongAdder();
+
+    private final NetEventLoop loop;
+    private int targetCount = 0; // guarded by lock
+    // the following fields are only accessed on the loop
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(Comparator.comparingLong(e -> e.time));
+    private final Deque<Target> waiting = new ArrayDeque<>(); // due but the in-flight cap is reached
+    private int active = 0;
+    private PeriodicEvent tick;
+
+    private HealthCheckScheduler(NetEventLoop loop) {
+        this.loop = loop;
+    }
+
+    // the first check of a new target runs randomly in `firstCheckSpread` ms (capped by the period), 0 means immediately
+    static Subscription subscribe(NetEventLoop loop, InetSocketAddress remote, HealthCheckConfig config, int firstCheckSpread, Subscriber subscriber) {
+        Key key = new Key(remote, new HealthCheckConfig(config));
+        synchronized (lock) {
+            Target t = targets.get(key);
+            if (t == null) {
+                t = new Target(key, scheduler(loop));
+                t.subscribers.add(subscriber);
+                targets.put(key, t);
+                t.scheduler.add(t, firstCheckSpread);
+            } else {
+                t.subscribers.add(subscriber);
+                t.scheduler.checkSoon(t); // let the new subscriber get a result soon
+            }
+        }
+        return new Subscription(key, subscriber);
+    }
+
+    private static void unsubscribe(Key key, Subscriber subscriber) {
+        synchronized (lock) {
+            Target t = targets.get(key);
+            if (t == null || !t.subscribers.remove(subscriber))
+                return;
+            if (t.subscribers.isEmpty()) {
+                targets.remove(key);
+                t.scheduler.remove(t);
+                return;
+            }
+            // keep the target on the loop if some subscribers are still using it
+            // otherwise the loop may be closing, so move the target to another subscriber's loop
+            SelectorEventLoop sel = t.scheduler.loop.getSelectorEventLoop();
+            for (Subscriber s : t.subscribers) {
+                if (s.eventLoop().getSelectorEventLoop() == sel)
+                    return;
+            }
+            t.scheduler.remove(t);
+            Target n = new Target(key, scheduler(t.subscribers.get(0).eventLoop()));
+            n.subscribers.addAll(t.subscribers);
+            targets.put(key, n);
+            n.scheduler.add(n, 0);
+        }
+    }
+
+    // must be called with the lock held
+    private static HealthCheckScheduler scheduler(NetEventLoop loop) {
+        return schedulers.computeIfAbsent(loop.getSelectorEventLoop(), l -> new HealthCheckScheduler(loop));
+    }
+
+    // count of different targets being checked
+    public static int targetCount() {
+        synchronized (lock) {
+            return targets.size();
+        }
+    }
+
+    // count of running checks
+    public static int inFlight() {
+        return inFlight.get();
+    }
+
+    // count of checks delayed because the in-flight cap is reached
+    public static long deferred() {
+        return deferred.sum();
+    }
+
+    // ---- the following methods are called with the lock held ----
+
+    private void add(Target t, int firstCheckSpread) {
+        ++targetCount;
+        int spread = Math.min(firstCheckSpread, t.key.config.period);
+        onLoop(() -> {
+            ++active;
+            if (tick == null) {
+                tick = loop.getSelectorEventLoop().period(TICK, this::tick);
+            }
+            if (spread > 0) {
+                schedule(t, System.nanoTime() + ThreadLocalRandom.current().nextLong(spread * 1_000_000L));
+            } else {
+                // the first check runs immediately
+                runOrWait(t);
+            }
+        });
+    }
+
+    private void remove(Target t) {
+        if (--targetCount == 0) {
+            schedulers.remove(loop.getSelectorEventLoop());
+        }
+        onLoop(() -> {
+            t.removed = true;
+            if (t.running) {
+                // the callback of a stopped client will not be called
+                t.running = false;
+                inFlight.decrementAndGet();
+            }
+            t.client.stop();
+            if (--active == 0) {
+                queue.clear();
+                waiting.clear();
+                if (tick != null) {
+                    tick.cancel();
+                    tick = null;
+                }
+            }
+        });
+    }
+
+    private void checkSoon(Target t) {
+        onLoop(() -> {
+            if (t.removed || t.running || t.waiting)
+                return;
+            t.scheduledAt = System.nanoTime(); // the entry in the queue becomes outdated
+            runOrWait(t);
+        });
+    }
+
+    private void onLoop(Runnable r) {
+        SelectorEventLoop sel = loop.getSelectorEventLoop();
+        if (sel.isClosed()) {
+            r.run(); // nothing else is running on the closed loop
+        } else {
+            sel.runOnLoop(r);
+        }
+    }
+
+    // ---- the following methods are called on the loop ----
+
+    private void schedule(Target t, long time) {
+        t.scheduledAt = time;
+        queue.add(new Entry(time, t));
+    }
+
+    private void tick() {
+        while (!waiting.isEmpty() && acquire()) {
+            Target t = waiting.poll();
+            t.waiting = false;
+            run(t);
+        }
+        long now = System.nanoTime();
+        Entry e;
+        while ((e = queue.peek()) != null && e.time <= now) {
+            queue.poll();
+            Target t = e.target;
+            if (t.removed || t.running || t.waiting || t.scheduledAt != e.time)
+                continue; // outdated entry
+            runOrWait(t);
+        }
+    }
+
+    private void runOrWait(Target t) {
+        if (waiting.isEmpty() && acquire()) {
+            run(t);
+        } else {
+            deferred.increment();
+            t.waiting = true;
+            waiting.add(t);
+        }
+    }
+
+    private static boolean acquire() {
+        int max = Config.healthCheckMaxInFlight;
+        while (true) {
+            int n = inFlight.get();
+            if (max > 0 && n >= max)
+                return false;
+            if (inFlight.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    private void run(Target t) {
+        if (t.removed) {
+            inFlight.decrementAndGet();
+            return;
+        }
+        t.running = true;
+        long begin = System.nanoTime();
+        t.client.handle(new Callback<>() {
+            @Override
+            protected void onSucceeded(Void value) {
+                done(t, true, System.nanoTime() - begin);
+            }
+
+            @Override
+            protected void onFailed(IOException err) {
+                done(t, false, System.nanoTime() - begin);
+            }
+        });
+    }
+
+    private void done(Target t, boolean succeeded, long cost) {
+        if (!t.running)
+            return; // removed
+        t.running = false;
+        inFlight.decrementAndGet();
+
+        long period = t.key.config.period * 1_000_000L;
+        long jitter;
+        if (t.first) {
+            // targets are usually added in batch, so spread them across a whole period window
+            t.first = false;
+            jitter = period / 2;
+        } else {
+            jitter = (long) (period * JITTER);
+        }
+        schedule(t, System.nanoTime() + period - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1));
+
+        for (Subscriber s : t.subscribers) {
+            SelectorEventLoop sel = s.eventLoop().getSelectorEventLoop();
+            if (sel == loop.getSelectorEventLoop()) {
+                s.onResult(succeeded, cost);
+            } else {
+                sel.runOnLoop(() -> s.onResult(succeeded, cost));
+            }
+        }
+    }
+}
@@ -1,17 +1,15 @@
 package vproxy.component.check;
 
 import vproxy.connection.NetEventLoop;
-import vproxy.selector.TimerEvent;
-import vproxy.util.Callback;
+import vproxy.util.LatencyHistogram;
 import vproxy.util.Logger;
 
-import java.io.IOException;
 import java.net.InetSocketAddress;
 
 public class TCPHealthCheckClient {
     class ConnectResultHandler {
         void onSucceeded() {
-            handler.upOnce(connectClient.remote);
+            handler.upOnce(remote);
             if (currentDown > 0) {
                 // decrease down count if it's not zero
                 --currentDown;
@@ -24,7 +22,7 @@ public class TCPHealthCheckClient {
                 if (currentUp == up - 1) {
                     // should trigger up event
                     nowIsUp = true;
-                    handler.up(connectClient.remote);
+                    handler.up(remote);
                     currentUp = 0;
                     return;
                 }
@@ -35,7 +33,7 @@ public class TCPHealthCheckClient {
         }
 
         void onFailed() {
-            handler.downOnce(connectClient.remote);
+            handler.downOnce(remote);
             if (currentUp > 0) {
                 // decrease up count if it's not zero
                 --currentUp;
@@ -48,7 +46,7 @@ public class TCPHealthCheckClient {
                 if (currentDown == down - 1) {
                     // should trigger down event
                     nowIsUp = false;
-                    handler.down(connectClient.remote);
+                    handler.down(remote);
                     currentDown = 0;
                     return;
                 }
@@ -59,87 +57,94 @@ public class TCPHealthCheckClient {
         }
     }
 
-    public final ConnectClient connectClient;
+    public final NetEventLoop eventLoop;
+    public final InetSocketAddress remote;
+    private final HealthCheckConfig healthCheckConfig;
     public final int period;
     public final int up;
     public final int down;
     private final HealthCheckHandler handler;
+    private final LatencyHistogram latency; // may be null
     private final ConnectResultHandler connectResultHandler = new ConnectResultHandler();
 
     private int currentUp = 0;
     private int currentDown = 0;
     private boolean nowIsUp;
 
-    private TimerEvent periodTimer;
+    private final HealthCheckScheduler.Subscriber subscriber = new HealthCheckScheduler.Subscriber() {
+        @Override
+        public NetEventLoop eventLoop() {
+            return eventLoop;
+        }
+
+        @Override
+        public void onResult(boolean succeeded, long costNanos) {
+            if (stopped)
+                return;
+            if (succeeded) {
+                if (latency != null) {
+                    latency.record(costNanos / 1000);
+                }
+                connectResultHandler.onSucceeded();
+            } else {
+                connectResultHandler.onFailed();
+            }
+        }
+    };
+    private HealthCheckScheduler.Subscription subscription;
 
-    private boolean stopped = true;
+    private volatile boolean stopped = true;
 
     public TCPHealthCheckClient(NetEventLoop eventLoop,
                                 InetSocketAddress remote,
                                 HealthCheckConfig healthCheckConfig,
                                 boolean initialIsUp,
                                 HealthCheckHandler handler) {
-        this.connectClient = new ConnectClient(
-            eventLoop, remote,
-            healthCheckConfig.checkProtocol,
-            healthCheckConfig.timeout);
+        this(eventLoop, remote, healthCheckConfig, initialIsUp, handler, null);
+    }
+
+    public TCPHealthCheckClient(NetEventLoop eventLoop,
+                                InetSocketAddress remote,
+                                HealthCheckConfig healthCheckConfig,
+                                boolean initialIsUp,
+                                HealthCheckHandler handler,
+                                LatencyHistogram latency) {
+        this.eventLoop = eventLoop;
+        this.remote = remote;
+        this.healthCheckConfig = healthCheckConfig;
 
         this.period = healthCheckConfig.period;
         this.up = healthCheckConfig.up;
         this.down = healthCheckConfig.down;
         nowIsUp = initialIsUp;
         this.handler = handler;
+        this.latency = latency;
     }
 
     public boolean isStopped() {
         return stopped;
     }
 
+    // the checks are run by the scheduler of the event loop
+    // and may be merged with other clients checking the same remote with the same config
     public void start() {
-        if (!stopped)
-            return;
-        stopped = false;
-        doCheck(this::periodic);
+        start(0);
     }
 
-    private void doCheck(Runnable cb) {
-        if (stopped) {
-            doStop();
+    // the first check runs randomly in `firstCheckSpread` ms instead of immediately
+    public synchronized void start(int firstCheckSpread) {
+        if (!stopped)
             return;
-        }
-
-        connectClient.handle(new Callback<Void, IOException>() {
-            @Override
-            protected void onSucceeded(Void value) {
-                connectResultHandler.onSucceeded();
-                cb.run();
-            }
-
-            @Override
-            protected void onFailed(IOException err) {
-                connectResultHandler.onFailed();
-                cb.run();
-            }
-        });
-    }
-
-    private void periodic() {
-        periodTimer = connectClient.eventLoop.getSelectorEventLoop().delay(period, () -> doCheck(this::periodic));
+        stopped = false;
+        subscription = HealthCheckScheduler.subscribe(eventLoop, remote, healthCheckConfig, firstCheckSpread, subscriber);
     }
 
-    public void stop() {
+    public synchronized void stop() {
         if (stopped)
             return;
-        doStop();
-    }
-
-    private void doStop() {
         stopped = true;
-        if (periodTimer != null) {
-            periodTimer.cancel();
-        }
-        connectClient.stop();
-        periodTimer = null;
+        subscription.cancel();
+        subscription = null;
     }
 
     // call this method
@@ -149,7 +154,7 @@ public class TCPHealthCheckClient {
             return; // ignore if already stopped
         // should run on event loop thread
         // because the callback not thread safe
-        connectClient.eventLoop.getSelectorEventLoop().runOnLoop(
+        eventLoop.getSelectorEventLoop().runOnLoop(
             connectResultHandler::onFailed
         );
     }
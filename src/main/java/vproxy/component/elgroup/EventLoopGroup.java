@@ -185,14 +185,32 @@ public class EventLoopGroup {
 
     @ThreadSafe
     public EventLoopWrapper next() {
+        return next(Integer.MAX_VALUE);
+    }
+
+    // skip the loops with more pending events than maxQueueSize
+    // return null if all loops are busy
+    @ThreadSafe
+    public EventLoopWrapper next(int maxQueueSize) {
         if (closed)
             return null;
 
         ArrayList<EventLoopWrapper> ls = eventLoops;
-        return next(ls, 0);
+        return next(ls, maxQueueSize, 0);
+    }
+
+    // return true if all loops have more pending events than maxQueueSize
+    @ThreadSafe
+    public boolean isBusy(int maxQueueSize) {
+        ArrayList<EventLoopWrapper> ls = eventLoops;
+        for (EventLoopWrapper w : ls) {
+            if (w.getSelectorEventLoop().queueSize() <= maxQueueSize)
+                return false;
+        }
+        return !ls.isEmpty();
     }
 
-    private EventLoopWrapper next(ArrayList<EventLoopWrapper> ls, int recursion) {
+    private EventLoopWrapper next(ArrayList<EventLoopWrapper> ls, int maxQueueSize, int recursion) {
         if (recursion > ls.size())
             return null;
         ++recursion;
@@ -211,7 +229,11 @@ public class EventLoopGroup {
         if (result.getSelectorEventLoop().isClosed()) {
             // maybe the list is operated in another thread
             // skip this element and return the next element
-            return next(ls, recursion);
+            return next(ls, maxQueueSize, recursion);
+        }
+        if (result.getSelectorEventLoop().queueSize() > maxQueueSize) {
+            // the loop is busy, try the next one
+            return next(ls, maxQueueSize, recursion);
         }
         return result;
     }
@@ -8,6 +8,7 @@ import vproxy.selector.SelectorEventLoop;
 import vproxy.util.*;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.NetworkChannel;
 import java.util.Collection;
 import java.util.Iterator;
@@ -30,6 +31,11 @@ public class EventLoopWrapper extends NetEventLoop {
             handler.connection(ctx, connection);
         }
 
+        @Override
+        public boolean allowAccept(ServerHandlerContext ctx, InetSocketAddress remote) {
+            return handler.allowAccept(ctx, remote);
+        }
+
         @Override
         public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
             return handler.getIOBuffers(channel);
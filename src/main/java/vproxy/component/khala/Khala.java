@@ -7,17 +7,16 @@ import vproxy.discovery.Node;
 import vproxy.discovery.NodeDataHandler;
 import vproxy.discovery.NodeListener;
 import vproxy.redis.application.RESPApplicationContext;
-import vproxy.redis.application.RESPClientUtils;
 import vproxy.util.Callback;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.Tuple;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -44,13 +43,19 @@ import java.util.stream.Collectors;
  * ----------port
  * --------]
  * ------]
+ * ------epoch (optional)
+ * ------counter (optional)
  * ----]
  * --]
  * ]
- * type: khala-add | khala-remove | khala-local | khala
+ * type: khala-add | khala-remove | khala-local | khala-digest | khala
  * -- khala-add and khala-remove msg.list.size should -eq 1, msg.list[0].list.size should -eq 1
  * -- khala-local msg.list.size should -eq 1
+ * -- khala-digest message should contain all local cached discovery nodes with their versions, but no khala nodes
  * -- khala message should contain all local cached nodes
+ * version:
+ * -- each discovery node owns a version of its khala nodes: epoch is the launch time, counter increases on each change
+ * -- khala-add, khala-remove and khala-local messages carry the owner's version after the change
  * <p>
  * triggers:
  * 1. when a node is discovered, record the node, and send khala-local message to the discovered node
@@ -61,12 +66,13 @@ import java.util.stream.Collectors;
  * 4. when a kNode is removed, remove the kNode, and send a khala-remove message:
  * -- 1) if kNode.type is nexus, should alert all nodes in the khala
  * -- 2) if kNode.type is pylon, should alert only nexus nodes
- * 5. for every few minutes, the node should randomly pick a nexus node and send a khala message
+ * 5. for every few minutes, the node should randomly pick a nexus node and send a khala-digest message,
+ * -- if the nexus does not support khala-digest, send a khala message instead
  * server:
  * 1. when receiving a khala-add message,
- * -- the node should record the node, then respond with a khala message
+ * -- the node should record the node, then respond with a khala-digest message
  * 2. when receiving a khala-remove message,
- * -- the node should remove the node, then respond with a khala message
+ * -- the node should remove the node, then respond with a khala-digest message
  * 3. when receiving a khala-local message,
  * -- the node should change the local cache to the message content, and respond with a khala-local message
  * 4. when receiving a khala message,
@@ -74,6 +80,10 @@ import java.util.stream.Collectors;
  * -- if the message doesn't contain any discovery node or have only one discovery node, then do not run a diff.
  * -- otherwise: the node checks each discovery node in the message and compare with local cache
  * -- when a diff is found, the node should request the differed nodes with khala-local message and store the latest config
+ * 5. when receiving a khala-digest message,
+ * -- first directly respond with a khala-digest message
+ * -- then for each discovery node whose version in the message is newer than (or cannot be compared with) the local one,
+ * -- request the node with khala-local message, so only the changed khala nodes are transferred
  * client:
  * same handling with server, but does not respond
  */
@@ -167,6 +177,8 @@ public class Khala {
 
     class KhalaNodeRecorder {
         private final Map<Node, Set<KhalaNode>> khalaNodes = new ConcurrentHashMap<>();
+        // the latest known version of each discovery node, removed when unknown
+        private final Map<Node, KhalaVersion> versions = new ConcurrentHashMap<>();
 
         /**
          * specify a remote discovery node and init khala nodes with a list.
@@ -198,6 +210,7 @@ public class Khala {
             }
             if (khalaNodes.get(discovery.localNode).add(kn)) {
                 // successfully added
+                versions.put(discovery.localNode, versions.get(discovery.localNode).next());
                 // then should notify others about the added node
                 notifyNetworkAddKhalaNode(kn);
             }
@@ -259,6 +272,7 @@ public class Khala {
             }
             if (khalaNodes.get(discovery.localNode).remove(kn)) {
                 // successfully removed
+                versions.put(discovery.localNode, versions.get(discovery.localNode).next());
                 // then should notify others about the removal
                 notifyNetworkRemoveKhalaNode(kn);
             }
@@ -274,6 +288,7 @@ public class Khala {
          * @throws IllegalStateException throw if already exists
          */
         public void remove(Node node) {
+            versions.remove(node);
             Set<KhalaNode> set = khalaNodes.remove(node);
             if (set == null) {
                 // the node not recorded, ignore
@@ -292,6 +307,43 @@ public class Khala {
             return khalaNodes.get(node);
         }
 
+        /**
+         * record the version carried by a khala-add or khala-remove message of a remote node.
+         *
+         * @param node    discovery node
+         * @param version version after the change, might be null
+         * @return false if the change is already applied
+         */
+        public boolean updateVersion(Node node, KhalaVersion version) {
+            KhalaVersion known = versions.get(node);
+            if (version == null || known == null) {
+                return true; // cannot tell, apply the change
+            }
+            if (version.epoch == known.epoch && version.counter <= known.counter) {
+                return false; // the change is already included in the recorded khala nodes
+            }
+            if (version.isNextOf(known)) {
+                versions.put(node, version);
+            } else {
+                // some changes are missing, let the next sync fetch all khala nodes of the node
+                versions.remove(node);
+            }
+            return true;
+        }
+
+        // record the version carried by a khala-local message
+        public void setVersion(Node node, KhalaVersion version) {
+            if (version == null) {
+                versions.remove(node);
+            } else {
+                versions.put(node, version);
+            }
+        }
+
+        public KhalaVersion getVersion(Node node) {
+            return versions.get(node);
+        }
+
         // alert listeners for node adding
         private void listenerNodeAdd(Node n, KhalaNode node) {
             Logger.info(LogType.KHALA_EVENT, "node added " + node);
@@ -339,6 +391,7 @@ public class Khala {
     private final KhalaNodeRecorder khalaNodes = new KhalaNodeRecorder();
     private final Set<KhalaNodeListener> khalaNodeListeners = new CopyOnWriteArraySet<>();
     private final Random rand = new Random();
+    private final LongAdder syncBytes = new LongAdder();
 
     public Khala(Discovery discovery, KhalaConfig config) {
         this.discovery = discovery;
@@ -351,6 +404,7 @@ public class Khala {
         // because they are local nodes and should not be handled as the remote nodes
         nodes.nodes.put(discovery.localNode, localNodeWrap);
         khalaNodes.khalaNodes.put(discovery.localNode, new HashSet<>());
+        khalaNodes.versions.put(discovery.localNode, new KhalaVersion((int) (System.currentTimeMillis() / 1000), 0));
 
         // init periodic event
         discovery.loop.getSelectorEventLoop().period(config.syncPeriod, this::doSync);
@@ -359,13 +413,13 @@ public class Khala {
         discovery.addExternalHandler(new NodeDataHandler() {
             @Override
             public boolean canHandle(String type) {
-                return type.equals("khala") || type.equals("khala-add") || type.equals("khala-remove") || type.equals("khala-local");
+                return type.equals("khala") || type.equals("khala-digest") || type.equals("khala-add") || type.equals("khala-remove") || type.equals("khala-local");
             }
 
             @SuppressWarnings("OptionalGetWithoutIsPresent")
             @Override
             public void handle(Object o, RESPApplicationContext respApplicationContext, Callback<Object, Throwable> cb) {
-                Tuple<KhalaMsg, XException> tup = utilValidateResponse(o, "khala", "khala-add", "khala-remove", "khala-local");
+                Tuple<KhalaMsg, XException> tup = utilValidateResponse(o, "khala", "khala-digest", "khala-add", "khala-remove", "khala-local");
                 if (tup.right != null) {
                     cb.failed(tup.right);
                     return;
@@ -378,6 +432,10 @@ public class Khala {
                         cb.succeeded(buildFullKhalaMsg());
                         handleFullKhala(msg.nodes);
                         break;
+                    case "khala-digest":
+                        cb.succeeded(buildDigestKhalaMsg());
+                        handleDigestKhala(msg.nodes.keySet(), msg.versions);
+                        break;
                     case "khala-add":
                         if (msg.nodes.size() != 1 || msg.nodes.get(msg.nodes.keySet().stream().findFirst().get()).size() != 1) {
                             Logger.warn(LogType.INVALID_EXTERNAL_DATA, "khala-add node list size is wrong: " + msg);
@@ -386,8 +444,8 @@ public class Khala {
                         }
                         n = msg.nodes.keySet().stream().findFirst().get();
                         nodes = msg.nodes.get(n);
-                        handleAdd(n, nodes.get(0));
-                        cb.succeeded(buildFullKhalaMsg());
+                        handleAdd(n, nodes.get(0), msg.versions.get(n));
+                        cb.succeeded(buildDigestKhalaMsg());
                         break;
                     case "khala-remove":
                         if (msg.nodes.size() != 1 || msg.nodes.get(msg.nodes.keySet().stream().findFirst().get()).size() != 1) {
@@ -397,8 +455,8 @@ public class Khala {
                         }
                         n = msg.nodes.keySet().stream().findFirst().get();
                         nodes = msg.nodes.get(n);
-                        handleRemove(n, nodes.get(0));
-                        cb.succeeded(buildFullKhalaMsg());
+                        handleRemove(n, nodes.get(0), msg.versions.get(n));
+                        cb.succeeded(buildDigestKhalaMsg());
                         break;
                     case "khala-local":
                         if (msg.nodes.size() != 1) {
@@ -408,7 +466,7 @@ public class Khala {
                         }
                         n = msg.nodes.keySet().stream().findFirst().get();
                         nodes = msg.nodes.get(n);
-                        handleLocal(n, nodes);
+                        handleLocal(n, nodes, msg.versions.get(n));
                         cb.succeeded(buildLocalKhalaMsg());
                         break;
                     default:
@@ -477,23 +535,28 @@ public class Khala {
     // ---------------------
 
     // handle khala-add event
-    private void handleAdd(Node n, KhalaNode node) {
+    private void handleAdd(Node n, KhalaNode node, KhalaVersion version) {
         if (discoveryNodeNotExist(n))
             return;
+        if (!khalaNodes.updateVersion(n, version))
+            return;
         khalaNodes.add(n, node);
     }
 
     // handle khala-remove event
-    private void handleRemove(Node n, KhalaNode node) {
+    private void handleRemove(Node n, KhalaNode node, KhalaVersion version) {
         if (discoveryNodeNotExist(n))
             return;
+        if (!khalaNodes.updateVersion(n, version))
+            return;
         khalaNodes.remove(n, node);
     }
 
     // handle khala-local response
-    private void handleLocal(Node n, List<KhalaNode> remote) {
+    private void handleLocal(Node n, List<KhalaNode> remote, KhalaVersion version) {
         if (discoveryNodeNotExist(n))
             return;
+        khalaNodes.setVersion(n, version);
 
         Tuple<Set<KhalaNode>, Set<KhalaNode>> wantAddRemove = khalaNodes.runDiff(n, remote);
         // because it's directly retrieved from remote
@@ -531,6 +594,36 @@ public class Khala {
         }
     }
 
+    // handle khala-digest response
+    private void handleDigestKhala(Set<Node> remoteNodes, Map<Node, KhalaVersion> remoteVersions) {
+        for (Node n : remoteNodes) {
+            if (n.equals(discovery.localNode))
+                continue; // the local node is always the latest
+            if (discoveryNodeNotExist(n))
+                continue;
+
+            KhalaVersion remote = remoteVersions.get(n);
+            KhalaVersion local = khalaNodes.getVersion(n);
+            if (remote != null && local != null && remote.compareTo(local) <= 0) {
+                // the remote one is not newer
+                // if it's older, the remote will fetch from the node when it sees our digest
+                continue;
+            }
+            Logger.warn(LogType.KHALA_EVENT, "khala version mismatch on node " + n + ", local " + local + ", remote " + remote);
+            // only fetch the khala nodes of the changed discovery node
+            checkRemote(n);
+        }
+    }
+
+    // handle khala or khala-digest response
+    private void handleKhalaResponse(KhalaMsg msg) {
+        if (msg.type.equals("khala-digest")) {
+            handleDigestKhala(msg.nodes.keySet(), msg.versions);
+        } else {
+            handleFullKhala(msg.nodes);
+        }
+    }
+
     // ---------------------
     // END khala event handlings
     // ---------------------
@@ -562,9 +655,8 @@ public class Khala {
         }
 
         Object[] msg = buildLocalKhalaMsg();
-        RESPClientUtils.retry(
-            discovery.loop,
-            new InetSocketAddress(n.inetAddress, n.tcpPort),
+        discovery.request(
+            n,
             msg,
             3000,
             3,
@@ -582,7 +674,7 @@ public class Khala {
                         cb.failed(new XException("invalid external data"));
                         return;
                     }
-                    handleLocal(n, resp.nodes.get(n));
+                    handleLocal(n, resp.nodes.get(n), resp.versions.get(n));
                     cb.succeeded(null);
                 }
 
@@ -608,6 +700,35 @@ public class Khala {
         return buildKhalaMsgByNodes("khala", nodes.getNodes());
     }
 
+    private Object[] buildDigestKhalaMsg() {
+        List<List<Object>> list = new LinkedList<>();
+        Object[] msg = {
+            1 /*version*/,
+            "khala-digest",
+            list
+        };
+        for (Node n : nodes.getNodes()) {
+            List<Object> nodeList = new ArrayList<>(7);
+            list.add(nodeList);
+
+            nodeList.add(n.nodeName);
+            nodeList.add(n.address);
+            nodeList.add(n.udpPort);
+            nodeList.add(n.tcpPort);
+            nodeList.add(Collections.emptyList()); // khala nodes are not included
+            addVersion(nodeList, n);
+        }
+        return msg;
+    }
+
+    private void addVersion(List<Object> nodeList, Node n) {
+        KhalaVersion v = khalaNodes.getVersion(n);
+        if (v != null) {
+            nodeList.add(v.epoch);
+            nodeList.add(v.counter);
+        }
+    }
+
     private Object[] buildLocalKhalaMsg() {
         return buildKhalaMsgByNodes("khala-local", Collections.singleton(discovery.localNode));
     }
@@ -620,7 +741,7 @@ public class Khala {
             list
         };
         for (Node n : discoveryNodes) {
-            List<Object> nodeList = new ArrayList<>(5);
+            List<Object> nodeList = new ArrayList<>(7);
             list.add(nodeList);
 
             List<Object> khalaNodeList = new LinkedList<>();
@@ -630,6 +751,7 @@ public class Khala {
             nodeList.add(n.udpPort);
             nodeList.add(n.tcpPort);
             nodeList.add(khalaNodeList);
+            addVersion(nodeList, n);
 
             Set<KhalaNode> kNodes = khalaNodes.getKhalaNodes(n);
             for (KhalaNode kn : kNodes) {
@@ -654,11 +776,39 @@ public class Khala {
     // START khala notification
     // ---------------------
 
+    private void notifyNetworkDigestKhala(Node node) {
+        Object[] msg = buildDigestKhalaMsg();
+        syncBytes.add(discovery.encodedSize(node, msg));
+        discovery.request(
+            node,
+            msg,
+            3000,
+            3,
+            new Callback<Object, IOException>() {
+                @Override
+                protected void onSucceeded(Object value) {
+                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala-digest");
+                    if (tup.right != null) {
+                        // the remote may not support khala-digest
+                        notifyNetworkFullKhala(node);
+                        return;
+                    }
+                    KhalaMsg msg = tup.left;
+                    handleDigestKhala(msg.nodes.keySet(), msg.versions);
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    // ignore if got error
+                }
+            });
+    }
+
     private void notifyNetworkFullKhala(Node node) {
         Object[] msg = buildFullKhalaMsg();
-        RESPClientUtils.retry(
-            discovery.loop,
-            new InetSocketAddress(node.inetAddress, node.tcpPort),
+        syncBytes.add(discovery.encodedSize(node, msg));
+        discovery.request(
+            node,
             msg,
             3000,
             3,
@@ -703,6 +853,7 @@ public class Khala {
     }
 
     private void notifyNetwork(String type, Node remoteNode, KhalaNode node) {
+        KhalaVersion version = khalaNodes.getVersion(discovery.localNode);
         Object[] msg = {
             1 /*version*/,
             type,
@@ -720,24 +871,26 @@ public class Khala {
                             node.address,
                             node.port
                         }
-                    }
+                    },
+                    version.epoch,
+                    version.counter
                 }
             }
         };
-        RESPClientUtils.retry(discovery.loop,
-            new InetSocketAddress(remoteNode.inetAddress, remoteNode.tcpPort),
+        discovery.request(
+            remoteNode,
             msg,
             3000,
             3,
             new Callback<Object, IOException>() {
                 @Override
                 protected void onSucceeded(Object value) {
-                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala");
+                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala", "khala-digest");
                     if (tup.right != null) {
                         return;
                     }
                     KhalaMsg msg = tup.left;
-                    handleFullKhala(msg.nodes);
+                    handleKhalaResponse(msg);
                 }
 
                 @Override
@@ -801,10 +954,15 @@ public class Khala {
         if (ns.isEmpty())
             return;
         Node n = ns.get(rand.nextInt(ns.size()));
-        notifyNetworkFullKhala(n);
+        notifyNetworkDigestKhala(n);
     }
 
     public void sync() {
         discovery.loop.getSelectorEventLoop().runOnLoop(this::doSync);
     }
+
+    // total bytes of the messages sent by sync rounds
+    public long getSyncBytes() {
+        return syncBytes.sum();
+    }
 }
@@ -0,0 +1,52 @@
+package vproxy.component.khala;
+
+import java.util.Objects;
+
+/**
+ * Version of the khala nodes of one discovery node.
+ * <p>
+ * The epoch is the launch time of the discovery node (in seconds),
+ * and the counter increases by one each time the khala nodes on that discovery node change.
+ */
+public class KhalaVersion implements Comparable<KhalaVersion> {
+    public final int epoch;
+    public final int counter;
+
+    public KhalaVersion(int epoch, int counter) {
+        this.epoch = epoch;
+        this.counter = counter;
+    }
+
+    KhalaVersion next() {
+        return new KhalaVersion(epoch, counter + 1);
+    }
+
+    boolean isNextOf(KhalaVersion v) {
+        return epoch == v.epoch && counter == v.counter + 1;
+    }
+
+    @Override
+    public int compareTo(KhalaVersion o) {
+        if (epoch != o.epoch) return Integer.compare(epoch, o.epoch);
+        return Integer.compare(counter, o.counter);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KhalaVersion that = (KhalaVersion) o;
+        return epoch == that.epoch &&
+            counter == that.counter;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(epoch, counter);
+    }
+
+    @Override
+    public String toString() {
+        return epoch + "." + counter;
+    }
+}
@@ -3,6 +3,7 @@ package vproxy.component.khala.protocol;
 import vproxy.component.exception.XException;
 import vproxy.component.khala.KhalaNode;
 import vproxy.component.khala.KhalaNodeType;
+import vproxy.component.khala.KhalaVersion;
 import vproxy.discovery.Node;
 
 import java.net.UnknownHostException;
@@ -12,11 +13,14 @@ public class KhalaMsg {
     public final int version;
     public final String type;
     public final Map<Node, List<KhalaNode>> nodes;
+    // versions of the khala nodes, nodes without a version are not in the map
+    public final Map<Node, KhalaVersion> versions;
 
-    public KhalaMsg(int version, String type, Map<Node, List<KhalaNode>> nodes) {
+    public KhalaMsg(int version, String type, Map<Node, List<KhalaNode>> nodes, Map<Node, KhalaVersion> versions) {
         this.version = version;
         this.type = type;
         this.nodes = Collections.unmodifiableMap(nodes);
+        this.versions = Collections.unmodifiableMap(versions);
     }
 
     public static KhalaMsg parse(List msg) throws XException {
@@ -29,6 +33,7 @@ public class KhalaMsg {
         List nodes = (List) msg.get(2);
 
         Map<Node, List<KhalaNode>> nodeMap = new HashMap<>();
+        Map<Node, KhalaVersion> versionMap = new HashMap<>();
         for (Object e : nodes) {
             if (!(e instanceof List))
                 throw new XException("invalid message, element wrong format");
@@ -51,6 +56,12 @@ public class KhalaMsg {
             }
             List<KhalaNode> list = new LinkedList<>();
             nodeMap.put(n, list);
+            // the version is optional: epoch, counter
+            if (nNodes.size() >= 7) {
+                if (!(nNodes.get(5) instanceof Integer) || !(nNodes.get(6) instanceof Integer))
+                    throw new XException("invalid message, version wrong format");
+                versionMap.put(n, new KhalaVersion((int) nNodes.get(5), (int) nNodes.get(6)));
+            }
 
             List kNodes = (List) nNodes.get(4);
             for (Object ee : kNodes) {
@@ -78,7 +89,7 @@ public class KhalaMsg {
                 list.add(kn);
             }
         }
-        return new KhalaMsg(version, type, nodeMap);
+        return new KhalaMsg(version, type, nodeMap, versionMap);
     }
 
     @Override
@@ -87,6 +98,7 @@ public class KhalaMsg {
             "version=" + version +
             ", type='" + type + '\'' +
             ", nodes=" + nodes +
+            ", versions=" + versions +
             '}';
     }
 }
@@ -4,4 +4,10 @@ import vproxy.connection.NetEventLoop;
 
 public interface NetEventLoopProvider {
     NetEventLoop get();
+
+    // return true if no loop is able to handle new connections for now
+    // the new connections will be refused before buffers are allocated
+    default boolean busy() {
+        return false;
+    }
 }
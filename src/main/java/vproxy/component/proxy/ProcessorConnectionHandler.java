@@ -2,6 +2,7 @@ package vproxy.component.proxy;
 
 import vproxy.connection.*;
 import vproxy.processor.Processor;
+import vproxy.util.AccessLog;
 import vproxy.util.ByteArrayChannel;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
@@ -10,6 +11,8 @@ import vproxy.util.ByteArray;
 import vproxy.util.ringbuffer.ProxyOutputRingBuffer;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.util.*;
 
 @SuppressWarnings("unchecked")
@@ -20,6 +23,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     private final Connection frontendConnection;
     private final Processor.SubContext frontendSubCtx;
     private final NetEventLoop loop;
+    private final long beginNanos = System.nanoTime();
 
     private final Map<BackendConnectionHandler, Integer> conn2intMap = new HashMap<>();
 
@@ -47,6 +51,14 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         conns[connId] = null;
     }
 
+    // record on the connection if it's traced
+    private static void trace(Connection conn, ConnectionTrace.Event event, int a, int b) {
+        ConnectionTrace trace = conn.getTrace();
+        if (trace != null) {
+            trace.record(event, a, b);
+        }
+    }
+
     /**
      * a util function. NOTE: this method should be called in a while loop until no data to send or buffer is full
      *
@@ -187,7 +199,10 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
         private final Processor.SubContext subCtx;
         private final ClientConnection conn;
+        private final long beginNanos = System.nanoTime();
         private boolean isConnected = false;
+        private long connectedNanos;
+        private boolean firstByteReceived = false;
 
         private ByteArrayChannel chnl = null;
         private final BackendConnectionHandler.ByteFlow backendByteFlow = new BackendConnectionHandler.ByteFlow();
@@ -265,10 +280,37 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         @Override
         public void connected(ClientConnectionHandlerContext ctx) {
             isConnected = true;
+            connectedNanos = System.nanoTime();
+            long connectMicros = (connectedNanos - beginNanos) / 1000;
+            if (config.latency != null) {
+                config.latency.connect.record(connectMicros);
+            }
+            if (conn.getConnector() != null) {
+                conn.getConnector().connectionEstablished(connectMicros);
+            }
             // no need to call processor.connected(...) here, it's already called when retrieving the connection
             doBackendWrite();
         }
 
+        void recordFirstByte() {
+            if (firstByteReceived || !isConnected)
+                return;
+            firstByteReceived = true;
+            long micros = (System.nanoTime() - connectedNanos) / 1000;
+            if (config.latency != null) {
+                config.latency.firstByte.record(micros);
+            }
+            if (conn.getConnector() != null) {
+                conn.getConnector().firstByteReceived(micros);
+            }
+        }
+
+        void recordClosed(long now) {
+            if (isConnected && conn.getConnector() != null) {
+                conn.getConnector().connectionClosed((now - connectedNanos) / 1000);
+            }
+        }
+
         void readBackend() {
             if (conn.getInBuffer().used() == 0)
                 return; // ignore the event if got nothing to read
@@ -282,6 +324,9 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             if (mode == Processor.Mode.proxy) {
                 int len = processor.len(topCtx, subCtx);
                 assert Logger.lowLevelDebug("the proxy length is " + len);
+                if (conn.getTrace() != null) {
+                    trace(conn, ConnectionTrace.Event.proxy, conn2intMap.getOrDefault(this, 0), len);
+                }
                 if (len == 0) { // 0 bytes to proxy, so it's already done
                     processor.proxyDone(topCtx, subCtx);
                     readBackend(); // recursively call to handle more input data
@@ -322,6 +367,9 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                 assert Logger.lowLevelDebug("the message is totally read, feeding to processor");
                 ByteArray data = ByteArray.from(chnl.get());
                 chnl = null;
+                if (conn.getTrace() != null) {
+                    trace(conn, ConnectionTrace.Event.feed, conn2intMap.getOrDefault(this, 0), data.length());
+                }
                 ByteArray dataToSend;
                 try {
                     dataToSend = processor.feed(topCtx, subCtx, data);
@@ -351,6 +399,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
         @Override
         public void readable(ConnectionHandlerContext ctx) {
+            recordFirstByte();
             readBackend();
         }
 
@@ -362,8 +411,16 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
             Logger.error(LogType.CONN_ERROR, "got exception when handling backend connection " + conn + ", closing frontend " + frontendConnection, err);
+            Connector connector = conn.getConnector();
+            if (connector != null) {
+                if (!isConnected) {
+                    connector.connectionFailed();
+                } else if (!(err instanceof SocketTimeoutException)) {
+                    connector.connectionError();
+                }
+            }
             frontendConnection.close();
-            closeAll();
+            closeAll(err instanceof SocketTimeoutException ? "timeout" : "backend-error");
         }
 
         @Override
@@ -373,14 +430,15 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             } else {
                 Logger.warn(LogType.CONN_ERROR, "backend connection " + ctx.connection + " closed before frontend connection " + frontendConnection);
             }
-            closeAll();
+            closeAll("backend-closed");
         }
 
         @Override
         public void removed(ConnectionHandlerContext ctx) {
             if (!ctx.connection.isClosed())
                 Logger.error(LogType.IMPROPER_USE, "backend connection " + ctx.connection + " removed from event loop " + loop);
-            closeAll();
+            // the removed callback may be called before the closed callback
+            closeAll(ctx.connection.isRemoteClosed() ? "backend-closed" : "closed");
         }
     }
     // --- END backend handler ---
@@ -550,6 +608,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             int bytesToProxy = processor.len(topCtx, frontendSubCtx);
             int connId = processor.connection(topCtx, frontendSubCtx);
             assert Logger.lowLevelDebug("the bytesToProxy is " + bytesToProxy + ", and connId is " + connId);
+            trace(frontendConnection, ConnectionTrace.Event.proxy, connId, bytesToProxy);
             BackendConnectionHandler backend = getConnection(connId);
             if (backend == null) {
                 // for now, we simply close the whole connection when a backend is missing
@@ -598,6 +657,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             ByteArray data = ByteArray.from(chnl.get());
             chnl = null;
             // handle the data
+            trace(frontendConnection, ConnectionTrace.Event.feed, 0, data.length());
             ByteArray bytesToSend;
             try {
                 bytesToSend = processor.feed(topCtx, frontendSubCtx, data);
@@ -677,6 +737,8 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         BackendConnectionHandler bh =
             new BackendConnectionHandler(processor.initSub(topCtx, newConnId, connector.remote), clientConnection);
         recordBackend(bh, newConnId);
+        trace(frontendConnection, ConnectionTrace.Event.backend, newConnId, connector.remote.getPort());
+        clientConnection.traceAlong(frontendConnection);
         // register
         try {
             loop.addClientConnection(clientConnection, null, bh);
@@ -708,34 +770,48 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     @Override
     public void exception(ConnectionHandlerContext ctx, IOException err) {
         Logger.error(LogType.CONN_ERROR, "connection got exception", err);
-        closeAll();
+        closeAll(err instanceof SocketTimeoutException ? "timeout" : "client-error");
     }
 
     @Override
     public void closed(ConnectionHandlerContext ctx) {
         assert Logger.lowLevelDebug("frontend connection is closed: " + frontendConnection);
-        closeAll();
+        closeAll("client-closed");
     }
 
     @Override
     public void removed(ConnectionHandlerContext ctx) {
         if (!frontendConnection.isClosed())
             Logger.error(LogType.IMPROPER_USE, "frontend connection " + frontendConnection + " removed from event loop " + loop);
-        closeAll();
+        // the removed callback may be called before the closed callback
+        closeAll(frontendConnection.isRemoteClosed() ? "client-closed" : "closed");
     }
 
     private boolean closed = false;
 
-    void closeAll() {
+    void closeAll(String reason) {
         if (closed) {
             return; // ignore if already closed
         }
         closed = true;
 
         assert Logger.lowLevelDebug("close all connections of " + frontendConnection);
+        trace(frontendConnection, ConnectionTrace.Event.closeAll, conn2intMap.size(), 0);
+        long now = System.nanoTime();
+        if (config.latency != null) {
+            config.latency.session.record((now - beginNanos) / 1000);
+        }
+        if (AccessLog.sample()) {
+            // the backend is only recorded when the session has one backend
+            InetSocketAddress backend = conn2intMap.size() == 1 ? conn2intMap.keySet().iterator().next().conn.remote : null;
+            AccessLog.session(config.server.bind, frontendConnection.remote, backend,
+                frontendConnection.getFromRemoteBytes(), frontendConnection.getToRemoteBytes(),
+                (now - beginNanos) / 1000, reason);
+        }
         List<Integer> ints = new ArrayList<>(conn2intMap.values());
         for (int i : ints) {
             BackendConnectionHandler be = conns[i];
+            be.recordClosed(now);
             removeBackend(be);
             be.conn.close();
             be.conn.getInBuffer().clean();
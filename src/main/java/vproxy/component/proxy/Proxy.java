@@ -1,5 +1,6 @@
 package vproxy.component.proxy;
 
+import vproxy.component.secure.ConnectionLimiter;
 import vproxy.connection.*;
 import vproxy.processor.Processor;
 import vproxy.protocol.ProtocolConnectionHandler;
@@ -11,6 +12,8 @@ import vproxy.util.ringbuffer.*;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.channels.NetworkChannel;
 import java.util.Collection;
 
@@ -42,8 +45,35 @@ public class Proxy {
             Logger.fatal(LogType.SERVER_ACCEPT_FAIL, "accept connection failed, server = " + config.server + ", err = " + err);
         }
 
+        @Override
+        public boolean allowAccept(ServerHandlerContext ctx, InetSocketAddress remote) {
+            if (config.handleLoopProvider.busy()) {
+                assert Logger.lowLevelDebug("connection from " + remote + " is refused because worker loops are busy");
+                return false;
+            }
+            ConnectionLimiter limiter = config.connectionLimiter;
+            if (limiter == null || limiter.tryAcquire(remote.getAddress()))
+                return true;
+            assert Logger.lowLevelDebug("connection from " + remote + " is refused by the connection limiter");
+            return false;
+        }
+
+        @Override
+        public void acceptAborted(ServerHandlerContext ctx, InetSocketAddress remote) {
+            ConnectionLimiter limiter = config.connectionLimiter;
+            if (limiter != null) {
+                // acquired in allowAccept(), and connection() is not called
+                limiter.release(remote.getAddress());
+            }
+        }
+
         @Override
         public void connection(ServerHandlerContext ctx, Connection connection) {
+            ConnectionLimiter limiter = config.connectionLimiter;
+            if (limiter != null) {
+                // acquired in allowAccept()
+                connection.addConnCloseHandler(conn -> limiter.release(conn.remote.getAddress()));
+            }
             switch (config.connGen.type()) {
                 case processor:
                     handleProcessor(connection);
@@ -75,6 +105,7 @@ public class Proxy {
                 return;
             }
 
+            long beginNanos = System.nanoTime();
             ClientConnection clientConnection;
             try {
                 clientConnection = connector.connect(
@@ -89,8 +120,9 @@ public class Proxy {
                 return;
             }
 
+            clientConnection.traceAlong(connection);
             Session session = new Session(connection, clientConnection);
-            ClientConnectionHandler handler = new SessionClientConnectionHandler(session);
+            ClientConnectionHandler handler = new SessionClientConnectionHandler(session, beginNanos);
 
             // we get a new event loop for handling
             // the event loop is provided by user
@@ -323,6 +355,7 @@ public class Proxy {
 
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
+            session.setCloseReason(err instanceof SocketTimeoutException ? "timeout" : "client-error");
             if (Utils.isReset(err)) {
                 assert Logger.lowLevelDebug("session " + session + " got exception: " + err);
             } else {
@@ -335,6 +368,7 @@ public class Proxy {
         @Override
         public void closed(ConnectionHandlerContext ctx) {
             assert Logger.lowLevelDebug("now the connection is closed, we should close the session");
+            session.setCloseReason("client-closed");
             // now the active connection is closed
             if (session.isClosed()) // do nothing if the session is already closed
                 return;
@@ -361,10 +395,14 @@ public class Proxy {
 
     class SessionClientConnectionHandler implements ClientConnectionHandler {
         private final Session session;
+        private final long beginNanos;
         private boolean isConnected = false;
+        private long connectedNanos;
+        private boolean firstByteReceived = false;
 
-        SessionClientConnectionHandler(Session session) {
+        SessionClientConnectionHandler(Session session, long beginNanos) {
             this.session = session;
+            this.beginNanos = beginNanos;
         }
 
         @Override
@@ -372,6 +410,16 @@ public class Proxy {
             assert Logger.lowLevelDebug("passive connection established: " + ctx.connection);
             isConnected = true; // it's connected
 
+            connectedNanos = System.nanoTime();
+            long connectMicros = (connectedNanos - beginNanos) / 1000;
+            if (config.latency != null) {
+                config.latency.connect.record(connectMicros);
+            }
+            Connector connector = ctx.connection.getConnector();
+            if (connector != null) {
+                connector.connectionEstablished(connectMicros);
+            }
+
             // now we can add active connection into event loop
             // use event loop from context
             // the active and passive connection are handled in the same loop
@@ -389,6 +437,19 @@ public class Proxy {
         @Override
         public void readable(ConnectionHandlerContext ctx) {
             // see readable in SessionConnectHandler#readable
+
+            // only record the time when the first byte arrives
+            if (firstByteReceived || !isConnected)
+                return;
+            firstByteReceived = true;
+            long micros = (System.nanoTime() - connectedNanos) / 1000;
+            if (config.latency != null) {
+                config.latency.firstByte.record(micros);
+            }
+            Connector connector = ((ClientConnection) ctx.connection).getConnector();
+            if (connector != null) {
+                connector.firstByteReceived(micros);
+            }
         }
 
         @Override
@@ -401,16 +462,19 @@ public class Proxy {
 
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
+            session.setCloseReason(!isConnected ? "connect-failed" : (err instanceof SocketTimeoutException ? "timeout" : "backend-error"));
             Logger.error(LogType.CONN_ERROR, "session " + session + " got exception: " + err);
             // close both sides
             utilCloseSessionAndReleaseBuffers(session);
 
-            if (!isConnected) {
-                // the connection failed before established
-                // we should alert the connector that the connection failed
-                Connector connector = ((ClientConnection) ctx.connection).getConnector();
-                if (connector != null) {
+            Connector connector = ((ClientConnection) ctx.connection).getConnector();
+            if (connector != null) {
+                if (!isConnected) {
+                    // the connection failed before established
+                    // we should alert the connector that the connection failed
                     connector.connectionFailed();
+                } else if (!(err instanceof SocketTimeoutException)) {
+                    connector.connectionError();
                 }
             }
         }
@@ -418,6 +482,7 @@ public class Proxy {
         @Override
         public void closed(ConnectionHandlerContext ctx) {
             assert Logger.lowLevelDebug("now the passive connection is closed, we should close the session");
+            session.setCloseReason("backend-closed");
             // now the passive connection is closed
             if (session.isClosed()) // do nothing if the session is already closed
                 return;
@@ -439,6 +504,26 @@ public class Proxy {
         public void removed(ConnectionHandlerContext ctx) {
             utilCloseSessionAndReleaseBuffers(session);
             sessions.remove(session); // remove the session record
+
+            long now = System.nanoTime();
+            if (AccessLog.sample()) {
+                // the removed callback may be called before the closed callback
+                // so check the connections again
+                session.setCloseReason(session.active.isRemoteClosed() ? "client-closed"
+                    : (session.passive.isRemoteClosed() ? "backend-closed" : "closed"));
+                AccessLog.session(config.server.bind, session.active.remote, session.passive.remote,
+                    session.active.getFromRemoteBytes(), session.active.getToRemoteBytes(),
+                    (now - beginNanos) / 1000, session.closeReason);
+            }
+            if (!isConnected)
+                return; // failed sessions are not recorded
+            if (config.latency != null) {
+                config.latency.session.record((now - beginNanos) / 1000);
+            }
+            Connector connector = ((ClientConnection) ctx.connection).getConnector();
+            if (connector != null) {
+                connector.connectionClosed((now - connectedNanos) / 1000);
+            }
         }
     }
 
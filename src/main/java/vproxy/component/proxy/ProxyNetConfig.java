@@ -1,6 +1,7 @@
 package vproxy.component.proxy;
 
 import vproxy.app.Config;
+import vproxy.component.secure.ConnectionLimiter;
 import vproxy.connection.BindServer;
 import vproxy.connection.NetEventLoop;
 
@@ -18,6 +19,10 @@ public class ProxyNetConfig {
 
     SSLContext sslContext = null;
 
+    ConnectionLimiter connectionLimiter = null;
+
+    SessionLatency latency = null;
+
     public ProxyNetConfig setAcceptLoop(NetEventLoop acceptLoop) {
         this.acceptLoop = acceptLoop;
         return this;
@@ -58,6 +63,16 @@ public class ProxyNetConfig {
         return this;
     }
 
+    public ProxyNetConfig setConnectionLimiter(ConnectionLimiter connectionLimiter) {
+        this.connectionLimiter = connectionLimiter;
+        return this;
+    }
+
+    public ProxyNetConfig setLatency(SessionLatency latency) {
+        this.latency = latency;
+        return this;
+    }
+
     public NetEventLoop getAcceptLoop() {
         return acceptLoop;
     }
@@ -89,4 +104,12 @@ public class ProxyNetConfig {
     public SSLContext getSslContext() {
         return sslContext;
     }
+
+    public ConnectionLimiter getConnectionLimiter() {
+        return connectionLimiter;
+    }
+
+    public SessionLatency getLatency() {
+        return latency;
+    }
 }
@@ -5,6 +5,8 @@ import vproxy.connection.Connection;
 public class Session {
     public final Connection active;
     public final Connection passive;
+    // why the session is closed, only the first reason is kept
+    String closeReason;
 
     public Session(Connection active, Connection passive) {
         this.active = active;
@@ -20,6 +22,12 @@ public class Session {
         passive.close();
     }
 
+    void setCloseReason(String reason) {
+        if (closeReason == null) {
+            closeReason = reason;
+        }
+    }
+
     public String id() {
         return active.id() + "->" + passive.id();
     }
@@ -0,0 +1,35 @@
+package vproxy.component.proxy;
+
+import vproxy.util.LatencyHistogram;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * latencies of proxied sessions, in microseconds
+ */
+public class SessionLatency {
+    // from starting to connect the backend, to the backend connection established
+    public final LatencyHistogram connect;
+    // from the backend connection established, to the first byte received from backend
+    public final LatencyHistogram firstByte;
+    // from the session began, to the session closed
+    public final LatencyHistogram session;
+
+    public SessionLatency() {
+        this(null);
+    }
+
+    /**
+     * @param parent the values are also recorded into the parent, may be null
+     */
+    public SessionLatency(SessionLatency parent) {
+        connect = new LatencyHistogram("connect", parent == null ? null : parent.connect);
+        firstByte = new LatencyHistogram("first-byte", parent == null ? null : parent.firstByte);
+        session = new LatencyHistogram("session", parent == null ? null : parent.session);
+    }
+
+    public List<LatencyHistogram> histograms() {
+        return Arrays.asList(connect, firstByte, session);
+    }
+}
@@ -0,0 +1,221 @@
+package vproxy.component.secure;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limit the new connection rate and the concurrent connections of each source network.
+ * <br>
+ * The sources are not recorded in maps, they are hashed into count-min sketches,
+ * so the memory is bounded and all operations are lock-free,
+ * which stays cheap when a lot of sources are flooding in.
+ * <br>
+ * A source may be limited earlier than expected when it collides with heavy sources in all rows,
+ * but it will never be limited later than expected.
+ */
+public class ConnectionLimiter {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096; // must be power of 2
+    private static final int MAX_RATE = 1_000_000;
+
+    // the sources are grouped by the masks
+    public final int ipv4Mask;
+    public final int ipv6Mask;
+
+    // new connections per second from one source, 0 means no limit
+    private volatile int rate = 0;
+    // max tokens of the bucket
+    private volatile int burst = 0;
+    // concurrent connections from one source, 0 means no limit
+    private volatile int maxConnections = 0;
+
+    // token buckets: (timestamp << 32) | milli-tokens
+    // 0 means the bucket is never touched, which is considered full
+    private final AtomicLongArray buckets = new AtomicLongArray(DEPTH * WIDTH);
+    // concurrent connections
+    private final AtomicIntegerArray connections = new AtomicIntegerArray(DEPTH * WIDTH);
+    private final long beginTimestamp = System.currentTimeMillis() - 1; // make sure the timestamp never be 0
+
+    private final LongAdder rateRefused = new LongAdder();
+    private final LongAdder maxConnRefused = new LongAdder();
+
+    public ConnectionLimiter() {
+        this(32, 64);
+    }
+
+    public ConnectionLimiter(int ipv4Mask, int ipv6Mask) {
+        if (ipv4Mask < 0 || ipv4Mask > 32 || ipv6Mask < 0 || ipv6Mask > 128)
+            throw new IllegalArgumentException("invalid mask " + ipv4Mask + " " + ipv6Mask);
+        this.ipv4Mask = ipv4Mask;
+        this.ipv6Mask = ipv6Mask;
+    }
+
+    public void setRate(int rate) {
+        setRate(rate, rate);
+    }
+
+    public void setRate(int rate, int burst) {
+        if (rate < 0 || rate > MAX_RATE)
+            throw new IllegalArgumentException("invalid rate " + rate);
+        if (burst < 0 || burst > MAX_RATE || (rate > 0 && burst < 1))
+            throw new IllegalArgumentException("invalid burst " + burst);
+        this.burst = burst;
+        this.rate = rate;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 0)
+            throw new IllegalArgumentException("invalid max connections " + maxConnections);
+        this.maxConnections = maxConnections;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getRateRefusedCount() {
+        return rateRefused.sum();
+    }
+
+    public long getMaxConnRefusedCount() {
+        return maxConnRefused.sum();
+    }
+
+    /**
+     * Check whether a new connection from the address is allowed.
+     * If allowed, the connection is counted, and {@link #release(InetAddress)}
+     * must be called when the connection is closed.
+     *
+     * @return true if allowed
+     */
+    public boolean tryAcquire(InetAddress address) {
+        long hash = hash(address);
+
+        int maxConnections = this.maxConnections;
+        if (maxConnections > 0 && estimateConnections(hash) >= maxConnections) {
+            maxConnRefused.increment();
+            return false;
+        }
+        int rate = this.rate;
+        if (rate > 0 && !consumeToken(hash, rate, burst)) {
+            rateRefused.increment();
+            return false;
+        }
+        // always record concurrent connections
+        // so that it's still correct when the limit is set later
+        for (int row = 0; row < DEPTH; ++row) {
+            connections.incrementAndGet(index(hash, row));
+        }
+        return true;
+    }
+
+    public void release(InetAddress address) {
+        long hash = hash(address);
+        for (int row = 0; row < DEPTH; ++row) {
+            connections.decrementAndGet(index(hash, row));
+        }
+    }
+
+    /**
+     * @return estimated concurrent connections of the source network where the address belongs
+     */
+    public int connections(InetAddress address) {
+        return estimateConnections(hash(address));
+    }
+
+    private int estimateConnections(long hash) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row) {
+            int n = connections.get(index(hash, row));
+            if (n < min) {
+                min = n;
+            }
+        }
+        return min;
+    }
+
+    private boolean consumeToken(long hash, int rate, int burst) {
+        int now = (int) (System.currentTimeMillis() - beginTimestamp);
+        int capacity = burst * 1000;
+        // the collisions make each row consume more tokens than it should
+        // so the largest one is the closest to the truth
+        int tokens = 0;
+        for (int row = 0; row < DEPTH; ++row) {
+            int t = tokens(buckets.get(index(hash, row)), now, rate, capacity);
+            if (t > tokens) {
+                tokens = t;
+            }
+        }
+        if (tokens < 1000)
+            return false;
+        for (int row = 0; row < DEPTH; ++row) {
+            int idx = index(hash, row);
+            while (true) {
+                long cell = buckets.get(idx);
+                int t = tokens(cell, now, rate, capacity) - 1000;
+                if (t < 0) {
+                    t = 0;
+                }
+                if (buckets.compareAndSet(idx, cell, ((long) now << 32) | (t & 0xffffffffL)))
+                    break;
+            }
+        }
+        return true;
+    }
+
+    // milli-tokens after refilled
+    private static int tokens(long cell, int now, int rate, int capacity) {
+        if (cell == 0)
+            return capacity;
+        int last = (int) (cell >>> 32);
+        int elapsed = now - last; // still correct when the int overflows
+        if (elapsed < 0)
+            return capacity; // not touched for a very long time
+        long t = (int) cell + (long) elapsed * rate; // rate tokens per second is rate milli-tokens per milli
+        return (int) Math.min(capacity, t);
+    }
+
+    private long hash(InetAddress address) {
+        byte[] ip = address.getAddress();
+        int mask = ip.length == 4 ? ipv4Mask : ipv6Mask;
+        // pack the masked address into two longs without losing any bit
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < ip.length; ++i) {
+            int bits = Math.min(8, Math.max(0, mask - i * 8));
+            int b = ip[i] & (0xff00 >>> bits) & 0xff;
+            if (i < 8) {
+                hi = (hi << 8) | b;
+            } else {
+                lo = (lo << 8) | b;
+            }
+        }
+        return mix(mix(hi + ip.length) ^ lo);
+    }
+
+    // the murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = ((int) (hash >>> 32)) | 1;
+        return row * WIDTH + ((h1 + row * h2) & (WIDTH - 1));
+    }
+}
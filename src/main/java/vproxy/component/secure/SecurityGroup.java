@@ -6,7 +6,7 @@ import vproxy.connection.Protocol;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,8 +15,8 @@ public class SecurityGroup {
 
     public final String alias;
     public boolean defaultAllow;
-    private LinkedList<SecurityGroupRule> tcpRules = new LinkedList<>();
-    private LinkedList<SecurityGroupRule> udpRules = new LinkedList<>();
+    private volatile Rules tcpRules = Rules.EMPTY;
+    private volatile Rules udpRules = Rules.EMPTY;
 
     public SecurityGroup(String alias, boolean defaultAllow) {
         this.alias = alias;
@@ -28,41 +28,40 @@ public class SecurityGroup {
     }
 
     public boolean allow(Protocol protocol, InetAddress address, int port) {
-        LinkedList<SecurityGroupRule> rules;
+        Rules rules;
         if (protocol == Protocol.TCP) {
             rules = tcpRules;
         } else {
             assert protocol == Protocol.UDP;
             rules = udpRules;
         }
-        if (rules.isEmpty())
+        if (rules.list.isEmpty())
             return defaultAllow;
-        for (SecurityGroupRule rule : rules) {
-            if (rule.match(address, port))
-                return rule.allow;
-        }
+        SecurityGroupRule rule = rules.matcher().match(address.getAddress(), port);
+        if (rule != null)
+            return rule.allow;
         return defaultAllow;
     }
 
     public List<SecurityGroupRule> getRules() {
-        LinkedList<SecurityGroupRule> tcpRules = this.tcpRules;
-        LinkedList<SecurityGroupRule> udpRules = this.udpRules;
+        List<SecurityGroupRule> tcpRules = this.tcpRules.list;
+        List<SecurityGroupRule> udpRules = this.udpRules.list;
         List<SecurityGroupRule> rules = new ArrayList<>(tcpRules.size() + udpRules.size());
         rules.addAll(tcpRules);
         rules.addAll(udpRules);
         return rules;
     }
 
-    public void addRule(SecurityGroupRule rule) throws AlreadyExistException {
+    public synchronized void addRule(SecurityGroupRule rule) throws AlreadyExistException {
         if (getRules().stream().anyMatch(r -> r.alias.equals(rule.alias)))
             throw new AlreadyExistException();
 
-        LinkedList<SecurityGroupRule> rules;
+        List<SecurityGroupRule> rules;
         if (rule.protocol == Protocol.TCP) {
-            rules = new LinkedList<>(tcpRules);
+            rules = new ArrayList<>(tcpRules.list);
         } else {
             assert rule.protocol == Protocol.UDP;
-            rules = new LinkedList<>(udpRules);
+            rules = new ArrayList<>(udpRules.list);
         }
         // check ip mask
         for (SecurityGroupRule r : rules) {
@@ -74,31 +73,57 @@ public class SecurityGroup {
         }
         rules.add(rule);
         if (rule.protocol == Protocol.TCP) {
-            this.tcpRules = rules;
+            this.tcpRules = new Rules(rules);
         } else {
             //noinspection ConstantConditions
             assert rule.protocol == Protocol.UDP;
-            this.udpRules = rules;
+            this.udpRules = new Rules(rules);
         }
     }
 
-    public void removeRule(String name) throws NotFoundException {
-        LinkedList<SecurityGroupRule> tcpRules = this.tcpRules;
-        LinkedList<SecurityGroupRule> udpRules = this.udpRules;
-
-        List<SecurityGroupRule> oldRules = new ArrayList<>(tcpRules.size() + udpRules.size());
-        oldRules.addAll(tcpRules);
-        oldRules.addAll(udpRules);
-        Optional<SecurityGroupRule> optRule = oldRules.stream().filter(r -> r.alias.equals(name)).findFirst();
+    public synchronized void removeRule(String name) throws NotFoundException {
+        Optional<SecurityGroupRule> optRule = getRules().stream().filter(r -> r.alias.equals(name)).findFirst();
         if (optRule.isEmpty())
             throw new NotFoundException();
+        // copy on write, the running lookups still use the old rules
         if (optRule.get().protocol == Protocol.TCP) {
-            tcpRules.remove(optRule.get());
-            this.tcpRules = tcpRules;
+            List<SecurityGroupRule> rules = new ArrayList<>(tcpRules.list);
+            rules.remove(optRule.get());
+            this.tcpRules = new Rules(rules);
         } else {
             assert optRule.get().protocol == Protocol.UDP;
-            udpRules.remove(optRule.get());
-            this.udpRules = udpRules;
+            List<SecurityGroupRule> rules = new ArrayList<>(udpRules.list);
+            rules.remove(optRule.get());
+            this.udpRules = new Rules(rules);
+        }
+    }
+
+    // an immutable snapshot of rules of one protocol
+    // it's replaced as a whole when rules change
+    private static class Rules {
+        static final Rules EMPTY = new Rules(Collections.emptyList());
+
+        final List<SecurityGroupRule> list;
+        private volatile SecurityGroupRuleMatcher matcher;
+
+        Rules(List<SecurityGroupRule> list) {
+            this.list = Collections.unmodifiableList(list);
+        }
+
+        // compiled when first used
+        // so that adding a lot of rules one by one won't compile for each of them
+        SecurityGroupRuleMatcher matcher() {
+            SecurityGroupRuleMatcher matcher = this.matcher;
+            if (matcher == null) {
+                synchronized (this) {
+                    matcher = this.matcher;
+                    if (matcher == null) {
+                        matcher = new SecurityGroupRuleMatcher(list);
+                        this.matcher = matcher;
+                    }
+                }
+            }
+            return matcher;
         }
     }
 
@@ -0,0 +1,320 @@
+package vproxy.component.secure;
+
+import vproxy.util.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rules compiled into radix tries keyed by the network prefix,
+ * each trie node holds a port interval table of the rules on that node.
+ * <br>
+ * The result is exactly the same as checking the rules one by one
+ * with {@link SecurityGroupRule#match(java.net.InetAddress, int)}
+ * and taking the first matching rule:
+ * all prefixes on the input address path are visited,
+ * and the rule with the smallest index is picked.
+ * <br>
+ * The object is immutable after constructed.
+ */
+class SecurityGroupRuleMatcher {
+    private static final int NOT_FOUND = Integer.MAX_VALUE;
+
+    private final SecurityGroupRule[] rules;
+    // ipv4 rules, for ipv4 input and ipv4-compatible/mapped ipv6 input
+    private final Node v4 = new Node(new byte[4], 0);
+    // ipv6 rules, for ipv6 input
+    private final Node v6 = new Node(new byte[16], 0);
+    // ipv6 rules which may match ipv4 input, keyed by the last 32 bits
+    private final Node v6ForV4 = new Node(new byte[4], 0);
+    // rules which cannot be expressed as a prefix, e.g. not built by Utils.parseMask
+    // they are checked one by one
+    private final int[] irregular;
+
+    SecurityGroupRuleMatcher(List<SecurityGroupRule> rules) {
+        this.rules = rules.toArray(new SecurityGroupRule[0]);
+
+        List<Integer> irregular = new ArrayList<>();
+        for (int idx = 0; idx < this.rules.length; ++idx) {
+            SecurityGroupRule rule = this.rules[idx];
+            if (rule.minPort > rule.maxPort)
+                continue; // would never match
+            if (!isRegular(rule)) {
+                irregular.add(idx);
+                continue;
+            }
+            int mask = Utils.maskInt(rule.mask);
+            if (rule.ip.length == 4) {
+                insert(v4, rule.ip, 0, mask).indexes.add(idx);
+            } else if (rule.mask.length == 4) {
+                // the ipv6 rule with mask <= 32 only compares the first 4 bytes of ipv6 input
+                // and never matches ipv4 input
+                // see Utils.maskMatch()
+                insert(v6, rule.ip, 0, mask).indexes.add(idx);
+            } else {
+                insert(v6, rule.ip, 0, mask).indexes.add(idx);
+                // the ipv4 input is compared with the last 32 bits
+                // when the rule is an ipv4-compatible/mapped address
+                if (isV4CompatibleOrMapped(rule.ip)) {
+                    insert(v6ForV4, rule.ip, 12, Math.max(0, mask - 96)).indexes.add(idx);
+                }
+            }
+        }
+        this.irregular = irregular.stream().mapToInt(i -> i).toArray();
+
+        v4.build(this.rules);
+        v6.build(this.rules);
+        v6ForV4.build(this.rules);
+    }
+
+    private static boolean isRegular(SecurityGroupRule rule) {
+        if (rule.ip.length != 4 && rule.ip.length != 16)
+            return false;
+        int mask = Utils.maskInt(rule.mask);
+        return Arrays.equals(rule.mask, Utils.parseMask(mask)) && Utils.validNetwork(rule.ip, rule.mask);
+    }
+
+    // the same check as Utils.lowBitsV6V4()
+    // [all 0][0000] or [all 0][ffff] in the highest 96 bits
+    private static boolean isV4CompatibleOrMapped(byte[] v6) {
+        for (int i = 0; i < 10; ++i) {
+            if (v6[i] != 0)
+                return false;
+        }
+        if (v6[11] == 0) {
+            return v6[10] == 0;
+        } else if (v6[11] == (byte) 0xff) {
+            return v6[10] == (byte) 0xff;
+        } else
+            return false;
+    }
+
+    /**
+     * @return the first matching rule, or null if none matches
+     */
+    SecurityGroupRule match(byte[] address, int port) {
+        int idx;
+        if (address.length == 4) {
+            idx = Math.min(
+                lookup(v4, address, 0, port),
+                lookup(v6ForV4, address, 0, port));
+        } else {
+            idx = lookup(v6, address, 0, port);
+            if (isV4CompatibleOrMapped(address)) {
+                idx = Math.min(idx, lookup(v4, address, 12, port));
+            }
+        }
+        for (int i : irregular) {
+            if (i >= idx)
+                break;
+            SecurityGroupRule rule = rules[i];
+            if (Utils.maskMatch(address, rule.ip, rule.mask) && rule.minPort <= port && port <= rule.maxPort) {
+                idx = i;
+                break;
+            }
+        }
+        return idx == NOT_FOUND ? null : rules[idx];
+    }
+
+    private static boolean bit(byte[] key, int off, int n) {
+        return (key[off + n / 8] & (0x80 >>> (n % 8))) != 0;
+    }
+
+    // check whether the first `len` bits of key and input are the same
+    private static boolean prefixMatch(byte[] key, byte[] input, int off, int len) {
+        int bytes = len / 8;
+        for (int i = 0; i < bytes; ++i) {
+            if (key[i] != input[off + i])
+                return false;
+        }
+        int bits = len % 8;
+        if (bits == 0)
+            return true;
+        int m = (0xff00 >>> bits) & 0xff;
+        return (key[bytes] & m) == (input[off + bytes] & m);
+    }
+
+    private static int commonPrefix(byte[] key, byte[] input, int off, int from, int to) {
+        for (int n = from; n < to; ++n) {
+            if (bit(key, 0, n) != bit(input, off, n))
+                return n;
+        }
+        return to;
+    }
+
+    // get or create the node representing the prefix
+    private static Node insert(Node root, byte[] key, int off, int len) {
+        Node cur = root;
+        while (cur.len != len) {
+            boolean b = bit(key, off, cur.len);
+            Node child = cur.child(b);
+            if (child == null) {
+                Node n = new Node(key, off, len, root.key.length);
+                cur.setChild(b, n);
+                return n;
+            }
+            int common = commonPrefix(child.key, key, off, cur.len, Math.min(child.len, len));
+            if (common == child.len) {
+                cur = child;
+                continue;
+            }
+            // split the edge
+            Node mid = new Node(key, off, common, root.key.length);
+            cur.setChild(b, mid);
+            mid.setChild(bit(child.key, 0, common), child);
+            if (common == len)
+                return mid;
+            Node n = new Node(key, off, len, root.key.length);
+            mid.setChild(bit(key, off, common), n);
+            return n;
+        }
+        return cur;
+    }
+
+    private static int lookup(Node root, byte[] input, int off, int port) {
+        int maxLen = root.key.length * 8;
+        int idx = NOT_FOUND;
+        Node n = root;
+        while (n != null && prefixMatch(n.key, input, off, n.len)) {
+            if (n.ports != null) {
+                idx = Math.min(idx, n.ports.first(port));
+            }
+            if (n.len == maxLen)
+                break;
+            n = n.child(bit(input, off, n.len));
+        }
+        return idx;
+    }
+
+    private static class Node {
+        final byte[] key; // bits after len are all 0
+        final int len;
+        Node zero;
+        Node one;
+        List<Integer> indexes = new ArrayList<>(); // only used when building
+        PortTable ports;
+
+        Node(byte[] key, int len) {
+            this.key = key;
+            this.len = len;
+        }
+
+        Node(byte[] key, int off, int len, int keyLen) {
+            this.key = new byte[keyLen];
+            System.arraycopy(key, off, this.key, 0, keyLen);
+            for (int n = len; n < keyLen * 8; ++n) {
+                this.key[n / 8] &= ~(0x80 >>> (n % 8));
+            }
+            this.len = len;
+        }
+
+        Node child(boolean b) {
+            return b ? one : zero;
+        }
+
+        void setChild(boolean b, Node n) {
+            if (b) {
+                one = n;
+            } else {
+                zero = n;
+            }
+        }
+
+        void build(SecurityGroupRule[] rules) {
+            // the trie depth is at most 128, so recursion is fine
+            if (!indexes.isEmpty()) {
+                ports = new PortTable(rules, indexes);
+            }
+            indexes = null;
+            if (zero != null) zero.build(rules);
+            if (one != null) one.build(rules);
+        }
+    }
+
+    // the port ranges split into non-overlapping segments
+    // each segment records the smallest rule index covering it
+    private static class PortTable {
+        private final int[] starts;
+        private final int[] first;
+
+        PortTable(SecurityGroupRule[] rules, List<Integer> indexes) {
+            // indexes are added in ascending order
+            int[] points = new int[indexes.size() * 2 + 1];
+            int cnt = 0;
+            points[cnt++] = Integer.MIN_VALUE;
+            for (int idx : indexes) {
+                SecurityGroupRule rule = rules[idx];
+                points[cnt++] = rule.minPort;
+                if (rule.maxPort != Integer.MAX_VALUE) {
+                    points[cnt++] = rule.maxPort + 1;
+                }
+            }
+            Arrays.sort(points, 0, cnt);
+            int segCnt = 0;
+            for (int i = 0; i < cnt; ++i) {
+                if (i == 0 || points[i] != points[i - 1]) {
+                    points[segCnt++] = points[i];
+                }
+            }
+            int[] segFirst = new int[segCnt];
+            Arrays.fill(segFirst, NOT_FOUND);
+            // paint the segments with rules in ascending order
+            // `next` skips the segments already painted
+            int[] next = new int[segCnt + 1];
+            for (int i = 0; i < next.length; ++i) {
+                next[i] = i;
+            }
+            for (int idx : indexes) {
+                SecurityGroupRule rule = rules[idx];
+                int begin = Arrays.binarySearch(points, 0, segCnt, rule.minPort);
+                int end = rule.maxPort == Integer.MAX_VALUE
+                    ? segCnt
+                    : Arrays.binarySearch(points, 0, segCnt, rule.maxPort + 1);
+                for (int i = find(next, begin); i < end; i = find(next, i + 1)) {
+                    segFirst[i] = idx;
+                    next[i] = i + 1;
+                }
+            }
+            // merge adjacent segments with the same rule
+            int n = 0;
+            for (int i = 0; i < segCnt; ++i) {
+                if (n == 0 || segFirst[i] != segFirst[n - 1]) {
+                    points[n] = points[i];
+                    segFirst[n] = segFirst[i];
+                    ++n;
+                }
+            }
+            this.starts = Arrays.copyOf(points, n);
+            this.first = Arrays.copyOf(segFirst, n);
+        }
+
+        private static int find(int[] next, int i) {
+            int root = i;
+            while (next[root] != root) {
+                root = next[root];
+            }
+            while (next[i] != root) {
+                int tmp = next[i];
+                next[i] = root;
+                i = tmp;
+            }
+            return root;
+        }
+
+        int first(int port) {
+            int lo = 0;
+            int hi = starts.length - 1;
+            // starts[0] is Integer.MIN_VALUE, find the last start <= port
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= port) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return first[lo];
+        }
+    }
+}
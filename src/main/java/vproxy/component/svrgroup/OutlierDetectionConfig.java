@@ -0,0 +1,60 @@
+package vproxy.component.svrgroup;
+
+public class OutlierDetectionConfig {
+    public static final OutlierDetectionConfig DEFAULT = new OutlierDetectionConfig(
+        5, 50, 20, 3, 10_000, 10_000, 300_000, 50);
+
+    // eject the server after failed to connect for `consecutiveFailures` times
+    public final int consecutiveFailures;
+    // eject the server when connect failures and errors of established connections
+    // are more than `errorRatePercent` of the connections in the window
+    public final int errorRatePercent;
+    // the error rate and latency are only considered when having at least `minRequests` samples in the window
+    public final int minRequests;
+    // eject the server when its first byte latency is `latencyFactor` times of the other servers
+    public final int latencyFactor;
+    // and at least `minLatencyDeviation` microseconds slower
+    public final int minLatencyDeviation;
+    // the server is ejected for `baseEjectionTime` ms at the first time, and doubled each time it's ejected again
+    public final int baseEjectionTime;
+    public final int maxEjectionTime;
+    // at most `maxEjectionPercent` of the servers in the group can be ejected
+    public final int maxEjectionPercent;
+
+    public OutlierDetectionConfig(int consecutiveFailures, int errorRatePercent, int minRequests,
+                                  int latencyFactor, int minLatencyDeviation,
+                                  int baseEjectionTime, int maxEjectionTime, int maxEjectionPercent) {
+        if (consecutiveFailures < 1)
+            throw new IllegalArgumentException("invalid consecutiveFailures " + consecutiveFailures);
+        if (errorRatePercent < 1 || errorRatePercent > 100)
+            throw new IllegalArgumentException("invalid errorRatePercent " + errorRatePercent);
+        if (latencyFactor < 1)
+            throw new IllegalArgumentException("invalid latencyFactor " + latencyFactor);
+        if (baseEjectionTime < 1 || maxEjectionTime < baseEjectionTime)
+            throw new IllegalArgumentException("invalid ejection time " + baseEjectionTime + "/" + maxEjectionTime);
+        if (maxEjectionPercent < 0 || maxEjectionPercent > 100)
+            throw new IllegalArgumentException("invalid maxEjectionPercent " + maxEjectionPercent);
+        this.consecutiveFailures = consecutiveFailures;
+        this.errorRatePercent = errorRatePercent;
+        this.minRequests = minRequests;
+        this.latencyFactor = latencyFactor;
+        this.minLatencyDeviation = minLatencyDeviation;
+        this.baseEjectionTime = baseEjectionTime;
+        this.maxEjectionTime = maxEjectionTime;
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    @Override
+    public String toString() {
+        return "OutlierDetectionConfig{" +
+            "consecutiveFailures=" + consecutiveFailures +
+            ", errorRatePercent=" + errorRatePercent +
+            ", minRequests=" + minRequests +
+            ", latencyFactor=" + latencyFactor +
+            ", minLatencyDeviation=" + minLatencyDeviation +
+            ", baseEjectionTime=" + baseEjectionTime +
+            ", maxEjectionTime=" + maxEjectionTime +
+            ", maxEjectionPercent=" + maxEjectionPercent +
+            '}';
+    }
+}
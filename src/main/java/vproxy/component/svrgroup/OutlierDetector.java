@@ -0,0 +1,220 @@
+package vproxy.component.svrgroup;
+
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Passive health check of one server, based on the results of proxied connections.
+ * <p>
+ * Connections, errors and first byte latency are counted in a sliding window of one-second buckets,
+ * which may be updated from multiple event loops. When the server looks like an outlier,
+ * it's ejected from the server group for a while, and the ejection time grows exponentially
+ * if it's ejected again soon after re-admitted.
+ */
+class OutlierDetector {
+    private static final int BUCKETS = 10; // the window is 10 seconds
+
+    private static class Bucket {
+        volatile long sec = -1;
+        final LongAdder total = new LongAdder(); // connect attempts
+        final LongAdder errors = new LongAdder(); // connect failures and errors of established connections
+        final LongAdder latencySum = new LongAdder(); // first byte latency, micros
+        final LongAdder latencyCount = new LongAdder();
+
+        void reset(long sec) {
+            total.reset();
+            errors.reset();
+            latencySum.reset();
+            latencyCount.reset();
+            this.sec = sec;
+        }
+    }
+
+    private final ServerGroup.ServerHandle h;
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+    private volatile boolean ejected = false;
+    private volatile long ejectedUntil = 0; // nanos
+    // guarded by this
+    private int ejectionTimes = 0;
+    private long lastEjectionEnd = 0;
+
+    OutlierDetector(ServerGroup.ServerHandle h) {
+        this.h = h;
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    private OutlierDetectionConfig config() {
+        return h.group().getOutlierDetectionConfig();
+    }
+
+    // returns null if disabled
+    private Bucket current(OutlierDetectionConfig config) {
+        if (config == null)
+            return null;
+        long sec = System.nanoTime() / 1_000_000_000L;
+        Bucket b = buckets[(int) (sec % BUCKETS)];
+        if (b.sec != sec) {
+            boolean rotated = false;
+            synchronized (b) {
+                if (b.sec != sec) {
+                    b.reset(sec);
+                    rotated = true;
+                }
+            }
+            if (rotated) {
+                // check the latency once per second
+                checkLatency(config, sec);
+            }
+        }
+        return b;
+    }
+
+    void connectFailed() {
+        OutlierDetectionConfig config = config();
+        Bucket b = current(config);
+        if (b == null)
+            return;
+        b.total.increment();
+        b.errors.increment();
+        if (consecutiveFailures.incrementAndGet() >= config.consecutiveFailures) {
+            eject(config, "consecutive connect failures");
+        } else {
+            checkErrorRate(config);
+        }
+    }
+
+    void connected() {
+        Bucket b = current(config());
+        if (b == null)
+            return;
+        b.total.increment();
+        consecutiveFailures.set(0);
+    }
+
+    void connectionError() {
+        OutlierDetectionConfig config = config();
+        Bucket b = current(config);
+        if (b == null)
+            return;
+        b.errors.increment();
+        checkErrorRate(config);
+    }
+
+    void firstByte(long micros) {
+        Bucket b = current(config());
+        if (b == null)
+            return;
+        b.latencySum.add(micros);
+        b.latencyCount.increment();
+    }
+
+    private void checkErrorRate(OutlierDetectionConfig config) {
+        long sec = System.nanoTime() / 1_000_000_000L;
+        long total = 0;
+        long errors = 0;
+        for (Bucket b : buckets) {
+            if (b.sec > sec - BUCKETS) {
+                total += b.total.sum();
+                errors += b.errors.sum();
+            }
+        }
+        if (total < config.minRequests)
+            return;
+        if (errors * 100 >= total * config.errorRatePercent) {
+            eject(config, "error rate " + (errors * 100 / total) + "%");
+        }
+    }
+
+    // [0] = sum, [1] = count
+    private void latency(long sec, long[] result) {
+        for (Bucket b : buckets) {
+            if (b.sec > sec - BUCKETS) {
+                result[0] += b.latencySum.sum();
+                result[1] += b.latencyCount.sum();
+            }
+        }
+    }
+
+    private void checkLatency(OutlierDetectionConfig config, long sec) {
+        if (ejected)
+            return;
+        long[] self = new long[2];
+        latency(sec, self);
+        if (self[1] == 0 || self[1] < config.minRequests)
+            return;
+        long[] others = new long[2];
+        List<ServerGroup.ServerHandle> servers = h.group().serverList();
+        for (ServerGroup.ServerHandle s : servers) {
+            if (s == h || !s.healthy || s.outlier.ejected)
+                continue;
+            s.outlier.latency(sec, others);
+        }
+        if (others[1] == 0 || others[1] < config.minRequests)
+            return;
+        long selfAvg = self[0] / self[1];
+        long othersAvg = others[0] / others[1];
+        if (selfAvg > othersAvg * config.latencyFactor && selfAvg - othersAvg > config.minLatencyDeviation) {
+            eject(config, "first byte latency " + selfAvg + "us, others " + othersAvg + "us");
+        }
+    }
+
+    private void eject(OutlierDetectionConfig config, String reason) {
+        synchronized (this) {
+            if (ejected)
+                return;
+            if (!h.group().tryEject()) {
+                assert Logger.lowLevelDebug("cannot eject " + h.alias + ", too many servers are ejected");
+                return;
+            }
+            long now = System.nanoTime();
+            // start over if it's been healthy long enough
+            if (lastEjectionEnd != 0 && now - lastEjectionEnd > config.maxEjectionTime * 1_000_000L) {
+                ejectionTimes = 0;
+            }
+            long time = Math.min((long) config.baseEjectionTime << Math.min(ejectionTimes, 30), config.maxEjectionTime);
+            ++ejectionTimes;
+            ejectedUntil = now + time * 1_000_000L;
+            ejected = true;
+            // the old records should not affect the re-admitted server
+            for (Bucket b : buckets) {
+                synchronized (b) {
+                    b.reset(-1);
+                }
+            }
+            consecutiveFailures.set(0);
+            Logger.warn(LogType.HEALTH_CHECK_CHANGE,
+                "server " + h.alias + "(" + h.server + ") in " + h.group().alias + " is ejected for " + time + "ms: " + reason);
+        }
+    }
+
+    boolean isEjected() {
+        if (!ejected)
+            return false;
+        if (System.nanoTime() - ejectedUntil < 0)
+            return true;
+        readmit(true);
+        return false;
+    }
+
+    void readmit(boolean log) {
+        synchronized (this) {
+            if (!ejected)
+                return;
+            ejected = false;
+            lastEjectionEnd = System.nanoTime();
+            h.group().releaseEjection();
+        }
+        if (log) {
+            Logger.info(LogType.HEALTH_CHECK_CHANGE,
+                "server " + h.alias + "(" + h.server + ") in " + h.group().alias + " is re-admitted");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package vproxy.component.svrgroup;
 
+import vproxy.app.Config;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.check.HealthCheckHandler;
 import vproxy.component.check.TCPHealthCheckClient;
@@ -10,10 +11,12 @@ import vproxy.component.elgroup.EventLoopWrapper;
 import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.ClosedException;
 import vproxy.component.exception.NotFoundException;
+import vproxy.component.proxy.SessionLatency;
 import vproxy.connection.ConnCloseHandler;
 import vproxy.connection.Connection;
 import vproxy.connection.NetFlowRecorder;
 import vproxy.util.ConcurrentHashSet;
+import vproxy.util.LatencyHistogram;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
@@ -81,7 +84,7 @@ public class ServerGroup {
                     assert Logger.lowLevelDebug("restore the logic-delete server and remove self");
                     synchronized (ServerGroup.this) {
                         // the old server is still inside the server group?
-                        if (ServerGroup.this.servers.contains(toLogicDelete)) {
+                        if (ServerGroup.this.servers().contains(toLogicDelete)) {
                             ServerHandle.this.logicDelete = true;
                             toLogicDelete.logicDelete = false;
 
@@ -104,7 +107,7 @@ public class ServerGroup {
         public final String hostName;
         private final ServerHealthCheckHandler handler = new ServerHealthCheckHandler();
         public final InetSocketAddress server;
-        private int weight;
+        private volatile int weight;
         private ServerHandle toLogicDelete; // the server will be deleted when this server is UP, may be null
         EventLoopWrapper el;
         boolean valid = true;
@@ -112,9 +115,14 @@ public class ServerGroup {
         public boolean healthy = false; // considered to be unhealthy when firstly created
         private boolean logicDelete = false; // if true, it will not be checked for dup alias nor saved to cfg file
         TCPHealthCheckClient healthCheckClient;
+        final OutlierDetector outlier = new OutlierDetector(this);
 
         private final LongAdder fromRemoteBytes = new LongAdder();
         private final LongAdder toRemoteBytes = new LongAdder();
+        // the session latency is the lifetime of connections to this server,
+        // null unless Config.serverLatency is set, the values are recorded into the group as well
+        public final SessionLatency latency;
+        public final LatencyHistogram healthCheckLatency;
 
         private ConcurrentHashSet<Connection> connMap = new ConcurrentHashSet<>();
 
@@ -131,6 +139,18 @@ public class ServerGroup {
             this.server = server;
             this.weight = initialWeight;
             this.toLogicDelete = toLogicDelete;
+            if (Config.serverLatency) {
+                this.latency = new SessionLatency(ServerGroup.this.latency);
+                this.healthCheckLatency = new LatencyHistogram("health-check", ServerGroup.this.healthCheckLatency);
+            } else {
+                this.latency = null;
+                this.healthCheckLatency = null;
+            }
+        }
+
+        // where the latency of this server is recorded
+        SessionLatency recordingLatency() {
+            return latency == null ? ServerGroup.this.latency : latency;
         }
 
         // --- START statistics ---
@@ -175,10 +195,12 @@ public class ServerGroup {
         }
 
         public void setWeight(int weight) {
-            boolean needReload = this.weight != weight;
-            this.weight = weight;
-            if (needReload) {
-                resetMethodRelatedFields();
+            synchronized (ServerGroup.this) {
+                boolean needReload = this.weight != weight;
+                this.weight = weight;
+                if (needReload) {
+                    publish(servers(), method());
+                }
             }
         }
 
@@ -186,13 +208,27 @@ public class ServerGroup {
             return weight;
         }
 
-        void start() {
+        // temporarily ejected by outlier detection
+        public boolean isEjected() {
+            return outlier.isEjected();
+        }
+
+        // whether the server can be chosen by `next()`
+        boolean available() {
+            return healthy && !outlier.isEjected();
+        }
+
+        void start(int firstCheckSpread) {
             if (el != null)
                 return;
-            restart();
+            restart(firstCheckSpread);
         }
 
         void restart() {
+            restart(0);
+        }
+
+        private void restart(int firstCheckSpread) {
             if (el != null)
                 stop(); // event loop exists, so we stop first, then start (which makes it a `restart`)
             EventLoopWrapper w = eventLoopGroup.next();
@@ -201,7 +237,8 @@ public class ServerGroup {
                 return;
             }
             el = w;
-            healthCheckClient = new TCPHealthCheckClient(el, server, healthCheckConfig, healthy, handler);
+            healthCheckClient = new TCPHealthCheckClient(el, server, healthCheckConfig, healthy, handler,
+                healthCheckLatency == null ? ServerGroup.this.healthCheckLatency : healthCheckLatency);
             try {
                 el.attachResource(this);
             } catch (AlreadyExistException e) {
@@ -212,10 +249,10 @@ public class ServerGroup {
                 // however it's not expected to happen
                 // we log an error
                 Logger.shouldNotHappen("the retrieved event loop should not be closed");
-                restart();
+                restart(firstCheckSpread);
                 return;
             }
-            healthCheckClient.start();
+            healthCheckClient.start(firstCheckSpread);
             Logger.lowLevelDebug("health check for " +
                 ServerHandle.this.alias + "(" + server + ") " +
                 "is started on loop " + el.alias);
@@ -266,6 +303,10 @@ public class ServerGroup {
             }
         }
 
+        ServerGroup group() {
+            return ServerGroup.this;
+        }
+
         public SvrHandleConnector makeConnector() {
             return new SvrHandleConnector(this);
         }
@@ -288,7 +329,7 @@ public class ServerGroup {
             // restart all the health checks
             // it will let the health check clients separate on all event loops
             assert Logger.lowLevelDebug("onEventLoopAdd called, restart health checks");
-            ArrayList<ServerHandle> ls = servers;
+            ArrayList<ServerHandle> ls = serversToRead();
             for (ServerHandle handle : ls) {
                 handle.restart();
             }
@@ -303,35 +344,74 @@ public class ServerGroup {
     public final String alias;
     public final EventLoopGroup eventLoopGroup;
     private HealthCheckConfig healthCheckConfig;
-    private Method method;
+    private volatile OutlierDetectionConfig outlierDetectionConfig = null; // null means disabled
+    private final AtomicInteger ejectedCount = new AtomicInteger(0);
     private final Attach attach;
-    private ArrayList<ServerHandle> servers = new ArrayList<>(0);
     private final CopyOnWriteArraySet<ServerListener> serverListeners = new CopyOnWriteArraySet<>();
+    // latency of all servers in the group
+    public final SessionLatency latency = new SessionLatency();
+    public final LatencyHistogram healthCheckLatency = new LatencyHistogram("health-check");
+
+    /**
+     * The routing state of the group.
+     * <p>
+     * It's never modified after being built. Any change of servers, weights or method
+     * builds a new snapshot (with the lock held) and replaces the old one,
+     * or only one snapshot is built for all changes made in a batch,
+     * so {@link #next(InetSocketAddress)} only reads one volatile field
+     * and always sees a consistent state.
+     */
+    static class Snapshot {
+        final Method method;
+        final ArrayList<ServerHandle> servers; // all servers, do not modify
+        // only the one for the method is built, others are null
+        final WRR wrr;
+        final WLC wlc;
+        final SOURCE source;
+
+        Snapshot(Method method, ArrayList<ServerHandle> servers, WRR wrr, WLC wlc, SOURCE source) {
+            this.method = method;
+            this.servers = servers;
+            this.wrr = wrr;
+            this.wlc = wlc;
+            this.source = source;
+        }
+    }
+
+    private volatile Snapshot snapshot;
+    // changes made in a batch are not published until the batch is committed
+    private int batchDepth = 0; // guarded by this
+    private ArrayList<ServerHandle> pendingServers = null; // guarded by this, null if nothing changed in the batch
+    // alias -> server not logic deleted, for the list modified in place in the batch
+    private HashMap<String, ServerHandle> pendingAliases = null; // guarded by this
+    private volatile Method pendingMethod = null;
 
     // START fields for WRR
     static class WRR {
-        int[] seq;
+        final int[] seq;
         final AtomicInteger wrrCursor = new AtomicInteger(0);
-        final ArrayList<ServerHandle> servers; // = servers;
+        final ArrayList<ServerHandle> servers;
 
-        WRR(List<ServerHandle> servers) {
-            this.servers = new ArrayList<>(servers);
+        WRR(int[] seq, ArrayList<ServerHandle> servers) {
+            this.seq = seq;
+            this.servers = servers;
         }
     }
-
-    private WRR _wrr;
     // END fields for WRR
 
     // START fields for WLC
     static class WLC {
         final ArrayList<ServerHandle> servers;
+        final int[] weights; // weights of the servers when the snapshot is built
 
-        WLC(List<ServerHandle> servers) {
-            this.servers = new ArrayList<>(servers);
+        WLC(ArrayList<ServerHandle> servers) {
+            this.servers = servers;
+            this.weights = new int[servers.size()];
+            for (int i = 0; i < weights.length; ++i) {
+                weights[i] = servers.get(i).weight;
+            }
         }
     }
-
-    private WLC _wlc;
     // END fields for WLC
 
     // START fields for SOURCE
@@ -357,8 +437,6 @@ public class ServerGroup {
             return hash;
         }
     }
-
-    private SOURCE _source;
     // END fields for SOURCE
 
     public ServerGroup(String alias,
@@ -368,10 +446,9 @@ public class ServerGroup {
         this.alias = alias;
         this.eventLoopGroup = eventLoopGroup;
         this.healthCheckConfig = healthCheckConfig;
-        this.method = method;
         this.attach = new Attach();
 
-        resetMethodRelatedFields();
+        publish(new ArrayList<>(0), method);
         eventLoopGroup.attachResource(attach);
     }
 
@@ -379,22 +456,19 @@ public class ServerGroup {
      * @return null if not found any healthy
      */
     public SvrHandleConnector next(InetSocketAddress source) {
-        if (method == Method.wrr) {
-            return wrrNext();
-        } else if (method == Method.wlc) {
-            return wlcNext();
-        } else if (method == Method.source) {
-            return sourceHashGet(source.getAddress());
+        Snapshot snapshot = this.snapshot;
+        if (snapshot.method == Method.wlc) {
+            return wlcNext(snapshot.wlc, 0);
+        } else if (snapshot.method == Method.source) {
+            return sourceHashGet(snapshot.source, source.getAddress());
         } else {
-            Logger.shouldNotHappen("unsupported method " + method);
-            // use wrr instead
-            return wrrNext();
+            return wrrNext(snapshot.wrr, 0);
         }
     }
 
-    private SvrHandleConnector sourceHashGet(InetAddress source) {
+    private SvrHandleConnector sourceHashGet(SOURCE src, InetAddress source) {
         byte[] bytes = source.getAddress();
-        return sourceHashGet(_source, _source.hash(bytes), 0);
+        return sourceHashGet(src, src.hash(bytes), 0);
     }
 
     private SvrHandleConnector sourceHashGet(SOURCE source, int hash, int recurse) {
@@ -403,7 +477,7 @@ public class ServerGroup {
 
         int idx = hash % source.servers.size();
         ServerHandle h = source.servers.get(idx);
-        if (h.healthy)
+        if (h.available())
             return h.makeConnector();
 
         // increase the "hash" by 1, which means using the next server in the list
@@ -444,10 +518,6 @@ public class ServerGroup {
      * return NULL;
      */
 
-    private SvrHandleConnector wlcNext() {
-        return wlcNext(_wlc, 0);
-    }
-
     private SvrHandleConnector wlcNext(WLC wlc, int mStart) {
         if (mStart >= wlc.servers.size())
             return null;
@@ -461,22 +531,22 @@ public class ServerGroup {
         // for (m = 0; m < n; ++m) {
         { // --------- START ---------
             Sm = wlc.servers.get(m);
-            WSm = Sm.weight;
+            WSm = wlc.weights[m];
             CSm = Sm.connectionCount();
         } // --------- END ---------
-        if (!Sm.healthy) {
+        if (!Sm.available()) {
             return wlcNext(wlc, mStart + 1);
         }
         // if (WSm > 0) {
         for (int i = m + 1; i < n; ++i) {
             ServerHandle Si = wlc.servers.get(i);
-            WSi = Si.weight;
+            WSi = wlc.weights[i];
             CSi = Si.connectionCount();
-            if (CSm * WSi > CSi * WSm && Si.healthy) {
+            if (CSm * WSi > CSi * WSm && Si.available()) {
                 m = i;
                 { // --------- START ---------
                     Sm = wlc.servers.get(m);
-                    WSm = Sm.weight;
+                    WSm = wlc.weights[m];
                     CSm = Sm.connectionCount();
                 } // --------- END ---------
             }
@@ -487,10 +557,6 @@ public class ServerGroup {
         // return null;
     }
 
-    private SvrHandleConnector wrrNext() {
-        return wrrNext(this._wrr, 0);
-    }
-
     private SvrHandleConnector wrrNext(WRR wrr, int recursion) {
         if (recursion > wrr.seq.length)
             return null;
@@ -504,16 +570,103 @@ public class ServerGroup {
         }
         int realIdx = wrr.seq[idx];
         ServerHandle h = wrr.servers.get(realIdx);
-        if (h.healthy)
+        if (h.available())
             return h.makeConnector();
         else
             return wrrNext(wrr, recursion + 1);
     }
 
-    private void resetMethodRelatedFields() {
-        wrrReset();
-        wlcReset();
-        sourceReset();
+    // servers including the uncommitted changes, must be called with the lock held
+    private ArrayList<ServerHandle> servers() {
+        ArrayList<ServerHandle> ls = pendingServers;
+        return ls == null ? snapshot.servers : ls;
+    }
+
+    // for reading the servers without the lock,
+    // the list of the batch is modified in place, so it's copied
+    private synchronized ArrayList<ServerHandle> serversToRead() {
+        return batchDepth > 0 ? new ArrayList<>(servers()) : servers();
+    }
+
+    // the list to add servers into
+    // in a batch, the list is copied only once and then modified in place,
+    // so adding n servers in a batch does not copy the list n times
+    private ArrayList<ServerHandle> serversToAdd(int count) {
+        ArrayList<ServerHandle> ls = servers();
+        if (batchDepth == 0) {
+            ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() + count);
+            newLs.addAll(ls);
+            return newLs;
+        }
+        if (pendingServers == null || pendingServers == snapshot.servers) {
+            pendingMethod = method();
+            pendingServers = new ArrayList<>(ls);
+            pendingAliases = null;
+        }
+        if (pendingAliases == null) {
+            pendingAliases = new HashMap<>();
+            for (ServerHandle h : pendingServers) {
+                if (!h.logicDelete) {
+                    pendingAliases.put(h.alias, h);
+                }
+            }
+        }
+        return pendingServers;
+    }
+
+    // method including the uncommitted change
+    private Method method() {
+        Method m = pendingMethod;
+        return m == null ? snapshot.method : m;
+    }
+
+    /**
+     * start a batch, changes made after this call are published together
+     * when {@link #commitBatch()} is called.
+     * the batch can be nested, and is committed when the outermost batch is committed.
+     */
+    public synchronized void beginBatch() {
+        ++batchDepth;
+    }
+
+    public synchronized void commitBatch() {
+        if (batchDepth == 0)
+            throw new IllegalStateException("not in batch");
+        if (--batchDepth > 0)
+            return;
+        ArrayList<ServerHandle> servers = pendingServers;
+        Method method = pendingMethod;
+        if (servers == null)
+            return; // nothing changed
+        publish(servers, method);
+        pendingServers = null;
+        pendingAliases = null;
+        pendingMethod = null;
+    }
+
+    // build and publish a new snapshot, must be called with the lock held
+    // the `servers` list is owned by the snapshot after calling this method
+    private void publish(ArrayList<ServerHandle> servers, Method method) {
+        if (batchDepth > 0) {
+            // built when the batch is committed
+            if (servers != pendingServers) {
+                pendingAliases = null;
+            }
+            pendingServers = servers;
+            pendingMethod = method;
+            return;
+        }
+        WRR wrr = null;
+        WLC wlc = null;
+        SOURCE source = null;
+        if (method == Method.wlc) {
+            wlc = wlcBuild(servers);
+        } else if (method == Method.source) {
+            source = sourceBuild(servers);
+        } else {
+            wrr = wrrBuild(servers);
+        }
+        this.snapshot = new Snapshot(method, servers, wrr, wlc, source);
     }
 
     private int gcd(int a, int b) {
@@ -522,7 +675,7 @@ public class ServerGroup {
         return gcd(b - a, a);
     }
 
-    private void sourceReset() {
+    private SOURCE sourceBuild(List<ServerHandle> servers) {
         ArrayList<ServerHandle> svrs = new ArrayList<>(servers);
         svrs.sort((a, b) -> {
             byte[] ba = a.server.getAddress().getAddress();
@@ -539,8 +692,7 @@ public class ServerGroup {
             return a.server.getPort() - b.server.getPort();
         });
         if (svrs.size() == 0) {
-            _source = new SOURCE(new int[0], svrs);
-            return;
+            return new SOURCE(new int[0], svrs);
         }
         int g = svrs.size() > 1
             ? gcd(svrs.get(0).weight, svrs.get(1).weight)
@@ -559,28 +711,28 @@ public class ServerGroup {
         for (Integer integer : seqList) {
             seq[idx++] = integer;
         }
-        _source = new SOURCE(seq, svrs);
+        return new SOURCE(seq, svrs);
     }
 
-    private void wlcReset() {
-        this._wlc = new WLC(this.servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList()));
+    private WLC wlcBuild(List<ServerHandle> servers) {
+        return new WLC(servers.stream().filter(s -> s.weight > 0).collect(Collectors.toCollection(ArrayList::new)));
     }
 
-    private void wrrReset() {
-        WRR wrr = new WRR(this.servers.stream()
+    private WRR wrrBuild(List<ServerHandle> servers) {
+        ArrayList<ServerHandle> svrs = servers.stream()
             .filter(s -> s.weight > 0) // only consider those weight > 0
-            .collect(Collectors.toList()));
-        if (wrr.servers.isEmpty()) {
-            wrr.seq = new int[0];
+            .collect(Collectors.toCollection(ArrayList::new));
+        if (svrs.isEmpty()) {
+            return new WRR(new int[0], svrs);
         } else {
             // calculate the seq
             List<Integer> listSeq = new LinkedList<>();
-            int[] weights = new int[wrr.servers.size()];
-            int[] original = new int[wrr.servers.size()];
+            int[] weights = new int[svrs.size()];
+            int[] original = new int[svrs.size()];
             // run calculation
             int sum = 0;
-            for (int i = 0; i < wrr.servers.size(); i++) {
-                ServerHandle h = wrr.servers.get(i);
+            for (int i = 0; i < svrs.size(); i++) {
+                ServerHandle h = svrs.get(i);
                 weights[i] = h.weight;
                 original[i] = h.weight;
                 sum += h.weight;
@@ -615,10 +767,8 @@ public class ServerGroup {
                 seq[(idx + randStart) % seq.length] = ite.next();
                 ++idx;
             }
-            wrr.seq = seq;
+            return new WRR(seq, svrs);
         }
-
-        this._wrr = wrr;
     }
 
     private int sum(int[] weights) {
@@ -649,22 +799,20 @@ public class ServerGroup {
         return maxIdx;
     }
 
-    public void setMethod(Method method) {
-        boolean needReload = this.method != method;
-        this.method = method;
-        if (needReload) {
-            resetMethodRelatedFields();
+    public synchronized void setMethod(Method method) {
+        if (method() != method) {
+            publish(servers(), method);
         }
     }
 
     public Method getMethod() {
-        return method;
+        return method();
     }
 
     public void setHealthCheckConfig(HealthCheckConfig healthCheckConfig) {
         assert Logger.lowLevelDebug("set new health check config " + healthCheckConfig);
         this.healthCheckConfig = healthCheckConfig;
-        ArrayList<ServerHandle> ls = servers;
+        ArrayList<ServerHandle> ls = serversToRead();
         for (ServerHandle handle : ls) {
             handle.restart(); // restart all health check clients
         }
@@ -674,39 +822,124 @@ public class ServerGroup {
         return new HealthCheckConfig(healthCheckConfig);
     }
 
+    /**
+     * enable or disable outlier detection
+     *
+     * @param config null means disabling, and all ejected servers are re-admitted
+     */
+    public void setOutlierDetectionConfig(OutlierDetectionConfig config) {
+        assert Logger.lowLevelDebug("set outlier detection config " + config);
+        this.outlierDetectionConfig = config;
+        if (config == null) {
+            ArrayList<ServerHandle> ls = serversToRead();
+            for (ServerHandle handle : ls) {
+                handle.outlier.readmit(true);
+            }
+        }
+    }
+
+    public OutlierDetectionConfig getOutlierDetectionConfig() {
+        return outlierDetectionConfig;
+    }
+
+    // check the max ejection percentage and count the ejected server
+    boolean tryEject() {
+        OutlierDetectionConfig config = outlierDetectionConfig;
+        if (config == null)
+            return false;
+        int size = snapshot.servers.size();
+        while (true) {
+            int n = ejectedCount.get();
+            if ((n + 1) * 100 > config.maxEjectionPercent * size)
+                return false;
+            if (ejectedCount.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    void releaseEjection() {
+        ejectedCount.decrementAndGet();
+    }
+
+    List<ServerHandle> serverList() {
+        return snapshot.servers;
+    }
+
     public synchronized ServerHandle add(String alias, InetSocketAddress server, int weight) throws AlreadyExistException {
         return add(alias, null, server, weight);
     }
 
     public synchronized ServerHandle add(String alias, /*nullable*/ String hostName, InetSocketAddress server, int weight) throws AlreadyExistException {
-        return add(alias, hostName, false, server, weight);
+        return add(alias, hostName, server, weight, 0);
+    }
+
+    /**
+     * add a server, and the first health check runs randomly in `firstCheckSpread` ms instead of immediately,
+     * which is used when loading a large config
+     */
+    public synchronized ServerHandle add(String alias, /*nullable*/ String hostName, InetSocketAddress server, int weight, int firstCheckSpread) throws AlreadyExistException {
+        return add(alias, hostName, false, server, weight, firstCheckSpread);
     }
 
     public synchronized void replaceIp(String alias, InetAddress newIp) throws NotFoundException {
         // find the server to replace
-        ServerHandle toReplace = null;
-        ArrayList<ServerHandle> list = servers;
-        for (ServerHandle h : list) {
-            if (h.logicDelete) // ignore logic deleted servers
-                continue;
-            if (h.alias.equals(alias)) {
-                toReplace = h;
-                break;
-            }
-        }
+        ServerHandle toReplace = findToReplace(alias);
         if (toReplace == null)
             throw new NotFoundException();
         // do replace
         try {
             add(alias, toReplace.hostName, true,
                 new InetSocketAddress(newIp, toReplace.server.getPort()),
-                toReplace.weight);
+                toReplace.weight, 0);
         } catch (AlreadyExistException e) {
             // should not raise the error
             Logger.shouldNotHappen("should not raise AlreadyExist when replace", e);
         }
     }
 
+    /**
+     * replace ips of multiple servers at once,
+     * the method related fields are only reset once.
+     * servers not found are ignored
+     *
+     * @param newIps alias -&gt; new ip
+     */
+    public synchronized void replaceIp(Map<String, InetAddress> newIps) {
+        ArrayList<ServerHandle> newLs = serversToAdd(newIps.size());
+        boolean replaced = false;
+        for (Map.Entry<String, InetAddress> entry : newIps.entrySet()) {
+            String alias = entry.getKey();
+            ServerHandle toReplace = findToReplace(alias);
+            if (toReplace == null)
+                continue; // ignore if it's deleted
+            try {
+                doAdd(newLs, alias, toReplace.hostName, true,
+                    new InetSocketAddress(entry.getValue(), toReplace.server.getPort()),
+                    toReplace.weight, 0);
+            } catch (AlreadyExistException e) {
+                // should not raise the error
+                Logger.shouldNotHappen("should not raise AlreadyExist when replace", e);
+                continue;
+            }
+            replaced = true;
+        }
+        if (replaced) {
+            publish(newLs, method());
+        }
+    }
+
+    private ServerHandle findToReplace(String alias) {
+        ArrayList<ServerHandle> list = servers();
+        for (ServerHandle h : list) {
+            if (h.logicDelete) // ignore logic deleted servers
+                continue;
+            if (h.alias.equals(alias)) {
+                return h;
+            }
+        }
+        return null;
+    }
+
     /**
      * this field is only used when adding, for debug purpose only
      */
@@ -723,9 +956,18 @@ public class ServerGroup {
      *                 the old server will be set to weight 0 and logic delete and will be removed when no connections
      * @param server   ip:port, ip is resolved
      * @param weight   server weight
+     * @param firstCheckSpread ms, the first health check runs randomly in the window, 0 means immediately
      * @throws AlreadyExistException already exists
      */
-    private synchronized ServerHandle add(String alias, String hostName, boolean replace, InetSocketAddress server, int weight) throws AlreadyExistException {
+    private synchronized ServerHandle add(String alias, String hostName, boolean replace, InetSocketAddress server, int weight, int firstCheckSpread) throws AlreadyExistException {
+        ArrayList<ServerHandle> newLs = serversToAdd(1);
+        ServerHandle handle = doAdd(newLs, alias, hostName, replace, server, weight, firstCheckSpread);
+        publish(newLs, method());
+        return handle;
+    }
+
+    // add the server into the list, the list should be retrieved from `serversToAdd()`
+    private ServerHandle doAdd(ArrayList<ServerHandle> ls, String alias, String hostName, boolean replace, InetSocketAddress server, int weight, int firstCheckSpread) throws AlreadyExistException {
         // set the hostName to null if it's an ip literal
         if (hostName != null && Utils.isIpLiteral(hostName))
             hostName = null;
@@ -736,28 +978,39 @@ public class ServerGroup {
         // will be null if alias not found or `replace` is set to false
         ServerHandle toLogicDelete = null;
 
-        ArrayList<ServerHandle> ls = servers;
-        for (ServerHandle c : ls) {
-            if (c.alias.equals(alias)) {
-                if (c.logicDelete) // ignore logic deleted servers
-                    continue;
+        if (pendingAliases != null) {
+            // in a batch, find the server by alias without scanning the list
+            ServerHandle c = pendingAliases.get(alias);
+            if (c != null && !c.logicDelete) {
                 if (!replace) // raise error if replace flag is disabled
                     throw new AlreadyExistException();
                 toLogicDelete = c;
                 // directly set the flag
                 c.logicDelete = true;
             }
+        } else {
+            for (ServerHandle c : ls) {
+                if (c.alias.equals(alias)) {
+                    if (c.logicDelete) // ignore logic deleted servers
+                        continue;
+                    if (!replace) // raise error if replace flag is disabled
+                        throw new AlreadyExistException();
+                    toLogicDelete = c;
+                    // directly set the flag
+                    c.logicDelete = true;
+                }
+            }
         }
 
         // attach new server
         ServerHandle handle = new ServerHandle(
             alias, idForServer.getAndIncrement(), hostName, server, weight, toLogicDelete);
-        handle.start();
-        ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() + 1);
-        newLs.addAll(ls);
-        newLs.add(handle);
-        servers = newLs;
-        resetMethodRelatedFields();
+        handle.start(firstCheckSpread);
+        ls.add(handle);
+        if (pendingAliases != null) {
+            pendingAliases.put(alias, handle);
+        }
+        ServerHostNameIndex.add(handle);
 
         assert Logger.lowLevelDebug("server added: " + alias + "(" + server + ") to " + this.alias);
 
@@ -765,10 +1018,10 @@ public class ServerGroup {
     }
 
     public synchronized void remove(String alias) throws NotFoundException {
-        ArrayList<ServerHandle> ls = servers;
+        ArrayList<ServerHandle> ls = servers();
         if (ls.isEmpty())
             throw new NotFoundException();
-        ArrayList<ServerHandle> newLs = new ArrayList<>(servers.size() - 1);
+        ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() - 1);
         boolean found = false;
         for (ServerHandle c : ls) {
             if (c.alias.equals(alias)) {
@@ -776,14 +1029,15 @@ public class ServerGroup {
                 // with the same alias
                 found = true;
                 c.stop();
+                ServerHostNameIndex.remove(c);
+                c.outlier.readmit(false);
             } else {
                 newLs.add(c);
             }
         }
         if (!found)
             throw new NotFoundException();
-        servers = newLs;
-        resetMethodRelatedFields();
+        publish(newLs, method());
 
         assert Logger.lowLevelDebug("server removed " + alias + " from " + this.alias);
     }
@@ -791,23 +1045,24 @@ public class ServerGroup {
     // this method should do exactly the same as `remove()`
     // but only remove one serverHandle and do not raise error
     private synchronized void remove(ServerHandle h) {
-        ArrayList<ServerHandle> ls = servers;
+        ArrayList<ServerHandle> ls = servers();
         if (ls.isEmpty())
             return;
-        ArrayList<ServerHandle> newLs = new ArrayList<>(servers.size() - 1);
+        ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() - 1);
         boolean found = false;
         for (ServerHandle c : ls) {
             if (c == h) {
                 found = true;
                 c.stop();
+                ServerHostNameIndex.remove(c);
+                c.outlier.readmit(false);
             } else {
                 newLs.add(c);
             }
         }
         if (found) {
             // only replace servers when found
-            servers = newLs;
-            resetMethodRelatedFields();
+            publish(newLs, method());
         }
 
         assert Logger.lowLevelDebug("server handle removed " + h.alias + "(" + h.sid + ") from " + this.alias);
@@ -816,12 +1071,13 @@ public class ServerGroup {
     public void clear() {
         ArrayList<ServerHandle> ls;
         synchronized (this) {
-            ls = servers;
-            servers = new ArrayList<>(0);
-            resetMethodRelatedFields();
+            ls = servers();
+            publish(new ArrayList<>(0), method());
         }
         for (ServerHandle s : ls) {
             s.stop();
+            ServerHostNameIndex.remove(s);
+            s.outlier.readmit(false);
             assert Logger.lowLevelDebug("server removed " + s.alias + " from " + this.alias);
         }
     }
@@ -840,6 +1096,6 @@ public class ServerGroup {
     }
 
     public List<ServerHandle> getServerHandles() {
-        return new ArrayList<>(servers);
+        return new ArrayList<>(serversToRead());
     }
 }
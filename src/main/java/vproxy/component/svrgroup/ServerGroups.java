@@ -16,7 +16,7 @@ public class ServerGroups {
     public class ServerGroupHandle {
         public final String alias;
         public final ServerGroup group;
-        private int weight;
+        private volatile int weight;
 
         public ServerGroupHandle(ServerGroup group, int weight) {
             this.alias = group.alias;
@@ -29,49 +29,56 @@ public class ServerGroups {
         }
 
         public void setWeight(int weight) {
-            this.weight = weight;
-            recalculateWRR();
+            synchronized (ServerGroups.this) {
+                this.weight = weight;
+                publish(wrr.serverGroups);
+            }
         }
     }
 
-    class WRR {
+    // the groups and the routing state, never modified after being built
+    // any change builds a new one with the lock held, see ServerGroup.Snapshot
+    static class WRR {
         final AtomicInteger cursor = new AtomicInteger(0);
-        final ArrayList<ServerGroupHandle> groups;
-        int[] seq;
-
-        WRR(ArrayList<ServerGroupHandle> serverGroups) {
-            this.groups = serverGroups;
+        final ArrayList<ServerGroupHandle> serverGroups; // all groups, do not modify
+        final ArrayList<ServerGroupHandle> groups; // groups with weight > 0
+        final int[] seq;
+
+        WRR(ArrayList<ServerGroupHandle> serverGroups, ArrayList<ServerGroupHandle> groups, int[] seq) {
+            this.serverGroups = serverGroups;
+            this.groups = groups;
+            this.seq = seq;
         }
     }
 
     public final String alias;
-    private ArrayList<ServerGroupHandle> serverGroups = new ArrayList<>(0);
-    private WRR _wrr;
+    private volatile WRR wrr;
 
     public ServerGroups(String alias) {
         this.alias = alias;
-        recalculateWRR();
+        publish(new ArrayList<>(0));
     }
 
-    private void recalculateWRR() {
+    // must be called with the lock held
+    // the `serverGroups` list is owned by the new WRR object after calling this method
+    private void publish(ArrayList<ServerGroupHandle> serverGroups) {
         ArrayList<ServerGroupHandle> groups =
             serverGroups
                 .stream()
                 .filter(g -> g.weight > 0)
                 .collect(Collectors.toCollection(ArrayList::new));
-        WRR wrr = new WRR(groups);
 
-        if (wrr.groups.isEmpty()) {
-            wrr.seq = new int[0];
+        if (groups.isEmpty()) {
+            wrr = new WRR(serverGroups, groups, new int[0]);
         } else {
             // calculate the seq
             List<Integer> listSeq = new LinkedList<>();
-            int[] weights = new int[wrr.groups.size()];
-            int[] original = new int[wrr.groups.size()];
+            int[] weights = new int[groups.size()];
+            int[] original = new int[groups.size()];
             // run calculation
             int sum = 0;
-            for (int i = 0; i < wrr.groups.size(); i++) {
-                ServerGroupHandle h = wrr.groups.get(i);
+            for (int i = 0; i < groups.size(); i++) {
+                ServerGroupHandle h = groups.get(i);
                 weights[i] = h.weight;
                 original[i] = h.weight;
                 sum += h.weight;
@@ -97,10 +104,8 @@ public class ServerGroups {
                 seq[seqIdx++] = idx;
             }
 
-            wrr.seq = seq;
+            wrr = new WRR(serverGroups, groups, seq);
         }
-
-        _wrr = wrr;
     }
 
     private static int sum(int[] weights) {
@@ -131,19 +136,18 @@ public class ServerGroups {
         return maxIdx;
     }
 
-    public void add(ServerGroup group, int weight) throws AlreadyExistException {
-        List<ServerGroupHandle> groups = serverGroups;
+    public synchronized void add(ServerGroup group, int weight) throws AlreadyExistException {
+        List<ServerGroupHandle> groups = wrr.serverGroups;
         if (groups.stream().anyMatch(g -> g.group.equals(group)))
             throw new AlreadyExistException();
         ArrayList<ServerGroupHandle> newLs = new ArrayList<>(groups.size() + 1);
         newLs.addAll(groups);
         newLs.add(new ServerGroupHandle(group, weight));
-        serverGroups = newLs;
-        recalculateWRR();
+        publish(newLs);
     }
 
     public synchronized void remove(ServerGroup group) throws NotFoundException {
-        List<ServerGroupHandle> groups = serverGroups;
+        List<ServerGroupHandle> groups = wrr.serverGroups;
         if (groups.isEmpty())
             throw new NotFoundException();
         boolean found = false;
@@ -158,16 +162,14 @@ public class ServerGroups {
         if (!found) {
             throw new NotFoundException();
         }
-        serverGroups = newLs;
-        recalculateWRR();
+        publish(newLs);
     }
 
     public List<ServerGroupHandle> getServerGroups() {
-        return new ArrayList<>(serverGroups);
+        return new ArrayList<>(wrr.serverGroups);
     }
 
     public Connector next(InetSocketAddress source) {
-        WRR wrr = _wrr;
         return next(source, wrr, 0);
     }
 
@@ -0,0 +1,61 @@
+package vproxy.component.svrgroup;
+
+import vproxy.util.ConcurrentHashSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of servers added with host names: host name -&gt; server handles.
+ * <p>
+ * It's maintained when servers are added into or removed from a server group,
+ * so that the handles to be updated can be found without scanning all groups when a host name is resolved.
+ */
+public class ServerHostNameIndex {
+    private static final ConcurrentMap<String, Set<ServerGroup.ServerHandle>> index = new ConcurrentHashMap<>();
+
+    private ServerHostNameIndex() {
+    }
+
+    static void add(ServerGroup.ServerHandle h) {
+        if (h.hostName == null)
+            return;
+        index.compute(h.hostName, (k, set) -> {
+            if (set == null) {
+                set = new ConcurrentHashSet<>();
+            }
+            set.add(h);
+            return set;
+        });
+    }
+
+    static void remove(ServerGroup.ServerHandle h) {
+        if (h.hostName == null)
+            return;
+        index.computeIfPresent(h.hostName, (k, set) -> {
+            set.remove(h);
+            return set.isEmpty() ? null : set; // remove the entry if it's empty
+        });
+    }
+
+    /**
+     * @param hostName the resolved host name
+     * @return server handles with the host name, grouped by the server groups they belong to
+     */
+    public static Map<ServerGroup, List<ServerGroup.ServerHandle>> lookup(String hostName) {
+        Set<ServerGroup.ServerHandle> set = index.get(hostName);
+        if (set == null)
+            return Collections.emptyMap();
+        Map<ServerGroup, List<ServerGroup.ServerHandle>> ret = new HashMap<>();
+        for (ServerGroup.ServerHandle h : set) {
+            ret.computeIfAbsent(h.group(), g -> new ArrayList<>()).add(h);
+        }
+        return ret;
+    }
+
+    // count of indexed host names
+    public static int size() {
+        return index.size();
+    }
+}
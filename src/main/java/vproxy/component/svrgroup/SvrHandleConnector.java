@@ -1,5 +1,6 @@
 package vproxy.component.svrgroup;
 
+import vproxy.component.check.TCPHealthCheckClient;
 import vproxy.connection.ClientConnection;
 import vproxy.connection.ConnectionOpts;
 import vproxy.connection.Connector;
@@ -32,7 +33,33 @@ public class SvrHandleConnector extends Connector {
     @Override
     public void connectionFailed() {
         // accelerate the down process
-        serverHandle.healthCheckClient.manuallyDownOnce();
+        TCPHealthCheckClient healthCheckClient = serverHandle.healthCheckClient;
+        if (healthCheckClient != null) {
+            healthCheckClient.manuallyDownOnce();
+        }
+        serverHandle.outlier.connectFailed();
+    }
+
+    @Override
+    public void connectionEstablished(long connectMicros) {
+        serverHandle.recordingLatency().connect.record(connectMicros);
+        serverHandle.outlier.connected();
+    }
+
+    @Override
+    public void connectionError() {
+        serverHandle.outlier.connectionError();
+    }
+
+    @Override
+    public void firstByteReceived(long micros) {
+        serverHandle.recordingLatency().firstByte.record(micros);
+        serverHandle.outlier.firstByte(micros);
+    }
+
+    @Override
+    public void connectionClosed(long lifetimeMicros) {
+        serverHandle.recordingLatency().session.record(lifetimeMicros);
     }
 
     public String getHostName() {
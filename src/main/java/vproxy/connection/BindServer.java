@@ -35,6 +35,11 @@ public class BindServer implements NetFlowRecorder {
     }
 
     public static BindServer create(InetSocketAddress bindAddress) throws IOException {
+        return create(bindAddress, 0);
+    }
+
+    // backlog <= 0 means using the default value
+    public static BindServer create(InetSocketAddress bindAddress, int backlog) throws IOException {
         ServerSocketChannel channel = ServerSocketChannel.open();
         channel.configureBlocking(false);
         try {
@@ -43,7 +48,7 @@ public class BindServer implements NetFlowRecorder {
             Logger.warn(LogType.SYS_ERROR, "the operating system does not support SO_REUSEPORT, " +
                 "continue with no-reuse mode for " + bindAddress);
         }
-        channel.bind(bindAddress);
+        channel.bind(bindAddress, backlog);
         try {
             return new BindServer(channel);
         } catch (IOException e) {
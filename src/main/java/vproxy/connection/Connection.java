@@ -92,6 +92,9 @@ public class Connection implements NetFlowRecorder {
                     try {
                         int write = getOutBuffer().writeTo(channel);
                         assert Logger.lowLevelDebug("wrote " + write + " bytes to " + Connection.this);
+                        if (trace != null) {
+                            trace.record(ConnectionTrace.Event.quickWrite, write, getOutBuffer().used());
+                        }
                         if (write > 0) {
                             incToRemoteBytes(write); // record net flow, it's writing, so is "to remote"
                             // NOTE: should also record in NetEventLoop writable event
@@ -164,6 +167,9 @@ public class Connection implements NetFlowRecorder {
 
     private boolean noQuickWrite = false;
 
+    // null if the connection is not traced
+    ConnectionTrace trace = null;
+
     Connection(SocketChannel channel,
                InetSocketAddress remote, InetSocketAddress local,
                ConnectionOpts opts,
@@ -232,16 +238,38 @@ public class Connection implements NetFlowRecorder {
         );
     }
 
+    public ConnectionTrace getTrace() {
+        return trace;
+    }
+
+    // trace this connection if the other one is traced
+    // it's used for the backend connections of a traced session
+    // NOTE: this is not thread safe
+    public void traceAlong(Connection other) {
+        if (other.trace == null || trace != null)
+            return;
+        trace = new ConnectionTrace();
+        trace.record(ConnectionTrace.Event.connecting, remote.getPort());
+    }
+
     public boolean isClosed() {
         return closed;
     }
 
+    // whether the remote write is closed (got EOF)
+    public boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
     // make it synchronized to prevent inside fields inconsistent
     public synchronized void close() {
         if (closed)
             return; // do not close again if already closed
 
         closed = true;
+        if (trace != null) {
+            trace.record(ConnectionTrace.Event.close);
+        }
 
         // actually there's no need to clear the NetFlowRecorders
         // because the connection should not be traced in gc root after it's closed
@@ -0,0 +1,174 @@
+package vproxy.connection;
+
+import vproxy.util.Utils;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size circular buffer of events happened on one connection.
+ * <p>
+ * Only connections chosen by the global rule (sampling or client network) are traced,
+ * other connections only pay a null check at each trace point.
+ * The events are recorded on the event loop thread and may be dumped from any thread.
+ */
+public class ConnectionTrace {
+    public static final int CAPACITY = 64;
+
+    public enum Event {
+        accepted("remote-port", "local-port"),
+        connecting("remote-port", null),
+        connected(null, null),
+        registered("ops", null),
+        read("bytes", "in-buffer-used"),
+        eof("out-buffer-used", null),
+        write("bytes", "out-buffer-used"),
+        quickWrite("bytes", "out-buffer-used"),
+        inBufferFull("in-buffer-used", null),
+        outBufferEmpty(null, null),
+        exception(null, null),
+        timeout("idle-ms", null),
+        close(null, null),
+        removed(null, null),
+        backend("conn-id", "remote-port"),
+        feed("conn-id", "bytes"),
+        proxy("conn-id", "bytes"),
+        closeAll("backends", null),
+        ;
+        private final String argA;
+        private final String argB;
+
+        Event(String argA, String argB) {
+            this.argA = argA;
+            this.argB = argB;
+        }
+    }
+
+    private final long beginNanos = System.nanoTime();
+    private final long[] times = new long[CAPACITY]; // nanos since the trace is created
+    private final Event[] events = new Event[CAPACITY];
+    private final int[] argsA = new int[CAPACITY];
+    private final int[] argsB = new int[CAPACITY];
+    private long total = 0;
+
+    ConnectionTrace() {
+    }
+
+    public void record(Event event) {
+        record(event, 0, 0);
+    }
+
+    public void record(Event event, int a) {
+        record(event, a, 0);
+    }
+
+    public synchronized void record(Event event, int a, int b) {
+        int idx = (int) (total % CAPACITY);
+        times[idx] = System.nanoTime() - beginNanos;
+        events[idx] = event;
+        argsA[idx] = a;
+        argsB[idx] = b;
+        ++total;
+    }
+
+    // count of all recorded events, including the overwritten ones
+    public synchronized long total() {
+        return total;
+    }
+
+    /**
+     * @return the events from oldest to newest, one event per line
+     */
+    public synchronized List<String> dump() {
+        List<String> lines = new ArrayList<>(CAPACITY + 1);
+        long begin = 0;
+        if (total > CAPACITY) {
+            begin = total - CAPACITY;
+            lines.add("(" + begin + " earlier events dropped)");
+        }
+        for (long i = begin; i < total; ++i) {
+            int idx = (int) (i % CAPACITY);
+            Event e = events[idx];
+            StringBuilder sb = new StringBuilder();
+            sb.append("+").append(times[idx] / 1000).append("us ").append(e.name());
+            if (e.argA != null) {
+                sb.append(" ").append(e.argA).append("=").append(argsA[idx]);
+            }
+            if (e.argB != null) {
+                sb.append(" ").append(e.argB).append("=").append(argsB[idx]);
+            }
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    // ---- the global rule ----
+
+    private static class Rule {
+        final int sample; // trace 1 of every `sample` connections, 0 means using the network
+        final byte[] addr;
+        final byte[] mask;
+
+        Rule(int sample, byte[] addr, byte[] mask) {
+            this.sample = sample;
+            this.addr = addr;
+            this.mask = mask;
+        }
+
+        @Override
+        public String toString() {
+            if (sample > 0)
+                return "sample " + sample;
+            return "network " + Utils.ipStr(addr) + "/" + Utils.maskInt(mask);
+        }
+    }
+
+    private static volatile Rule rule = null;
+    private static final AtomicLong accepted = new AtomicLong(0);
+
+    /**
+     * trace one of every `sample` accepted connections
+     *
+     * @param sample 1 means tracing all connections
+     */
+    public static void sample(int sample) {
+        if (sample < 1)
+            throw new IllegalArgumentException("invalid sample " + sample + ", should be >= 1");
+        rule = new Rule(sample, null, null);
+    }
+
+    /**
+     * trace connections accepted from the network
+     */
+    public static void network(byte[] addr, byte[] mask) {
+        if (!Utils.validNetwork(addr, mask))
+            throw new IllegalArgumentException("invalid network");
+        rule = new Rule(0, addr, mask);
+    }
+
+    public static void disable() {
+        rule = null;
+    }
+
+    // null if disabled
+    public static String currentRule() {
+        Rule r = rule;
+        return r == null ? null : r.toString();
+    }
+
+    // decide whether to trace the accepted connection
+    static ConnectionTrace forAccepted(InetSocketAddress remote) {
+        Rule r = rule;
+        if (r == null)
+            return null;
+        if (r.sample > 0) {
+            if (accepted.getAndIncrement() % r.sample != 0)
+                return null;
+        } else if (!Utils.maskMatch(remote.getAddress().getAddress(), r.addr, r.mask)) {
+            return null;
+        }
+        return new ConnectionTrace();
+    }
+}
@@ -27,6 +27,26 @@ public class Connector {
         // do nothing in default implementation
     }
 
+    // let user code know the established connection got an error, e.g. reset by the remote
+    public void connectionError() {
+        // do nothing in default implementation
+    }
+
+    // let user code know the connection is established, and the cost of connecting
+    public void connectionEstablished(long connectMicros) {
+        // do nothing in default implementation
+    }
+
+    // let user code know the first byte is received after the connection established
+    public void firstByteReceived(long micros) {
+        // do nothing in default implementation
+    }
+
+    // let user code know the established connection is closed, and how long it lived
+    public void connectionClosed(long lifetimeMicros) {
+        // do nothing in default implementation
+    }
+
     // provide a event loop
     public NetEventLoop loop() {
         return null; // default: do not provide
@@ -68,6 +68,9 @@ public class NetEventLoop {
                 connection.releaseEventLoopRelatedFields();
                 throw e;
             }
+            if (connection.trace != null) {
+                connection.trace.record(ConnectionTrace.Event.registered, ops);
+            }
         }
         // now the connection is added into event loop
         // we set the close timer
@@ -140,18 +143,49 @@ class HandlerForTCPServer implements Handler<ServerSocketChannel> {
     @Override
     public void accept(HandlerContext<ServerSocketChannel> ctx) {
         ServerHandlerContext sctx = (ServerHandlerContext) ctx.getAttachment();
-
         ServerSocketChannel server = ctx.getChannel();
+
+        // accept at most `acceptBatch` connections for one event
+        // the selector is level triggered, so the event fires again in the next loop round
+        // if there are still pending connections
+        // other events on the loop get a chance to run in between
+        int batch = Config.acceptBatch;
+        if (batch < 1) {
+            batch = 1;
+        }
+        for (int i = 0; i < batch; ++i) {
+            if (!acceptOne(sctx, server))
+                break;
+        }
+    }
+
+    // return true if a socket is retrieved, false means no need to accept again
+    private boolean acceptOne(ServerHandlerContext sctx, ServerSocketChannel server) {
         SocketChannel sock;
         try {
             sock = server.accept();
         } catch (IOException e) {
             sctx.handler.acceptFail(sctx, e);
-            return;
+            return false;
         }
         if (sock == null) {
             assert Logger.lowLevelDebug("no socket yet, ignore this event");
-            return;
+            return false;
+        }
+        InetSocketAddress remote;
+        try {
+            remote = (InetSocketAddress) sock.getRemoteAddress();
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("get remote address of the accepted socket failed: " + e);
+            remote = null;
+        }
+        if (remote == null || !sctx.handler.allowAccept(sctx, remote)) { // refused before allocating buffers
+            try {
+                sock.close();
+            } catch (IOException e) {
+                Logger.shouldNotHappen("close the unaccepted connection failed: " + e);
+            }
+            return true;
         }
         Tuple<RingBuffer, RingBuffer> ioBuffers = sctx.handler.getIOBuffers(sock);
         if (ioBuffers == null) { // the user code may return null if refuse to accept
@@ -160,25 +194,35 @@ class HandlerForTCPServer implements Handler<ServerSocketChannel> {
             } catch (IOException e) {
                 Logger.shouldNotHappen("close the unaccepted connection failed: " + e);
             }
+            sctx.handler.acceptAborted(sctx, remote);
         } else {
             Connection conn;
             try {
                 conn = new Connection(sock,
-                    (InetSocketAddress) sock.getRemoteAddress(),
+                    remote,
                     (InetSocketAddress) sock.getLocalAddress(),
                     sctx.handler.connectionOpts(),
                     ioBuffers.left, ioBuffers.right);
             } catch (IOException e) {
                 Logger.shouldNotHappen("Connection object create failed: " + e);
-                return;
+                try {
+                    sock.close();
+                } catch (IOException e2) {
+                    Logger.shouldNotHappen("close the unaccepted connection failed: " + e2);
+                }
+                sctx.handler.acceptAborted(sctx, remote);
+                return false;
+            }
+            conn.trace = ConnectionTrace.forAccepted(remote);
+            if (conn.trace != null) {
+                conn.trace.record(ConnectionTrace.Event.accepted, remote.getPort(), sctx.server.bind.getPort());
             }
             conn.addNetFlowRecorder(sctx.server);
             sctx.handler.connection(sctx, conn);
         }
         // accept succeeded
         sctx.server.incHistoryAcceptedConnectionCount();
-        // then, we try to accept again, in case there are pending connections
-        accept(ctx);
+        return true;
     }
 
     @Override
@@ -251,6 +295,9 @@ class NetEventLoopUtils {
             int delta = (int) (Config.currentTimestamp - conn.lastTimestamp);
             if (delta > timeout) {
                 assert Logger.lowLevelDebug("timeout triggered: " + conn);
+                if (conn.trace != null) {
+                    conn.trace.record(ConnectionTrace.Event.timeout, delta);
+                }
                 ctx.handler.exception(ctx, new SocketTimeoutException("timeout by timer: " + ctx.connection));
                 // if the user code didn't close the connection, we do it for user
                 if (!conn.isClosed()) {
@@ -293,13 +340,18 @@ class HandlerForConnection implements Handler<SelectableChannel> {
         try {
             read = cctx.connection.getInBuffer().storeBytesFrom((ReadableByteChannel) /* it's definitely readable */ ctx.getChannel());
         } catch (IOException e) {
+            traceException(cctx);
             cctx.handler.exception(cctx, e);
             return;
         }
         assert Logger.lowLevelNetDebug("read " + read + " bytes from " + cctx.connection);
+        ConnectionTrace trace = cctx.connection.trace;
         if (read < 0) {
             // EOF, the remote write is closed
             cctx.connection.remoteClosed = true;
+            if (trace != null) {
+                trace.record(ConnectionTrace.Event.eof, cctx.connection.getOutBuffer().used());
+            }
             assert Logger.lowLevelDebug("connection " + cctx.connection + " remote closed");
             if (cctx.connection.getOutBuffer().used() == 0) {
                 // directly close here if no data needs to be sent
@@ -317,11 +369,17 @@ class HandlerForConnection implements Handler<SelectableChannel> {
             return;
         }
 
+        if (trace != null) {
+            trace.record(ConnectionTrace.Event.read, read, cctx.connection.getInBuffer().used());
+        }
         cctx.connection.incFromRemoteBytes(read); // record net flow, it's reading, so is "from remote"
         cctx.handler.readable(cctx); // the in buffer definitely have some bytes, let client code read
         if (cctx.connection.getInBuffer().free() == 0) {
             // the in-buffer is full, and client code cannot read, remove read event
             assert Logger.lowLevelDebug("the inBuffer is full now, remove READ event " + cctx.connection);
+            if (trace != null) {
+                trace.record(ConnectionTrace.Event.inBufferFull, cctx.connection.getInBuffer().used());
+            }
             if (ctx.getChannel().isOpen()) { // the connection might be closed in readable(), so let's check
                 ctx.rmOps(SelectionKey.OP_READ);
             }
@@ -349,10 +407,15 @@ class HandlerForConnection implements Handler<SelectableChannel> {
         try {
             write = cctx.connection.getOutBuffer().writeTo((WritableByteChannel) /* it's definitely writable */ ctx.getChannel());
         } catch (IOException e) {
+            traceException(cctx);
             cctx.handler.exception(cctx, e);
             return;
         }
         assert Logger.lowLevelDebug("wrote " + write + " bytes to " + cctx.connection);
+        ConnectionTrace trace = cctx.connection.trace;
+        if (trace != null) {
+            trace.record(ConnectionTrace.Event.write, write, cctx.connection.getOutBuffer().used());
+        }
         if (write <= 0) {
             Logger.shouldNotHappen("wrote nothing, the event should not be fired");
             // we ignore it for now
@@ -365,6 +428,9 @@ class HandlerForConnection implements Handler<SelectableChannel> {
             if (!cctx.connection.remoteClosed) {
                 // all bytes flushed, and no client bytes for now, remove write event
                 assert Logger.lowLevelDebug("the outBuffer is empty now, remove WRITE event " + cctx.connection);
+                if (trace != null) {
+                    trace.record(ConnectionTrace.Event.outBufferEmpty);
+                }
                 ctx.rmOps(SelectionKey.OP_WRITE);
             } else {
                 assert Logger.lowLevelDebug("the remote write is closed, so we keep the WRITE event for " + cctx.connection);
@@ -375,9 +441,18 @@ class HandlerForConnection implements Handler<SelectableChannel> {
     @Override
     public void removed(HandlerContext<SelectableChannel> ctx) {
         ConnectionHandlerContext cctx = (ConnectionHandlerContext) ctx.getAttachment();
+        if (cctx.connection.trace != null) {
+            cctx.connection.trace.record(ConnectionTrace.Event.removed);
+        }
         cctx.connection.releaseEventLoopRelatedFields();
         cctx.handler.removed(cctx);
     }
+
+    static void traceException(ConnectionHandlerContext cctx) {
+        if (cctx.connection.trace != null) {
+            cctx.connection.trace.record(ConnectionTrace.Event.exception);
+        }
+    }
 }
 
 class HandlerForClientConnection extends HandlerForConnection {
@@ -392,10 +467,14 @@ class HandlerForClientConnection extends HandlerForConnection {
             connected = channel.finishConnect();
         } catch (IOException e) {
             // exception when connecting
+            traceException(cctx);
             cctx.handler.exception(cctx, e);
             return;
         }
         cctx.connection.regenId();
+        if (cctx.connection.trace != null) {
+            cctx.connection.trace.record(ConnectionTrace.Event.connected);
+        }
         if (!connected) {
             Logger.shouldNotHappen("the connection is not connected, should not fire the event");
         }
@@ -4,6 +4,7 @@ import vproxy.util.RingBuffer;
 import vproxy.util.Tuple;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.NetworkChannel;
 
 public interface ServerHandler {
@@ -11,6 +12,18 @@ public interface ServerHandler {
 
     void connection(ServerHandlerContext ctx, Connection connection);
 
+    // called before buffers are allocated
+    // return false to refuse the connection
+    default boolean allowAccept(ServerHandlerContext ctx, InetSocketAddress remote) {
+        return true;
+    }
+
+    // called when the socket is closed after allowAccept() returned true
+    // but before connection() is called, e.g. no buffers or failed to create the Connection
+    default void acceptAborted(ServerHandlerContext ctx, InetSocketAddress remote) {
+        // do nothing
+    }
+
     // <in buffer, out buffer>
     Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel);
 
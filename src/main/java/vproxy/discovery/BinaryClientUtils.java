@@ -0,0 +1,51 @@
+package vproxy.discovery;
+
+import vproxy.component.exception.XException;
+import vproxy.connection.NetEventLoop;
+import vproxy.discovery.protocol.BinaryParser;
+import vproxy.redis.application.RESPClientUtils;
+import vproxy.util.Callback;
+import vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+// same as RESPClientUtils, but sends and receives binary frames
+class BinaryClientUtils {
+    private BinaryClientUtils() {
+    }
+
+    private static RESPClientUtils.ReplyParser binaryParser() {
+        BinaryParser parser = new BinaryParser(Discovery.MAX_FRAME_LEN);
+        return new RESPClientUtils.ReplyParser() {
+            @Override
+            public int feed(RingBuffer buffer) {
+                return parser.feed(buffer);
+            }
+
+            @Override
+            public String getErrorMessage() {
+                String msg = parser.getErrorMessage();
+                return msg == null ? null : "external data is not a valid frame: " + msg;
+            }
+
+            @Override
+            public Object getResult() throws IOException {
+                try {
+                    return parser.getResult();
+                } catch (XException e) {
+                    throw new IOException("external data is not a valid frame: " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    static void retry(NetEventLoop loop,
+                      InetSocketAddress remote,
+                      byte[] frame,
+                      int timeout,
+                      int retryTimes,
+                      Callback<Object, IOException> cb) {
+        RESPClientUtils.retry(loop, remote, frame, BinaryClientUtils::binaryParser, timeout, retryTimes, cb);
+    }
+}
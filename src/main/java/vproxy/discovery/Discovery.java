@@ -2,31 +2,36 @@ package vproxy.discovery;
 
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.exception.*;
-import vproxy.component.svrgroup.Method;
-import vproxy.component.svrgroup.ServerGroup;
-import vproxy.component.svrgroup.ServerListener;
+import vproxy.component.check.CheckProtocol;
+import vproxy.component.check.ConnectClient;
+import vproxy.component.check.HealthCheckConfig;
 import vproxy.connection.BindServer;
 import vproxy.connection.ConnectionHandler;
 import vproxy.connection.ConnectionHandlerContext;
 import vproxy.connection.NetEventLoop;
+import vproxy.discovery.protocol.BinaryParser;
+import vproxy.discovery.protocol.BinarySerializer;
+import vproxy.discovery.protocol.GossipMsg;
 import vproxy.discovery.protocol.NodeDataMsg;
 import vproxy.discovery.protocol.NodeExistenceMsg;
+import vproxy.protocol.ProtocolHandler;
+import vproxy.protocol.ProtocolHandlerContext;
 import vproxy.protocol.ProtocolServerConfig;
 import vproxy.protocol.ProtocolServerHandler;
-import vproxy.redis.RESPConfig;
 import vproxy.redis.RESPParser;
-import vproxy.redis.RESPProtocolHandler;
 import vproxy.redis.Serializer;
 import vproxy.redis.application.*;
-import vproxy.selector.SelectorEventLoop;
+import vproxy.selector.Handler;
+import vproxy.selector.HandlerContext;
+import vproxy.selector.PeriodicEvent;
 import vproxy.selector.TimerEvent;
 import vproxy.util.*;
 
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
@@ -38,20 +43,23 @@ import java.util.stream.Collectors;
  * When the instance is started:
  * 1. bind udp and tcp port on the specified nic
  * 2. start a udp sock, and try to send the following data to each ip:port in the specified subnet and port range
- * ******** version=1, type=search, nodeName, udpPort, tcpPort, SHA512(sort(nodeName+address+udpPort+tcpPort (only healthy))) ********
- * 3. the server who receives a `search` packet, it will check the SHA512 of vproxy nodes info, and if doesn't match:
+ * ******** version=1, type=search, nodeName, udpPort, tcpPort, XOR(SHA512(nodeName+address+udpPort+tcpPort)[0:16] (only healthy)) ********
+ * 3. the server who receives a `search` packet, it will check the digest of vproxy nodes info, and if doesn't match:
  * 4. the server will send a udp packet to the sender's bindAddress:udpPort
- * ******** version=1, type=inform, nodeName, udpPort, tcpPort, SHA512(sort(nodeName+address+udpPort+tcpPort (only healthy))) ********
- * 5. when a discovery instance receives the `inform` packet, it checks the SHA512, and if doesn't match:
+ * ******** version=1, type=inform, nodeName, udpPort, tcpPort, XOR(SHA512(nodeName+address+udpPort+tcpPort)[0:16] (only healthy)) ********
+ * 5. when a discovery instance receives the `inform` packet, it checks the digest, and if doesn't match:
  * 6. make a tcp connection to the server bindAddress:tcpPort, and send the full info of vproxy nodes:
  * ******** version=1, type=nodes, list:[nodeName,address,tcpPort,status] ********
  * 7. then the remote server will send back its vproxy nodes info
  * ******** version=1, type=nodes, list:[nodeName,address,udpPort,tcpPort,status] ********
- * 8. all missing nodes will be added to the nodes list, initially down, will be up when health check succeeds
- * 9. when health check is down for 5 minutes, it will be removed from the node list
+ * 8. all missing nodes will be added to the nodes list, initially down, will be up when the failure detector finds it alive
+ * 9. when the node is down for 5 minutes, it will be removed from the node list
  * 10. when the node leaves, it sends the following udp packet to all known nodes
  * ******** version=1, type=leave, nodeName, udpPort, tcpPort, (empty string) ********
  * 11. when receiving the packet, they will remove the left node
+ * <p>
+ * Nodes are checked by a SWIM style failure detector on the udp port, see {@link FailureDetector}:
+ * ******** version=1, type=ping|ping-req|ack, nodeName, udpPort, tcpPort, seq, incarnation, updates, ... ********
  */
 public class Discovery {
     class NodeExistenceConnectionHandler implements ConnectionHandler {
@@ -71,15 +79,61 @@ public class Discovery {
             handle(ctx.connection.remote.getAddress(), ctx.connection.getInBuffer());
         }
 
-        public void readable(InetAddress remoteAddr, byte[] bytes, int len) {
-            RingBuffer rb = RingBuffer.allocate(len);
-            ByteArrayChannel chnl = ByteArrayChannel.from(bytes, 0, len, 0);
-            rb.storeBytesFrom(chnl);
-            handle(remoteAddr, rb);
+        public void readable(InetAddress remoteAddr, ByteBuffer packet) {
+            if (packet.position() > 0 && BinarySerializer.isBinary(packet.array()[0])) {
+                handleBinary(remoteAddr, packet.array(), packet.position());
+                return;
+            }
+            ByteArrayChannel chnl = ByteArrayChannel.from(packet.array(), 0, packet.position(), 0);
+            udpRecvRingBuffer.storeBytesFrom(chnl);
+            handle(remoteAddr, udpRecvRingBuffer);
+        }
+
+        // the frame is read in place from the packet
+        void handleBinary(InetAddress remoteAddr, byte[] packet, int len) {
+            BinaryParser parser = udpBinaryParser;
+            try {
+                parser.wrap(packet, 0, len);
+                if (isSameHash(parser)) {
+                    // the most common packets in a stable network
+                    // dropped without allocating anything
+                    return;
+                }
+                parser.rewind();
+                parser.readArrayHeader();
+                parser.skip(); // version
+                parser.readStringInPlace(); // type
+                boolean gossip = parser.lastStringEquals(PING_BYTES)
+                    || parser.lastStringEquals(PING_REQ_BYTES)
+                    || parser.lastStringEquals(ACK_BYTES);
+                parser.rewind();
+                if (gossip) {
+                    failureDetector.handle(remoteAddr, GossipMsg.read(parser), true);
+                } else {
+                    handle(remoteAddr, NodeExistenceMsg.read(parser));
+                }
+            } catch (XException e) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
+            }
+        }
+
+        private boolean isSameHash(BinaryParser parser) throws XException {
+            if (parser.readArrayHeader() < 6)
+                return false;
+            parser.skip(); // version
+            parser.readStringInPlace();
+            if (!parser.lastStringEquals(SEARCH_BYTES) && !parser.lastStringEquals(INFORM_BYTES))
+                return false;
+            parser.skip(); // nodeName
+            parser.skip(); // udpPort
+            parser.skip(); // tcpPort
+            parser.readStringInPlace();
+            return parser.lastStringEquals(hashBytes);
         }
 
         void handle(InetAddress remoteAddr, RingBuffer buffer) {
-            RESPParser parser = new RESPParser(buffer.capacity());
+            RESPParser parser = udpParser;
+            parser.reset();
             int res = parser.feed(buffer);
             if (res == -1) {
                 String msg = parser.getErrorMessage();
@@ -97,14 +151,20 @@ public class Discovery {
                 return;
             }
             Object o = parser.getResult().getJavaObject();
-            NodeExistenceMsg msg;
             try {
-                msg = NodeExistenceMsg.parse(o);
+                if (o instanceof List && ((List) o).size() > 1
+                    && ((List) o).get(1) instanceof String
+                    && GossipMsg.isGossipType((String) ((List) o).get(1))) {
+                    failureDetector.handle(remoteAddr, GossipMsg.parse(o), false);
+                } else {
+                    handle(remoteAddr, NodeExistenceMsg.parse(o));
+                }
             } catch (XException e) {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
-                return;
             }
+        }
 
+        void handle(InetAddress remoteAddr, NodeExistenceMsg msg) {
             if (msg.version != 1) {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, version not match: " + msg);
                 return;
@@ -119,6 +179,11 @@ public class Discovery {
             }
 
             String remote = Utils.ipStr(remoteAddr.getAddress());
+            boolean binary = msg.framing >= BinarySerializer.VERSION;
+            NodeDetach sender = nodes.get(buildGroupServerName(msg.nodeName, remote, msg.tcpPort));
+            if (sender != null) {
+                sender.binaryFraming = binary;
+            }
 
             switch (msg.type) {
                 case "search": {
@@ -135,7 +200,7 @@ public class Discovery {
                         Logger.shouldNotHappen("the remote read from connection is wrong " + e);
                         return;
                     }
-                    informNode(node);
+                    informNode(node, binary);
                     break;
                 }
                 case "inform": {
@@ -156,7 +221,7 @@ public class Discovery {
                     if (initialSearchCount >= config.initialMinSearch) {
                         resetSearchCount(); // got a response, and already searched multiple times, so we reset the search count
                     }
-                    requestForNodes(node);
+                    requestForNodes(node, binary);
                     break;
                 }
                 case "leave":
@@ -191,6 +256,48 @@ public class Discovery {
         }
     }
 
+    class UDPServerHandler implements Handler<DatagramChannel> {
+        @Override
+        public void accept(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void connected(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void readable(HandlerContext<DatagramChannel> ctx) {
+            while (true) {
+                udpRecvBuffer.clear();
+                SocketAddress remote;
+                try {
+                    remote = udpServer.receive(udpRecvBuffer);
+                } catch (IOException e) {
+                    if (!closed) {
+                        Logger.shouldNotHappen("udp server receive() failed", e);
+                    }
+                    return;
+                }
+                if (remote == null) {
+                    return; // nothing to read for now
+                }
+                nodeExistenceConnectionHandler.readable(((InetSocketAddress) remote).getAddress(), udpRecvBuffer);
+            }
+        }
+
+        @Override
+        public void writable(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void removed(HandlerContext<DatagramChannel> ctx) {
+            // ignore, the channel is closed when the discovery closes
+        }
+    }
+
     class NodeDataApplication implements RESPApplication<RESPApplicationContext> {
         @Override
         public RESPApplicationContext context() {
@@ -235,10 +342,145 @@ public class Discovery {
         }
     }
 
+    class NodeDataContext {
+        final RESPApplicationContext attachment = nodeDataHandler.attachment();
+        RESPParser respParser;
+        BinaryParser binaryParser;
+    }
+
+    // accepts both RESP messages and binary frames, and responds in the same format as the request
+    class NodeDataProtocolHandler implements ProtocolHandler<NodeDataContext> {
+        @Override
+        public void init(ProtocolHandlerContext<NodeDataContext> ctx) {
+            ctx.data = new NodeDataContext();
+        }
+
+        @Override
+        public void readable(ProtocolHandlerContext<NodeDataContext> ctx) {
+            NodeDataContext data = ctx.data;
+            if (data.respParser == null && data.binaryParser == null) {
+                // the first byte tells the format
+                byte[] first = new byte[1];
+                ctx.inBuffer.writeTo(ByteArrayChannel.fromEmpty(first));
+                RingBuffer head = RingBuffer.allocate(1);
+                head.storeBytesFrom(ByteArrayChannel.fromFull(first));
+                if (BinarySerializer.isBinary(first[0])) {
+                    data.binaryParser = new BinaryParser(MAX_FRAME_LEN);
+                    data.binaryParser.feed(head);
+                } else {
+                    data.respParser = new RESPParser(MAX_FRAME_LEN);
+                    data.respParser.feed(head);
+                }
+            }
+            if (data.binaryParser != null) {
+                readBinary(ctx);
+            } else {
+                readResp(ctx);
+            }
+        }
+
+        private void readResp(ProtocolHandlerContext<NodeDataContext> ctx) {
+            RESPParser parser = ctx.data.respParser;
+            int r = parser.feed(ctx.inBuffer);
+            if (r == -1) {
+                String error = parser.getErrorMessage();
+                if (error == null)
+                    return; // want more data
+                ctx.inBuffer.clear(); // remove pending input data
+                ctx.data.respParser = null;
+                ctx.write(Serializer.fromErrorString(error));
+                return;
+            }
+            Object o = parser.getResult().getJavaObject();
+            ctx.data.respParser = null;
+            handle(ctx, o, false);
+        }
+
+        private void readBinary(ProtocolHandlerContext<NodeDataContext> ctx) {
+            BinaryParser parser = ctx.data.binaryParser;
+            int r = parser.feed(ctx.inBuffer);
+            if (r == -1) {
+                String error = parser.getErrorMessage();
+                if (error == null)
+                    return; // want more data
+                ctx.inBuffer.clear(); // remove pending input data
+                ctx.data.binaryParser = null;
+                ctx.write(BinarySerializer.fromErrorString(error));
+                return;
+            }
+            ctx.data.binaryParser = null;
+            Object o;
+            try {
+                o = parser.getResult();
+            } catch (XException e) {
+                ctx.write(BinarySerializer.fromErrorString(e.getMessage()));
+                return;
+            }
+            handle(ctx, o, true);
+        }
+
+        private void handle(ProtocolHandlerContext<NodeDataContext> ctx, Object o, boolean binary) {
+            try {
+                nodeDataHandler.handle(o, ctx.data.attachment, new Callback<Object, Throwable>() {
+                    @Override
+                    protected void onSucceeded(Object value) {
+                        byte[] bytes;
+                        try {
+                            bytes = binary ? BinarySerializer.from(value) : Serializer.from(value);
+                        } catch (IllegalArgumentException e) {
+                            Logger.error(LogType.IMPROPER_USE, "user returned an unexpected object", e);
+                            writeError(ctx, "Internal Error", binary);
+                            return;
+                        }
+                        ctx.write(bytes);
+                    }
+
+                    @Override
+                    protected void onFailed(Throwable err) {
+                        Logger.info(LogType.USER_HANDLE_FAIL, "handling node data failed in conn: " + ctx.connectionId +
+                            " - " + err.getClass().getSimpleName() +
+                            " - " + Utils.formatErr(err));
+                        writeError(ctx, Utils.formatErr(err), binary);
+                    }
+                });
+            } catch (Throwable t) {
+                Logger.error(LogType.IMPROPER_USE, "node data handle function thrown error", t);
+                writeError(ctx, "Internal Error", binary);
+            }
+        }
+
+        private void writeError(ProtocolHandlerContext<NodeDataContext> ctx, String err, boolean binary) {
+            ctx.write(binary ? BinarySerializer.fromErrorString(err) : Serializer.fromErrorString(err));
+        }
+
+        @Override
+        public void exception(ProtocolHandlerContext<NodeDataContext> ctx, Throwable err) {
+            Logger.error(LogType.CONN_ERROR, "exception in discovery tcp server in conn: " + ctx.connectionId, err);
+        }
+
+        @Override
+        public void end(ProtocolHandlerContext<NodeDataContext> ctx) {
+            // ignore because it's a request/response server
+        }
+    }
+
     class NodeDetach {
         public final String keyName;
         public final Node node;
         public TimerEvent detachTimer;
+        // whether the node accepts binary frames
+        boolean binaryFraming = false;
+        // whether the node ever sent failure detection messages
+        // old version nodes never do, and they are checked by tcp connections
+        boolean swim = false;
+
+        // states of the failure detector
+        int incarnation = 0;
+        int successes = 0;
+        int failures = 0;
+        Probe probe;
+        TimerEvent suspectTimer;
+        PeriodicEvent probeTimer;
 
         NodeDetach(Node node) {
             this(buildGroupServerName(node), node, false);
@@ -255,6 +497,11 @@ public class Discovery {
             }
         }
 
+        // the nodes supporting binary frames are new version nodes, so they know the failure detection messages
+        boolean knowsFailureDetection() {
+            return swim || binaryFraming;
+        }
+
         void startTimer() {
             if (detachTimer != null)
                 return; // already started
@@ -272,51 +519,465 @@ public class Discovery {
         }
     }
 
-    class HealthListener implements ServerListener {
-        @Override
-        public void up(ServerGroup.ServerHandle server) {
-            String key = server.alias;
-            NodeDetach n = nodes.get(key);
-            if (n == null)
-                return; // let's ignore if not found
+    class Probe {
+        final int seq;
+        final NodeDetach target;
+        TimerEvent timer;
+
+        Probe(int seq, NodeDetach target) {
+            this.seq = seq;
+            this.target = target;
+        }
+    }
+
+    class Relay {
+        final InetSocketAddress requester;
+        final int requesterSeq;
+        final boolean binary;
+
+        Relay(InetSocketAddress requester, int requesterSeq, boolean binary) {
+            this.requester = requester;
+            this.requesterSeq = requesterSeq;
+            this.binary = binary;
+        }
+    }
+
+    class Gossip {
+        final String state;
+        final Node node;
+        final int incarnation;
+        int transmits;
+
+        Gossip(String state, Node node, int incarnation, int transmits) {
+            this.state = state;
+            this.node = node;
+            this.incarnation = incarnation;
+            this.transmits = transmits;
+        }
+    }
+
+    /**
+     * SWIM style failure detector, all methods run on the discovery loop.
+     * <p>
+     * In each protocol period, only one healthy node is pinged, so the probe load of each node is constant.
+     * If the `ack` is not received in time, some other healthy nodes are asked to ping the node (`ping-req`),
+     * and if still no response, the node is suspected, and will be DOWN when the suspicion is not refuted in time.
+     * The node states are piggybacked on the ping/ack packets and spread like gossip.
+     * Nodes which are not healthy are pinged every period until they are UP or removed.
+     * <p>
+     * Old version nodes do not know the failure detection messages, so the nodes which never sent any of them
+     * and do not support binary frames are checked by connecting to their tcp ports instead,
+     * and they are never asked to `ping-req`.
+     */
+    class FailureDetector {
+        private static final int INDIRECT_PROBES = 3;
+        private static final int MAX_PIGGYBACK = 8;
+        private static final int RETRANSMIT_MULT = 3;
+
+        private final int period;
+        private final int directTimeout;
+        private final int suspicionTimeout;
+
+        private int seq = 0;
+        private int incarnation = 0;
+        private final Map<Integer, Probe> probes = new HashMap<>();
+        private final Map<Integer, Relay> relays = new HashMap<>();
+        private final Map<String /*buildGroupServerName*/, Gossip> updates = new LinkedHashMap<>();
+        private final List<NodeDetach> probeList = new ArrayList<>();
+        private int probeCursor = 0;
+        private PeriodicEvent tick;
+
+        FailureDetector(HealthCheckConfig hc) {
+            this.period = hc.period;
+            this.directTimeout = Math.max(1, Math.min(hc.timeout, hc.period / 2));
+            this.suspicionTimeout = hc.down * hc.period;
+        }
+
+        void start() {
+            tick = loop.getSelectorEventLoop().period(period, this::tick);
+        }
+
+        void stop() {
+            if (tick != null) {
+                tick.cancel();
+                tick = null;
+            }
+            for (NodeDetach n : nodes.values()) {
+                forget(n);
+            }
+            relays.clear();
+            updates.clear();
+        }
+
+        // the node is recorded or DOWN, keep pinging it until it's UP
+        void watch(NodeDetach n, boolean immediately) {
+            if (n.probeTimer != null)
+                return;
+            if (immediately) {
+                probe(n);
+            }
+            n.probeTimer = loop.getSelectorEventLoop().period(period, () -> probe(n));
+        }
+
+        // the node is removed
+        void forget(NodeDetach n) {
+            if (n.probeTimer != null) {
+                n.probeTimer.cancel();
+                n.probeTimer = null;
+            }
+            if (n.suspectTimer != null) {
+                n.suspectTimer.cancel();
+                n.suspectTimer = null;
+            }
+            if (n.probe != null) {
+                n.probe.timer.cancel();
+                probes.remove(n.probe.seq);
+                n.probe = null;
+            }
+            updates.remove(n.keyName);
+        }
+
+        private boolean isMember(NodeDetach n) {
+            return nodes.get(n.keyName) == n;
+        }
+
+        private void tick() {
+            if (closed)
+                return;
+            // pick the next healthy node in a shuffled round-robin list
+            while (true) {
+                if (probeCursor >= probeList.size()) {
+                    probeList.clear();
+                    probeCursor = 0;
+                    for (NodeDetach n : nodes.values()) {
+                        if (n.node != localNode && n.node.healthy) {
+                            probeList.add(n);
+                        }
+                    }
+                    if (probeList.isEmpty())
+                        return;
+                    Collections.shuffle(probeList);
+                }
+                NodeDetach n = probeList.get(probeCursor++);
+                if (isMember(n) && n.node.healthy) {
+                    probe(n);
+                    return;
+                }
+            }
+        }
+
+        private void probe(NodeDetach n) {
+            if (closed || n.probe != null)
+                return;
+            Probe p = new Probe(++seq, n);
+            n.probe = p;
+            probes.put(p.seq, p);
+            p.timer = loop.getSelectorEventLoop().delay(directTimeout, () -> directTimeout(p));
+            if (n.knowsFailureDetection()) {
+                send("ping", p.seq, new InetSocketAddress(n.node.inetAddress, n.node.udpPort), n.binaryFraming);
+            } else {
+                connect(p);
+            }
+        }
+
+        // the fallback for nodes not sending failure detection messages
+        private void connect(Probe p) {
+            NodeDetach n = p.target;
+            ConnectClient client = new ConnectClient(loop,
+                new InetSocketAddress(n.node.inetAddress, n.node.tcpPort), CheckProtocol.tcp, directTimeout);
+            client.handle(new Callback<>() {
+                @Override
+                protected void onSucceeded(Void value) {
+                    if (probes.remove(p.seq) == null)
+                        return; // timed out or forgotten
+                    p.timer.cancel();
+                    n.probe = null;
+                    if (isMember(n)) {
+                        probeSucceeded(n);
+                    }
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    // handled when the probe times out
+                }
+            });
+        }
+
+        private void directTimeout(Probe p) {
+            NodeDetach n = p.target;
+            if (!n.node.healthy || !n.knowsFailureDetection()) {
+                probeFailed(p);
+                return;
+            }
+            List<NodeDetach> helpers = new ArrayList<>();
+            for (NodeDetach h : nodes.values()) {
+                if (h != n && h.node != localNode && h.node.healthy && h.knowsFailureDetection()) {
+                    helpers.add(h);
+                }
+            }
+            if (helpers.isEmpty()) {
+                probeFailed(p);
+                return;
+            }
+            Collections.shuffle(helpers);
+            for (int i = 0; i < INDIRECT_PROBES && i < helpers.size(); ++i) {
+                NodeDetach h = helpers.get(i);
+                send("ping-req", p.seq, new InetSocketAddress(h.node.inetAddress, h.node.udpPort), h.binaryFraming,
+                    n.node.address, n.node.udpPort);
+            }
+            p.timer = loop.getSelectorEventLoop().delay(Math.max(1, period - directTimeout), () -> probeFailed(p));
+        }
+
+        private void probeFailed(Probe p) {
+            probes.remove(p.seq);
+            NodeDetach n = p.target;
+            n.probe = null;
+            if (!isMember(n))
+                return;
+            n.successes = 0;
+            if (!n.node.healthy)
+                return;
+            ++n.failures;
+            if (n.failures >= config.healthCheckConfig.down) {
+                markDown(n, "no ack for " + n.failures + " probes");
+            } else {
+                suspect(n);
+            }
+        }
+
+        private void probeSucceeded(NodeDetach n) {
+            n.failures = 0;
+            if (n.suspectTimer != null) {
+                n.suspectTimer.cancel();
+                n.suspectTimer = null;
+            }
+            if (n.node.healthy)
+                return;
+            ++n.successes;
+            if (n.successes >= config.healthCheckConfig.up) {
+                markUp(n);
+            }
+        }
+
+        private void suspect(NodeDetach n) {
+            if (n.suspectTimer != null)
+                return; // already suspected
+            Logger.warn(LogType.DISCOVERY_EVENT, "node " + n.keyName + " is SUSPECT");
+            n.suspectTimer = loop.getSelectorEventLoop().delay(suspicionTimeout, () -> {
+                n.suspectTimer = null;
+                if (isMember(n) && n.node.healthy) {
+                    markDown(n, "suspicion not refuted");
+                }
+            });
+            enqueue("suspect", n.node, n.incarnation);
+        }
 
-            Logger.info(LogType.DISCOVERY_EVENT, "node " + server.alias + " is UP");
+        private void markUp(NodeDetach n) {
+            n.successes = 0;
+            n.failures = 0;
+            if (n.probeTimer != null) {
+                n.probeTimer.cancel();
+                n.probeTimer = null;
+            }
+
+            Logger.info(LogType.DISCOVERY_EVENT, "node " + n.keyName + " is UP");
 
             n.pause(); // stop the timer because it's up
 
-            n.node.healthy = true;
-            calcAll(); // recalculate hash and other related things
+            setHealthy(n.node, true);
+            enqueue("alive", n.node, n.incarnation);
 
             // alert up
             alertNodeListeners(lsn -> lsn.up(n.node));
         }
 
-        @Override
-        public void down(ServerGroup.ServerHandle server) {
-            String key = server.alias;
-            NodeDetach n = nodes.get(key);
-            if (n == null)
-                return; // let's ignore if not found
+        private void markDown(NodeDetach n, String reason) {
+            n.successes = 0;
+            n.failures = 0;
+            if (n.suspectTimer != null) {
+                n.suspectTimer.cancel();
+                n.suspectTimer = null;
+            }
 
-            Logger.warn(LogType.DISCOVERY_EVENT, "node " + server.alias + " is DOWN");
+            Logger.warn(LogType.DISCOVERY_EVENT, "node " + n.keyName + " is DOWN: " + reason);
 
             n.startTimer(); // it's down, so start the detach timer
 
-            n.node.healthy = false;
-            calcAll(); // recalculate hash and other related things
+            setHealthy(n.node, false);
+            enqueue("dead", n.node, n.incarnation);
 
             // alert down
             alertNodeListeners(lsn -> lsn.down(n.node));
+
+            // ping it until it's up again
+            watch(n, false);
         }
 
-        @Override
-        public void start(ServerGroup.ServerHandle server) {
-            // ignore
+        private void enqueue(String state, Node node, int incarnation) {
+            int transmits = RETRANSMIT_MULT * (32 - Integer.numberOfLeadingZeros(nodes.size()));
+            updates.put(buildGroupServerName(node), new Gossip(state, node, incarnation, transmits));
         }
 
-        @Override
-        public void stop(ServerGroup.ServerHandle server) {
-            // ignore
+        private List<Object> piggyback() {
+            List<Object> list = new ArrayList<>();
+            Iterator<Gossip> ite = updates.values().iterator();
+            while (ite.hasNext() && list.size() < MAX_PIGGYBACK) {
+                Gossip g = ite.next();
+                list.add(new Object[]{g.state, g.node.nodeName, g.node.address, g.node.udpPort, g.node.tcpPort, g.incarnation});
+                if (--g.transmits <= 0) {
+                    ite.remove();
+                }
+            }
+            return list;
+        }
+
+        private void send(String type, int seq, InetSocketAddress target, boolean binary, Object... extra) {
+            Object[] message = new Object[8 + extra.length];
+            message[0] = 1 /*version*/;
+            message[1] = type;
+            message[2] = nodeName;
+            message[3] = config.udpPort;
+            message[4] = config.tcpPort;
+            message[5] = seq;
+            message[6] = incarnation;
+            message[7] = piggyback();
+            System.arraycopy(extra, 0, message, 8, extra.length);
+            sendBuffer(ByteBuffer.wrap(binary ? BinarySerializer.from(message) : Serializer.from(message)), target);
+        }
+
+        void handle(InetAddress remoteAddr, GossipMsg msg, boolean binary) {
+            if (msg.version != 1) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, version not match: " + msg);
+                return;
+            }
+            if (msg.udpPort < 1 || msg.udpPort > 65535 || msg.tcpPort < 1 || msg.tcpPort > 65535) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, invalid content: " + msg);
+                return;
+            }
+            String remote = Utils.ipStr(remoteAddr.getAddress());
+            InetSocketAddress sender = new InetSocketAddress(remoteAddr, msg.udpPort);
+            NodeDetach from = nodes.get(buildGroupServerName(msg.nodeName, remote, msg.tcpPort));
+            if (from != null) {
+                from.swim = true;
+                if (binary) {
+                    from.binaryFraming = true;
+                }
+            }
+
+            apply(msg.updates);
+
+            switch (msg.type) {
+                case "ping":
+                    send("ack", msg.seq, sender, binary, isSelfHealthy() ? 1 : 0);
+                    break;
+                case "ping-req": {
+                    InetAddress targetAddr;
+                    try {
+                        targetAddr = InetAddress.getByName(msg.targetAddress);
+                    } catch (UnknownHostException e) {
+                        Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, invalid target: " + msg);
+                        return;
+                    }
+                    int relaySeq = ++seq;
+                    relays.put(relaySeq, new Relay(sender, msg.seq, binary));
+                    loop.getSelectorEventLoop().delay(directTimeout, () -> relays.remove(relaySeq));
+                    InetSocketAddress target = new InetSocketAddress(targetAddr, msg.targetUdpPort);
+                    send("ping", relaySeq, target, isBinaryTarget(target));
+                    break;
+                }
+                case "ack": {
+                    Relay r = relays.remove(msg.seq);
+                    if (r != null) {
+                        // forward the result to the requester
+                        send("ack", r.requesterSeq, r.requester, r.binary, msg.healthy ? 1 : 0);
+                        return;
+                    }
+                    Probe p = probes.remove(msg.seq);
+                    if (p == null)
+                        return; // timed out or unknown
+                    p.timer.cancel();
+                    NodeDetach n = p.target;
+                    n.probe = null;
+                    if (!isMember(n))
+                        return;
+                    if (n.keyName.equals(buildGroupServerName(msg.nodeName, remote, msg.tcpPort))) {
+                        // direct ack, the incarnation is the target's
+                        n.incarnation = Math.max(n.incarnation, msg.incarnation);
+                    }
+                    if (msg.healthy) {
+                        probeSucceeded(n);
+                    } else if (n.node.healthy) {
+                        markDown(n, "the node reports unhealthy");
+                    } else {
+                        n.successes = 0;
+                    }
+                    break;
+                }
+            }
+        }
+
+        // the target of ping-req is known to support failure detection by the requester,
+        // so binary frames are used unless this node knows it better
+        private boolean isBinaryTarget(InetSocketAddress target) {
+            for (NodeDetach n : nodes.values()) {
+                if (n.node.udpPort == target.getPort() && n.node.inetAddress.equals(target.getAddress())) {
+                    return n.binaryFraming;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSelfHealthy() {
+            return !tcpServer.isClosed();
+        }
+
+        private void apply(List<GossipMsg.Update> list) {
+            String self = buildGroupServerName(localNode);
+            for (GossipMsg.Update u : list) {
+                String key = buildGroupServerName(u.nodeName, u.address, u.tcpPort);
+                if (key.equals(self)) {
+                    // refute the suspicion
+                    if (!u.state.equals("alive") && u.incarnation >= incarnation && isSelfHealthy()) {
+                        incarnation = u.incarnation + 1;
+                        Logger.info(LogType.DISCOVERY_EVENT, "refute the " + u.state + " state of this node, incarnation=" + incarnation);
+                        enqueue("alive", localNode, incarnation);
+                    }
+                    continue;
+                }
+                NodeDetach n = nodes.get(key);
+                if (n == null) {
+                    // new nodes are recorded by the search/inform procedure
+                    continue;
+                }
+                if (u.incarnation < n.incarnation)
+                    continue; // outdated
+                switch (u.state) {
+                    case "alive":
+                        if (u.incarnation > n.incarnation) {
+                            n.incarnation = u.incarnation;
+                            if (n.suspectTimer != null) {
+                                n.suspectTimer.cancel();
+                                n.suspectTimer = null;
+                            }
+                            enqueue("alive", n.node, n.incarnation);
+                        }
+                        // DOWN nodes are only set UP by probes
+                        break;
+                    case "suspect":
+                        if (n.node.healthy && (u.incarnation > n.incarnation || n.suspectTimer == null)) {
+                            n.incarnation = u.incarnation;
+                            suspect(n);
+                        }
+                        break;
+                    case "dead":
+                        if (n.node.healthy) {
+                            n.incarnation = u.incarnation;
+                            markDown(n, "reported by other nodes");
+                        }
+                        break;
+                }
+            }
         }
     }
 
@@ -342,6 +1003,15 @@ public class Discovery {
     public final NetEventLoop loop;
     public final Node localNode;
 
+    private static final int UDP_BUFFER_SIZE = 16384;
+    static final int MAX_FRAME_LEN = 16384;
+
+    private static final byte[] SEARCH_BYTES = "search".getBytes();
+    private static final byte[] INFORM_BYTES = "inform".getBytes();
+    private static final byte[] PING_BYTES = "ping".getBytes();
+    private static final byte[] PING_REQ_BYTES = "ping-req".getBytes();
+    private static final byte[] ACK_BYTES = "ack".getBytes();
+
     public final DiscoveryConfig config;
     private long searchCount = 0;
     private long searchAddressCursor = 0;
@@ -349,25 +1019,38 @@ public class Discovery {
     private byte[] searchNetworkByte;
 
     private final Map<String /*buildGroupServerName*/, NodeDetach> nodes = new ConcurrentHashMap<>();
-    private final ServerGroup hcGroup;
-    private String hash;
+    private final FailureDetector failureDetector;
+    private final MembershipDigest digest = new MembershipDigest(); // guarded by itself
+    private volatile String hash;
+    private volatile byte[] hashBytes;
+    private int searchHashOffset;
+    private int informHashOffset;
+    private int binaryInformHashOffset;
+    // the search message is sent to unknown nodes, so it's always RESP
     private final ByteBuffer searchBuffer;
     private final ByteBuffer informBuffer;
+    private final ByteBuffer binaryInformBuffer;
 
     // resources
     private final EventLoopGroup eventLoopGroup;
-    private final SelectorEventLoop blockingUDPSendThread;
-    private final SelectorEventLoop blockingUDPRecvThread;
-    private final DatagramSocket udpBlockingSock;
-    private final DatagramSocket udpBlockingServer;
+    private final DatagramChannel udpSock;
+    private final DatagramChannel udpServer;
     private final BindServer tcpServer;
 
+    // reused for all received packets, only accessed on the loop
+    private final ByteBuffer udpRecvBuffer = ByteBuffer.allocate(UDP_BUFFER_SIZE);
+    private final RingBuffer udpRecvRingBuffer = RingBuffer.allocate(UDP_BUFFER_SIZE);
+    private final RESPParser udpParser = new RESPParser(UDP_BUFFER_SIZE);
+    private final BinaryParser udpBinaryParser = new BinaryParser(UDP_BUFFER_SIZE);
+
     private boolean intoInterval = false; // should go into a long interval
     private boolean isInInterval = false; // is already into the interval
     private boolean closed = false;
 
     private final NodeExistenceConnectionHandler nodeExistenceConnectionHandler = new NodeExistenceConnectionHandler();
-    private final NodeDataApplication nodeDataApplication = new NodeDataApplication();
+    private final RESPApplicationHandler nodeDataHandler = new RESPApplicationHandler(
+        new RESPApplicationConfig().setPassword(null),
+        new NodeDataApplication());
 
     private Set<NodeListener> nodeListeners = new HashSet<>();
     private Set<NodeDataHandler> externalHandlers = new HashSet<>();
@@ -375,21 +1058,15 @@ public class Discovery {
     private int initialSearchCount = 0;
 
     public Discovery(String nodeName, DiscoveryConfig config) throws IOException {
-        SelectorEventLoop blockingUDPSendThread = null;
-        SelectorEventLoop blockingUDPRecvThread = null;
         EventLoopGroup eventLoopGroup = null;
-        ServerGroup hcGroup = null;
         ByteBuffer searchBuffer = null;
         ByteBuffer informBuffer = null;
-        DatagramSocket udpBlockingSock = null;
-        DatagramSocket udpBlockingServer = null;
+        ByteBuffer binaryInformBuffer = null;
+        DatagramChannel udpSock = null;
+        DatagramChannel udpServer = null;
         BindServer tcpServer = null;
 
         try {
-            blockingUDPSendThread = SelectorEventLoop.open();
-            blockingUDPSendThread.loop(r -> new Thread(r, "BlockingUDPSendThread:" + nodeName));
-            blockingUDPRecvThread = SelectorEventLoop.open();
-            blockingUDPRecvThread.loop(r -> new Thread(r, "BlockingUDPRecvThread:" + nodeName));
             eventLoopGroup = new EventLoopGroup("EventLoopGroup:" + nodeName);
             try {
                 eventLoopGroup.add("EventLoop:" + nodeName);
@@ -404,43 +1081,34 @@ public class Discovery {
             assert this.loop != null;
 
             this.config = config;
-            try {
-                hcGroup = new ServerGroup("nodes", eventLoopGroup, config.healthCheckConfig, Method.wrr);
-            } catch (AlreadyExistException | ClosedException e) {
-                Logger.shouldNotHappen("adding health check group failed", e);
-                throw new RuntimeException(e);
-            }
-            hcGroup.addServerListener(new HealthListener());
 
             searchBuffer = ByteBuffer.allocate(nodeName.getBytes().length + 256/*make it large enough*/);
             informBuffer = ByteBuffer.allocate(nodeName.getBytes().length + 256/*make it large enough*/);
+            binaryInformBuffer = ByteBuffer.allocate(nodeName.getBytes().length + 256/*make it large enough*/);
             Node n = new Node(nodeName, config.bindAddress, config.udpPort, config.tcpPort);
             n.healthy = true;
+            digest.add(n);
             this.localNode = n;
             String groupServerName = buildGroupServerName(nodeName, config.bindAddress, config.tcpPort);
             nodes.put(groupServerName, new NodeDetach(groupServerName, n, true));
 
-            udpBlockingSock = startUdpBlockingSock();
-            udpBlockingServer = createUdpBlockingServer();
+            udpSock = createUdpSock();
+            udpServer = createUdpServer();
             tcpServer = startTcpServer();
         } catch (Throwable t) {
             // release
-            if (blockingUDPSendThread != null)
-                blockingUDPSendThread.close();
-            if (blockingUDPRecvThread != null)
-                blockingUDPRecvThread.close();
             if (eventLoopGroup != null)
                 eventLoopGroup.close();
-            if (hcGroup != null)
-                hcGroup.clear();
             if (searchBuffer != null)
                 Utils.clean(searchBuffer);
             if (informBuffer != null)
                 Utils.clean(informBuffer);
-            if (udpBlockingSock != null)
-                udpBlockingSock.close();
-            if (udpBlockingServer != null)
-                udpBlockingServer.close();
+            if (binaryInformBuffer != null)
+                Utils.clean(binaryInformBuffer);
+            if (udpSock != null)
+                udpSock.close();
+            if (udpServer != null)
+                udpServer.close();
             //noinspection ConstantConditions
             if (tcpServer != null)
                 tcpServer.close();
@@ -454,22 +1122,32 @@ public class Discovery {
             }
         }
         // assign local fields
-        this.blockingUDPSendThread = blockingUDPSendThread;
-        this.blockingUDPRecvThread = blockingUDPRecvThread;
         this.eventLoopGroup = eventLoopGroup;
-        this.hcGroup = hcGroup;
+        this.failureDetector = new FailureDetector(config.healthCheckConfig);
         this.searchBuffer = searchBuffer;
         this.informBuffer = informBuffer;
-        this.udpBlockingSock = udpBlockingSock;
-        this.udpBlockingServer = udpBlockingServer;
+        this.binaryInformBuffer = binaryInformBuffer;
+        this.udpSock = udpSock;
+        this.udpServer = udpServer;
         this.tcpServer = tcpServer;
 
         // calc
-        calcAll();
+        hash = digest.hex();
+        hashBytes = hash.getBytes();
+        searchHashOffset = buildBuffer(searchBuffer, "search");
+        informHashOffset = buildBuffer(informBuffer, "inform");
+        binaryInformHashOffset = buildBinaryBuffer(binaryInformBuffer, "inform");
         resetSearchAddressBytes();
 
         // start
-        startUdpBlockingServer();
+        try {
+            loop.getSelectorEventLoop().add(udpServer, SelectionKey.OP_READ, null, new UDPServerHandler());
+        } catch (IOException e) {
+            closed = true;
+            release();
+            throw e;
+        }
+        failureDetector.start();
         loop.getSelectorEventLoop().delay(config.timeoutConfig.delayWhenNotJoined, this::startSearch);
     }
 
@@ -533,52 +1211,35 @@ public class Discovery {
         System.arraycopy(config.searchNetworkByte, 0, searchNetworkByte, 0, searchNetworkByte.length);
     }
 
-    private DatagramSocket startUdpBlockingSock() throws IOException {
-        DatagramSocket sock = new DatagramSocket(null);
-        sock.bind(new InetSocketAddress(config.bindInetAddress, config.udpSockPort));
+    private DatagramChannel createUdpSock() throws IOException {
+        DatagramChannel sock = DatagramChannel.open();
+        try {
+            sock.bind(new InetSocketAddress(config.bindInetAddress, config.udpSockPort));
+            sock.configureBlocking(false); // only used for sending on the loop
+        } catch (IOException e) {
+            sock.close();
+            throw e;
+        }
         return sock;
     }
 
-    private DatagramSocket createUdpBlockingServer() throws IOException {
-        DatagramSocket server = new DatagramSocket(null);
-        // server.setReuseAddress(true); grralvm doesn't support
-        server.bind(new InetSocketAddress(config.bindInetAddress, config.udpPort));
+    private DatagramChannel createUdpServer() throws IOException {
+        DatagramChannel server = DatagramChannel.open();
+        try {
+            server.bind(new InetSocketAddress(config.bindInetAddress, config.udpPort));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
         return server;
     }
 
-    private void startUdpBlockingServer() {
-        blockingUDPRecvThread.runOnLoop(() -> {
-            byte[] buf = new byte[16384];
-            DatagramPacket pkt = new DatagramPacket(buf, 0, buf.length);
-            while (!udpBlockingServer.isClosed()) {
-                try {
-                    udpBlockingServer.receive(pkt);
-                } catch (IOException e) {
-                    // maybe the error is because that the socket is closed
-                    if (!udpBlockingServer.isClosed()) {
-                        Logger.shouldNotHappen("udp blocking server receive() failed", e);
-                    }
-                    continue;
-                }
-                nodeExistenceConnectionHandler.readable(pkt.getAddress(), buf, pkt.getLength());
-            }
-        });
-    }
-
     private BindServer startTcpServer() throws IOException {
         BindServer tcp = BindServer.create(new InetSocketAddress(config.bindInetAddress, config.tcpPort));
         ProtocolServerHandler.apply(loop, tcp,
             // protocol scope
             new ProtocolServerConfig().setOutBufferSize(16384).setInBufferSize(16384),
-            new RESPProtocolHandler(
-                // (protocol=resp) handler scope
-                new RESPConfig().setMaxParseLen(16384),
-                new RESPApplicationHandler(
-                    // (protocol=resp) (handler=application) scope
-                    new RESPApplicationConfig().setPassword(null),
-                    // the application impl
-                    nodeDataApplication
-                )));
+            new NodeDataProtocolHandler());
         return tcp;
     }
 
@@ -586,13 +1247,10 @@ public class Discovery {
         String groupServerName = buildGroupServerName(node);
         if (!nodes.containsKey(groupServerName)) {
             Logger.info(LogType.DISCOVERY_EVENT, "recording new node: " + node);
-            try {
-                hcGroup.add(groupServerName, node.address, new InetSocketAddress(node.address, node.tcpPort), 10);
-            } catch (AlreadyExistException e) {
-                Logger.shouldNotHappen("the node already exist in hcGroup " + groupServerName);
-            }
             node.healthy = false; // default is false
-            nodes.put(groupServerName, new NodeDetach(node));
+            NodeDetach n = new NodeDetach(node);
+            nodes.put(groupServerName, n);
+            failureDetector.watch(n, true);
             // no need to calculate hash for now
             // calculate when the node goes UP
         }
@@ -603,13 +1261,11 @@ public class Discovery {
             Logger.error(LogType.INVALID_EXTERNAL_DATA, "the name " + groupServerName + " not exists");
             return;
         }
-        Node node = nodes.remove(groupServerName).node;
-        try {
-            hcGroup.remove(groupServerName);
-        } catch (NotFoundException e) {
-            Logger.shouldNotHappen("the node not exist in hcGroup " + groupServerName);
-        }
-        calcAll();
+        NodeDetach n = nodes.remove(groupServerName);
+        Node node = n.node;
+        n.pause();
+        failureDetector.forget(n);
+        setHealthy(node, false);
 
         // alert down
         alertNodeListeners(lsn -> lsn.leave(node));
@@ -618,26 +1274,32 @@ public class Discovery {
     }
 
     private void sendBuffer(ByteBuffer buffer, InetSocketAddress sockAddr) {
+        sendBuffer(buffer, Collections.singletonList(sockAddr));
+    }
+
+    // send the prebuilt packet to all targets without copying it
+    // should be called on the loop
+    private void sendBuffer(ByteBuffer buffer, Collection<InetSocketAddress> targets) {
         int pos = buffer.position();
         int lim = buffer.limit();
-        byte[] bytes = buffer.array();
-        DatagramPacket pkt = new DatagramPacket(bytes, lim);
-        pkt.setAddress(sockAddr.getAddress());
-        pkt.setPort(sockAddr.getPort());
-        blockingUDPSendThread.runOnLoop(() -> {
-            assert Logger.lowLevelDebug("run blocking udp sock to send data");
+        for (InetSocketAddress sockAddr : targets) {
+            buffer.position(pos).limit(lim);
             try {
-                udpBlockingSock.send(pkt);
+                int n = udpSock.send(buffer, sockAddr);
+                if (n == 0) {
+                    // the packet is dropped, it's ok for discovery packets
+                    assert Logger.lowLevelDebug("udp send buffer is full, drop the packet to " + sockAddr);
+                }
             } catch (IOException e) {
-                Logger.shouldNotHappen("send udp pkt failed", e);
+                Logger.shouldNotHappen("send udp pkt to " + sockAddr + " failed", e);
             }
-        });
-        assert Logger.lowLevelDebug("udpSock.send wrote " + lim + " bytes");
+        }
+        assert Logger.lowLevelDebug("udpSock.send wrote " + (lim - pos) + " bytes to " + targets.size() + " targets");
         buffer.position(pos).limit(lim);
     }
 
-    private void informNode(Node node) {
-        sendBuffer(informBuffer, new InetSocketAddress(node.inetAddress, node.udpPort));
+    private void informNode(Node node, boolean binary) {
+        sendBuffer(binary ? binaryInformBuffer : informBuffer, new InetSocketAddress(node.inetAddress, node.udpPort));
     }
 
     private void startSearch() {
@@ -719,9 +1381,9 @@ public class Discovery {
         return new InetSocketAddress(addr, port);
     }
 
-    private void requestForNodes(Node target) {
-        RESPClientUtils.oneReq(loop, new InetSocketAddress(target.inetAddress, target.tcpPort),
-            getNodeDataToSend(), 3000, new Callback<Object, IOException>() {
+    private void requestForNodes(Node target, boolean binary) {
+        request(new InetSocketAddress(target.inetAddress, target.tcpPort), binary,
+            getNodeDataToSend(), 3000, 0, new Callback<Object, IOException>() {
                 @Override
                 protected void onSucceeded(Object value) {
                     handleReceivedNodeData(value, new Callback<Void, XException>() {
@@ -735,6 +1397,11 @@ public class Discovery {
                             // do nothing, msg is logged in `handleReceivedNodeData()`
                         }
                     });
+                    // the target is recorded now, and it replied in the framing it supports
+                    NodeDetach n = nodes.get(buildGroupServerName(target));
+                    if (n != null && binary) {
+                        n.binaryFraming = true;
+                    }
                 }
 
                 @Override
@@ -744,77 +1411,89 @@ public class Discovery {
             });
     }
 
-    private void calcAll() {
-        hash = calcHash();
-        calcSearchBuffer();
-        calcInformBuffer();
-    }
-
-    private String calcHash() {
-        PriorityQueue<Node> p = new PriorityQueue<>(Node::compareTo);
-        for (NodeDetach n : nodes.values()) {
-            if (n.node.healthy) {
-                p.add(n.node);
-            } // ignore unhealthy nodes
-        }
-        StringBuilder sb = new StringBuilder();
-        while (!p.isEmpty()) {
-            Node n = p.poll();
-            sb.append(n.nodeName).append(",")
-                .append(n.address).append(",")
-                .append(n.udpPort).append(",")
-                .append(n.tcpPort).append(",");
-        }
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-512");
-        } catch (NoSuchAlgorithmException e) {
-            Logger.shouldNotHappen("SHA-512 not found");
-            throw new RuntimeException(e);
-        }
-        md.update(sb.toString().getBytes());
-        byte[] bytes = md.digest();
-        StringBuilder strHexString = new StringBuilder();
-        for (byte aByte : bytes) {
-            String hex = Integer.toHexString(Utils.positive(aByte));
-            if (hex.length() == 1) {
-                strHexString.append('0');
+    // the digest only changes when a node goes up or down
+    private void setHealthy(Node node, boolean healthy) {
+        synchronized (digest) {
+            if (node.healthy == healthy)
+                return;
+            node.healthy = healthy;
+            if (healthy) {
+                digest.add(node);
+            } else {
+                digest.remove(node);
             }
-            strHexString.append(hex);
+            hash = digest.hex();
+            // the hash has fixed length, so only overwrite it in the messages
+            byte[] bytes = hash.getBytes();
+            hashBytes = bytes;
+            System.arraycopy(bytes, 0, searchBuffer.array(), searchHashOffset, bytes.length);
+            System.arraycopy(bytes, 0, informBuffer.array(), informHashOffset, bytes.length);
+            System.arraycopy(bytes, 0, binaryInformBuffer.array(), binaryInformHashOffset, bytes.length);
         }
-        return strHexString.toString();
     }
 
-    private void calcSearchBuffer() {
-        searchBuffer.position(0).limit(searchBuffer.capacity());
+    // returns offset of the hash in the buffer
+    private int buildBuffer(ByteBuffer buffer, String type) {
+        buffer.position(0).limit(buffer.capacity());
         // build the message
         Object[] message = {
             1 /*version*/,
-            "search" /*type*/,
+            type,
             nodeName,
             config.udpPort,
             config.tcpPort,
             hash,
+            (int) BinarySerializer.VERSION /*framing, old versions ignore this element*/,
         };
         byte[] bytes = Serializer.from(message);
-        searchBuffer.put(bytes);
-        searchBuffer.flip();
+        buffer.put(bytes);
+        buffer.flip();
+        // the hash is followed by the framing: $32\r\n{hash}\r\n:2\r\n
+        return bytes.length - Serializer.fromInteger(BinarySerializer.VERSION).length - 2 - MembershipDigest.HEX_LENGTH;
     }
 
-    private void calcInformBuffer() {
-        informBuffer.position(0).limit(informBuffer.capacity());
-        // build the message
+    // returns offset of the hash in the buffer
+    private int buildBinaryBuffer(ByteBuffer buffer, String type) {
+        buffer.position(0).limit(buffer.capacity());
         Object[] message = {
             1 /*version*/,
-            "inform" /*type*/,
+            type,
             nodeName,
             config.udpPort,
             config.tcpPort,
             hash,
         };
-        byte[] bytes = Serializer.from(message);
-        informBuffer.put(bytes);
-        informBuffer.flip();
+        byte[] bytes = BinarySerializer.from(message);
+        buffer.put(bytes);
+        buffer.flip();
+        // the hash is the last element, and the string content is at the end of the frame
+        return bytes.length - MembershipDigest.HEX_LENGTH;
+    }
+
+    private boolean isBinaryFraming(Node node) {
+        NodeDetach n = nodes.get(buildGroupServerName(node));
+        return n != null && n.binaryFraming;
+    }
+
+    /**
+     * Send a request to the tcp port of the node, and get the response.
+     * Binary frames are used if the node is known to support them, otherwise RESP is used.
+     */
+    public void request(Node target, Object msg, int timeout, int retryTimes, Callback<Object, IOException> cb) {
+        request(new InetSocketAddress(target.inetAddress, target.tcpPort), isBinaryFraming(target), msg, timeout, retryTimes, cb);
+    }
+
+    private void request(InetSocketAddress remote, boolean binary, Object msg, int timeout, int retryTimes, Callback<Object, IOException> cb) {
+        if (binary) {
+            BinaryClientUtils.retry(loop, remote, BinarySerializer.from(msg), timeout, retryTimes, cb);
+        } else {
+            RESPClientUtils.retry(loop, remote, msg, timeout, retryTimes, cb);
+        }
+    }
+
+    // size of the message when sent to the node with request()
+    public int encodedSize(Node target, Object msg) {
+        return isBinaryFraming(target) ? BinarySerializer.from(msg).length : Serializer.from(msg).length;
     }
 
     public List<Node> getNodes() {
@@ -851,7 +1530,11 @@ public class Discovery {
         closed = true;
 
         // close the udp server to stop receiving packets
-        udpBlockingServer.close();
+        loop.getSelectorEventLoop().remove(udpServer);
+        try {
+            udpServer.close();
+        } catch (IOException ignore) {
+        }
         // send `leave` message to all nodes
         Object[] messageToSend = {
             1 /*version*/,
@@ -861,47 +1544,39 @@ public class Discovery {
             config.tcpPort,
             "",
         };
-        byte[] bytesToSend = Serializer.from(messageToSend);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(bytesToSend.length);
-        byteBuffer.put(bytesToSend);
-        byteBuffer.flip();
-        leave(byteBuffer, nodes.values().iterator(), new Callback<Void, NoException>() {
-            @Override
-            protected void onSucceeded(Void value) {
-                // then release
-                releaseAfterLeave(cb);
-            }
-
-            @Override
-            protected void onFailed(NoException err) {
-                // will not fire
-            }
+        ByteBuffer binaryBuffer = ByteBuffer.wrap(BinarySerializer.from(messageToSend));
+        ByteBuffer byteBuffer = ByteBuffer.wrap(Serializer.from(messageToSend));
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            failureDetector.stop();
+            leave(byteBuffer, binaryBuffer);
+            // then release
+            releaseAfterLeave(cb);
         });
     }
 
-    private void leave(ByteBuffer leaveMsg, Iterator<NodeDetach> nodes, Callback<Void, NoException> cb) {
-        if (!nodes.hasNext()) {
-            Utils.clean(leaveMsg); // do release if it's direct memory
-            cb.succeeded(null);
-            return;
-        }
-        NodeDetach n;
-        try {
-            n = nodes.next();
-        } catch (NoSuchElementException e) {
-            leave(leaveMsg, nodes, cb);
-            return;
-        }
-        if (n.node.address.equals(config.bindAddress) && n.node.udpPort == config.udpPort) {
-            // self node, ignore
-            leave(leaveMsg, nodes, cb);
-            return;
+    private void leave(ByteBuffer leaveMsg, ByteBuffer binaryLeaveMsg) {
+        List<InetSocketAddress> targets = new ArrayList<>(nodes.size());
+        List<InetSocketAddress> binaryTargets = new ArrayList<>(nodes.size());
+        for (NodeDetach n : nodes.values()) {
+            if (n.node.address.equals(config.bindAddress) && n.node.udpPort == config.udpPort) {
+                // self node, ignore
+                continue;
+            }
+            (n.binaryFraming ? binaryTargets : targets).add(new InetSocketAddress(n.node.inetAddress, n.node.udpPort));
         }
-        sendBuffer(leaveMsg, new InetSocketAddress(n.node.address, n.node.udpPort));
-        loop.getSelectorEventLoop().delay(config.timeoutConfig.ppsLimitWhenNotJoined, () -> leave(leaveMsg, nodes, cb));
+        // only one packet for each known node, so send them all at once
+        sendBuffer(leaveMsg, targets);
+        sendBuffer(binaryLeaveMsg, binaryTargets);
     }
 
     private void releaseAfterLeave(Callback<Void, NoException> cb) {
+        release();
+
+        // callback
+        cb.succeeded(null);
+    }
+
+    private void release() {
         tcpServer.close();
         try {
             eventLoopGroup.remove("EventLoop:" + nodeName);
@@ -909,23 +1584,18 @@ public class Discovery {
             Logger.shouldNotHappen("removing event loop failed", e);
             // we ignore the error because it's closing
         }
-        udpBlockingSock.close();
-
-        // then release the buffers
-        Utils.clean(searchBuffer);
-        Utils.clean(informBuffer);
-
-        // close blocking threads
         try {
-            blockingUDPRecvThread.close();
+            udpSock.close();
         } catch (IOException ignore) {
         }
         try {
-            blockingUDPSendThread.close();
+            udpServer.close();
         } catch (IOException ignore) {
         }
 
-        // callback
-        cb.succeeded(null);
+        // then release the buffers
+        Utils.clean(searchBuffer);
+        Utils.clean(informBuffer);
+        Utils.clean(binaryInformBuffer);
     }
 }
@@ -19,6 +19,7 @@ public class DiscoveryConfig {
     public final int searchMinUDPPort;
     public final int searchMaxUDPPort;
     public final TimeoutConfig timeoutConfig;
+    // only timeout, period, up and down are used by the failure detector
     public final HealthCheckConfig healthCheckConfig;
     final long searchNetworkCursorMaxExclusive;
     final byte[] searchNetworkByte;
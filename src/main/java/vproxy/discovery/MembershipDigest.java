@@ -0,0 +1,65 @@
+package vproxy.discovery;
+
+import vproxy.util.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An order-independent digest of a set of nodes.
+ * <p>
+ * Each node is hashed into 128 bits only once,
+ * and the digest is the XOR of the hashes of all nodes in the set,
+ * so adding or removing a node costs O(1) instead of sorting and hashing all nodes again.
+ */
+public class MembershipDigest {
+    public static final int HEX_LENGTH = 32;
+
+    private long high = 0;
+    private long low = 0;
+
+    // [0] = high 64 bits, [1] = low 64 bits
+    static long[] hash(Node n) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            Logger.shouldNotHappen("SHA-512 not found");
+            throw new RuntimeException(e);
+        }
+        md.update((n.nodeName + "," + n.address + "," + n.udpPort + "," + n.tcpPort + ",").getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = md.digest();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; ++i) {
+            high = (high << 8) | (bytes[i] & 0xff);
+            low = (low << 8) | (bytes[8 + i] & 0xff);
+        }
+        return new long[]{high, low};
+    }
+
+    public void add(Node n) {
+        toggle(n);
+    }
+
+    public void remove(Node n) {
+        toggle(n); // xor is its own inverse
+    }
+
+    private void toggle(Node n) {
+        long[] h = n.digest();
+        high ^= h[0];
+        low ^= h[1];
+    }
+
+    // always HEX_LENGTH chars
+    public String hex() {
+        return hex(high) + hex(low);
+    }
+
+    private static String hex(long l) {
+        String s = Long.toHexString(l);
+        return "0".repeat(16 - s.length()) + s;
+    }
+}
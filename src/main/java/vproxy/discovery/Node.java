@@ -17,6 +17,8 @@ public class Node implements Comparable<Node> {
 
     public final InetAddress inetAddress;
 
+    private long[] digest; // calculated when first used
+
     public Node(String nodeName, String address, int udpPort, int tcpPort) throws UnknownHostException {
         this.nodeName = nodeName;
         this.udpPort = udpPort;
@@ -30,6 +32,15 @@ public class Node implements Comparable<Node> {
         this.address = Utils.ipStr(this.inetAddress.getAddress());
     }
 
+    long[] digest() {
+        long[] d = digest;
+        if (d == null) {
+            d = MembershipDigest.hash(this);
+            digest = d;
+        }
+        return d;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
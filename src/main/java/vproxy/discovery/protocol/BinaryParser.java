@@ -0,0 +1,280 @@
+package vproxy.discovery.protocol;
+
+import vproxy.component.exception.XException;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.RingBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parse binary frames built by {@link BinarySerializer}.
+ * <p>
+ * A frame can be collected from a stream with {@link #feed(RingBuffer)},
+ * or be read in place from a received packet with {@link #wrap(byte[], int, int)}.
+ * The values are then read one by one from the frame, and nothing is allocated
+ * unless a string or an object is returned. The parser can be reused after {@link #reset()}.
+ */
+public class BinaryParser {
+    private final int maxLen;
+
+    // stream state
+    private final byte[] nextByte = new byte[1];
+    private final ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(nextByte);
+    private int state = 0; // 0: version, 1: length, 2: value
+    private int length;
+    private int shift;
+    private ByteArrayChannel frameChnl;
+    private String errorMessage;
+
+    // the frame being read
+    private byte[] buf;
+    private int start;
+    private int pos;
+    private int end;
+
+    // the last string read in place
+    private int lastOff;
+    private int lastLen;
+
+    public BinaryParser(int maxLen) {
+        this.maxLen = maxLen;
+    }
+
+    // make the parser ready for a new frame
+    public void reset() {
+        state = 0;
+        length = 0;
+        shift = 0;
+        frameChnl = null;
+        errorMessage = null;
+        buf = null;
+    }
+
+    // return 0 means the frame is collected
+    // return -1 means: got error, or want more data
+    // call getErrorMessage() to check whether is error
+    public int feed(RingBuffer buffer) {
+        while (state != 2) {
+            chnl.reset();
+            if (buffer.writeTo(chnl) == 0)
+                return -1; // want more
+            int b = nextByte[0] & 0xff;
+            if (state == 0) {
+                if (b != BinarySerializer.VERSION) {
+                    errorMessage = "unsupported frame version " + b;
+                    return -1;
+                }
+                state = 1;
+                continue;
+            }
+            // state 1: the varint length
+            if (shift > 28) {
+                errorMessage = "invalid frame length";
+                return -1;
+            }
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+            if ((b & 0x80) != 0)
+                continue;
+            if (length < 0 || length > maxLen) {
+                errorMessage = "frame too long: " + length;
+                return -1;
+            }
+            buf = new byte[length];
+            frameChnl = ByteArrayChannel.fromEmpty(buf);
+            state = 2;
+        }
+        if (frameChnl.free() > 0) {
+            buffer.writeTo(frameChnl);
+            if (frameChnl.free() > 0)
+                return -1; // want more
+        }
+        start = 0;
+        pos = 0;
+        end = length;
+        return 0;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    // read the frame in the array, the frame should take exactly `len` bytes
+    public void wrap(byte[] arr, int off, int len) throws XException {
+        if (len < 2 || arr[off] != BinarySerializer.VERSION)
+            throw new XException("invalid frame, version mismatch");
+        this.buf = arr;
+        this.pos = off + 1;
+        this.end = off + len;
+        int valueLen = readVarint();
+        if (valueLen != end - pos)
+            throw new XException("invalid frame, length mismatch");
+        this.start = pos;
+    }
+
+    // go back to the beginning of the frame
+    public void rewind() {
+        pos = start;
+    }
+
+    public Object getResult() throws XException {
+        rewind();
+        Object o = readObject();
+        if (pos != end)
+            throw new XException("invalid frame, still have data after parsing");
+        return o;
+    }
+
+    private byte tag() throws XException {
+        if (pos >= end)
+            throw new XException("invalid frame, unexpected end");
+        return buf[pos++];
+    }
+
+    private void expect(byte expected) throws XException {
+        byte t = tag();
+        if (t != expected)
+            throw new XException("invalid frame, expecting tag " + expected + " but got " + t);
+    }
+
+    private int readVarint() throws XException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos >= end)
+                throw new XException("invalid frame, unexpected end");
+            int b = buf[pos++] & 0xff;
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new XException("invalid frame, varint too long");
+    }
+
+    private long readVarlong() throws XException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (pos >= end)
+                throw new XException("invalid frame, unexpected end");
+            int b = buf[pos++] & 0xff;
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new XException("invalid frame, varint too long");
+    }
+
+    private int readLength() throws XException {
+        int len = readVarint();
+        if (len < 0 || len > end - pos)
+            throw new XException("invalid frame, length out of bounds");
+        return len;
+    }
+
+    public boolean hasMore() {
+        return pos < end;
+    }
+
+    // returns the element count of the array
+    public int readArrayHeader() throws XException {
+        expect(BinarySerializer.ARRAY);
+        return readLength(); // each element takes at least one byte
+    }
+
+    public int readInt() throws XException {
+        expect(BinarySerializer.INT);
+        int v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public String readString() throws XException {
+        expect(BinarySerializer.STRING);
+        int len = readLength();
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    // read a string without creating the String object,
+    // then use lastStringEquals() to check the content
+    public void readStringInPlace() throws XException {
+        expect(BinarySerializer.STRING);
+        lastLen = readLength();
+        lastOff = pos;
+        pos += lastLen;
+    }
+
+    public boolean lastStringEquals(byte[] expected) {
+        if (lastLen != expected.length)
+            return false;
+        for (int i = 0; i < lastLen; ++i) {
+            if (buf[lastOff + i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    public void skip() throws XException {
+        byte t = tag();
+        switch (t) {
+            case BinarySerializer.NULL:
+                break;
+            case BinarySerializer.INT:
+                readVarint();
+                break;
+            case BinarySerializer.LONG:
+                readVarlong();
+                break;
+            case BinarySerializer.STRING:
+            case BinarySerializer.ERROR: {
+                int len = readLength();
+                pos += len;
+                break;
+            }
+            case BinarySerializer.ARRAY:
+                int n = readLength();
+                for (int i = 0; i < n; ++i) {
+                    skip();
+                }
+                break;
+            default:
+                throw new XException("invalid frame, unknown tag " + t);
+        }
+    }
+
+    // returns Integer, Long, String, List, null, or XException for errors
+    // which are the same as the java objects of RESP messages
+    public Object readObject() throws XException {
+        byte t = tag();
+        switch (t) {
+            case BinarySerializer.NULL:
+                return null;
+            case BinarySerializer.INT: {
+                int v = readVarint();
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case BinarySerializer.LONG: {
+                long v = readVarlong();
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case BinarySerializer.STRING:
+            case BinarySerializer.ERROR: {
+                int len = readLength();
+                String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+                pos += len;
+                return t == BinarySerializer.ERROR ? new XException(s) : s;
+            }
+            case BinarySerializer.ARRAY: {
+                int n = readLength();
+                List<Object> list = new ArrayList<>(n);
+                for (int i = 0; i < n; ++i) {
+                    list.add(readObject());
+                }
+                return list;
+            }
+            default:
+                throw new XException("invalid frame, unknown tag " + t);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package vproxy.discovery.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serialize the service mesh messages into binary frames.
+ * <p>
+ * frame: version(1 byte, always {@link #VERSION}) + varint(length of the value) + value
+ * <br>
+ * value: tag(1 byte) + content, where the content is:
+ * null: (nothing)
+ * int/long: zigzag varint
+ * string/error: varint(length) + utf-8 bytes
+ * array: varint(count) + values
+ * <p>
+ * A RESP message always starts with `*`, so the first byte tells which encoding is used,
+ * and the two encodings can be used at the same time.
+ */
+public class BinarySerializer {
+    public static final byte VERSION = 2;
+
+    static final byte NULL = 0;
+    static final byte INT = 1;
+    static final byte LONG = 2;
+    static final byte STRING = 3;
+    static final byte ARRAY = 4;
+    static final byte ERROR = 5;
+
+    private static final int MAX_HEADER_LEN = 1 + 5; // version + varint(int)
+
+    private byte[] buf;
+    private int pos;
+
+    private BinarySerializer(int cap) {
+        buf = new byte[cap];
+        pos = MAX_HEADER_LEN; // leave space for the header
+    }
+
+    public static boolean isBinary(byte firstByte) {
+        return firstByte == VERSION;
+    }
+
+    public static byte[] from(Object o) {
+        BinarySerializer s = new BinarySerializer(256);
+        s.writeObject(o);
+        return s.toFrame();
+    }
+
+    public static byte[] fromErrorString(String e) {
+        BinarySerializer s = new BinarySerializer(MAX_HEADER_LEN + 6 + e.length() * 3);
+        s.writeString(ERROR, e);
+        return s.toFrame();
+    }
+
+    private byte[] toFrame() {
+        int len = pos - MAX_HEADER_LEN;
+        int headerLen = 1 + varintLen(len);
+        int start = MAX_HEADER_LEN - headerLen;
+        buf[start] = VERSION;
+        pos = start + 1;
+        writeVarint(len);
+        return Arrays.copyOfRange(buf, start, MAX_HEADER_LEN + len);
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+
+    private static int varintLen(int v) {
+        int n = 1;
+        while ((v & ~0x7f) != 0) {
+            v >>>= 7;
+            ++n;
+        }
+        return n;
+    }
+
+    private void writeVarint(int v) {
+        ensure(5);
+        while ((v & ~0x7f) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    private void writeVarlong(long v) {
+        ensure(10);
+        while ((v & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    private void writeTag(byte tag) {
+        ensure(1);
+        buf[pos++] = tag;
+    }
+
+    private void writeString(byte tag, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeTag(tag);
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeObject(Object o) {
+        if (o == null) {
+            writeTag(NULL);
+        } else if (o instanceof Integer) {
+            int i = (Integer) o;
+            writeTag(INT);
+            writeVarint((i << 1) ^ (i >> 31));
+        } else if (o instanceof Long) {
+            long l = (Long) o;
+            writeTag(LONG);
+            writeVarlong((l << 1) ^ (l >> 63));
+        } else if (o instanceof String) {
+            writeString(STRING, (String) o);
+        } else if (o instanceof Object[]) {
+            Object[] arr = (Object[]) o;
+            writeTag(ARRAY);
+            writeVarint(arr.length);
+            for (Object e : arr) {
+                writeObject(e);
+            }
+        } else if (o instanceof List) {
+            List<?> l = (List<?>) o;
+            writeTag(ARRAY);
+            writeVarint(l.size());
+            for (Object e : l) {
+                writeObject(e);
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported object type " + o.getClass() + "(" + o + ")");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package vproxy.discovery.protocol;
+
+import vproxy.component.exception.XException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class GossipMsg {
+    public static class Update {
+        public final String state; // alive, suspect, dead
+        public final String nodeName;
+        public final String address;
+        public final int udpPort;
+        public final int tcpPort;
+        public final int incarnation;
+
+        public Update(String state, String nodeName, String address, int udpPort, int tcpPort, int incarnation) {
+            this.state = state;
+            this.nodeName = nodeName;
+            this.address = address;
+            this.udpPort = udpPort;
+            this.tcpPort = tcpPort;
+            this.incarnation = incarnation;
+        }
+
+        @Override
+        public String toString() {
+            return "Update{" +
+                "state='" + state + '\'' +
+                ", nodeName='" + nodeName + '\'' +
+                ", address='" + address + '\'' +
+                ", udpPort=" + udpPort +
+                ", tcpPort=" + tcpPort +
+                ", incarnation=" + incarnation +
+                '}';
+        }
+    }
+
+    public final int version;
+    public final String type;
+    public final String nodeName;
+    public final int udpPort;
+    public final int tcpPort;
+    public final int seq;
+    public final int incarnation;
+    public final List<Update> updates;
+    // ack only
+    public final boolean healthy;
+    // ping-req only
+    public final String targetAddress;
+    public final int targetUdpPort;
+
+    public GossipMsg(int version, String type, String nodeName, int udpPort, int tcpPort, int seq, int incarnation,
+                     List<Update> updates, boolean healthy, String targetAddress, int targetUdpPort) {
+        this.version = version;
+        this.type = type;
+        this.nodeName = nodeName;
+        this.udpPort = udpPort;
+        this.tcpPort = tcpPort;
+        this.seq = seq;
+        this.incarnation = incarnation;
+        this.updates = Collections.unmodifiableList(updates);
+        this.healthy = healthy;
+        this.targetAddress = targetAddress;
+        this.targetUdpPort = targetUdpPort;
+    }
+
+    public static boolean isGossipType(String type) {
+        return type.equals("ping") || type.equals("ping-req") || type.equals("ack");
+    }
+
+    public static GossipMsg parse(Object o) throws XException {
+        if (!(o instanceof List)) {
+            throw new XException("invalid message, not list");
+        }
+        List<?> l = (List<?>) o;
+        if (l.size() < 8) {
+            throw new XException("invalid message, list too short");
+        }
+        if (!(l.get(0) instanceof Integer)
+            || !(l.get(1) instanceof String)
+            || !(l.get(2) instanceof String)
+            || !(l.get(3) instanceof Integer)
+            || !(l.get(4) instanceof Integer)
+            || !(l.get(5) instanceof Integer)
+            || !(l.get(6) instanceof Integer)
+            || !(l.get(7) instanceof List)) {
+            throw new XException("invalid message, list data type wrong");
+        }
+        int version = (int) l.get(0);
+        String type = (String) l.get(1);
+        String nodeName = (String) l.get(2);
+        int udpPort = (int) l.get(3);
+        int tcpPort = (int) l.get(4);
+        int seq = (int) l.get(5);
+        int incarnation = (int) l.get(6);
+
+        List<Update> updates = new ArrayList<>();
+        for (Object e : (List<?>) l.get(7)) {
+            if (!(e instanceof List))
+                throw new XException("invalid message, update is not a list");
+            List<?> u = (List<?>) e;
+            if (u.size() < 6)
+                throw new XException("invalid message, update list too short");
+            if (!(u.get(0) instanceof String)
+                || !(u.get(1) instanceof String)
+                || !(u.get(2) instanceof String)
+                || !(u.get(3) instanceof Integer)
+                || !(u.get(4) instanceof Integer)
+                || !(u.get(5) instanceof Integer))
+                throw new XException("invalid message, update wrong format");
+            String state = (String) u.get(0);
+            if (!state.equals("alive") && !state.equals("suspect") && !state.equals("dead"))
+                throw new XException("invalid message, update state is wrong");
+            updates.add(new Update(state, (String) u.get(1), (String) u.get(2), (int) u.get(3), (int) u.get(4), (int) u.get(5)));
+        }
+
+        boolean healthy = false;
+        String targetAddress = null;
+        int targetUdpPort = 0;
+        if (type.equals("ack")) {
+            if (l.size() < 9 || !(l.get(8) instanceof Integer))
+                throw new XException("invalid message, ack without healthy flag");
+            healthy = ((int) l.get(8)) != 0;
+        } else if (type.equals("ping-req")) {
+            if (l.size() < 10 || !(l.get(8) instanceof String) || !(l.get(9) instanceof Integer))
+                throw new XException("invalid message, ping-req without target");
+            targetAddress = (String) l.get(8);
+            targetUdpPort = (int) l.get(9);
+        }
+
+        return new GossipMsg(version, type, nodeName, udpPort, tcpPort, seq, incarnation, updates, healthy, targetAddress, targetUdpPort);
+    }
+
+    public static GossipMsg read(BinaryParser p) throws XException {
+        int size = p.readArrayHeader();
+        if (size < 8) {
+            throw new XException("invalid message, list too short");
+        }
+        int version = p.readInt();
+        String type = p.readString();
+        String nodeName = p.readString();
+        int udpPort = p.readInt();
+        int tcpPort = p.readInt();
+        int seq = p.readInt();
+        int incarnation = p.readInt();
+
+        int count = p.readArrayHeader();
+        List<Update> updates = count == 0 ? Collections.emptyList() : new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int uSize = p.readArrayHeader();
+            if (uSize < 6)
+                throw new XException("invalid message, update list too short");
+            String state = p.readString();
+            if (!state.equals("alive") && !state.equals("suspect") && !state.equals("dead"))
+                throw new XException("invalid message, update state is wrong");
+            updates.add(new Update(state, p.readString(), p.readString(), p.readInt(), p.readInt(), p.readInt()));
+            for (int j = 6; j < uSize; ++j) {
+                p.skip();
+            }
+        }
+
+        boolean healthy = false;
+        String targetAddress = null;
+        int targetUdpPort = 0;
+        int read = 8;
+        if (type.equals("ack")) {
+            if (size < 9)
+                throw new XException("invalid message, ack without healthy flag");
+            healthy = p.readInt() != 0;
+            read = 9;
+        } else if (type.equals("ping-req")) {
+            if (size < 10)
+                throw new XException("invalid message, ping-req without target");
+            targetAddress = p.readString();
+            targetUdpPort = p.readInt();
+            read = 10;
+        }
+        for (int i = read; i < size; ++i) {
+            p.skip();
+        }
+
+        return new GossipMsg(version, type, nodeName, udpPort, tcpPort, seq, incarnation, updates, healthy, targetAddress, targetUdpPort);
+    }
+
+    @Override
+    public String toString() {
+        return "GossipMsg{" +
+            "version=" + version +
+            ", type='" + type + '\'' +
+            ", nodeName='" + nodeName + '\'' +
+            ", udpPort=" + udpPort +
+            ", tcpPort=" + tcpPort +
+            ", seq=" + seq +
+            ", incarnation=" + incarnation +
+            ", updates=" + updates +
+            ", healthy=" + healthy +
+            ", targetAddress='" + targetAddress + '\'' +
+            ", targetUdpPort=" + targetUdpPort +
+            '}';
+    }
+}
@@ -11,14 +11,17 @@ public class NodeExistenceMsg {
     public final int udpPort;
     public final int tcpPort;
     public final String hash;
+    // the highest frame version the sender accepts, 1 means RESP only
+    public final int framing;
 
-    public NodeExistenceMsg(int version, String type, String nodeName, int udpPort, int tcpPort, String hash) {
+    public NodeExistenceMsg(int version, String type, String nodeName, int udpPort, int tcpPort, String hash, int framing) {
         this.version = version;
         this.type = type;
         this.nodeName = nodeName;
         this.udpPort = udpPort;
         this.tcpPort = tcpPort;
         this.hash = hash;
+        this.framing = framing;
     }
 
     public static NodeExistenceMsg parse(Object o) throws XException {
@@ -44,8 +47,30 @@ public class NodeExistenceMsg {
         int udpPort = (int) l.get(3);
         int tcpPort = (int) l.get(4);
         String hash = (String) l.get(5);
+        // the framing is optional
+        int framing = 1;
+        if (l.size() > 6 && l.get(6) instanceof Integer) {
+            framing = (int) l.get(6);
+        }
+
+        return new NodeExistenceMsg(version, type, nodeName, udpPort, tcpPort, hash, framing);
+    }
 
-        return new NodeExistenceMsg(version, type, nodeName, udpPort, tcpPort, hash);
+    public static NodeExistenceMsg read(BinaryParser p) throws XException {
+        int size = p.readArrayHeader();
+        if (size < 6) {
+            throw new XException("invalid message, list too short");
+        }
+        int version = p.readInt();
+        String type = p.readString();
+        String nodeName = p.readString();
+        int udpPort = p.readInt();
+        int tcpPort = p.readInt();
+        String hash = p.readString();
+        for (int i = 6; i < size; ++i) {
+            p.skip();
+        }
+        return new NodeExistenceMsg(version, type, nodeName, udpPort, tcpPort, hash, BinarySerializer.VERSION);
     }
 
     @Override
@@ -57,6 +82,7 @@ public class NodeExistenceMsg {
             ", udpPort=" + udpPort +
             ", tcpPort=" + tcpPort +
             ", hash='" + hash + '\'' +
+            ", framing=" + framing +
             '}';
     }
 }
@@ -0,0 +1,534 @@
+package vproxy.dns;
+
+import vproxy.component.exception.XException;
+import vproxy.connection.*;
+import vproxy.dns.protocol.DNSPacket;
+import vproxy.selector.Handler;
+import vproxy.selector.HandlerContext;
+import vproxy.selector.TimerEvent;
+import vproxy.util.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A non-blocking dns stub resolver.
+ * <p>
+ * All queries are sent from one udp socket registered on the event loop,
+ * and responses are dispatched to the queries by the dns message id.
+ * A and AAAA queries are sent in parallel,
+ * timed out queries are retried on the next name server,
+ * and truncated responses are re-queried via tcp.
+ * <p>
+ * All callbacks are called on the event loop thread.
+ */
+public class DNSClient {
+    public static class Answer {
+        public final String name; // the name actually queried (with search domain appended if any)
+        public final InetAddress[] addresses; // empty means nxdomain or no data
+        public final int ttl; // seconds, -1 means not specified by the name server
+
+        Answer(String name, InetAddress[] addresses, int ttl) {
+            this.name = name;
+            this.addresses = addresses;
+            this.ttl = ttl;
+        }
+
+        public boolean exists() {
+            return addresses.length > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Answer{" +
+                "name='" + name + '\'' +
+                ", addresses=" + Arrays.toString(addresses) +
+                ", ttl=" + ttl +
+                '}';
+        }
+    }
+
+    class Query {
+        final int id;
+        final String name;
+        final int qtype;
+        final byte[] bytes;
+        final Callback<Answer, IOException> cb;
+        int tries = 0;
+        InetSocketAddress server;
+        TimerEvent timer;
+        ClientConnection tcpConn;
+
+        Query(int id, String name, int qtype, byte[] bytes, Callback<Answer, IOException> cb) {
+            this.id = id;
+            this.name = name;
+            this.qtype = qtype;
+            this.bytes = bytes;
+            this.cb = cb;
+        }
+
+        void cancelTimer() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+
+        void closeTcp() {
+            if (tcpConn != null) {
+                tcpConn.close();
+                tcpConn = null;
+            }
+        }
+    }
+
+    class UDPHandler implements Handler<DatagramChannel> {
+        @Override
+        public void accept(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void connected(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void readable(HandlerContext<DatagramChannel> ctx) {
+            while (true) {
+                recvBuffer.clear();
+                SocketAddress remote;
+                try {
+                    remote = channel.receive(recvBuffer);
+                } catch (IOException e) {
+                    // usually icmp port unreachable, the query will be retried by timer
+                    assert Logger.lowLevelDebug("dns udp receive failed " + e);
+                    return;
+                }
+                if (remote == null) {
+                    return; // nothing to read for now
+                }
+                handleResponse((InetSocketAddress) remote, recvBuffer.array(), recvBuffer.position(), false);
+            }
+        }
+
+        @Override
+        public void writable(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void removed(HandlerContext<DatagramChannel> ctx) {
+            // the event loop is closed
+            close();
+        }
+    }
+
+    class TCPHandler implements ClientConnectionHandler {
+        private final Query query;
+        private final byte[] buf = new byte[65535 + 2];
+        private final ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(buf);
+
+        TCPHandler(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        public void connected(ClientConnectionHandlerContext ctx) {
+            // 2 bytes length prefix, see rfc1035 section 4.2.2
+            byte[] bytes = new byte[query.bytes.length + 2];
+            bytes[0] = (byte) (query.bytes.length >> 8);
+            bytes[1] = (byte) query.bytes.length;
+            System.arraycopy(query.bytes, 0, bytes, 2, query.bytes.length);
+            ctx.connection.getOutBuffer().storeBytesFrom(ByteArrayChannel.fromFull(bytes));
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            ctx.connection.getInBuffer().writeTo(chnl);
+            int used = chnl.used();
+            if (used < 2)
+                return; // want more data
+            int len = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+            if (used < len + 2)
+                return; // want more data
+            query.tcpConn = null;
+            ctx.connection.close();
+            handleResponse(query.server, buf, len + 2, true);
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            // the query is small enough to be stored into the buffer at once
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            assert Logger.lowLevelDebug("dns tcp query got exception " + err);
+            ctx.connection.close();
+            if (query.tcpConn == ctx.connection) {
+                query.tcpConn = null;
+                retryOrFail(query, err);
+            }
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            if (query.tcpConn == ctx.connection) {
+                query.tcpConn = null;
+                retryOrFail(query, new IOException("remote closed"));
+            }
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            ctx.connection.close();
+        }
+    }
+
+    private final NetEventLoop loop;
+    private final DatagramChannel channel;
+    private final ByteBuffer recvBuffer = ByteBuffer.allocate(65535); // reuse the buffer for all responses
+    private final Map<Integer, Query> queries = new HashMap<>();
+    private ResolvConf conf;
+    private boolean closed = false;
+
+    public DNSClient(NetEventLoop loop, ResolvConf conf) throws IOException {
+        this.loop = loop;
+        this.conf = conf;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.bind(null);
+            loop.getSelectorEventLoop().add(channel, SelectionKey.OP_READ, null, new UDPHandler());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @ThreadSafe
+    public void setConf(ResolvConf conf) {
+        loop.getSelectorEventLoop().runOnLoop(() -> this.conf = conf);
+    }
+
+    public ResolvConf getConf() {
+        return conf;
+    }
+
+    public int inflight() {
+        return queries.size();
+    }
+
+    /**
+     * resolve the host with search list applied,
+     * callback succeeds when the name server answered, even if the host does not exist,
+     * and fails when no name server answered
+     */
+    @ThreadSafe
+    public void resolve(String host, Callback<Answer, IOException> cb) {
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            List<String> candidates = searchCandidates(host);
+            tryCandidates(host, candidates.iterator(), null, null, cb);
+        });
+    }
+
+    private List<String> searchCandidates(String host) {
+        if (host.endsWith(".")) {
+            // absolute name
+            return Collections.singletonList(host.substring(0, host.length() - 1));
+        }
+        ResolvConf conf = this.conf;
+        int dots = 0;
+        for (int i = 0; i < host.length(); ++i) {
+            if (host.charAt(i) == '.') {
+                ++dots;
+            }
+        }
+        List<String> ls = new ArrayList<>(conf.search.size() + 1);
+        if (dots >= conf.ndots) {
+            ls.add(host);
+        }
+        for (String s : conf.search) {
+            ls.add(host + "." + s);
+        }
+        if (dots < conf.ndots) {
+            ls.add(host);
+        }
+        return ls;
+    }
+
+    private void tryCandidates(String host, Iterator<String> candidates, Answer negative, IOException lastErr,
+                               Callback<Answer, IOException> cb) {
+        if (!candidates.hasNext()) {
+            if (lastErr != null) {
+                cb.failed(lastErr);
+            } else if (negative != null) {
+                cb.succeeded(new Answer(host, negative.addresses, negative.ttl));
+            } else {
+                cb.failed(new UnknownHostException(host));
+            }
+            return;
+        }
+        String name = candidates.next();
+        queryAddresses(name, new Callback<>() {
+            @Override
+            protected void onSucceeded(Answer value) {
+                if (value.exists()) {
+                    cb.succeeded(value);
+                    return;
+                }
+                Answer neg = negative;
+                if (neg == null || (value.ttl != -1 && (neg.ttl == -1 || value.ttl < neg.ttl))) {
+                    neg = value;
+                }
+                tryCandidates(host, candidates, neg, lastErr, cb);
+            }
+
+            @Override
+            protected void onFailed(IOException err) {
+                tryCandidates(host, candidates, negative, err, cb);
+            }
+        });
+    }
+
+    // send A and AAAA in parallel, and merge the result
+    private void queryAddresses(String name, Callback<Answer, IOException> cb) {
+        Object[] results = new Object[2];
+        Runnable merge = () -> {
+            if (results[0] == null || results[1] == null)
+                return; // wait for the other one
+            List<InetAddress> addresses = new ArrayList<>();
+            int ttl = -1;
+            int negTTL = -1;
+            IOException err = null;
+            for (Object o : results) {
+                if (o instanceof IOException) {
+                    err = (IOException) o;
+                    continue;
+                }
+                Answer a = (Answer) o;
+                if (a.exists()) {
+                    addresses.addAll(Arrays.asList(a.addresses));
+                    if (a.ttl != -1 && (ttl == -1 || a.ttl < ttl)) {
+                        ttl = a.ttl;
+                    }
+                } else {
+                    if (a.ttl != -1 && (negTTL == -1 || a.ttl < negTTL)) {
+                        negTTL = a.ttl;
+                    }
+                }
+            }
+            if (!addresses.isEmpty()) {
+                cb.succeeded(new Answer(name, addresses.toArray(new InetAddress[0]), ttl));
+            } else if (err != null) {
+                // cannot tell whether the name exists
+                cb.failed(err);
+            } else {
+                cb.succeeded(new Answer(name, new InetAddress[0], negTTL));
+            }
+        };
+        int[] types = {DNSPacket.TYPE_A, DNSPacket.TYPE_AAAA};
+        for (int i = 0; i < types.length; ++i) {
+            int idx = i;
+            query(name, types[i], new Callback<>() {
+                @Override
+                protected void onSucceeded(Answer value) {
+                    results[idx] = value;
+                    merge.run();
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    results[idx] = err;
+                    merge.run();
+                }
+            });
+        }
+    }
+
+    private void query(String name, int qtype, Callback<Answer, IOException> cb) {
+        if (closed) {
+            cb.failed(new IOException("dns client closed"));
+            return;
+        }
+        if (queries.size() >= 65536) {
+            cb.failed(new IOException("too many inflight dns queries"));
+            return;
+        }
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(65536);
+        } while (queries.containsKey(id));
+
+        byte[] bytes;
+        try {
+            bytes = DNSPacket.buildQuery(id, name, qtype);
+        } catch (UnknownHostException e) {
+            cb.failed(e);
+            return;
+        }
+        Query q = new Query(id, name, qtype, bytes, cb);
+        queries.put(id, q);
+        send(q);
+    }
+
+    private void send(Query q) {
+        ResolvConf conf = this.conf;
+        List<InetSocketAddress> servers = conf.nameServers;
+        q.server = servers.get(q.tries % servers.size());
+        ++q.tries;
+        q.timer = loop.getSelectorEventLoop().delay(conf.timeout, () -> {
+            q.timer = null;
+            q.closeTcp();
+            assert Logger.lowLevelDebug("dns query timeout " + q.name + " type " + q.qtype + " server " + q.server);
+            retryOrFail(q, new SocketTimeoutException("dns query timeout: " + q.name));
+        });
+        try {
+            channel.send(ByteBuffer.wrap(q.bytes), q.server);
+        } catch (IOException e) {
+            // will be retried when timeout
+            assert Logger.lowLevelDebug("dns udp send failed " + e);
+        }
+    }
+
+    private void retryOrFail(Query q, IOException err) {
+        if (queries.get(q.id) != q)
+            return; // already finished
+        q.cancelTimer();
+        ResolvConf conf = this.conf;
+        if (!closed && q.tries < conf.attempts * conf.nameServers.size()) {
+            send(q);
+            return;
+        }
+        queries.remove(q.id);
+        q.cb.failed(err);
+    }
+
+    private void sendTcp(Query q) {
+        ClientConnection conn;
+        try {
+            conn = ClientConnection.create(q.server, ConnectionOpts.getDefault(),
+                RingBuffer.allocate(16384), RingBuffer.allocate(q.bytes.length + 2));
+        } catch (IOException e) {
+            retryOrFail(q, e);
+            return;
+        }
+        q.tcpConn = conn;
+        q.timer = loop.getSelectorEventLoop().delay(conf.timeout, () -> {
+            q.timer = null;
+            q.closeTcp();
+            retryOrFail(q, new SocketTimeoutException("dns tcp query timeout: " + q.name));
+        });
+        try {
+            loop.addClientConnection(conn, null, new TCPHandler(q));
+        } catch (IOException e) {
+            q.closeTcp();
+            retryOrFail(q, e);
+        }
+    }
+
+    private void handleResponse(InetSocketAddress remote, byte[] bytes, int len, boolean isTcp) {
+        int off = isTcp ? 2 : 0;
+        DNSPacket pkt;
+        try {
+            pkt = DNSPacket.parse(bytes, off, len - off);
+        } catch (XException e) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, "got invalid dns response from " + remote + ": " + e.getMessage());
+            return;
+        }
+        Query q = queries.get(pkt.id);
+        if (q == null || !pkt.isResponse) {
+            assert Logger.lowLevelDebug("dns response not match any query: " + pkt);
+            return;
+        }
+        if (!q.server.equals(remote)
+            || pkt.question == null
+            || !pkt.question.equalsIgnoreCase(q.name)
+            || pkt.qtype != q.qtype) {
+            // maybe a late response or a spoofed packet, ignore it
+            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "dns response from " + remote + " mismatch the query " + q.name + ": " + pkt);
+            return;
+        }
+        q.cancelTimer();
+        q.closeTcp(); // in case it's a late udp response when the tcp query is running
+        if (pkt.truncated) {
+            if (isTcp) {
+                // should not happen, use what we got
+                Logger.warn(LogType.INVALID_EXTERNAL_DATA, "dns response via tcp is truncated: " + pkt);
+            } else {
+                assert Logger.lowLevelDebug("dns response truncated, retry with tcp: " + q.name);
+                sendTcp(q);
+                return;
+            }
+        }
+        switch (pkt.rcode) {
+            case DNSPacket.RCODE_NOERROR:
+                break;
+            case DNSPacket.RCODE_NXDOMAIN:
+                queries.remove(q.id);
+                q.cb.succeeded(new Answer(q.name, new InetAddress[0], pkt.negativeTTL));
+                return;
+            default:
+                // SERVFAIL, REFUSED, ... try the next name server
+                retryOrFail(q, new IOException("dns query " + q.name + " failed with rcode " + pkt.rcode));
+                return;
+        }
+        queries.remove(q.id);
+
+        // follow the cname chain
+        Set<String> names = new HashSet<>();
+        names.add(q.name.toLowerCase());
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (DNSPacket.Record r : pkt.answers) {
+                if (r.cname != null && names.contains(r.name.toLowerCase()) && names.add(r.cname.toLowerCase())) {
+                    added = true;
+                }
+            }
+        }
+        List<InetAddress> addresses = new ArrayList<>();
+        int ttl = -1;
+        for (DNSPacket.Record r : pkt.answers) {
+            if (r.type != q.qtype || r.address == null || !names.contains(r.name.toLowerCase()))
+                continue;
+            addresses.add(r.address);
+            if (ttl == -1 || r.ttl < ttl) {
+                ttl = r.ttl;
+            }
+        }
+        if (addresses.isEmpty()) {
+            q.cb.succeeded(new Answer(q.name, new InetAddress[0], pkt.negativeTTL));
+        } else {
+            q.cb.succeeded(new Answer(q.name, addresses.toArray(new InetAddress[0]), ttl));
+        }
+    }
+
+    @ThreadSafe
+    public void close() {
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            if (closed)
+                return;
+            closed = true;
+            loop.getSelectorEventLoop().remove(channel);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // we can do nothing about it
+                Logger.error(LogType.CONN_ERROR, "close dns udp channel failed " + e);
+            }
+            List<Query> ls = new ArrayList<>(queries.values());
+            queries.clear();
+            for (Query q : ls) {
+                q.cancelTimer();
+                q.closeTcp();
+                q.cb.failed(new IOException("dns client closed"));
+            }
+        });
+    }
+}
@@ -0,0 +1,95 @@
+package vproxy.dns;
+
+import vproxy.util.Logger;
+import vproxy.util.Utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The static table lookup for host names, see hosts(5)
+ */
+public class Hosts {
+    public static final String DEFAULT_PATH = "/etc/hosts";
+
+    private final Map<String, List<InetAddress>> records;
+
+    private Hosts(Map<String, List<InetAddress>> records) {
+        this.records = records;
+    }
+
+    public static Hosts load() {
+        return load(Paths.get(DEFAULT_PATH));
+    }
+
+    public static Hosts load(Path path) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path);
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("reading " + path + " failed " + e);
+            lines = Collections.emptyList();
+        }
+        return parse(lines);
+    }
+
+    public static Hosts parse(List<String> lines) {
+        Map<String, List<InetAddress>> records = new HashMap<>();
+        for (String line : lines) {
+            int commentIdx = line.indexOf('#');
+            if (commentIdx != -1) {
+                line = line.substring(0, commentIdx);
+            }
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+            String[] arr = line.split("\\s+");
+            if (arr.length < 2)
+                continue;
+            String ip = arr[0];
+            int scopeIdx = ip.indexOf('%');
+            if (scopeIdx != -1) {
+                ip = ip.substring(0, scopeIdx);
+            }
+            byte[] bytes = Utils.parseIpString(ip);
+            if (bytes == null)
+                continue;
+            InetAddress addr;
+            try {
+                addr = InetAddress.getByAddress(bytes);
+            } catch (UnknownHostException e) {
+                Logger.shouldNotHappen("the ip bytes is already checked", e);
+                continue;
+            }
+            for (int i = 1; i < arr.length; ++i) {
+                List<InetAddress> ls = records.computeIfAbsent(arr[i].toLowerCase(), k -> new ArrayList<>());
+                if (!ls.contains(addr)) {
+                    ls.add(addr);
+                }
+            }
+        }
+        return new Hosts(records);
+    }
+
+    /**
+     * @return null if not found
+     */
+    public InetAddress[] lookup(String host) {
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        List<InetAddress> ls = records.get(host.toLowerCase());
+        if (ls == null)
+            return null;
+        return ls.toArray(new InetAddress[0]);
+    }
+
+    public int size() {
+        return records.size();
+    }
+}
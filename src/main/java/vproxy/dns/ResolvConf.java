@@ -0,0 +1,148 @@
+package vproxy.dns;
+
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.Utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The resolver configuration, see resolv.conf(5)
+ * <p>
+ * supported: nameserver, search, domain, options ndots/timeout/attempts
+ */
+public class ResolvConf {
+    public static final String DEFAULT_PATH = "/etc/resolv.conf";
+    private static final int MAX_NAMESERVERS = 3; // same as MAXNS in resolv.h
+
+    public final List<InetSocketAddress> nameServers;
+    public final List<String> search;
+    public final int ndots;
+    public final int timeout; // millis
+    public final int attempts;
+
+    public ResolvConf(List<InetSocketAddress> nameServers, List<String> search, int ndots, int timeout, int attempts) {
+        this.nameServers = Collections.unmodifiableList(nameServers);
+        this.search = Collections.unmodifiableList(search);
+        this.ndots = ndots;
+        this.timeout = timeout;
+        this.attempts = attempts;
+    }
+
+    public static ResolvConf load() {
+        return load(Paths.get(DEFAULT_PATH));
+    }
+
+    public static ResolvConf load(Path path) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path);
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("reading " + path + " failed " + e);
+            lines = Collections.emptyList();
+        }
+        return parse(lines);
+    }
+
+    public static ResolvConf parse(List<String> lines) {
+        List<InetSocketAddress> nameServers = new ArrayList<>();
+        List<String> search = new ArrayList<>();
+        int ndots = 1;
+        int timeout = 5000;
+        int attempts = 2;
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith(";"))
+                continue;
+            String[] arr = line.split("\\s+");
+            switch (arr[0]) {
+                case "nameserver":
+                    if (arr.length < 2 || nameServers.size() >= MAX_NAMESERVERS)
+                        break;
+                    String ip = arr[1];
+                    int scopeIdx = ip.indexOf('%'); // ipv6 zone index is not supported
+                    if (scopeIdx != -1) {
+                        ip = ip.substring(0, scopeIdx);
+                    }
+                    byte[] bytes = Utils.parseIpString(ip);
+                    if (bytes == null) {
+                        Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid nameserver in resolv.conf: " + arr[1]);
+                        break;
+                    }
+                    try {
+                        nameServers.add(new InetSocketAddress(InetAddress.getByAddress(bytes), 53));
+                    } catch (UnknownHostException e) {
+                        Logger.shouldNotHappen("the ip bytes is already checked", e);
+                    }
+                    break;
+                case "domain":
+                case "search":
+                    // the last `domain` or `search` line wins
+                    search.clear();
+                    for (int i = 1; i < arr.length; ++i) {
+                        String s = arr[i];
+                        if (s.endsWith(".")) {
+                            s = s.substring(0, s.length() - 1);
+                        }
+                        if (!s.isEmpty()) {
+                            search.add(s);
+                        }
+                    }
+                    break;
+                case "options":
+                    for (int i = 1; i < arr.length; ++i) {
+                        String opt = arr[i];
+                        int colon = opt.indexOf(':');
+                        if (colon == -1)
+                            continue;
+                        String key = opt.substring(0, colon);
+                        int value;
+                        try {
+                            value = Integer.parseInt(opt.substring(colon + 1));
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        switch (key) {
+                            case "ndots":
+                                ndots = Math.min(Math.max(value, 0), 15);
+                                break;
+                            case "timeout":
+                                timeout = Math.min(Math.max(value, 1), 30) * 1000;
+                                break;
+                            case "attempts":
+                                attempts = Math.min(Math.max(value, 1), 5);
+                                break;
+                        }
+                    }
+                    break;
+            }
+        }
+        if (nameServers.isEmpty()) {
+            // use the name server on the local machine
+            // which is the same as the default behavior described in resolv.conf(5)
+            nameServers.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), 53));
+        }
+        return new ResolvConf(nameServers, search, ndots, timeout, attempts);
+    }
+
+    @Override
+    public String toString() {
+        return "ResolvConf{" +
+            "nameServers=" + nameServers +
+            ", search=" + search +
+            ", ndots=" + ndots +
+            ", timeout=" + timeout +
+            ", attempts=" + attempts +
+            '}';
+    }
+}
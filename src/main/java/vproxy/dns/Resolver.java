@@ -1,22 +1,22 @@
 package vproxy.dns;
 
+import vproxy.app.Config;
 import vproxy.connection.NetEventLoop;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.selector.TimerEvent;
 import vproxy.util.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Resolver implements IResolver {
@@ -41,13 +41,19 @@ public class Resolver implements IResolver {
         public final List<Inet6Address> ipv6;
         private final AtomicInteger idxIpv4 = new AtomicInteger(0);
         private final AtomicInteger idxIpv6 = new AtomicInteger(0);
-        final TimerEvent te;
+        private TimerEvent te; // only modified on resolver loop
         public final long timestamp;
-
-        Cache(String host, InetAddress[] addresses) {
+        public final int ttl; // millis
+        // how many times the record is read, used to determine whether to prefetch
+        private final AtomicInteger hits = new AtomicInteger(0);
+        // whether a refreshing query is already sent
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile boolean stale = false;
+
+        Cache(String host, InetAddress[] addresses, int ttl) {
             this.host = host;
-            List<Inet4Address> ipv4 = new LinkedList<>();
-            List<Inet6Address> ipv6 = new LinkedList<>();
+            List<Inet4Address> ipv4 = new ArrayList<>();
+            List<Inet6Address> ipv6 = new ArrayList<>();
             for (InetAddress a : addresses) {
                 if (a instanceof Inet4Address) {
                     ipv4.add((Inet4Address) a);
@@ -57,23 +63,72 @@ public class Resolver implements IResolver {
             }
             this.ipv4 = Collections.unmodifiableList(ipv4);
             this.ipv6 = Collections.unmodifiableList(ipv6);
+            this.ttl = ttl;
+
+            timestamp = System.currentTimeMillis();
+        }
 
+        // called on resolver loop when the record is put into the cache map
+        void startTimer() {
             if (ttl > 0) {
-                // start a timer to clear the record
-                te = loop.getSelectorEventLoop().delay(ttl, Cache.this::remove);
-            } else {
-                te = null;
+                te = loop.getSelectorEventLoop().delay(ttl, this::expire);
             }
-
-            timestamp = System.currentTimeMillis();
         }
 
-        public void remove() {
+        private void cancelTimer() {
+            TimerEvent te = this.te;
+            this.te = null;
             if (te != null) {
                 te.cancel();
             }
+        }
+
+        // called on resolver loop
+        private void expire() {
+            te = null;
+            if (cacheMap.get(host) != this)
+                return; // already replaced
+            if (hits.get() == 0 || staleTTL <= 0) {
+                // nobody cares about the record, simply remove it
+                remove();
+                return;
+            }
+            // the record is in use
+            // keep serving the stale record while refreshing it
+            // and remove it if still not refreshed after a while
+            assert Logger.lowLevelDebug("cache expired but still in use, serve stale and refresh " + host);
+            stale = true;
+            te = loop.getSelectorEventLoop().delay(staleTTL, this::remove);
+            if (refreshing.compareAndSet(false, true)) {
+                refresh(host);
+            }
+        }
+
+        public boolean isStale() {
+            return stale;
+        }
+
+        public long expireAt() {
+            return timestamp + ttl;
+        }
+
+        // record a read, and return whether the record should be refreshed in the background
+        boolean hit() {
+            hits.incrementAndGet();
+            if (stale || ttl <= 0 || refreshing.get())
+                return false;
+            long left = timestamp + ttl - System.currentTimeMillis();
+            if (left > ttl * PREFETCH_PERCENTAGE / 100)
+                return false;
+            return hits.get() >= PREFETCH_MIN_HITS && refreshing.compareAndSet(false, true);
+        }
+
+        public void remove() {
+            cancelTimer();
+            if (!cacheMap.remove(host, this)) {
+                return; // already removed or replaced
+            }
             assert Logger.lowLevelDebug("cache removed " + host);
-            cacheMap.remove(host);
 
             for (ResolveListener lsn : resolveListeners) {
                 try {
@@ -125,6 +180,10 @@ public class Resolver implements IResolver {
                 else sb.append(",");
                 sb.append(Utils.ipStr(i.getAddress()));
             }
+            sb.append("] ttl ").append(ttl);
+            if (stale) {
+                sb.append(" stale");
+            }
             return sb.toString();
         }
     }
@@ -164,42 +223,174 @@ public class Resolver implements IResolver {
         }
     }
 
+    private static final int SYSTEM_FILES_CHECK_INTERVAL = 5000;
+    // refresh the record in background when ttl left is less than this percentage
+    private static final int PREFETCH_PERCENTAGE = 10;
+    // only prefetch records read at least this many times
+    private static final int PREFETCH_MIN_HITS = 2;
+
     private final String alias;
     private final NetEventLoop loop;
-    public int ttl = 60000;
+    public int ttl = 60000; // for records from hosts file, or the name server didn't specify the ttl
+    public int minTTL = 5000; // clamp the ttl from name servers
+    public int maxTTL = 3600_000;
+    public int maxNegativeTTL = 10_000; // nxdomain will be cached for at most this long
+    public int staleTTL = 30_000; // serve stale records in use for at most this long while refreshing
     private final ConcurrentMap<String, Cache> cacheMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long /*expire at*/> negativeCacheMap = new ConcurrentHashMap<>();
+    // only accessed on resolver loop
+    private final Map<String, List<ResolveTask>> inflight = new HashMap<>();
     private final CopyOnWriteArraySet<ResolveListener> resolveListeners = new CopyOnWriteArraySet<>();
 
+    private final DNSClient dnsClient;
+    private Hosts hosts;
+    // whether to reload /etc/hosts and /etc/resolv.conf when they are modified
+    private final boolean watchSystemFiles;
+    private long lastSystemFilesCheck = 0;
+    private long hostsLastModified = 0;
+    private long resolvConfLastModified = 0;
+
     public Resolver(String alias) throws IOException {
-        // currently we only use java standard lib to resolve the address
-        // so this loop is only used for handling events for now
+        this(alias, ResolvConf.load(), Hosts.load(), true);
+    }
+
+    public Resolver(String alias, ResolvConf resolvConf, Hosts hosts) throws IOException {
+        this(alias, resolvConf, hosts, false);
+    }
+
+    private Resolver(String alias, ResolvConf resolvConf, Hosts hosts, boolean watchSystemFiles) throws IOException {
         this.alias = alias;
         this.loop = new NetEventLoop(SelectorEventLoop.open());
-        // java resolve process will block the thread
-        // so we start a new thread only for resolving
-        // it will make a callback when resolve completed
-        // let's just handle it in the loop since it is created for resolving
+        // the dns client is registered on the resolver loop
+        // all queries are non-blocking and run concurrently
+        // and the dns client will be closed when the loop closes
+        try {
+            this.dnsClient = new DNSClient(loop, resolvConf);
+        } catch (IOException e) {
+            loop.getSelectorEventLoop().close();
+            throw e;
+        }
+        this.hosts = hosts;
+        this.watchSystemFiles = watchSystemFiles;
+        if (watchSystemFiles) {
+            hostsLastModified = lastModified(Hosts.DEFAULT_PATH);
+            resolvConfLastModified = lastModified(ResolvConf.DEFAULT_PATH);
+            lastSystemFilesCheck = System.currentTimeMillis();
+        }
     }
 
     public void start() {
         loop.getSelectorEventLoop().loop(r -> new Thread(r, alias));
     }
 
+    private static long lastModified(String path) {
+        return new File(path).lastModified(); // 0 if not exist
+    }
+
+    private void checkSystemFiles() {
+        if (!watchSystemFiles)
+            return;
+        long cur = Config.currentTimestamp;
+        if (cur - lastSystemFilesCheck < SYSTEM_FILES_CHECK_INTERVAL)
+            return;
+        lastSystemFilesCheck = cur;
+
+        long hostsModified = lastModified(Hosts.DEFAULT_PATH);
+        if (hostsModified != hostsLastModified) {
+            hostsLastModified = hostsModified;
+            hosts = Hosts.load();
+            Logger.alert("reload " + Hosts.DEFAULT_PATH + ", " + hosts.size() + " names");
+        }
+        long resolvConfModified = lastModified(ResolvConf.DEFAULT_PATH);
+        if (resolvConfModified != resolvConfLastModified) {
+            resolvConfLastModified = resolvConfModified;
+            ResolvConf conf = ResolvConf.load();
+            dnsClient.setConf(conf);
+            Logger.alert("reload " + ResolvConf.DEFAULT_PATH + ": " + conf);
+        }
+    }
+
     private void doResolve(ResolveTask task) {
-        // handle the task
-        InetAddress[] addresses;
-        try {
-            addresses = InetAddress.getAllByName(task.host);
-        } catch (UnknownHostException e) {
-            // got exception, let's call the callback
-            task.cb.failed(e);
+        // the record might be cached when this task is waiting in the queue
+        Cache c = cacheMap.get(task.host);
+        if (c != null) {
+            callbackWithCache(c, task.ipv4, task.ipv6, task.cb);
             return;
         }
+        if (isNegativeCached(task.host)) {
+            task.cb.failed(new UnknownHostException(task.host));
+            return;
+        }
+
+        // coalesce the concurrent lookups for the same name
+        List<ResolveTask> tasks = inflight.get(task.host);
+        if (tasks != null) {
+            assert Logger.lowLevelDebug("lookup for " + task.host + " is already running");
+            tasks.add(task);
+            return;
+        }
+        tasks = new LinkedList<>();
+        tasks.add(task);
+        inflight.put(task.host, tasks);
+        lookup(task.host);
+    }
+
+    // refresh the record in background, called on resolver loop
+    private void refresh(String host) {
+        if (inflight.containsKey(host))
+            return; // already running
+        assert Logger.lowLevelDebug("refreshing " + host);
+        inflight.put(host, new LinkedList<>());
+        lookup(host);
+    }
+
+    private void lookup(String host) {
+        checkSystemFiles();
+
+        // check the hosts file first
+        InetAddress[] addresses = hosts.lookup(host);
+        if (addresses != null) {
+            handleAddresses(host, addresses, ttl);
+            return;
+        }
+        dnsClient.resolve(host, new Callback<>() {
+            @Override
+            protected void onSucceeded(DNSClient.Answer answer) {
+                if (answer.exists()) {
+                    int t = answer.ttl == -1 ? ttl : (int) Math.min(Math.max(answer.ttl * 1000L, minTTL), maxTTL);
+                    handleAddresses(host, answer.addresses, t);
+                } else {
+                    int t = answer.ttl == -1 ? maxNegativeTTL : (int) Math.min(answer.ttl * 1000L, maxNegativeTTL);
+                    handleNotFound(host, t);
+                }
+            }
+
+            @Override
+            protected void onFailed(IOException err) {
+                handleFailure(host, err);
+            }
+        });
+    }
+
+    private List<ResolveTask> finishInflight(String host) {
+        List<ResolveTask> tasks = inflight.remove(host);
+        if (tasks == null) {
+            return Collections.emptyList();
+        }
+        return tasks;
+    }
+
+    private void handleAddresses(String host, InetAddress[] addresses, int ttl) {
         // record
         if (addresses.length > 0) {
-            Cache cache = new Cache(task.host, addresses);
-            assert Logger.lowLevelDebug("cache recorded " + cache.host);
-            cacheMap.put(task.host, cache);
+            negativeCacheMap.remove(host);
+            Cache cache = new Cache(host, addresses, ttl);
+            cache.startTimer();
+            assert Logger.lowLevelDebug("cache recorded " + cache.host + ", ttl " + ttl);
+            Cache old = cacheMap.put(host, cache);
+            if (old != null) {
+                old.cancelTimer();
+            }
             for (ResolveListener lsn : resolveListeners) {
                 try {
                     lsn.onResolve(cache);
@@ -210,16 +401,53 @@ public class Resolver implements IResolver {
             }
         }
 
-        // filter the result
-        InetAddress result = filter(addresses, task.ipv4, task.ipv6);
-        if (result != null) {
-            task.cb.succeeded(result);
-            return;
+        for (ResolveTask task : finishInflight(host)) {
+            // filter the result
+            InetAddress result = filter(addresses, task.ipv4, task.ipv6);
+            if (result != null) {
+                task.cb.succeeded(result);
+                continue;
+            }
+
+            // otherwise nothing can be returned
+            // we raise exception
+            task.cb.failed(new UnknownHostException(task.host));
+        }
+    }
+
+    private void handleNotFound(String host, int negativeTTL) {
+        Cache old = cacheMap.get(host);
+        if (old != null) {
+            // the name no longer exists
+            old.remove();
+        }
+        if (negativeTTL > 0) {
+            long expireAt = System.currentTimeMillis() + negativeTTL;
+            negativeCacheMap.put(host, expireAt);
+            loop.getSelectorEventLoop().delay(negativeTTL, () -> negativeCacheMap.remove(host, expireAt));
+        }
+        for (ResolveTask task : finishInflight(host)) {
+            task.cb.failed(new UnknownHostException(task.host));
+        }
+    }
+
+    private void handleFailure(String host, IOException err) {
+        Cache old = cacheMap.get(host);
+        if (old != null) {
+            // refreshing failed, the record will be removed when it's not stale any more
+            // and allow the next prefetch
+            old.refreshing.set(false);
         }
+        for (ResolveTask task : finishInflight(host)) {
+            UnknownHostException e = new UnknownHostException(task.host + ": " + err.getMessage());
+            e.initCause(err);
+            task.cb.failed(e);
+        }
+    }
 
-        // otherwise nothing can be returned
-        // we raise exception
-        task.cb.failed(new UnknownHostException(task.host));
+    private boolean isNegativeCached(String host) {
+        Long expireAt = negativeCacheMap.get(host);
+        return expireAt != null && expireAt > System.currentTimeMillis();
     }
 
     private InetAddress filter(InetAddress[] addresses, boolean ipv4, boolean ipv6) {
@@ -289,10 +517,25 @@ public class Resolver implements IResolver {
         // let's resolve
         Cache r = cacheMap.get(host);
         if (r == null) {
+            if (isNegativeCached(host)) {
+                cb.failed(new UnknownHostException(host));
+                return;
+            }
             loop.getSelectorEventLoop().runOnLoop(() ->
                 doResolve(new ResolveTask(host, (Callback) cb, ipv4, ipv6)));
             return;
         }
+        if (r.hit()) {
+            // the record is about to expire, refresh it in background
+            // so that the hot records will always be found in cache
+            loop.getSelectorEventLoop().runOnLoop(() -> refresh(host));
+        }
+        callbackWithCache(r, ipv4, ipv6, cb);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void callbackWithCache(Cache r, boolean ipv4, boolean ipv6, Callback<? super InetAddress, ? super UnknownHostException> cb) {
+        String host = r.host;
         Tuple<Inet4Address, Inet6Address> tup = r.next();
         Inet4Address v4 = tup.left;
         Inet6Address v6 = tup.right;
@@ -344,10 +587,15 @@ public class Resolver implements IResolver {
         cacheList.addAll(this.cacheMap.values());
     }
 
+    public int negativeCacheCount() {
+        return negativeCacheMap.size();
+    }
+
     public void clearCache() {
         for (Cache c : cacheMap.values()) {
             c.remove();
         }
+        negativeCacheMap.clear();
     }
 
     public void addListener(ResolveListener lsn) {
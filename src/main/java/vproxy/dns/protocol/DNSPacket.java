@@ -0,0 +1,282 @@
+package vproxy.dns.protocol;
+
+import vproxy.component.exception.XException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal dns message codec, see rfc1035 section 4.
+ * <p>
+ * Only the parts required by the resolver are supported:
+ * build a single question query, and parse A/AAAA/CNAME answers and SOA in authority section.
+ */
+public class DNSPacket {
+    public static final int TYPE_A = 1;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_AAAA = 28;
+    public static final int CLASS_IN = 1;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_FORMERR = 1;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    public static final int RCODE_NOTIMP = 4;
+    public static final int RCODE_REFUSED = 5;
+
+    public static final int HEADER_LEN = 12;
+
+    public static class Record {
+        public final String name;
+        public final int type;
+        public final int ttl; // seconds
+        public final InetAddress address; // for A/AAAA, otherwise null
+        public final String cname; // for CNAME, otherwise null
+
+        Record(String name, int type, int ttl, InetAddress address, String cname) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.address = address;
+            this.cname = cname;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" +
+                "name='" + name + '\'' +
+                ", type=" + type +
+                ", ttl=" + ttl +
+                ", address=" + address +
+                ", cname='" + cname + '\'' +
+                '}';
+        }
+    }
+
+    public final int id;
+    public final boolean isResponse;
+    public final boolean truncated;
+    public final int rcode;
+    public final String question; // null if no question
+    public final int qtype;
+    public final List<Record> answers;
+    public final int negativeTTL; // -1 if no SOA in authority section
+
+    private DNSPacket(int id, boolean isResponse, boolean truncated, int rcode,
+                      String question, int qtype,
+                      List<Record> answers, int negativeTTL) {
+        this.id = id;
+        this.isResponse = isResponse;
+        this.truncated = truncated;
+        this.rcode = rcode;
+        this.question = question;
+        this.qtype = qtype;
+        this.answers = Collections.unmodifiableList(answers);
+        this.negativeTTL = negativeTTL;
+    }
+
+    public static byte[] buildQuery(int id, String name, int qtype) throws UnknownHostException {
+        byte[] qname = encodeName(name);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LEN + qname.length + 4);
+        buf.putShort((short) id);
+        buf.putShort((short) 0x0100); // RD = 1
+        buf.putShort((short) 1); // QDCOUNT
+        buf.putShort((short) 0); // ANCOUNT
+        buf.putShort((short) 0); // NSCOUNT
+        buf.putShort((short) 0); // ARCOUNT
+        buf.put(qname);
+        buf.putShort((short) qtype);
+        buf.putShort((short) CLASS_IN);
+        return buf.array();
+    }
+
+    private static byte[] encodeName(String name) throws UnknownHostException {
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.isEmpty()) {
+            return new byte[]{0};
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > 253) {
+            throw new UnknownHostException("name too long: " + name);
+        }
+        byte[] ret = new byte[bytes.length + 2];
+        int lenIdx = 0;
+        int labelLen = 0;
+        for (int i = 0; i < bytes.length; ++i) {
+            byte b = bytes[i];
+            if (b == '.') {
+                if (labelLen == 0) {
+                    throw new UnknownHostException("empty label in name: " + name);
+                }
+                ret[lenIdx] = (byte) labelLen;
+                lenIdx = i + 1;
+                labelLen = 0;
+            } else {
+                if (++labelLen > 63) {
+                    throw new UnknownHostException("label too long in name: " + name);
+                }
+                ret[i + 1] = b;
+            }
+        }
+        if (labelLen == 0) {
+            throw new UnknownHostException("empty label in name: " + name);
+        }
+        ret[lenIdx] = (byte) labelLen;
+        ret[ret.length - 1] = 0;
+        return ret;
+    }
+
+    public static DNSPacket parse(byte[] bytes, int off, int len) throws XException {
+        if (len < HEADER_LEN) {
+            throw new XException("invalid dns packet, too short");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes, off, len).slice();
+        try {
+            int id = buf.getShort() & 0xffff;
+            int flags = buf.getShort() & 0xffff;
+            int qdcount = buf.getShort() & 0xffff;
+            int ancount = buf.getShort() & 0xffff;
+            int nscount = buf.getShort() & 0xffff;
+            buf.getShort(); // ARCOUNT, ignored
+
+            boolean isResponse = (flags & 0x8000) != 0;
+            boolean truncated = (flags & 0x0200) != 0;
+            int rcode = flags & 0x000f;
+
+            String question = null;
+            int qtype = 0;
+            for (int i = 0; i < qdcount; ++i) {
+                String n = readName(buf);
+                int t = buf.getShort() & 0xffff;
+                buf.getShort(); // class
+                if (i == 0) {
+                    question = n;
+                    qtype = t;
+                }
+            }
+
+            List<Record> answers = new ArrayList<>(ancount);
+            for (int i = 0; i < ancount; ++i) {
+                Record r = readRecord(buf);
+                if (r != null) {
+                    answers.add(r);
+                }
+            }
+            int negativeTTL = -1;
+            for (int i = 0; i < nscount; ++i) {
+                readName(buf);
+                int type = buf.getShort() & 0xffff;
+                buf.getShort(); // class
+                int ttl = buf.getInt();
+                int rdlen = buf.getShort() & 0xffff;
+                int end = buf.position() + rdlen;
+                if (type == TYPE_SOA) {
+                    readName(buf); // MNAME
+                    readName(buf); // RNAME
+                    buf.getInt(); // SERIAL
+                    buf.getInt(); // REFRESH
+                    buf.getInt(); // RETRY
+                    buf.getInt(); // EXPIRE
+                    int minimum = buf.getInt();
+                    // see rfc2308 section 5
+                    negativeTTL = Math.max(0, Math.min(ttl, minimum));
+                }
+                buf.position(end);
+            }
+            return new DNSPacket(id, isResponse, truncated, rcode, question, qtype, answers, negativeTTL);
+        } catch (RuntimeException e) { // BufferUnderflowException, IllegalArgumentException
+            throw new XException("invalid dns packet, " + e);
+        }
+    }
+
+    private static Record readRecord(ByteBuffer buf) throws XException {
+        String name = readName(buf);
+        int type = buf.getShort() & 0xffff;
+        int clazz = buf.getShort() & 0xffff;
+        int ttl = buf.getInt();
+        if (ttl < 0) { // rfc2181 section 8, treat as zero
+            ttl = 0;
+        }
+        int rdlen = buf.getShort() & 0xffff;
+        int end = buf.position() + rdlen;
+        if (end > buf.limit()) {
+            throw new XException("invalid dns packet, rdata out of bound");
+        }
+        Record r = null;
+        if (clazz == CLASS_IN) {
+            if ((type == TYPE_A && rdlen == 4) || (type == TYPE_AAAA && rdlen == 16)) {
+                byte[] addr = new byte[rdlen];
+                buf.get(addr);
+                try {
+                    r = new Record(name, type, ttl, InetAddress.getByAddress(addr), null);
+                } catch (UnknownHostException e) {
+                    // will not happen because the length is checked
+                    throw new XException("invalid address in dns packet");
+                }
+            } else if (type == TYPE_CNAME) {
+                r = new Record(name, type, ttl, null, readName(buf));
+            }
+        }
+        buf.position(end);
+        return r;
+    }
+
+    private static String readName(ByteBuffer buf) throws XException {
+        StringBuilder sb = new StringBuilder();
+        int pos = buf.position();
+        int jumps = 0;
+        int resumePos = -1;
+        while (true) {
+            int len = buf.get(pos) & 0xff;
+            if (len == 0) {
+                ++pos;
+                break;
+            }
+            if ((len & 0xc0) == 0xc0) {
+                if (++jumps > 64) {
+                    throw new XException("invalid dns packet, too many compression pointers");
+                }
+                int ptr = ((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff);
+                if (resumePos == -1) {
+                    resumePos = pos + 2;
+                }
+                pos = ptr;
+                continue;
+            }
+            if ((len & 0xc0) != 0) {
+                throw new XException("invalid dns packet, unknown label type");
+            }
+            if (sb.length() != 0) {
+                sb.append('.');
+            }
+            for (int i = 0; i < len; ++i) {
+                sb.append((char) (buf.get(pos + 1 + i) & 0xff));
+            }
+            pos += 1 + len;
+        }
+        buf.position(resumePos == -1 ? pos : resumePos);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DNSPacket{" +
+            "id=" + id +
+            ", isResponse=" + isResponse +
+            ", truncated=" + truncated +
+            ", rcode=" + rcode +
+            ", question='" + question + '\'' +
+            ", qtype=" + qtype +
+            ", answers=" + answers +
+            ", negativeTTL=" + negativeTTL +
+            '}';
+    }
+}
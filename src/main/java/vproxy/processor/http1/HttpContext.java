@@ -4,12 +4,34 @@ import vproxy.processor.OOContext;
 import vproxy.util.Utils;
 
 import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.LinkedList;
 
 public class HttpContext extends OOContext<HttpSubContext> {
     final String clientAddress;
 
     int currentBackend = -1;
 
+    // requests and final responses seen, used to match the sampled requests with responses
+    int requestCount = 0;
+    int responseCount = 0;
+    // requests sampled by the access log and waiting for responses
+    final Deque<PendingRequest> pendingRequests = new LinkedList<>();
+
+    static class PendingRequest {
+        final int seq;
+        final String method;
+        final String uri;
+        final long beginNanos;
+
+        PendingRequest(int seq, String method, String uri, long beginNanos) {
+            this.seq = seq;
+            this.method = method;
+            this.uri = uri;
+            this.beginNanos = beginNanos;
+        }
+    }
+
     public HttpContext(InetSocketAddress clientSock) {
         clientAddress = clientSock == null ? null : Utils.ipStr(clientSock.getAddress().getAddress());
     }
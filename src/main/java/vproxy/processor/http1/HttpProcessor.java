@@ -22,6 +22,6 @@ public class HttpProcessor extends OOProcessor<HttpContext, HttpSubContext> {
 
     @Override
     public HttpSubContext initSub(HttpContext httpContext, int id, InetSocketAddress associatedAddress) {
-        return new HttpSubContext(httpContext, id);
+        return new HttpSubContext(httpContext, id, associatedAddress);
     }
 }
@@ -8,9 +8,11 @@ import vproxy.processor.http1.builder.RequestBuilder;
 import vproxy.processor.http1.builder.ResponseBuilder;
 import vproxy.processor.http1.entity.Request;
 import vproxy.processor.http1.entity.Response;
+import vproxy.util.AccessLog;
 import vproxy.util.ByteArray;
 import vproxy.util.Logger;
 
+import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,6 +21,7 @@ import java.util.Map;
 @SuppressWarnings("StatementWithEmptyBody")
 public class HttpSubContext extends OOSubContext<HttpContext> {
     private final boolean frontend;
+    private final InetSocketAddress associatedAddress; // may be null
     private int state = 0;
     /*
      * 0 => idle ~> 1 (if request) or -> 22 (if response)
@@ -92,8 +95,13 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
     private int proxyLen = -1;
 
     public HttpSubContext(HttpContext httpContext, int connId) {
+        this(httpContext, connId, null);
+    }
+
+    public HttpSubContext(HttpContext httpContext, int connId, InetSocketAddress associatedAddress) {
         super(httpContext, connId);
         frontend = connId == 0;
+        this.associatedAddress = associatedAddress;
     }
 
     public Request getReq() {
@@ -220,6 +228,7 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
             // do nothing
         } else if (b == '\n') {
             state = 4;
+            requestLineEnd();
         } else {
             req.uri.append((char) b);
         }
@@ -231,6 +240,7 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
             // do nothing
         } else if (b == '\n') {
             state = 4;
+            requestLineEnd();
         } else {
             if (req.version == null) {
                 req.version = new StringBuilder();
@@ -559,6 +569,38 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
         end();
     }
 
+    private void requestLineEnd() {
+        int seq = ++ctx.requestCount;
+        if (AccessLog.sample()) {
+            ctx.pendingRequests.add(new HttpContext.PendingRequest(seq, req.method.toString(), req.uri.toString(), System.nanoTime()));
+        }
+    }
+
+    private void statusEnd() {
+        int status = 0;
+        StringBuilder sb = resp.statusCode;
+        for (int i = 0; i < sb.length(); ++i) {
+            char c = sb.charAt(i);
+            if (c < '0' || c > '9') {
+                status = 0;
+                break;
+            }
+            status = status * 10 + (c - '0');
+        }
+        if (status >= 100 && status < 200 && status != 101) {
+            return; // informational responses are followed by the final response
+        }
+        int seq = ++ctx.responseCount;
+        HttpContext.PendingRequest r;
+        while ((r = ctx.pendingRequests.peek()) != null && r.seq <= seq) {
+            ctx.pendingRequests.poll();
+            if (r.seq == seq) {
+                AccessLog.request("http/1.x", ctx.clientAddress, associatedAddress, r.method, r.uri, status,
+                    (System.nanoTime() - r.beginNanos) / 1000);
+            }
+        }
+    }
+
     private void state22(ByteArray data) {
         int b = data.uint8(0);
         if (b == ' ') {
@@ -572,6 +614,7 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
         int b = data.uint8(0);
         if (b == ' ') {
             state = 24;
+            statusEnd();
         } else {
             resp.statusCode.append((char) b);
         }
@@ -29,6 +29,17 @@ class HPackTransformer {
         return outBuffer.get();
     }
 
+    void capture() {
+        lsn.capture = true;
+    }
+
+    // null if not capturing
+    Http2Context.PendingRequest captured() {
+        if (!lsn.capture)
+            return null;
+        return new Http2Context.PendingRequest(lsn.method, lsn.path, System.nanoTime());
+    }
+
     public void endHeaders() {
         lsn.endHeaders();
         decoder.endHeaderBlock();
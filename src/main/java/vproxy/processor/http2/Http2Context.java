@@ -27,6 +27,21 @@ public class Http2Context extends OOContext<Http2SubContext> {
 
     final String clientIpStr;
 
+    // requests sampled by the access log and waiting for responses, streamId => request
+    final Map<Integer, PendingRequest> pendingRequests = new HashMap<>();
+
+    static class PendingRequest {
+        final String method;
+        final String path;
+        final long beginNanos;
+
+        PendingRequest(String method, String path, long beginNanos) {
+            this.method = method;
+            this.path = path;
+            this.beginNanos = beginNanos;
+        }
+    }
+
     public Http2Context(InetSocketAddress clientAddress) {
         clientIpStr = Utils.ipStr(clientAddress.getAddress().getAddress());
         hPackTransformer = new HPackTransformer(Http2SubContext.SIZE_DEFAULT_HEADER_TABLE_SIZE,
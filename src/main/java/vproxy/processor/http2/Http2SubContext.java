@@ -2,9 +2,11 @@ package vproxy.processor.http2;
 
 import vproxy.processor.Processor;
 import vproxy.processor.OOSubContext;
+import vproxy.util.AccessLog;
 import vproxy.util.Logger;
 import vproxy.util.ByteArray;
 
+import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -246,8 +248,15 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     // record the first settings frame head and send all when the whole frame is received
     private ByteArray theSettingsFrameHead;
 
+    private final InetSocketAddress associatedAddress; // may be null
+
     public Http2SubContext(Http2Context ctx, int connId) {
+        this(ctx, connId, null);
+    }
+
+    public Http2SubContext(Http2Context ctx, int connId, InetSocketAddress associatedAddress) {
         super(ctx, connId);
+        this.associatedAddress = associatedAddress;
 
         if (connId == 0) {
             state = 0;
@@ -513,6 +522,16 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             ctx.tryRecordStream(this);
         }
 
+        if (connId != 0 && frame.type == Http2Frame.Type.HEADERS && !ctx.pendingRequests.isEmpty()) {
+            // the first response headers of a sampled request
+            // the headers of backends are not decoded, so the status is unknown
+            Http2Context.PendingRequest r = ctx.pendingRequests.remove(frame.streamIdentifier);
+            if (r != null) {
+                AccessLog.request("h2", ctx.clientIpStr, associatedAddress, r.method, r.path, 0,
+                    (System.nanoTime() - r.beginNanos) / 1000);
+            }
+        }
+
         if (connId == 0 // frontend
             && (frame.type == Http2Frame.Type.HEADERS || frame.type == Http2Frame.Type.CONTINUATION) // headers/continuation
             && SIZE_DEFAULT_HEADER_TABLE_SIZE != 0 // would be compressed
@@ -696,6 +715,10 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             } else if (frame.priority) {
                 data = data.sub(5, data.length() - 5);
             }
+            if (!ctx.streamMap.containsKey(frame.streamIdentifier) && AccessLog.sample()) {
+                // a new stream (not trailers), capture the request for the access log
+                ctx.hPackTransformer.capture();
+            }
             transformed = ctx.hPackTransformer.transform(data, frame.endHeaders);
         } else {
             assert frame.type == Http2Frame.Type.CONTINUATION;
@@ -714,6 +737,12 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
 
         // set header end before return the result
         if (frame.endHeaders) {
+            Http2Context.PendingRequest r = ctx.hPackTransformer.captured();
+            if (r != null) {
+                // the request may never get a response, e.g. reset by the client
+                // let it leak, will be GC-ed when connection closes
+                ctx.pendingRequests.put(frame.streamIdentifier, r);
+            }
             ctx.hPackTransformer.endHeaders();
         }
         // set state to idle
@@ -13,6 +13,11 @@ public class SyncOutputListener implements HeaderListener {
     private final Header[] headers;
     private final boolean[] added; // whether it's already added into the header list
 
+    // capture the :method and :path of the current header block, for the access log
+    boolean capture = false;
+    String method;
+    String path;
+
     public SyncOutputListener(Encoder encoder, OutputStream out, Header[] headers) {
         this.encoder = encoder;
         this.out = out;
@@ -22,6 +27,9 @@ public class SyncOutputListener implements HeaderListener {
 
     @Override
     public void addHeader(byte[] name, byte[] value, boolean sensitive) throws IOException {
+        if (capture) {
+            capture(name, value);
+        }
         byte[] replaced = checkAndGet(name, value);
         if (replaced != null) {
             value = replaced;
@@ -29,6 +37,14 @@ public class SyncOutputListener implements HeaderListener {
         encoder.encodeHeader(out, name, value, sensitive);
     }
 
+    private void capture(byte[] name, byte[] value) {
+        if (name.length == 7 && new String(name).equals(":method")) {
+            method = new String(value);
+        } else if (name.length == 5 && new String(name).equals(":path")) {
+            path = new String(value);
+        }
+    }
+
     private byte[] checkAndGet(byte[] key, byte[] value) {
         if (headers == null || headers.length == 0) {
             return null;
@@ -66,6 +82,9 @@ public class SyncOutputListener implements HeaderListener {
     }
 
     void endHeaders() {
+        capture = false;
+        method = null;
+        path = null;
         // set everything to not added (added[n]=false)
         for (int i = 0; i < added.length; ++i) {
             added[i] = false;
@@ -19,6 +19,7 @@ public class ProtocolHandlerContext<T> {
     // the loop that handles write process
     public final SelectorEventLoop loop;
     private final ProtocolHandler handler;
+    private Runnable writesDone = null; // run when the pending bytes are all stored into the out buffer
 
     // a field for user code to set data
     public T data;
@@ -33,6 +34,15 @@ public class ProtocolHandlerContext<T> {
     }
 
     void doWrite() {
+        writeIntoOutBuffer();
+        if (writesDone != null && !hasPendingWrites()) {
+            Runnable r = writesDone;
+            writesDone = null;
+            loop.nextTick(r); // do not run user code inside the writable handler
+        }
+    }
+
+    private void writeIntoOutBuffer() {
         // doWrite() should consider ET writable handler
 
         if (chnl != null && chnl.used() == 0)
@@ -80,6 +90,24 @@ public class ProtocolHandlerContext<T> {
         loop.runOnLoop(this::doWrite); // run write in loop thread
     }
 
+    // check whether some bytes are still waiting for the out buffer to be writable
+    // should be called on the loop thread
+    public boolean hasPendingWrites() {
+        return (chnl != null && chnl.used() != 0) || !bytesSeq.isEmpty();
+    }
+
+    // run the callback on the loop thread after the written bytes are all stored into the out buffer,
+    // if the out buffer is full, it's triggered by the writable event
+    public void whenWritesDone(Runnable r) {
+        loop.runOnLoop(() -> {
+            if (hasPendingWrites()) {
+                writesDone = r;
+            } else {
+                loop.nextTick(r);
+            }
+        });
+    }
+
     @SuppressWarnings("unchecked")
     public void readable() {
         loop.runOnLoop(() -> {
@@ -15,6 +15,9 @@ public class RESPParser {
     private String errorMessage = null;
     private int state = 0; // 0 is the start state
 
+    private final byte[] nextByte = new byte[1];
+    private final ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(nextByte);
+
     /*
      * state machine:
      *
@@ -77,12 +80,18 @@ public class RESPParser {
         this.maxLen = maxLen;
     }
 
+    // make the parser ready for a new message
+    public void reset() {
+        parsedLen = 0;
+        resp = null;
+        errorMessage = null;
+        state = 0;
+    }
+
     // return 0 means everything is done
     // return -1 means: got error, or want more data
     // call getErrorMessage() to check whether is error
     public int feed(RingBuffer buffer) {
-        byte[] nextByte = new byte[1];
-        ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(nextByte);
         while (true) {
             chnl.reset();
             // an integer field that does multiple things, no particular name for it
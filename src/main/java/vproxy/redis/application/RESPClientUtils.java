@@ -10,18 +10,64 @@ import vproxy.util.RingBuffer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.function.Supplier;
 
 public class RESPClientUtils {
     private RESPClientUtils() {
     }
 
+    /**
+     * parse the response of one request,
+     * the parser is created for every request
+     */
+    public interface ReplyParser {
+        // 0 for a complete response, -1 for wanting more data or error
+        int feed(RingBuffer buffer);
+
+        // the message to fail the request with, or null if wanting more data
+        String getErrorMessage();
+
+        Object getResult() throws IOException;
+    }
+
+    private static ReplyParser respParser() {
+        RESPParser parser = new RESPParser(16384);
+        return new ReplyParser() {
+            @Override
+            public int feed(RingBuffer buffer) {
+                return parser.feed(buffer);
+            }
+
+            @Override
+            public String getErrorMessage() {
+                return parser.getErrorMessage() == null ? null : "external data is not RESP format";
+            }
+
+            @Override
+            public Object getResult() {
+                RESP resp = parser.getResult();
+                return resp.getJavaObject();
+            }
+        };
+    }
+
     public static void retry(NetEventLoop loop,
                              InetSocketAddress remote,
                              Object toSend,
                              int timeout,
                              int retryTimes,
                              Callback<Object, IOException> cb) {
-        oneReq(loop, remote, toSend, timeout, new Callback<Object, IOException>() {
+        retry(loop, remote, Serializer.from(toSend), RESPClientUtils::respParser, timeout, retryTimes, cb);
+    }
+
+    public static void retry(NetEventLoop loop,
+                             InetSocketAddress remote,
+                             byte[] bytes,
+                             Supplier<ReplyParser> parserSupplier,
+                             int timeout,
+                             int retryTimes,
+                             Callback<Object, IOException> cb) {
+        oneReq(loop, remote, bytes, parserSupplier, timeout, new Callback<Object, IOException>() {
             @Override
             protected void onSucceeded(Object value) {
                 cb.succeeded(value);
@@ -30,7 +76,7 @@ public class RESPClientUtils {
             @Override
             protected void onFailed(IOException err) {
                 if (retryTimes > 0) {
-                    retry(loop, remote, toSend, timeout, retryTimes - 1, cb);
+                    retry(loop, remote, bytes, parserSupplier, timeout, retryTimes - 1, cb);
                 } else {
                     cb.failed(err);
                 }
@@ -43,7 +89,15 @@ public class RESPClientUtils {
                               Object toSend,
                               int timeout,
                               Callback<Object, IOException> cb) {
-        byte[] bytes = Serializer.from(toSend);
+        oneReq(loop, remote, Serializer.from(toSend), RESPClientUtils::respParser, timeout, cb);
+    }
+
+    public static void oneReq(NetEventLoop loop,
+                              InetSocketAddress remote,
+                              byte[] bytes,
+                              Supplier<ReplyParser> parserSupplier,
+                              int timeout,
+                              Callback<Object, IOException> cb) {
         ByteArrayChannel chnl = ByteArrayChannel.fromFull(bytes);
         try { // catch IOException and call cb
 
@@ -52,7 +106,7 @@ public class RESPClientUtils {
             // connection won't last long
             ClientConnection conn = ClientConnection.create(remote, ConnectionOpts.getDefault(), RingBuffer.allocate(16384), RingBuffer.allocate(16384));
             loop.addClientConnection(conn, null, new ClientConnectionHandler() {
-                private final RESPParser parser = new RESPParser(16384);
+                private final ReplyParser parser = parserSupplier.get();
 
                 private void write(ConnectionHandlerContext ctx) {
                     ctx.connection.getOutBuffer().storeBytesFrom(chnl);
@@ -75,11 +129,18 @@ public class RESPClientUtils {
                         }
                         // error, close connection
                         ctx.connection.close();
-                        cb.failed(new IOException("external data is not RESP format"));
+                        cb.failed(new IOException(msg));
+                        return;
+                    }
+                    Object o;
+                    try {
+                        o = parser.getResult();
+                    } catch (IOException e) {
+                        ctx.connection.close();
+                        cb.failed(e);
                         return;
                     }
-                    RESP resp = parser.getResult();
-                    cb.succeeded(resp.getJavaObject());
+                    cb.succeeded(o);
                     ctx.connection.close();
                 }
 
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 public class SelectorEventLoop {
@@ -24,7 +25,10 @@ public class SelectorEventLoop {
     private final Selector selector;
     private final TimeQueue<Runnable> timeQueue = new TimeQueue<>();
     private final ConcurrentLinkedQueue<Runnable> runOnLoopEvents = new ConcurrentLinkedQueue<>();
+    // size() of ConcurrentLinkedQueue is O(n), so record the size separately
+    private final AtomicInteger runOnLoopEventsCount = new AtomicInteger(0);
     private final HandlerContext ctx = new HandlerContext(this); // always reuse the ctx object
+    private final SelectorEventLoopStats stats = new SelectorEventLoopStats();
     public volatile Thread runningThread;
 
     // these locks are a little tricky
@@ -62,6 +66,8 @@ public class SelectorEventLoop {
         while ((r = runOnLoopEvents.poll()) != null) {
             toRun.add(r);
         }
+        runOnLoopEventsCount.addAndGet(-toRun.size());
+        stats.recordQueueSize(toRun.size());
         for (Runnable rr : toRun) {
             tryRunnable(rr);
         }
@@ -70,12 +76,14 @@ public class SelectorEventLoop {
     private void handleTimeEvents() {
         List<Runnable> toRun = new LinkedList<>();
         while (timeQueue.nextTime() == 0) {
+            stats.recordTimerLag(Config.currentTimestamp - timeQueue.nextTriggerTime());
             Runnable r = timeQueue.pop();
             toRun.add(r);
         }
         for (Runnable r : toRun) {
             tryRunnable(r);
         }
+        stats.timers = timeQueue.size();
     }
 
     @SuppressWarnings("unchecked")
@@ -158,6 +166,7 @@ public class SelectorEventLoop {
         loopThreadLocal.set(this);
         // run
         while (selector.isOpen()) {
+            long begin = System.nanoTime();
             synchronized (CLOSE_LOCK) {
                 // yes, we lock the whole while body (except the select part)
                 // it's ok because we won't close the loop from inside the loop
@@ -171,6 +180,8 @@ public class SelectorEventLoop {
                 Config.currentTimestamp = System.currentTimeMillis();
                 handleNonSelectEvents();
             }
+            long beforeSelect = System.nanoTime();
+            long nonSelectNanos = beforeSelect - begin;
             // here we do not lock select()
             // let close() have chance to run
 
@@ -193,6 +204,8 @@ public class SelectorEventLoop {
                 // if it's closed, the next loop will not run
                 continue;
             }
+            long afterSelect = System.nanoTime();
+            long selectNanos = afterSelect - beforeSelect;
 
             // we lock the OPERATE_SELECTOR_LOCK
             // to make sure the add() is finished
@@ -213,6 +226,8 @@ public class SelectorEventLoop {
                     doHandling(keys);
                 }
             }
+            long handlingNanos = System.nanoTime() - afterSelect;
+            stats.recordIteration(nonSelectNanos, handlingNanos, selectNanos, selectedSize);
             // while-loop ends here
         }
         runningThread = null; // it's not running now, set to null
@@ -225,12 +240,30 @@ public class SelectorEventLoop {
         return runningThread != null && Thread.currentThread() != runningThread;
     }
 
+    private void wakeup() {
+        stats.wakeups.increment();
+        selector.wakeup();
+    }
+
     @ThreadSafe
     public void nextTick(Runnable r) {
         runOnLoopEvents.add(r);
+        runOnLoopEventsCount.incrementAndGet();
         if (runningThread == null || Thread.currentThread() == runningThread)
             return; // we do not need to wakeup because it's not started or is already waken up
-        selector.wakeup(); // wake the selector because new event is added
+        wakeup(); // wake the selector because new event is added
+    }
+
+    // count of events waiting to be run on the loop
+    // which indicates how busy the loop is
+    @ThreadSafe
+    public int queueSize() {
+        return runOnLoopEventsCount.get();
+    }
+
+    @ThreadSafe
+    public SelectorEventLoopStats stats() {
+        return stats;
     }
 
     @ThreadSafe
@@ -267,7 +300,7 @@ public class SelectorEventLoop {
         registerData.handler = handler;
         if (needLockAndWake()) {
             synchronized (OPERATE_SELECTOR_LOCK) { // lock it to make sure register is done
-                selector.wakeup();
+                wakeup();
                 add0(channel, ops, registerData);
             }
         } else {
@@ -306,7 +339,7 @@ public class SelectorEventLoop {
         // so we consider a lock and wake
         if (needLockAndWake()) {
             synchronized (OPERATE_SELECTOR_LOCK) {
-                selector.wakeup();
+                wakeup();
                 key.interestOps(ops);
             }
         } else {
@@ -346,7 +379,7 @@ public class SelectorEventLoop {
         RegisterData att = (RegisterData) key.attachment();
         if (needLockAndWake()) {
             synchronized (OPERATE_SELECTOR_LOCK) { // lock it to make sure cancel is done
-                selector.wakeup();
+                wakeup();
                 key.cancel();
             }
         } else {
@@ -0,0 +1,149 @@
+package vproxy.selector;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Saturation statistics of one SelectorEventLoop.
+ * <p>
+ * Most fields are written only by the loop thread, so they are plain volatile fields
+ * without any locking or allocation, and other threads may read them at any time.
+ * The values are accumulated since the loop is created.
+ */
+public class SelectorEventLoopStats {
+    // loop rounds
+    volatile long iterations;
+    // time spent in running nextTick events and timer events
+    volatile long nonSelectNanos;
+    // time spent in handling the selected keys
+    volatile long handlingNanos;
+    // time spent in select(), which is usually the idle time
+    volatile long selectNanos;
+    // the longest round, select() not included
+    volatile long maxIterationNanos;
+    volatile long selectedKeys;
+    volatile int maxSelectedKeys;
+    // select() returned without any key selected
+    volatile long emptySelects;
+    volatile int maxQueueSize;
+    volatile int timers;
+    // the most delayed timer event, from when it should fire to when it actually fires
+    volatile long maxTimerLagMillis;
+    // the wakeup may be called from any thread
+    final LongAdder wakeups = new LongAdder();
+
+    SelectorEventLoopStats() {
+    }
+
+    // the following methods are only called on the loop thread
+
+    void recordIteration(long nonSelectNanos, long handlingNanos, long selectNanos, int selectedKeys) {
+        this.iterations = iterations + 1;
+        this.nonSelectNanos = this.nonSelectNanos + nonSelectNanos;
+        this.handlingNanos = this.handlingNanos + handlingNanos;
+        this.selectNanos = this.selectNanos + selectNanos;
+        long busy = nonSelectNanos + handlingNanos;
+        if (busy > maxIterationNanos) {
+            maxIterationNanos = busy;
+        }
+        if (selectedKeys == 0) {
+            emptySelects = emptySelects + 1;
+        } else {
+            this.selectedKeys = this.selectedKeys + selectedKeys;
+            if (selectedKeys > maxSelectedKeys) {
+                maxSelectedKeys = selectedKeys;
+            }
+        }
+    }
+
+    void recordQueueSize(int size) {
+        if (size > maxQueueSize) {
+            maxQueueSize = size;
+        }
+    }
+
+    void recordTimerLag(long lagMillis) {
+        if (lagMillis > maxTimerLagMillis) {
+            maxTimerLagMillis = lagMillis;
+        }
+    }
+
+    public long getIterations() {
+        return iterations;
+    }
+
+    public long getNonSelectNanos() {
+        return nonSelectNanos;
+    }
+
+    public long getHandlingNanos() {
+        return handlingNanos;
+    }
+
+    public long getSelectNanos() {
+        return selectNanos;
+    }
+
+    public long getMaxIterationNanos() {
+        return maxIterationNanos;
+    }
+
+    public long getSelectedKeys() {
+        return selectedKeys;
+    }
+
+    public int getMaxSelectedKeys() {
+        return maxSelectedKeys;
+    }
+
+    public long getEmptySelects() {
+        return emptySelects;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public int getTimers() {
+        return timers;
+    }
+
+    public long getMaxTimerLagMillis() {
+        return maxTimerLagMillis;
+    }
+
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    // percentage of time the loop is not waiting in select()
+    public double busyPercentage() {
+        long busy = nonSelectNanos + handlingNanos;
+        long total = busy + selectNanos;
+        if (total == 0)
+            return 0;
+        return busy * 100d / total;
+    }
+
+    @Override
+    public String toString() {
+        long iterations = this.iterations;
+        long nonSelect = nonSelectNanos;
+        long handling = handlingNanos;
+        long avgIteration = iterations == 0 ? 0 : (nonSelect + handling) / iterations / 1000;
+        long keyRounds = iterations - emptySelects;
+        double avgKeys = keyRounds <= 0 ? 0 : selectedKeys / (double) keyRounds;
+        return "iterations " + iterations
+            + " busy " + String.format("%.2f", busyPercentage()) + "%"
+            + " avg-iteration " + avgIteration + "us"
+            + " max-iteration " + (maxIterationNanos / 1000) + "us"
+            + " handling " + (handling / 1000) + "us"
+            + " non-select " + (nonSelect / 1000) + "us"
+            + " avg-keys " + String.format("%.2f", avgKeys)
+            + " max-keys " + maxSelectedKeys
+            + " empty-selects " + emptySelects
+            + " max-queue " + maxQueueSize
+            + " timers " + timers
+            + " max-timer-lag " + maxTimerLagMillis + "ms"
+            + " wakeups " + wakeups.sum();
+    }
+}
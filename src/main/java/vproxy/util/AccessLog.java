@@ -0,0 +1,374 @@
+package vproxy.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log of proxied sessions and http requests, one json object per line.
+ * <p>
+ * Records are encoded directly into off-heap buffers owned by the logging thread (usually an event loop),
+ * and a background thread swaps the buffers and writes them into a file, which is rotated by size.
+ * When the buffer of a thread is full, the record is dropped and counted.
+ */
+public class AccessLog {
+    public static final long DEFAULT_MAX_FILE_SIZE = 128L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 8;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int FLUSH_INTERVAL = 200; // ms
+
+    private static volatile AccessLog current = null;
+
+    public static AccessLog get() {
+        return current;
+    }
+
+    /**
+     * start writing access log
+     *
+     * @param path        file path
+     * @param sample      fraction of records to log, 1 means all
+     * @param maxFileSize the file is rotated when it's larger than this size
+     * @param maxFiles    count of files to keep, including the current one
+     * @throws IOException open file failed
+     */
+    public static synchronized void start(String path, double sample, long maxFileSize, int maxFiles) throws IOException {
+        if (current != null)
+            throw new IllegalStateException("access log is already started: " + current.path);
+        AccessLog log = new AccessLog(path, sample, maxFileSize, maxFiles);
+        log.writer.start();
+        current = log;
+        // write the buffered records before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (current == log) {
+                stop();
+            }
+        }, "vproxy-access-log-flush"));
+    }
+
+    @Blocking // waits until all records are written
+    public static synchronized void stop() {
+        AccessLog log = current;
+        if (log == null)
+            return;
+        current = null;
+        log.close();
+    }
+
+    /**
+     * decide whether to log a session or a request.
+     * it's very cheap when access log is disabled, so call this before collecting info for the record
+     *
+     * @return true if the record should be logged
+     */
+    public static boolean sample() {
+        AccessLog log = current;
+        if (log == null)
+            return false;
+        return log.sample >= 1 || ThreadLocalRandom.current().nextDouble() < log.sample;
+    }
+
+    /**
+     * log a proxied session
+     *
+     * @param listen         the address the session is accepted on
+     * @param client         client address
+     * @param backend        backend address, may be null if not chosen
+     * @param fromClient     bytes received from the client
+     * @param toClient       bytes sent to the client
+     * @param durationMicros how long the session lasts
+     * @param closeReason    why the session is closed
+     */
+    public static void session(InetSocketAddress listen, InetSocketAddress client, InetSocketAddress backend,
+                               long fromClient, long toClient, long durationMicros, String closeReason) {
+        AccessLog log = current;
+        if (log == null)
+            return;
+        Buffer buf = log.buffers.get();
+        synchronized (buf) {
+            ByteBuffer b = buf.active;
+            int begin = b.position();
+            try {
+                putRaw(b, "{\"ts\":");
+                putLong(b, System.currentTimeMillis());
+                putRaw(b, ",\"type\":\"session\",\"listen\":");
+                putAddress(b, listen);
+                putRaw(b, ",\"client\":");
+                putAddress(b, client);
+                putRaw(b, ",\"backend\":");
+                putAddress(b, backend);
+                putRaw(b, ",\"from_client\":");
+                putLong(b, fromClient);
+                putRaw(b, ",\"to_client\":");
+                putLong(b, toClient);
+                putRaw(b, ",\"duration_us\":");
+                putLong(b, durationMicros);
+                putRaw(b, ",\"close\":");
+                putString(b, closeReason);
+                putRaw(b, "}\n");
+            } catch (BufferOverflowException e) {
+                b.position(begin);
+                log.dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * log a http request
+     *
+     * @param protocol      http/1.x or h2
+     * @param client        client ip
+     * @param backend       backend address, may be null if unknown
+     * @param method        request method
+     * @param uri           request uri
+     * @param status        response status, 0 means unknown
+     * @param latencyMicros from the request began to the response headers arrived
+     */
+    public static void request(String protocol, String client, InetSocketAddress backend,
+                               String method, String uri, int status, long latencyMicros) {
+        AccessLog log = current;
+        if (log == null)
+            return;
+        Buffer buf = log.buffers.get();
+        synchronized (buf) {
+            ByteBuffer b = buf.active;
+            int begin = b.position();
+            try {
+                putRaw(b, "{\"ts\":");
+                putLong(b, System.currentTimeMillis());
+                putRaw(b, ",\"type\":\"request\",\"protocol\":");
+                putString(b, protocol);
+                putRaw(b, ",\"client\":");
+                putString(b, client);
+                putRaw(b, ",\"backend\":");
+                putAddress(b, backend);
+                putRaw(b, ",\"method\":");
+                putString(b, method);
+                putRaw(b, ",\"uri\":");
+                putString(b, uri);
+                putRaw(b, ",\"status\":");
+                if (status == 0) {
+                    putRaw(b, "null");
+                } else {
+                    putLong(b, status);
+                }
+                putRaw(b, ",\"latency_us\":");
+                putLong(b, latencyMicros);
+                putRaw(b, "}\n");
+            } catch (BufferOverflowException e) {
+                b.position(begin);
+                log.dropped.increment();
+            }
+        }
+    }
+
+    private static class Buffer {
+        ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    public final String path;
+    public final double sample;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    private final CopyOnWriteArrayList<Buffer> allBuffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(() -> {
+        Buffer b = new Buffer();
+        allBuffers.add(b);
+        return b;
+    });
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private FileChannel file;
+    private long fileSize;
+
+    private AccessLog(String path, double sample, long maxFileSize, int maxFiles) throws IOException {
+        if (sample <= 0 || sample > 1)
+            throw new IllegalArgumentException("invalid sample rate " + sample + ", should be in (0, 1]");
+        if (maxFiles < 1)
+            throw new IllegalArgumentException("invalid max files " + maxFiles);
+        this.path = path;
+        this.sample = sample;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        open();
+        writer = new Thread(this::loop, "vproxy-access-log");
+        writer.setDaemon(true);
+    }
+
+    // records dropped because the buffer is full
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void open() throws IOException {
+        file = FileChannel.open(new File(path).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = file.size();
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+        // path.{n-1} is removed, path.{i} -> path.{i+1}, path -> path.1
+        File last = new File(path + "." + (maxFiles - 1));
+        if (maxFiles > 1 && last.exists() && !last.delete()) {
+            throw new IOException("cannot delete " + last);
+        }
+        for (int i = maxFiles - 2; i >= 1; --i) {
+            File f = new File(path + "." + i);
+            if (f.exists()) {
+                Files.move(f.toPath(), new File(path + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(new File(path).toPath(), new File(path + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(new File(path).toPath());
+        }
+        open();
+    }
+
+    private void loop() {
+        while (!closed) {
+            // do not interrupt the thread, otherwise the file channel would be closed
+            LockSupport.parkNanos(FLUSH_INTERVAL * 1_000_000L);
+            flush();
+        }
+    }
+
+    /**
+     * write all buffered records into the file
+     */
+    @Blocking
+    public synchronized void flush() {
+        if (file == null)
+            return; // closed
+        for (Buffer buf : allBuffers) {
+            ByteBuffer b;
+            synchronized (buf) {
+                if (buf.active.position() == 0)
+                    continue;
+                b = buf.active;
+                buf.active = buf.flushing;
+                buf.flushing = b;
+            }
+            b.flip();
+            try {
+                if (fileSize >= maxFileSize) {
+                    rotate();
+                }
+                while (b.hasRemaining()) {
+                    fileSize += file.write(b);
+                }
+            } catch (IOException e) {
+                Logger.error(LogType.SYS_ERROR, "writing access log " + path + " failed", e);
+            }
+            b.clear();
+        }
+    }
+
+    private void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ignore) {
+        }
+        flush();
+        synchronized (this) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Logger.error(LogType.SYS_ERROR, "closing access log " + path + " failed", e);
+            }
+            file = null;
+        }
+    }
+
+    // the following methods encode values into the buffer
+    // non-ascii chars are escaped, so the output is always ascii
+
+    private static void putRaw(ByteBuffer b, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            b.put((byte) s.charAt(i));
+        }
+    }
+
+    private static void putLong(ByteBuffer b, long n) {
+        if (n < 0) {
+            b.put((byte) '-');
+            if (n == Long.MIN_VALUE) {
+                putRaw(b, "9223372036854775808");
+                return;
+            }
+            n = -n;
+        }
+        long div = 1;
+        while (div <= n / 10) {
+            div *= 10;
+        }
+        while (div > 0) {
+            b.put((byte) ('0' + (n / div) % 10));
+            div /= 10;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static void putString(ByteBuffer b, String s) {
+        if (s == null) {
+            putRaw(b, "null");
+            return;
+        }
+        b.put((byte) '"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.put((byte) '\\').put((byte) c);
+            } else if (c >= 0x20 && c < 0x7f) {
+                b.put((byte) c);
+            } else {
+                b.put((byte) '\\').put((byte) 'u')
+                    .put((byte) HEX[(c >> 12) & 0xf]).put((byte) HEX[(c >> 8) & 0xf])
+                    .put((byte) HEX[(c >> 4) & 0xf]).put((byte) HEX[c & 0xf]);
+            }
+        }
+        b.put((byte) '"');
+    }
+
+    private static void putAddress(ByteBuffer b, InetSocketAddress addr) {
+        if (addr == null) {
+            putRaw(b, "null");
+            return;
+        }
+        b.put((byte) '"');
+        byte[] ip = addr.getAddress().getAddress();
+        if (ip.length == 4) {
+            for (int i = 0; i < 4; ++i) {
+                if (i != 0) {
+                    b.put((byte) '.');
+                }
+                putLong(b, ip[i] & 0xff);
+            }
+        } else {
+            putRaw(b, Utils.ipStr(ip)); // already bracketed
+        }
+        b.put((byte) ':');
+        putLong(b, addr.getPort());
+        b.put((byte) '"');
+    }
+}
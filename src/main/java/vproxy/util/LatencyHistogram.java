@@ -0,0 +1,222 @@
+package vproxy.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A histogram for latencies in microseconds.
+ * <br>
+ * The buckets are log-linear (the same idea as HdrHistogram):
+ * values less than 8 have their own buckets,
+ * others are split into 8 sub-buckets per power of 2,
+ * so the relative error of a percentile is less than 6.25%.
+ * <br>
+ * Recording does not allocate and does not lock:
+ * each thread (usually an event loop) records into its own shard,
+ * and the shards are merged when reading.
+ * There are at most as many shards as cores, threads share the shards when there are more threads.
+ * <br>
+ * A histogram may have a parent, e.g. a server and its group,
+ * the values are recorded into the parent as well.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 35; // 2^35 us, about 9.5 hours, larger values go into the last bucket
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+    private static final int SHARDS = shardCount(); // must be power of 2
+
+    // shard index of the current thread
+    private static final AtomicInteger nextShard = new AtomicInteger(0);
+    private static final ThreadLocal<Integer> threadShard = ThreadLocal.withInitial(() -> nextShard.getAndIncrement() & (SHARDS - 1));
+
+    public final String name;
+    private final LatencyHistogram parent; // may be null
+    // created when a thread records for the first time
+    private final AtomicReferenceArray<Shard> shards = new AtomicReferenceArray<>(SHARDS);
+
+    public LatencyHistogram(String name) {
+        this(name, null);
+    }
+
+    public LatencyHistogram(String name, LatencyHistogram parent) {
+        this.name = name;
+        this.parent = parent;
+    }
+
+    // the smallest power of 2 not less than the cores, at most 64
+    private static int shardCount() {
+        int cores = Math.min(64, Runtime.getRuntime().availableProcessors());
+        int n = 1;
+        while (n < cores) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static class Shard {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        // [0] count, [1] sum, [2] max
+        final AtomicLongArray stats = new AtomicLongArray(3);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        if (exp > MAX_EXP)
+            return BUCKETS - 1;
+        return (exp - SUB_BITS + 1) * SUB_COUNT + (int) ((value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    // the lowest value in the bucket
+    static long bucketLow(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        return ((long) (SUB_COUNT + index % SUB_COUNT)) << (exp - SUB_BITS);
+    }
+
+    // the highest value in the bucket
+    static long bucketHigh(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        return bucketLow(index) + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    @ThreadSafe
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        int idx = threadShard.get();
+        Shard shard = shards.get(idx);
+        if (shard == null) {
+            shards.compareAndSet(idx, null, new Shard());
+            shard = shards.get(idx);
+        }
+        shard.buckets.incrementAndGet(bucketIndex(micros));
+        shard.stats.incrementAndGet(0);
+        shard.stats.addAndGet(1, micros);
+        while (true) {
+            long max = shard.stats.get(2);
+            if (max >= micros || shard.stats.compareAndSet(2, max, micros))
+                break;
+        }
+        if (parent != null) {
+            parent.record(micros);
+        }
+    }
+
+    /**
+     * record the time elapsed since the beginning
+     *
+     * @param beginNanos the result of {@link System#nanoTime()} when the operation began
+     */
+    @ThreadSafe
+    public void recordSince(long beginNanos) {
+        record((System.nanoTime() - beginNanos) / 1000);
+    }
+
+    /**
+     * @return merged values of all shards
+     */
+    @ThreadSafe
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int i = 0; i < SHARDS; ++i) {
+            Shard shard = shards.get(i);
+            if (shard == null)
+                continue;
+            for (int b = 0; b < BUCKETS; ++b) {
+                buckets[b] += shard.buckets.get(b);
+            }
+            count += shard.stats.get(0);
+            sum += shard.stats.get(1);
+            max = Math.max(max, shard.stats.get(2));
+        }
+        return new Snapshot(name, buckets, count, sum, max);
+    }
+
+    public static class Snapshot {
+        public final String name;
+        private final long[] buckets;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        private Snapshot(String name, long[] buckets, long count, long sum, long max) {
+            this.name = name;
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return the estimated value in microseconds
+         */
+        public long percentile(double percentile) {
+            // the buckets and the count are read separately, so use the sum of buckets
+            long total = 0;
+            for (long n : buckets) {
+                total += n;
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    // use the middle of the bucket, and never exceed the max value
+                    long mid = (bucketLow(i) + bucketHigh(i)) / 2;
+                    return max == 0 ? mid : Math.min(mid, max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @param upperBound inclusive, in microseconds
+         * @return count of values which may be less than or equal to the bound,
+         * the bucket where the bound belongs is counted as a whole
+         */
+        public long countBelow(long upperBound) {
+            int last = bucketIndex(Math.max(0, upperBound));
+            long n = 0;
+            for (int i = 0; i <= last; ++i) {
+                n += buckets[i];
+            }
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            /*
+             * e.g.
+             * connect -> count 10 avg 320us p50 300us p90 420us p99 510us max 520us
+             */
+            return name + " ->"
+                + " count " + count
+                + " avg " + mean() + "us"
+                + " p50 " + percentile(50) + "us"
+                + " p90 " + percentile(90) + "us"
+                + " p99 " + percentile(99) + "us"
+                + " max " + max + "us";
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package vproxy.util;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log records are put into a bounded lock-free ring of preallocated records,
+ * and a dedicated thread formats and writes them in batches.
+ * <p>
+ * The logging threads never block: when the ring is full the record is dropped and counted.
+ */
+class LogWriter implements Runnable {
+    static final int LEVEL_RAW = 0; // only print the exception
+    static final int LEVEL_DEBUG = 1;
+    static final int LEVEL_INFO = 2;
+    static final int LEVEL_WARN = 3;
+    static final int LEVEL_ERROR = 4;
+
+    private static final String DEBUG_COLOR = "\033[0;36m";
+    private static final String INFO_COLOR = "\033[0;32m";
+    private static final String WARN_COLOR = "\033[0;33m";
+    private static final String ERROR_COLOR = "\033[0;31m";
+    private static final String RESET_COLOR = "\033[0m";
+
+    private static final int BATCH = 256;
+    private static final long PARK_NANOS = 100_000_000L; // 100ms
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.");
+
+    private static class LogRecord {
+        long timestamp;
+        int level;
+        LogType type;
+        String threadName;
+        StackTraceElement caller;
+        String msg;
+        Throwable ex;
+    }
+
+    private final int mask;
+    private final LogRecord[] records;
+    // the slot is writable when sequence == position
+    // and readable when sequence == position + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0; // only modified when holding the lock of this object
+
+    private final LongAdder dropped = new LongAdder();
+    private long reportedDropped = 0;
+
+    // rate limit of each log type, in a window of one second
+    private volatile int rateLimit;
+    private final AtomicLongArray windows = new AtomicLongArray(LogType.values().length);
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(LogType.values().length);
+    private final AtomicLongArray suppressed = new AtomicLongArray(LogType.values().length);
+    private final LongAdder totalSuppressed = new LongAdder();
+
+    private final Thread thread;
+    private volatile boolean waiting = false;
+
+    // the writing thread formats the timestamp once a second
+    private long cachedSecond = -1;
+    private String cachedTime;
+
+    LogWriter(int bufferSize, int rateLimit) {
+        int size = 1;
+        while (size < bufferSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.records = new LogRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            records[i] = new LogRecord();
+            sequences.set(i, i);
+        }
+        this.rateLimit = rateLimit;
+
+        thread = new Thread(this, "vproxy-logger");
+        thread.setDaemon(true);
+        thread.start();
+        // write the remaining logs before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "vproxy-logger-flush"));
+    }
+
+    void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    boolean allow(LogType type, long timestamp) {
+        int rateLimit = this.rateLimit;
+        if (rateLimit <= 0)
+            return true;
+        int idx = type.ordinal();
+        long second = timestamp / 1000;
+        long window = windows.get(idx);
+        if (window != second && windows.compareAndSet(idx, window, second)) {
+            counts.set(idx, 0);
+        }
+        if (counts.incrementAndGet(idx) <= rateLimit)
+            return true;
+        suppressed.incrementAndGet(idx);
+        totalSuppressed.increment();
+        return false;
+    }
+
+    boolean offer(long timestamp, int level, LogType type, String threadName, StackTraceElement caller, String msg, Throwable ex) {
+        while (true) {
+            long pos = tail.get();
+            int idx = (int) (pos & mask);
+            long seq = sequences.get(idx);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    LogRecord r = records[idx];
+                    r.timestamp = timestamp;
+                    r.level = level;
+                    r.type = type;
+                    r.threadName = threadName;
+                    r.caller = caller;
+                    r.msg = msg;
+                    r.ex = ex;
+                    sequences.set(idx, pos + 1); // publish
+                    break;
+                }
+            } else if (seq < pos) {
+                // not consumed yet, the ring is full
+                dropped.increment();
+                return false;
+            }
+            // otherwise the slot is taken by another thread, retry
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long suppressed() {
+        return totalSuppressed.sum();
+    }
+
+    private boolean hasRecord() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    @Override
+    public void run() {
+        StringBuilder sb = new StringBuilder(BATCH * 128);
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            int n;
+            try {
+                n = drain(sb);
+            } catch (Throwable t) {
+                // the logger cannot log for itself
+                t.printStackTrace();
+                continue;
+            }
+            if (n < BATCH) {
+                waiting = true;
+                if (!hasRecord()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    // write all records in the ring
+    void flush() {
+        StringBuilder sb = new StringBuilder();
+        //noinspection StatementWithEmptyBody
+        while (drain(sb) != 0) {
+        }
+    }
+
+    // write at most one batch of records
+    private synchronized int drain(StringBuilder sb) {
+        sb.setLength(0);
+        int n = 0;
+        while (n < BATCH && hasRecord()) {
+            int idx = (int) (head & mask);
+            LogRecord r = records[idx];
+            format(sb, r);
+            r.threadName = null;
+            r.caller = null;
+            r.msg = null;
+            r.ex = null;
+            sequences.set(idx, head + mask + 1); // writable in next round of the ring
+            ++head;
+            ++n;
+        }
+        report(sb);
+        if (sb.length() != 0) {
+            PrintStream out = System.out;
+            out.print(sb);
+            out.flush();
+        }
+        return n;
+    }
+
+    private void report(StringBuilder sb) {
+        long d = dropped.sum();
+        if (d != reportedDropped) {
+            appendHead(sb, WARN_COLOR, System.currentTimeMillis());
+            sb.append(LogType.UNEXPECTED).append(" - ").append(RESET_COLOR)
+                .append(d - reportedDropped).append(" log records dropped because the log buffer is full\n");
+            reportedDropped = d;
+        }
+        // the limit may be turned off after some records are suppressed, so always check
+        if (totalSuppressed.sum() == 0)
+            return;
+        long now = System.currentTimeMillis();
+        LogType[] types = LogType.values();
+        for (int i = 0; i < types.length; ++i) {
+            // report when the window is over
+            if (windows.get(i) == now / 1000)
+                continue;
+            long s = suppressed.getAndSet(i, 0);
+            if (s == 0)
+                continue;
+            appendHead(sb, WARN_COLOR, now);
+            sb.append(types[i]).append(" - ").append(RESET_COLOR)
+                .append(s).append(" log records suppressed because of the rate limit of each log type\n");
+        }
+    }
+
+    private void format(StringBuilder sb, LogRecord r) {
+        switch (r.level) {
+            case LEVEL_RAW:
+                break;
+            case LEVEL_DEBUG:
+                appendHead(sb, DEBUG_COLOR, r.timestamp);
+                appendCaller(sb, r);
+                sb.append(RESET_COLOR).append(r.msg).append("\n");
+                break;
+            case LEVEL_ERROR:
+                appendHead(sb, ERROR_COLOR, r.timestamp);
+                appendCaller(sb, r);
+                sb.append(RESET_COLOR).append(r.type).append(" - ").append(r.msg).append("\n");
+                break;
+            default:
+                appendHead(sb, r.level == LEVEL_WARN ? WARN_COLOR : INFO_COLOR, r.timestamp);
+                sb.append(r.type).append(" - ").append(RESET_COLOR).append(r.msg).append("\n");
+        }
+        if (r.ex != null) {
+            StringWriter sw = new StringWriter();
+            r.ex.printStackTrace(new PrintWriter(sw));
+            sb.append(sw);
+        }
+    }
+
+    private void appendHead(StringBuilder sb, String color, long timestamp) {
+        long second = timestamp / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = "[" + LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()).format(TIME_FORMAT);
+        }
+        int millis = (int) (timestamp % 1000);
+        sb.append(color).append(cachedTime);
+        if (millis < 100) {
+            sb.append(millis < 10 ? "00" : "0");
+        }
+        sb.append(millis).append("] ");
+    }
+
+    private static void appendCaller(StringBuilder sb, LogRecord r) {
+        sb.append(r.threadName).append(" - ");
+        StackTraceElement elem = r.caller;
+        if (elem != null) {
+            sb.append(elem.getClassName()).append("#").append(elem.getMethodName()).append("(").append(elem.getLineNumber()).append(") - ");
+        }
+    }
+}
@@ -1,16 +1,12 @@
 package vproxy.util;
 
-import java.util.Date;
+import vproxy.app.Config;
+import vproxy.selector.SelectorEventLoop;
 
 public class Logger {
     private static final boolean lowLevelDebugOn;
     private static final boolean lowLevelNetDebugOn;
-
-    private static final String DEBUG_COLOR = "\033[0;36m";
-    private static final String INFO_COLOR = "\033[0;32m";
-    private static final String WARN_COLOR = "\033[0;33m";
-    private static final String ERROR_COLOR = "\033[0;31m";
-    private static final String RESET_COLOR = "\033[0m";
+    private static final LogWriter writer;
 
     static {
         {
@@ -22,32 +18,25 @@ public class Logger {
             String debug = System.getProperty("javax.net.debug");
             lowLevelNetDebugOn = "all".equals(debug) || "vproxy".equals(debug);
         }
-    }
-
-    private Logger() {
-    }
 
-    private static String fillToTen(int n) {
-        return (n < 10 ? "0" : "") + n;
+        {
+            // count of log records that can be buffered
+            int bufferSize = Integer.getInteger("vproxy.LogBufferSize", 16384);
+            // max log records of each type in one second, 0 means no limit
+            int rateLimit = Integer.getInteger("vproxy.LogRateLimit", 0);
+            writer = new LogWriter(bufferSize, rateLimit);
+        }
     }
 
-    private static String fillToHundred(int n) {
-        return (n < 10 ? "00" : (n < 100 ? "0" : "")) + n;
+    private Logger() {
     }
 
-    @SuppressWarnings("deprecation")
-    private static String current() {
-        long cur = System.currentTimeMillis();
-        Date d = new Date(cur);
-        return "[" +
-            (d.getYear() + 1900) + "-" +
-            fillToTen(d.getMonth() + 1) + "-" +
-            fillToTen(d.getDate()) + " " +
-            fillToTen(d.getHours()) + ":" +
-            fillToTen(d.getMinutes()) + ":" +
-            fillToTen(d.getSeconds()) + "." +
-            fillToHundred((int) (cur % 1000)) +
-            "] ";
+    private static long current() {
+        // the event loop updates the timestamp in every round
+        // so use it directly on the event loop threads
+        if (SelectorEventLoop.current() != null)
+            return Config.currentTimestamp;
+        return System.currentTimeMillis();
     }
 
     // some message for debugging this project
@@ -56,55 +45,84 @@ public class Logger {
     public static boolean lowLevelDebug(String msg) {
         if (!lowLevelDebugOn)
             return true;
-        String threadName = Thread.currentThread().getName();
-        StackTraceElement elem = Thread.currentThread().getStackTrace()[2];
-        System.out.println(DEBUG_COLOR + current() + threadName + " - " + elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ") - " + RESET_COLOR + msg);
+        Thread t = Thread.currentThread();
+        writer.offer(current(), LogWriter.LEVEL_DEBUG, null, t.getName(), t.getStackTrace()[2], msg, null);
         return true;
     }
 
     public static boolean lowLevelNetDebug(String msg) {
         if (!lowLevelNetDebugOn || !lowLevelDebugOn)
             return true;
-        String threadName = Thread.currentThread().getName();
-        StackTraceElement elem = Thread.currentThread().getStackTrace()[2];
-        System.out.println(DEBUG_COLOR + current() + threadName + " - " + elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ") - " + RESET_COLOR + msg);
+        Thread t = Thread.currentThread();
+        writer.offer(current(), LogWriter.LEVEL_DEBUG, null, t.getName(), t.getStackTrace()[2], msg, null);
         return true;
     }
 
-    private static void privateErr(String err) {
-        String threadName = Thread.currentThread().getName();
-        StackTraceElement elem = Thread.currentThread().getStackTrace()[3];
-        System.out.println(ERROR_COLOR + current() + threadName + " - " + elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ") - " + RESET_COLOR + err);
+    // errors are never rate limited
+    private static void privateErr(LogType logType, String err, Throwable ex) {
+        long now = current();
+        Thread t = Thread.currentThread();
+        writer.offer(now, LogWriter.LEVEL_ERROR, logType, t.getName(), t.getStackTrace()[3], err, ex);
+    }
+
+    private static void log(int level, LogType logType, String msg) {
+        long now = current();
+        // alerts are never rate limited
+        if (logType != LogType.ALERT && !writer.allow(logType, now))
+            return;
+        writer.offer(now, level, logType, null, null, msg, null);
+    }
+
+    // log records dropped because the buffer is full
+    public static long droppedCount() {
+        return writer.dropped();
+    }
+
+    // log records dropped because of the rate limit
+    public static long suppressedCount() {
+        return writer.suppressed();
+    }
+
+    /**
+     * @param rateLimit max info and warn records of each type in one second, 0 means no limit,
+     *                  errors and alerts are not limited
+     */
+    public static void setRateLimit(int rateLimit) {
+        writer.setRateLimit(rateLimit);
+    }
+
+    // write all buffered logs
+    @Blocking
+    public static void flush() {
+        writer.flush();
     }
 
     // unexpected errors, or situation should happen
     public static void fatal(LogType logType, String err) {
-        privateErr(logType + " - " + err);
+        privateErr(logType, err, null);
     }
 
     public static void fatal(LogType logType, String err, Throwable ex) {
-        privateErr(logType + " - " + err);
-        ex.printStackTrace(System.out);
+        privateErr(logType, err, ex);
     }
 
     // expected errors, but not normal condition
     public static void error(LogType logType, String err) {
-        privateErr(logType + " - " + err);
+        privateErr(logType, err, null);
     }
 
     public static void error(LogType logType, String err, Throwable ex) {
-        privateErr(logType + " - " + err);
-        ex.printStackTrace(System.out);
+        privateErr(logType, err, ex);
     }
 
     // expected errors, maybe user misuse, and we can recover
     public static void warn(LogType logType, String err) {
-        System.out.println(WARN_COLOR + current() + logType + " - " + RESET_COLOR + err);
+        log(LogWriter.LEVEL_WARN, logType, err);
     }
 
     // expected condition
     public static void info(LogType logType, String msg) {
-        System.out.println(INFO_COLOR + current() + logType + " - " + RESET_COLOR + msg);
+        log(LogWriter.LEVEL_INFO, logType, msg);
     }
 
     public static void shouldNotHappen(String msg) {
@@ -120,7 +138,7 @@ public class Logger {
     }
 
     public static boolean printStackTrace(Throwable t) {
-        t.printStackTrace(System.out);
+        writer.offer(current(), LogWriter.LEVEL_RAW, null, null, null, null, t);
         return true;
     }
 }
@@ -20,4 +20,8 @@ public class SignalHook {
     public void sigHup(Runnable r) {
         registerSignal("HUP", r);
     }
+
+    public void sigUsr1(Runnable r) {
+        registerSignal("USR1", r);
+    }
 }
@@ -24,6 +24,20 @@ public class TimeQueue<T> {
         return queue.isEmpty();
     }
 
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return the timestamp when the nearest timer event should fire, Long.MAX_VALUE means no timer event
+     */
+    public long nextTriggerTime() {
+        TimeElem<T> elem = queue.peek();
+        if (elem == null)
+            return Long.MAX_VALUE;
+        return elem.triggerTime;
+    }
+
     /**
      * @return time left to the nearest timeout, Integer.MAX_VALUE means no timer event
      */
@@ -0,0 +1,84 @@
+package vproxy.poc;
+
+import vproxy.component.secure.SecurityGroup;
+import vproxy.component.secure.SecurityGroupRule;
+import vproxy.connection.Protocol;
+import vproxy.util.Utils;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+
+// compare the compiled rule matching with checking rules one by one
+public class SecurityGroupBenchmark {
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        for (int n : new int[]{10, 1_000, 50_000}) {
+            run(n);
+        }
+    }
+
+    private static void run(int n) throws Exception {
+        Random rand = new Random(n);
+        SecurityGroup secg = new SecurityGroup("bench", true);
+        for (int i = 0; i < n; ++i) {
+            // 10.x.x.0/24 networks with random port ranges
+            int x = 10 + i;
+            byte[] ip = {10, (byte) (x >> 8), (byte) x, 0};
+            int minPort = rand.nextInt(60000);
+            secg.addRule(new SecurityGroupRule("r" + i, ip, Utils.parseMask(24),
+                Protocol.TCP, minPort, minPort + rand.nextInt(5000), rand.nextBoolean()));
+        }
+        List<SecurityGroupRule> rules = secg.getRules();
+
+        InetAddress[] inputs = new InetAddress[1024];
+        int[] ports = new int[inputs.length];
+        for (int i = 0; i < inputs.length; ++i) {
+            int x = rand.nextInt(n + 20);
+            inputs[i] = InetAddress.getByAddress(new byte[]{10, (byte) (x >> 8), (byte) x, (byte) rand.nextInt(256)});
+            ports[i] = rand.nextInt(65536);
+        }
+
+        long compileBegin = System.nanoTime();
+        secg.allow(Protocol.TCP, inputs[0], ports[0]); // the matcher is compiled when first used
+        long compileCost = System.nanoTime() - compileBegin;
+
+        int lookups = n > 1_000 ? LOOKUPS / 100 : LOOKUPS; // the linear one is too slow
+        for (int round = 0; round < 3; ++round) { // warm up in first rounds
+            int allowed = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < lookups; ++i) {
+                int j = i & (inputs.length - 1);
+                if (linearAllow(rules, inputs[j], ports[j], secg.defaultAllow))
+                    ++allowed;
+            }
+            long linear = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < lookups; ++i) {
+                int j = i & (inputs.length - 1);
+                if (secg.allow(Protocol.TCP, inputs[j], ports[j]))
+                    --allowed;
+            }
+            long compiled = System.nanoTime() - begin;
+
+            if (allowed != 0)
+                throw new Exception("results mismatch");
+            if (round == 2) {
+                System.out.println("rules=" + n
+                    + " compile=" + (compileCost / 1000) + "us"
+                    + " linear=" + (linear / lookups) + "ns/op"
+                    + " compiled=" + (compiled / lookups) + "ns/op");
+            }
+        }
+    }
+
+    private static boolean linearAllow(List<SecurityGroupRule> rules, InetAddress address, int port, boolean defaultAllow) {
+        for (SecurityGroupRule rule : rules) {
+            if (rule.match(address, port))
+                return rule.allow;
+        }
+        return defaultAllow;
+    }
+}
@@ -10,8 +10,20 @@ import org.junit.runners.Suite;
 
     TestTcpLB.class,
     TestNetMask.class,
+    TestSecurityGroup.class,
+    TestConnectionLimiter.class,
+    TestLatencyHistogram.class,
+    TestLogger.class,
+    TestAccessLog.class,
+    TestConfigJournal.class,
+    TestCommandBatch.class,
+    TestConfigLoading.class,
+    TestMetricsController.class,
+    TestGracefulUpgrade.class,
     TestTimer.class,
+    TestEventLoopStats.class,
     TestResolver.class,
+    TestDNSClient.class,
     TestSocks5.class,
     TestDiscovery.class,
     TestKhala.class,
@@ -0,0 +1,93 @@
+package vproxy.test.cases;
+
+import vproxy.util.AccessLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestAccessLog {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        AccessLog.stop();
+        for (int i = 1; i < 3; ++i) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(file.getAbsolutePath() + "." + i).delete();
+        }
+    }
+
+    @Test
+    public void disabled() {
+        assertNull(AccessLog.get());
+        assertFalse(AccessLog.sample());
+        // nothing happens
+        AccessLog.request("http/1.x", "127.0.0.1", null, "GET", "/", 200, 1);
+    }
+
+    @Test
+    public void jsonLines() throws Exception {
+        AccessLog.start(file.getAbsolutePath(), 1, AccessLog.DEFAULT_MAX_FILE_SIZE, AccessLog.DEFAULT_MAX_FILES);
+        assertTrue(AccessLog.sample());
+        AccessLog.request("http/1.x", "10.0.0.1", new InetSocketAddress("192.168.0.2", 80),
+            "GET", "/a\"b\\c\u4e2d", 404, 1234);
+        AccessLog.request("h2", "10.0.0.1", null, "POST", "/", 0, 7);
+        AccessLog.session(new InetSocketAddress("0.0.0.0", 80), new InetSocketAddress("10.0.0.1", 34567),
+            new InetSocketAddress("::1", 8080), 100, 2000, 99999, "timeout");
+        AccessLog.stop();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(3, lines.size());
+        String l0 = lines.get(0);
+        assertTrue(l0, l0.matches("\\{\"ts\":\\d+,.*}"));
+        assertTrue(l0, l0.endsWith(",\"type\":\"request\",\"protocol\":\"http/1.x\",\"client\":\"10.0.0.1\"," +
+            "\"backend\":\"192.168.0.2:80\",\"method\":\"GET\",\"uri\":\"/a\\\"b\\\\c\\u4e2d\",\"status\":404,\"latency_us\":1234}"));
+        String l1 = lines.get(1);
+        assertTrue(l1, l1.endsWith("\"backend\":null,\"method\":\"POST\",\"uri\":\"/\",\"status\":null,\"latency_us\":7}"));
+        String l2 = lines.get(2);
+        assertTrue(l2, l2.endsWith(",\"type\":\"session\",\"listen\":\"0.0.0.0:80\",\"client\":\"10.0.0.1:34567\"," +
+            "\"backend\":\"[0000:0000:0000:0000:0000:0000:0000:0001]:8080\",\"from_client\":100,\"to_client\":2000," +
+            "\"duration_us\":99999,\"close\":\"timeout\"}"));
+    }
+
+    @Test
+    public void rotate() throws Exception {
+        AccessLog.start(file.getAbsolutePath(), 1, 100, 3);
+        for (int i = 0; i < 4; ++i) {
+            AccessLog.request("http/1.x", "10.0.0.1", null, "GET", "/" + i, 200, 1);
+            AccessLog.get().flush();
+        }
+        AccessLog.stop();
+
+        // each file gets one record, the oldest one is removed
+        assertTrue(Files.readAllLines(file.toPath()).get(0).contains("\"uri\":\"/3\""));
+        assertTrue(Files.readAllLines(new File(file.getAbsolutePath() + ".1").toPath()).get(0).contains("\"uri\":\"/2\""));
+        assertTrue(Files.readAllLines(new File(file.getAbsolutePath() + ".2").toPath()).get(0).contains("\"uri\":\"/1\""));
+        assertFalse(new File(file.getAbsolutePath() + ".3").exists());
+    }
+
+    @Test
+    public void sample() throws Exception {
+        AccessLog.start(file.getAbsolutePath(), 0.1, AccessLog.DEFAULT_MAX_FILE_SIZE, AccessLog.DEFAULT_MAX_FILES);
+        int n = 0;
+        for (int i = 0; i < 10000; ++i) {
+            if (AccessLog.sample()) {
+                ++n;
+            }
+        }
+        assertTrue("sampled " + n, n > 700 && n < 1300);
+    }
+}
@@ -0,0 +1,181 @@
+package vproxy.test.cases;
+
+import vproxy.app.Application;
+import vproxy.app.Main;
+import vproxy.app.cmd.CmdResult;
+import vproxy.app.cmd.Command;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.util.BlockCallback;
+import org.junit.*;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TestCommandBatch {
+    @BeforeClass
+    public static void classSetUp() {
+        if (Application.get() == null) {
+            Main.main(new String[]{"noStdIOController", "noLoadLast", "noSave"});
+        }
+    }
+
+    @Before
+    public void setUp() throws Throwable {
+        runOk("add event-loop-group elgb0");
+        runOk("add server-group sgb0 timeout 500 period 86400000 up 1 down 1 event-loop-group elgb0");
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        run("remove server-group sgb0");
+        run("remove server-group sgb1");
+        run("remove event-loop-group elgb0");
+    }
+
+    private static void run(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        try {
+            cb.block();
+        } catch (Throwable ignore) {
+            // the resources may not exist when cleaning up
+        }
+    }
+
+    private static void runOk(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        cb.block();
+    }
+
+    private static CmdResult handle(Command.Batch batch, String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        batch.handle(line, cb);
+        return cb.block();
+    }
+
+    private static void handleFail(Command.Batch batch, String line, String expectedErr) {
+        try {
+            handle(batch, line);
+            fail("`" + line + "` should fail");
+        } catch (Throwable t) {
+            assertEquals(expectedErr, t.getMessage());
+        }
+    }
+
+    private static List<String> servers(String sg) throws NotFoundException {
+        return Application.get().serverGroupHolder.get(sg).getServerHandles().stream()
+            .map(h -> h.alias).collect(Collectors.toList());
+    }
+
+    private static List<Command> parse(String... lines) throws Exception {
+        Command[] commands = new Command[lines.length];
+        for (int i = 0; i < lines.length; ++i) {
+            commands[i] = Command.parseStrCmd(lines[i]);
+        }
+        return Arrays.asList(commands);
+    }
+
+    @Test
+    public void beginCommitAbort() throws Throwable {
+        Command.Batch batch = new Command.Batch();
+        handleFail(batch, "commit", "not in batch");
+        handleFail(batch, "abort", "not in batch");
+        assertFalse("run directly when not in batch", batch.queue(Command.parseStrCmd("add server svr0 to server-group sgb0 address 127.0.0.1:20300 weight 10")));
+
+        // abort
+        handle(batch, "begin");
+        handleFail(batch, "begin", "already in batch");
+        assertTrue(batch.queue(Command.parseStrCmd("add server svr0 to server-group sgb0 address 127.0.0.1:20300 weight 10")));
+        assertFalse("list commands are not queued", batch.queue(Command.parseStrCmd("list server in server-group sgb0")));
+        handle(batch, "abort");
+        assertTrue(servers("sgb0").isEmpty());
+        handleFail(batch, "abort", "not in batch");
+
+        // commit
+        handle(batch, "begin");
+        assertTrue(batch.queue(Command.parseStrCmd("add server svr0 to server-group sgb0 address 127.0.0.1:20300 weight 10")));
+        assertTrue(batch.queue(Command.parseStrCmd("add server svr1 to server-group sgb0 address 127.0.0.1:20301 weight 10")));
+        assertTrue(batch.queue(Command.parseStrCmd("update server-group sgb0 method wlc")));
+        assertTrue("nothing is run before committed", servers("sgb0").isEmpty());
+        CmdResult res = handle(batch, "commit");
+        assertEquals(3, res.processedResult);
+        assertEquals(Arrays.asList("svr0", "svr1"), servers("sgb0"));
+        handleFail(batch, "commit", "not in batch");
+        assertFalse(batch.queue(Command.parseStrCmd("add server svr2 to server-group sgb0 address 127.0.0.1:20302 weight 10")));
+
+        handleFail(batch, "rollback", "unknown batch command rollback");
+    }
+
+    @Test
+    public void failInBatch() throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.runBatch(parse(
+            "add server svr0 to server-group sgb0 address 127.0.0.1:20300 weight 10",
+            "add server svr0 to server-group sgb0 address 127.0.0.1:20301 weight 10", // already exists
+            "add server svr1 to server-group sgb0 address 127.0.0.1:20302 weight 10"
+        ), cb);
+        try {
+            cb.block();
+            fail();
+        } catch (Throwable t) {
+            // the order of the params in the message is not defined
+            assertTrue(t.getMessage(), t.getMessage().startsWith("command `add server svr0 to server-group sgb0 "));
+            assertTrue(t.getMessage(), t.getMessage().contains(" address 127.0.0.1:20301"));
+            assertTrue(t.getMessage(), t.getMessage().contains("` failed: "));
+        }
+
+        // the commands after the failed one are not run, and the changes made before are kept
+        assertEquals(List.of("svr0"), servers("sgb0"));
+        // the group is committed
+        ServerGroup sg = Application.get().serverGroupHolder.get("sgb0");
+        try {
+            sg.commitBatch();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("not in batch", e.getMessage());
+        }
+        sg.getServerHandles().get(0).healthy = true;
+        assertEquals("published to the load balancers", new InetSocketAddress("127.0.0.1", 20300), sg.next(null).remote);
+    }
+
+    @Test
+    public void splitIntoBatches() throws Throwable {
+        runOk("add server-group sgb1 timeout 500 period 86400000 up 1 down 1 event-loop-group elgb0");
+        List<Command> commands = parse(
+            "add server svr0 to server-group sgb0 address 127.0.0.1:20300 weight 10",
+            "add server svr1 to server-group sgb1 address 127.0.0.1:20301 weight 10",
+            "add server svr2 to server-group sgb0 address 127.0.0.1:20302 weight 10"
+        );
+        List<List<Command>> batches = Command.splitIntoBatches(commands);
+        assertEquals("only consecutive commands are grouped", 3, batches.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(List.of(commands.get(i)), batches.get(i));
+        }
+
+        commands = parse(
+            "add server-groups sgsb0",
+            "add server svr0 to server-group sgb0 address 127.0.0.1:20300 weight 10",
+            "add server svr1 to server-group sgb0 address 127.0.0.1:20301 weight 10",
+            "update server-group sgb0 method wlc",
+            "update server svr0 in server-group sgb0 weight 5",
+            "add server svr2 to server-group sgb1 address 127.0.0.1:20302 weight 10",
+            "add server svr3 to server-group sgb1 address 127.0.0.1:20303 weight 10",
+            "add server-group sgb1 to server-groups sgsb0 weight 10",
+            "add server-group sgb0 to server-groups sgsb0 weight 10"
+        );
+        batches = Command.splitIntoBatches(commands);
+        assertEquals(List.of(
+            commands.subList(0, 1),
+            commands.subList(1, 5),
+            commands.subList(5, 7),
+            commands.subList(7, 8),
+            commands.subList(8, 9)
+        ), batches);
+    }
+}
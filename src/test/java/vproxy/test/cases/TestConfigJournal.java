@@ -0,0 +1,180 @@
+package vproxy.test.cases;
+
+import vproxy.app.Application;
+import vproxy.app.Main;
+import vproxy.app.cmd.CmdResult;
+import vproxy.app.cmd.Command;
+import vproxy.component.app.ConfigJournal;
+import vproxy.component.app.Shutdown;
+import vproxy.util.BlockCallback;
+import org.junit.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestConfigJournal {
+    private File file;
+
+    @BeforeClass
+    public static void classSetUp() {
+        if (Application.get() == null) {
+            Main.main(new String[]{"noStdIOController", "noLoadLast", "noSave"});
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("vproxy", ".conf");
+        file.deleteOnExit();
+        new File(ConfigJournal.journalPath(file.getAbsolutePath())).deleteOnExit();
+        new File(file.getAbsolutePath() + ".bak").deleteOnExit();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        ConfigJournal.stop();
+        run("remove server-group sgj0");
+        run("remove event-loop-group elgj0");
+    }
+
+    private static void run(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        try {
+            cb.block();
+        } catch (Throwable ignore) {
+            // the resources may not exist when cleaning up
+        }
+    }
+
+    private static void runOk(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        cb.block();
+    }
+
+    private List<String> journal() throws Exception {
+        return Files.readAllLines(new File(ConfigJournal.journalPath(file.getAbsolutePath())).toPath());
+    }
+
+    @Test
+    public void recordChanges() throws Throwable {
+        ConfigJournal.start(file.getAbsolutePath(), false, ConfigJournal.DEFAULT_COMPACT_THRESHOLD);
+        runOk("add event-loop-group elgj0");
+        runOk("add server-group sgj0 timeout 500 period 800 up 1 down 1 event-loop-group elgj0");
+        runOk("list server-group");
+        runOk("update server-group sgj0 method wlc");
+        ConfigJournal.stop();
+
+        // list commands are not recorded
+        List<String> lines = journal();
+        assertEquals(3, lines.size());
+        assertEquals("add event-loop-group elgj0", lines.get(0));
+        assertTrue(lines.get(1), lines.get(1).startsWith("add server-group sgj0 "));
+        assertEquals("update server-group sgj0 method wlc", lines.get(2));
+        assertEquals(lines, ConfigJournal.readJournal(file.getAbsolutePath()));
+    }
+
+    @Test
+    public void compact() throws Throwable {
+        ConfigJournal.start(file.getAbsolutePath(), false, 2);
+        runOk("add event-loop-group elgj0");
+        runOk("add server-group sgj0 timeout 500 period 800 up 1 down 1 event-loop-group elgj0");
+        runOk("update server-group sgj0 method wlc"); // compacted after this command
+        Thread.sleep(500);
+        ConfigJournal.stop();
+
+        assertTrue(journal().isEmpty());
+        String snapshot = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertEquals(Shutdown.currentConfig(), snapshot);
+        assertTrue(snapshot, snapshot.contains("add event-loop-group elgj0\n"));
+        assertTrue(snapshot, snapshot.contains("add server-group sgj0 "));
+        assertTrue(snapshot, snapshot.contains(" method wlc"));
+    }
+
+    @Test
+    public void ignoreIncompleteCommand() throws Exception {
+        Files.write(new File(ConfigJournal.journalPath(file.getAbsolutePath())).toPath(),
+            "add event-loop-group elgj0\nadd server-gro".getBytes(StandardCharsets.UTF_8));
+        assertEquals(List.of("add event-loop-group elgj0"), ConfigJournal.readJournal(file.getAbsolutePath()));
+    }
+
+    @Test
+    public void backupJournalNotReplayed() throws Throwable {
+        File journal = new File(ConfigJournal.journalPath(file.getAbsolutePath()));
+        File bak = new File(journal.getAbsolutePath() + ".bak");
+        bak.deleteOnExit();
+        Files.write(journal.toPath(), "add event-loop-group elgj1\n".getBytes(StandardCharsets.UTF_8));
+
+        ConfigJournal.start(file.getAbsolutePath(), false, ConfigJournal.DEFAULT_COMPACT_THRESHOLD);
+        runOk("add event-loop-group elgj0");
+        ConfigJournal.stop();
+
+        assertEquals(List.of("add event-loop-group elgj0"), journal());
+        assertEquals(List.of("add event-loop-group elgj1"), Files.readAllLines(bak.toPath()));
+    }
+
+    @Test
+    public void compactWhenNotReplayed() throws Throwable {
+        // the last config is not loaded
+        Files.write(file.toPath(), "add event-loop-group elgj1\n".getBytes(StandardCharsets.UTF_8));
+        ConfigJournal.start(file.getAbsolutePath(), false, ConfigJournal.DEFAULT_COMPACT_THRESHOLD);
+        runOk("list server-group"); // wait for the compaction to be scheduled
+        ConfigJournal.stop();
+
+        String snapshot = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertEquals(Shutdown.currentConfig(), snapshot);
+        assertFalse(snapshot, snapshot.contains("elgj1"));
+    }
+
+    @Test
+    public void loadAnotherFileThenCrash() throws Throwable {
+        String home = System.getProperty("user.home");
+        File dir = Files.createTempDirectory("vproxy").toFile();
+        System.setProperty("user.home", dir.getAbsolutePath());
+        try {
+            File snapshot = new File(Shutdown.defaultFilePath());
+            File journal = new File(ConfigJournal.journalPath(snapshot.getAbsolutePath()));
+            File bak = new File(snapshot.getAbsolutePath() + ".bak");
+            for (File f : new File[]{snapshot, journal, bak, new File(journal.getAbsolutePath() + ".bak")}) {
+                f.deleteOnExit();
+            }
+            dir.deleteOnExit();
+            // the config of the last run, which is not loaded this time
+            Files.write(snapshot.toPath(), "add event-loop-group elgj1\n".getBytes(StandardCharsets.UTF_8));
+
+            // start with `load ${file}` instead of the last config
+            Files.write(file.toPath(), "add event-loop-group elgj0\n".getBytes(StandardCharsets.UTF_8));
+            ConfigJournal.start(snapshot.getAbsolutePath(), false, ConfigJournal.DEFAULT_COMPACT_THRESHOLD);
+            BlockCallback<String, Throwable> cb = new BlockCallback<>();
+            Shutdown.load(file.getAbsolutePath(), cb);
+            cb.block();
+            runOk("add server-group sgj0 timeout 500 period 800 up 1 down 1 event-loop-group elgj0");
+            // crash
+            ConfigJournal.stop();
+
+            String snapshotContent = new String(Files.readAllBytes(snapshot.toPath()), StandardCharsets.UTF_8);
+            assertTrue(snapshotContent, snapshotContent.contains("add event-loop-group elgj0\n"));
+            assertFalse(snapshotContent, snapshotContent.contains("elgj1"));
+            List<String> journalLines = ConfigJournal.readJournal(snapshot.getAbsolutePath());
+            assertEquals(1, journalLines.size());
+            assertTrue(journalLines.get(0), journalLines.get(0).startsWith("add server-group sgj0 "));
+
+            // restart and load the last config
+            run("remove server-group sgj0");
+            run("remove event-loop-group elgj0");
+            cb = new BlockCallback<>();
+            Shutdown.load(null, cb);
+            cb.block();
+            assertTrue(Application.get().eventLoopGroupHolder.names().contains("elgj0"));
+            assertFalse(Application.get().eventLoopGroupHolder.names().contains("elgj1"));
+            assertTrue(Application.get().serverGroupHolder.names().contains("sgj0"));
+        } finally {
+            System.setProperty("user.home", home);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package vproxy.test.cases;
+
+import vproxy.app.Application;
+import vproxy.app.Main;
+import vproxy.app.cmd.CmdResult;
+import vproxy.app.cmd.Command;
+import vproxy.component.app.Shutdown;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.ServerGroups;
+import vproxy.util.BlockCallback;
+import org.junit.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TestConfigLoading {
+    private static final int groups = 4;
+    private static final int servers = 50; // per group
+
+    private File file;
+
+    @BeforeClass
+    public static void classSetUp() {
+        if (Application.get() == null) {
+            Main.main(new String[]{"noStdIOController", "noLoadLast", "noSave"});
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("vproxy", ".conf");
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        run("remove tcp-lb lbl0");
+        run("remove server-groups sgsl0");
+        for (int g = 0; g < groups; ++g) {
+            run("remove server-group sgl" + g);
+        }
+        run("remove event-loop-group elgl0");
+    }
+
+    private static void run(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        try {
+            cb.block();
+        } catch (Throwable ignore) {
+            // the resources may not exist when cleaning up
+        }
+    }
+
+    // the config is generated in the same order as the saved file
+    private static List<String> generate() {
+        List<String> lines = new ArrayList<>();
+        lines.add("add event-loop-group elgl0");
+        lines.add("add event-loop ell0 to event-loop-group elgl0");
+        lines.add("add server-groups sgsl0");
+        for (int g = 0; g < groups; ++g) {
+            lines.add("add server-group sgl" + g + " timeout 500 period 86400000 up 1 down 1 event-loop-group elgl0");
+        }
+        for (int g = 0; g < groups; ++g) {
+            lines.add("add server-group sgl" + g + " to server-groups sgsl0 weight 10");
+        }
+        for (int g = 0; g < groups; ++g) {
+            for (int i = 0; i < servers; ++i) {
+                lines.add("add server svrl" + g + "_" + i + " to server-group sgl" + g + " address 127.0.0.1:" + (21000 + i) + " weight 10");
+            }
+        }
+        return lines;
+    }
+
+    private String load(List<String> lines) throws Throwable {
+        Files.write(file.toPath(), lines);
+        BlockCallback<String, Throwable> cb = new BlockCallback<>();
+        Shutdown.load(file.getAbsolutePath(), cb);
+        return cb.block();
+    }
+
+    private static List<String> serverNames(ServerGroup sg) {
+        return sg.getServerHandles().stream().map(h -> h.alias).collect(Collectors.toList());
+    }
+
+    @Test
+    public void loadInParallel() throws Throwable {
+        List<String> lines = generate();
+        // these commands depend on the servers added before them
+        lines.add("update server svrl0_0 in server-group sgl0 weight 5");
+        lines.add("remove server svrl1_0 from server-group sgl1");
+        lines.add("add server svrl1_0 to server-group sgl1 address 127.0.0.1:21999 weight 7");
+        lines.add("update server-group sgl2 method wlc");
+        lines.add("remove server-group sgl3 from server-groups sgsl0");
+        lines.add("add tcp-lb lbl0 acceptor-elg elgl0 event-loop-group elgl0 address 127.0.0.1:19201 server-groups sgsl0");
+
+        String report = load(lines);
+
+        Application app = Application.get();
+        for (int g = 0; g < groups; ++g) {
+            ServerGroup sg = app.serverGroupHolder.get("sgl" + g);
+            List<String> names = serverNames(sg);
+            assertEquals(servers, names.size());
+            if (g != 1) {
+                for (int i = 0; i < servers; ++i) {
+                    // the servers of one group are added in order
+                    assertEquals("svrl" + g + "_" + i, names.get(i));
+                }
+            }
+        }
+        ServerGroup sg0 = app.serverGroupHolder.get("sgl0");
+        assertEquals(5, sg0.getServerHandles().get(0).getWeight());
+        ServerGroup sg1 = app.serverGroupHolder.get("sgl1");
+        ServerGroup.ServerHandle re = sg1.getServerHandles().get(servers - 1);
+        assertEquals("removed and added again", "svrl1_0", re.alias);
+        assertEquals(21999, re.server.getPort());
+        assertEquals(7, re.getWeight());
+        assertEquals("wlc", app.serverGroupHolder.get("sgl2").getMethod().name());
+        ServerGroups sgs = app.serverGroupsHolder.get("sgsl0");
+        assertEquals(List.of("sgl0", "sgl1", "sgl2"),
+            sgs.getServerGroups().stream().map(h -> h.group.alias).collect(Collectors.toList()));
+        assertEquals(sgs, app.tcpLBHolder.get("lbl0").backends);
+
+        // the phases are reported in the order of the stages
+        assertTrue(report, report.startsWith(lines.size() + " commands loaded in "));
+        List<String> phases = new ArrayList<>();
+        for (String p : report.substring(report.indexOf(':') + 1).split(",")) {
+            String[] kv = p.trim().split(" ");
+            assertEquals(report, 2, kv.length);
+            assertTrue(report, kv[1].matches("\\d+ms"));
+            phases.add(kv[0]);
+        }
+        assertEquals(List.of("parse", "event-loop-group", "event-loop", "server-groups", "server-group", "server", "tcp-lb"), phases);
+    }
+
+    @Test
+    public void addServerBatchesInParallel() throws Throwable {
+        List<String> lines = generate();
+        List<String> serverLines = lines.subList(lines.size() - groups * servers, lines.size());
+        List<Command> commands = new ArrayList<>();
+        for (String line : serverLines) {
+            commands.add(Command.parseStrCmd(line));
+        }
+        load(lines.subList(0, lines.size() - groups * servers));
+
+        List<List<Command>> batches = Command.splitIntoBatches(commands);
+        assertEquals(groups, batches.size());
+        for (List<Command> batch : batches) {
+            assertTrue(Command.isAddServerBatch(batch));
+        }
+        assertFalse(Command.isAddServerBatch(List.of(commands.get(0), commands.get(servers))));
+        assertFalse(Command.isAddServerBatch(List.of(commands.get(0), Command.parseStrCmd("update server-group sgl0 method wlc"))));
+
+        AtomicInteger tasks = new AtomicInteger(0);
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.runAddServerBatchesInParallel(batches, r -> {
+            tasks.incrementAndGet();
+            new Thread(r).start();
+        }, 0, cb);
+        assertEquals(groups * servers, cb.block().processedResult);
+        assertEquals("one task for each group", groups, tasks.get());
+        for (int g = 0; g < groups; ++g) {
+            assertEquals(servers, Application.get().serverGroupHolder.get("sgl" + g).getServerHandles().size());
+        }
+    }
+
+    @Test
+    public void failInParallelBatch() throws Throwable {
+        List<String> lines = generate();
+        lines.add(lines.size() - servers * 2, "add server svrl1_0 to server-group sgl1 address 127.0.0.1:21999 weight 10"); // duplicated
+        lines.add("add tcp-lb lbl0 acceptor-elg elgl0 event-loop-group elgl0 address 127.0.0.1:19201 server-groups sgsl0");
+        try {
+            load(lines);
+            fail();
+        } catch (Throwable t) {
+            // the order of the params in the message is not defined
+            assertTrue(t.getMessage(), t.getMessage().startsWith("command `add server svrl1_0 to server-group sgl1 "));
+            assertTrue(t.getMessage(), t.getMessage().contains(" address 127.0.0.1:21999"));
+            assertTrue(t.getMessage(), t.getMessage().endsWith("` failed: the resource already exists"));
+        }
+        // the commands after the failed stage are not run
+        assertFalse(Application.get().tcpLBHolder.names().contains("lbl0"));
+        // the failed group is committed
+        ServerGroup sg1 = Application.get().serverGroupHolder.get("sgl1");
+        try {
+            sg1.commitBatch();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("not in batch", e.getMessage());
+        }
+    }
+}
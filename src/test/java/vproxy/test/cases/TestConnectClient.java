@@ -1,10 +1,16 @@
 package vproxy.test.cases;
 
+import vproxy.app.Config;
 import vproxy.component.check.CheckProtocol;
 import vproxy.component.check.ConnectClient;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.check.HealthCheckHandler;
+import vproxy.component.check.HealthCheckScheduler;
+import vproxy.component.check.TCPHealthCheckClient;
 import vproxy.connection.NetEventLoop;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.test.tool.DirectCloseServer;
+import vproxy.test.tool.HealthCheckServer;
 import vproxy.test.tool.IdServer;
 import vproxy.test.tool.SendOnConnectIdServer;
 import vproxy.util.BlockCallback;
@@ -12,7 +18,9 @@ import org.junit.*;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -20,8 +28,12 @@ public class TestConnectClient {
     private static final int normalServerPort = 19080;
     private static final int directWritePort = 19081;
     private static final int directClosePort = 19082;
+    private static final int httpPort = 19083;
+    private static final int respPort = 19084;
 
     private static SelectorEventLoop serverLoop;
+    private static HealthCheckServer httpServer;
+    private static HealthCheckServer respServer;
 
     @BeforeClass
     public static void classSetUp() throws Exception {
@@ -31,6 +43,8 @@ public class TestConnectClient {
         new IdServer("0", serverNetLoop, normalServerPort);
         new SendOnConnectIdServer("abcdefghijklmn"/*make it long to fill the buffer*/, serverNetLoop, directWritePort);
         new DirectCloseServer(serverNetLoop, directClosePort);
+        httpServer = new HealthCheckServer(httpPort, true);
+        respServer = new HealthCheckServer(respPort, false);
     }
 
     @AfterClass
@@ -38,6 +52,8 @@ public class TestConnectClient {
         Thread t = serverLoop.runningThread;
         serverLoop.close();
         t.join();
+        httpServer.close();
+        respServer.close();
     }
 
     private NetEventLoop netEventLoop;
@@ -68,6 +84,12 @@ public class TestConnectClient {
         cb.block();
     }
 
+    private void doCheck(ConnectClient client) throws Exception {
+        BlockCallback<Void, IOException> cb = new BlockCallback<>();
+        client.handle(cb);
+        cb.block();
+    }
+
     @Test
     public void connectionSuccessToNormalServer() throws Exception {
         doConnect(CheckProtocol.tcp, normalServerPort);
@@ -147,4 +169,212 @@ public class TestConnectClient {
             assertTrue(e instanceof InterruptedByTimeoutException);
         }
     }
+
+    @Test
+    public void httpCheck() throws Exception {
+        httpServer.setHttpResponse("200 OK", "ok");
+        int accepted = httpServer.accepted.get();
+        ConnectClient client = new ConnectClient(netEventLoop, new InetSocketAddress("127.0.0.1", httpPort),
+            new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.http, false, "/health", "2xx", "ok"));
+        doCheck(client);
+        doCheck(client);
+        // a new connection for each check
+        assertEquals(accepted + 2, httpServer.accepted.get());
+    }
+
+    @Test
+    public void httpCheckFailWithStatusOrBody() throws Exception {
+        ConnectClient client = new ConnectClient(netEventLoop, new InetSocketAddress("127.0.0.1", httpPort),
+            new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.http, false, "/", "200", "ok"));
+        httpServer.setHttpResponse("503 Service Unavailable", "ok");
+        try {
+            doCheck(client);
+            fail();
+        } catch (IOException e) {
+            assertEquals("unexpected http status 503", e.getMessage());
+        }
+        httpServer.setHttpResponse("200 OK", "not ready");
+        try {
+            doCheck(client);
+            fail();
+        } catch (IOException e) {
+            assertEquals("http response body does not contain ok", e.getMessage());
+        } finally {
+            httpServer.setHttpResponse("200 OK", "ok");
+        }
+    }
+
+    @Test
+    public void httpCheckPersistent() throws Exception {
+        httpServer.setHttpResponse("200 OK", "ok");
+        int accepted = httpServer.accepted.get();
+        ConnectClient client = new ConnectClient(netEventLoop, new InetSocketAddress("127.0.0.1", httpPort),
+            new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.http, true, "/", "2xx", null));
+        for (int i = 0; i < 5; ++i) {
+            doCheck(client);
+        }
+        // the connection is reused
+        assertEquals(accepted + 1, httpServer.accepted.get());
+        client.stop();
+    }
+
+    @Test
+    public void respCheckPersistent() throws Exception {
+        int accepted = respServer.accepted.get();
+        ConnectClient client = new ConnectClient(netEventLoop, new InetSocketAddress("127.0.0.1", respPort),
+            new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.resp, true,
+                HealthCheckConfig.DEFAULT_HTTP_URI, HealthCheckConfig.DEFAULT_HTTP_STATUS, null));
+        for (int i = 0; i < 5; ++i) {
+            doCheck(client);
+        }
+        assertEquals(accepted + 1, respServer.accepted.get());
+        client.stop();
+    }
+
+    @Test
+    public void respCheckFailOnNonRespServer() throws Exception {
+        ConnectClient client = new ConnectClient(netEventLoop, new InetSocketAddress("127.0.0.1", directWritePort),
+            new HealthCheckConfig(100, 1000, 1, 1, CheckProtocol.resp));
+        try {
+            doCheck(client);
+            fail();
+        } catch (IOException e) {
+            // the data is not a PONG, the check fails with timeout
+            assertTrue(e instanceof InterruptedByTimeoutException);
+        }
+    }
+
+    private static class CountHandler implements HealthCheckHandler {
+        final AtomicInteger upOnce = new AtomicInteger(0);
+        volatile long firstUpNanos = 0;
+
+        @Override
+        public void up(SocketAddress remote) {
+        }
+
+        @Override
+        public void down(SocketAddress remote) {
+        }
+
+        @Override
+        public void upOnce(SocketAddress remote) {
+            if (upOnce.incrementAndGet() == 1) {
+                firstUpNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void downOnce(SocketAddress remote) {
+        }
+    }
+
+    @Test
+    public void mergeChecksOfSameTarget() throws Exception {
+        NetEventLoop loop2 = new NetEventLoop(SelectorEventLoop.open());
+        loop2.getSelectorEventLoop().loop(r -> new Thread(r, "netEventLoop2"));
+
+        HealthCheckConfig config = new HealthCheckConfig(500, 200, 1, 1, CheckProtocol.http);
+        InetSocketAddress remote = new InetSocketAddress("127.0.0.1", httpPort);
+        CountHandler h1 = new CountHandler();
+        CountHandler h2 = new CountHandler();
+        CountHandler h3 = new CountHandler();
+        // the same target on different loops
+        TCPHealthCheckClient c1 = new TCPHealthCheckClient(netEventLoop, remote, config, false, h1);
+        TCPHealthCheckClient c2 = new TCPHealthCheckClient(loop2, remote, new HealthCheckConfig(500, 200, 3, 3, CheckProtocol.http), false, h2);
+        TCPHealthCheckClient c3 = new TCPHealthCheckClient(netEventLoop, remote, config, false, h3);
+
+        int accepted = httpServer.accepted.get();
+        c1.start();
+        c2.start();
+        c3.start();
+        assertEquals(1, HealthCheckScheduler.targetCount());
+        Thread.sleep(1100);
+        c1.stop();
+        c2.stop();
+        c3.stop();
+        assertEquals(0, HealthCheckScheduler.targetCount());
+
+        int checks = httpServer.accepted.get() - accepted;
+        assertTrue("checks = " + checks, checks >= 3 && checks <= 8);
+        // all clients get results, but the target is only checked once per period
+        assertTrue(h1.upOnce.get() > 0 && h2.upOnce.get() > 0 && h3.upOnce.get() > 0);
+        assertTrue(h1.upOnce.get() <= checks);
+        assertTrue(h2.upOnce.get() <= checks);
+        assertTrue(h3.upOnce.get() <= checks);
+
+        loop2.getSelectorEventLoop().close();
+    }
+
+    @Test
+    public void maxInFlight() throws Exception {
+        int max = Config.healthCheckMaxInFlight;
+        Config.healthCheckMaxInFlight = 1;
+        try {
+            long deferred = HealthCheckScheduler.deferred();
+            InetSocketAddress remote = new InetSocketAddress("127.0.0.1", httpPort);
+            TCPHealthCheckClient[] clients = new TCPHealthCheckClient[5];
+            CountHandler[] handlers = new CountHandler[clients.length];
+            for (int i = 0; i < clients.length; ++i) {
+                handlers[i] = new CountHandler();
+                // different uri makes different targets
+                clients[i] = new TCPHealthCheckClient(netEventLoop, remote,
+                    new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.http, false, "/" + i, "2xx", null), false, handlers[i]);
+                clients[i].start();
+            }
+            int maxSeen = 0;
+            for (int i = 0; i < 50; ++i) {
+                maxSeen = Math.max(maxSeen, HealthCheckScheduler.inFlight());
+                Thread.sleep(10);
+            }
+            for (TCPHealthCheckClient c : clients) {
+                c.stop();
+            }
+            assertTrue(maxSeen <= 1);
+            assertTrue(HealthCheckScheduler.deferred() > deferred);
+            // all targets are checked
+            for (CountHandler h : handlers) {
+                assertTrue(h.upOnce.get() > 0);
+            }
+        } finally {
+            Config.healthCheckMaxInFlight = max;
+        }
+    }
+
+    @Test
+    public void spreadFirstChecks() throws Exception {
+        InetSocketAddress remote = new InetSocketAddress("127.0.0.1", httpPort);
+        TCPHealthCheckClient[] clients = new TCPHealthCheckClient[10];
+        CountHandler[] handlers = new CountHandler[clients.length];
+        long begin = System.nanoTime();
+        for (int i = 0; i < clients.length; ++i) {
+            handlers[i] = new CountHandler();
+            clients[i] = new TCPHealthCheckClient(netEventLoop, remote,
+                new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.http, false, "/spread" + i, "2xx", null), false, handlers[i]);
+            clients[i].start(800);
+        }
+        // the spread only applies to the clients started with it
+        CountHandler other = new CountHandler();
+        TCPHealthCheckClient otherClient = new TCPHealthCheckClient(netEventLoop, remote,
+            new HealthCheckConfig(500, 1000, 1, 1, CheckProtocol.http, false, "/no-spread", "2xx", null), false, other);
+        otherClient.start();
+        Thread.sleep(1300);
+        for (TCPHealthCheckClient c : clients) {
+            c.stop();
+        }
+        otherClient.stop();
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        for (CountHandler h : handlers) {
+            assertTrue(h.upOnce.get() > 0);
+            long millis = (h.firstUpNanos - begin) / 1_000_000;
+            assertTrue("the first check runs in the window: " + millis + "ms", millis < 800 + 300);
+            first = Math.min(first, millis);
+            last = Math.max(last, millis);
+        }
+        // the first checks are spread in the window instead of running at the same time,
+        // 10 random points in 800ms are hardly closer than 200ms
+        assertTrue("first checks run from " + first + "ms to " + last + "ms", last - first > 200);
+        long millis = (other.firstUpNanos - begin) / 1_000_000;
+        assertTrue("the first check runs immediately: " + millis + "ms", other.upOnce.get() > 0 && millis < 200);
+    }
 }
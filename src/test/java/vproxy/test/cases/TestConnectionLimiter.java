@@ -0,0 +1,158 @@
+package vproxy.test.cases;
+
+import vproxy.component.secure.ConnectionLimiter;
+import vproxy.connection.*;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.RingBuffer;
+import vproxy.util.Tuple;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestConnectionLimiter {
+    @Test
+    public void maxConnections() throws Exception {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setMaxConnections(3);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(limiter.tryAcquire(a));
+        }
+        assertFalse(limiter.tryAcquire(a));
+        assertTrue("other sources are not affected", limiter.tryAcquire(b));
+        assertEquals(3, limiter.connections(a));
+        assertEquals(1, limiter.connections(b));
+
+        limiter.release(a);
+        assertTrue(limiter.tryAcquire(a));
+        assertFalse(limiter.tryAcquire(a));
+        assertEquals(2, limiter.getMaxConnRefusedCount());
+
+        limiter.setMaxConnections(0);
+        assertTrue("no limit", limiter.tryAcquire(a));
+        assertEquals(4, limiter.connections(a));
+    }
+
+    @Test
+    public void rate() throws Exception {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setRate(10, 5);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(limiter.tryAcquire(a));
+        }
+        assertFalse("burst is 5", limiter.tryAcquire(a));
+        assertTrue("other sources are not affected", limiter.tryAcquire(b));
+        assertEquals(1, limiter.getRateRefusedCount());
+
+        Thread.sleep(250); // 10 per second, so at least 2 tokens refilled
+        assertTrue(limiter.tryAcquire(a));
+        assertTrue(limiter.tryAcquire(a));
+
+        Thread.sleep(1000); // refilled but not exceeding the burst
+        int ok = 0;
+        for (int i = 0; i < 10; ++i) {
+            if (limiter.tryAcquire(a))
+                ++ok;
+        }
+        assertEquals(5, ok);
+    }
+
+    @Test
+    public void sourceNetwork() throws Exception {
+        ConnectionLimiter limiter = new ConnectionLimiter(24, 64);
+        limiter.setMaxConnections(2);
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0.1")));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0.2")));
+        assertFalse("same /24", limiter.tryAcquire(InetAddress.getByName("10.0.0.3")));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.1.1")));
+
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("fd00::1")));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("fd00::1:2")));
+        assertFalse("same /64", limiter.tryAcquire(InetAddress.getByName("fd00::2:3")));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("fd00:0:0:1::1")));
+    }
+
+    @Test
+    public void manySources() throws Exception {
+        // the sketch is bounded, make sure collisions won't hurt normal sources too much
+        // even with the strictest limit
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setMaxConnections(1);
+        int refused = 0;
+        for (int i = 0; i < 1000; ++i) {
+            byte[] ip = {10, 1, (byte) (i >> 8), (byte) i};
+            if (!limiter.tryAcquire(InetAddress.getByAddress(ip)))
+                ++refused;
+        }
+        assertTrue("refused " + refused, refused < 20);
+    }
+
+    @Test
+    public void releaseWhenAcceptAborted() throws Exception {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setMaxConnections(1);
+        InetAddress local = InetAddress.getByName("127.0.0.1");
+        CountDownLatch aborted = new CountDownLatch(3);
+
+        SelectorEventLoop selectorEventLoop = SelectorEventLoop.open();
+        NetEventLoop loop = new NetEventLoop(selectorEventLoop);
+        BindServer server = BindServer.create(new InetSocketAddress(local, 19089));
+        try {
+            loop.addServer(server, null, new ServerHandler() {
+                @Override
+                public void acceptFail(ServerHandlerContext ctx, IOException err) {
+                }
+
+                @Override
+                public void connection(ServerHandlerContext ctx, Connection connection) {
+                    fail("should not reach connection()");
+                }
+
+                @Override
+                public boolean allowAccept(ServerHandlerContext ctx, InetSocketAddress remote) {
+                    return limiter.tryAcquire(remote.getAddress());
+                }
+
+                @Override
+                public void acceptAborted(ServerHandlerContext ctx, InetSocketAddress remote) {
+                    limiter.release(remote.getAddress());
+                    aborted.countDown();
+                }
+
+                @Override
+                public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
+                    return null; // no buffers, the accepting is aborted
+                }
+
+                @Override
+                public void removed(ServerHandlerContext ctx) {
+                }
+            });
+            selectorEventLoop.loop(r -> new Thread(r, "accept-aborted"));
+
+            for (int i = 0; i < 3; ++i) {
+                try (Socket sock = new Socket()) {
+                    sock.connect(server.bind);
+                    assertEquals("closed by the server", -1, sock.getInputStream().read());
+                }
+            }
+            assertTrue(aborted.await(1, TimeUnit.SECONDS));
+            assertEquals("the slot is released every time", 0, limiter.connections(local));
+            assertEquals(0, limiter.getMaxConnRefusedCount());
+        } finally {
+            selectorEventLoop.close();
+            server.close();
+        }
+    }
+}
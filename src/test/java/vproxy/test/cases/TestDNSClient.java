@@ -0,0 +1,203 @@
+package vproxy.test.cases;
+
+import vproxy.connection.NetEventLoop;
+import vproxy.dns.DNSClient;
+import vproxy.dns.Hosts;
+import vproxy.dns.ResolvConf;
+import vproxy.dns.Resolver;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.test.tool.DNSServer;
+import vproxy.util.BlockCallback;
+import vproxy.util.Utils;
+import org.junit.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestDNSClient {
+    private static final int dnsPort = 19053;
+    private static final int noServerPort = 19054;
+
+    private DNSServer server;
+    private NetEventLoop loop;
+    private DNSClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DNSServer(dnsPort);
+        server.records.put("example.test", Arrays.asList(
+            InetAddress.getByName("10.0.0.1"),
+            InetAddress.getByName("10.0.0.2"),
+            InetAddress.getByName("fd00::1")));
+        loop = new NetEventLoop(SelectorEventLoop.open());
+        loop.getSelectorEventLoop().loop(r -> new Thread(r, "TestDNSClient"));
+        client = new DNSClient(loop, conf(dnsPort));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loop.getSelectorEventLoop().close();
+        server.close();
+    }
+
+    private static ResolvConf conf(int... ports) {
+        return conf(Collections.emptyList(), ports);
+    }
+
+    private static ResolvConf conf(List<String> search, int... ports) {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (int p : ports) {
+            servers.add(new InetSocketAddress("127.0.0.1", p));
+        }
+        return new ResolvConf(servers, search, 1, 500, 2);
+    }
+
+    private DNSClient.Answer resolve(String host) throws IOException {
+        BlockCallback<DNSClient.Answer, IOException> cb = new BlockCallback<>();
+        client.resolve(host, cb);
+        return cb.block();
+    }
+
+    private static Set<String> ips(DNSClient.Answer answer) {
+        Set<String> set = new HashSet<>();
+        for (InetAddress a : answer.addresses) {
+            set.add(Utils.ipStr(a.getAddress()));
+        }
+        return set;
+    }
+
+    @Test
+    public void resolveV4AndV6() throws Exception {
+        DNSClient.Answer answer = resolve("example.test");
+        assertEquals(new HashSet<>(Arrays.asList("10.0.0.1", "10.0.0.2", "[fd00:0000:0000:0000:0000:0000:0000:0001]")), ips(answer));
+        assertEquals(30, answer.ttl);
+        assertEquals("A and AAAA", 2, server.udpQueries.get());
+        assertEquals(0, client.inflight());
+    }
+
+    @Test
+    public void nxdomain() throws Exception {
+        DNSClient.Answer answer = resolve("not-exist.test");
+        assertFalse(answer.exists());
+        assertEquals(5, answer.ttl);
+    }
+
+    @Test
+    public void retryWhenPacketLost() throws Exception {
+        server.dropFirst = 2;
+        DNSClient.Answer answer = resolve("example.test");
+        assertEquals(3, answer.addresses.length);
+        assertEquals(4, server.udpQueries.get());
+    }
+
+    @Test
+    public void retryOnNextNameServer() throws Exception {
+        client.setConf(conf(noServerPort, dnsPort));
+        DNSClient.Answer answer = resolve("example.test");
+        assertEquals(3, answer.addresses.length);
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        client.setConf(conf(noServerPort));
+        long begin = System.currentTimeMillis();
+        try {
+            resolve("example.test");
+            fail();
+        } catch (SocketTimeoutException ignore) {
+        }
+        long cost = System.currentTimeMillis() - begin;
+        assertTrue("2 attempts with 500ms timeout, cost = " + cost, cost >= 1000 && cost < 2000);
+        assertEquals(0, client.inflight());
+    }
+
+    @Test
+    public void tcpFallbackWhenTruncated() throws Exception {
+        server.truncate = true;
+        DNSClient.Answer answer = resolve("example.test");
+        assertEquals(3, answer.addresses.length);
+        assertEquals(2, server.udpQueries.get());
+        assertEquals(2, server.tcpQueries.get());
+    }
+
+    @Test
+    public void searchList() throws Exception {
+        client.setConf(conf(Collections.singletonList("test"), dnsPort));
+        DNSClient.Answer answer = resolve("example");
+        assertEquals("example.test", answer.name);
+        assertEquals(3, answer.addresses.length);
+    }
+
+    @Test
+    public void parallelQueries() throws Exception {
+        int n = 100;
+        for (int i = 0; i < n; ++i) {
+            server.records.put("host" + i + ".test", Collections.singletonList(InetAddress.getByName("10.1.0." + i)));
+        }
+        List<BlockCallback<DNSClient.Answer, IOException>> cbs = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            BlockCallback<DNSClient.Answer, IOException> cb = new BlockCallback<>();
+            client.resolve("host" + i + ".test", cb);
+            cbs.add(cb);
+        }
+        for (int i = 0; i < n; ++i) {
+            DNSClient.Answer answer = cbs.get(i).block();
+            assertEquals("10.1.0." + i, Utils.ipStr(answer.addresses[0].getAddress()));
+        }
+        assertEquals(0, client.inflight());
+    }
+
+    @Test
+    public void resolverUsesHostsAndNameServer() throws Exception {
+        Resolver resolver = new Resolver("TestDNSClientResolver", conf(dnsPort),
+            Hosts.parse(Collections.singletonList("10.9.9.9 my.host.test")));
+        resolver.start();
+        try {
+            BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+            resolver.resolve("my.host.test", cb);
+            assertEquals("10.9.9.9", Utils.ipStr(cb.block().getAddress()));
+            assertEquals("hosts file should not send queries", 0, server.udpQueries.get());
+
+            cb = new BlockCallback<>();
+            resolver.resolveV6("example.test", cb);
+            assertEquals("[fd00:0000:0000:0000:0000:0000:0000:0001]", Utils.ipStr(cb.block().getAddress()));
+
+            cb = new BlockCallback<>();
+            resolver.resolve("not-exist.test", cb);
+            try {
+                cb.block();
+                fail();
+            } catch (UnknownHostException ignore) {
+            }
+        } finally {
+            resolver.stop();
+        }
+    }
+
+    @Test
+    public void parseResolvConf() {
+        ResolvConf conf = ResolvConf.parse(Arrays.asList(
+            "# comment",
+            "nameserver 10.0.0.53",
+            "nameserver fd00::53",
+            "search a.example b.example",
+            "options ndots:2 timeout:3 attempts:4"
+        ));
+        assertEquals(2, conf.nameServers.size());
+        assertEquals(new InetSocketAddress("10.0.0.53", 53), conf.nameServers.get(0));
+        assertEquals(Arrays.asList("a.example", "b.example"), conf.search);
+        assertEquals(2, conf.ndots);
+        assertEquals(3000, conf.timeout);
+        assertEquals(4, conf.attempts);
+
+        conf = ResolvConf.parse(Collections.emptyList());
+        assertEquals("default to local name server", 1, conf.nameServers.size());
+        assertTrue(conf.nameServers.get(0).getAddress().isLoopbackAddress());
+    }
+}
@@ -2,19 +2,39 @@ package vproxy.test.cases;
 
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.exception.NoException;
+import vproxy.component.exception.XException;
 import vproxy.connection.BindServer;
 import vproxy.discovery.*;
+import vproxy.discovery.protocol.BinaryParser;
+import vproxy.discovery.protocol.BinarySerializer;
+import vproxy.redis.Serializer;
 import vproxy.test.tool.DiscoveryHolder;
 import vproxy.util.BlockCallback;
+import vproxy.util.ByteArrayChannel;
 import vproxy.util.IPType;
+import vproxy.util.RingBuffer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestDiscovery {
     private DiscoveryHolder holder;
@@ -247,4 +267,238 @@ public class TestDiscovery {
         assertEquals(1, downAlert[0]);
         assertEquals("should be removed", 1, removeAlert[0]);
     }
+
+    private static boolean isHealthy(Discovery d, String nodeName) {
+        return d.getNodes().stream().anyMatch(n -> n.nodeName.equals(nodeName) && n.healthy);
+    }
+
+    @Test
+    public void silentNodeFailure() throws Exception {
+        Discovery[] ds = new Discovery[3];
+        for (int i = 0; i < ds.length; ++i) {
+            ds[i] = new Discovery("d" + i,
+                new DiscoveryConfig(
+                    "lo0", IPType.v4, 17080 + i, 18080 + i, 18080 + i,
+                    32, 18080, 18082,
+                    new TimeoutConfig(5, 30, 5, 30, 5000),
+                    new HealthCheckConfig(200, 500, 2, 3)
+                ));
+            holder.add(ds[i]);
+        }
+        Discovery d0 = ds[0];
+        Discovery d1 = ds[1];
+        Discovery d2 = ds[2];
+
+        // wait until all nodes are up
+        long begin = System.currentTimeMillis();
+        while (!(isHealthy(d0, "d1") && isHealthy(d0, "d2") && isHealthy(d1, "d0") && isHealthy(d1, "d2"))) {
+            assertTrue("nodes should be up", System.currentTimeMillis() - begin < 5000);
+            Thread.sleep(50);
+        }
+
+        // d2 stops reading udp packets, but the tcp server is still running
+        Field udpServerF = Discovery.class.getDeclaredField("udpServer");
+        udpServerF.setAccessible(true);
+        DatagramChannel udpServer = (DatagramChannel) udpServerF.get(d2);
+        d2.loop.getSelectorEventLoop().remove(udpServer);
+
+        // d2 is suspected and then DOWN on both d0 and d1
+        begin = System.currentTimeMillis();
+        while (isHealthy(d0, "d2") || isHealthy(d1, "d2")) {
+            assertTrue("d2 should be down", System.currentTimeMillis() - begin < 5000);
+            Thread.sleep(50);
+        }
+        assertEquals(3, d0.getNodes().size());
+        assertEquals(3, d1.getNodes().size());
+        assertTrue("d1 is still up", isHealthy(d0, "d1"));
+        assertTrue("d0 is still up", isHealthy(d1, "d0"));
+    }
+
+    @Test
+    public void binaryFraming() throws Exception {
+        Object[] msg = {
+            1, "nodes",
+            Arrays.asList(
+                new Object[]{"d0", "127.0.0.1", 18080, 18080, 1},
+                new Object[]{"d1", "127.0.0.1", 18081, 18081, 0}
+            ),
+            -7, 1L << 40, null
+        };
+        byte[] frame = BinarySerializer.from(msg);
+        assertEquals(BinarySerializer.VERSION, frame[0]);
+        assertTrue("binary frame is smaller than RESP", frame.length < Serializer.from(msg).length);
+
+        // read in place
+        BinaryParser parser = new BinaryParser(16384);
+        parser.wrap(frame, 0, frame.length);
+        List<?> l = (List<?>) parser.getResult();
+        assertEquals(6, l.size());
+        assertEquals(1, l.get(0));
+        assertEquals("nodes", l.get(1));
+        assertEquals(Arrays.asList("d1", "127.0.0.1", 18081, 18081, 0), ((List<?>) l.get(2)).get(1));
+        assertEquals(-7, l.get(3));
+        assertEquals(1L << 40, l.get(4));
+        assertNull(l.get(5));
+
+        // skip values
+        parser.rewind();
+        assertEquals(6, parser.readArrayHeader());
+        for (int i = 0; i < 4; ++i) {
+            parser.skip();
+        }
+        assertEquals(1L << 40, parser.readObject());
+        parser.skip();
+        assertFalse(parser.hasMore());
+
+        // fed byte by byte from a stream
+        parser.reset();
+        RingBuffer rb = RingBuffer.allocate(16);
+        for (int i = 0; i < frame.length; ++i) {
+            rb.storeBytesFrom(ByteArrayChannel.fromFull(new byte[]{frame[i]}));
+            int r = parser.feed(rb);
+            assertNull(parser.getErrorMessage());
+            assertEquals(i == frame.length - 1 ? 0 : -1, r);
+        }
+        assertEquals(l, parser.getResult());
+
+        // errors
+        byte[] errFrame = BinarySerializer.fromErrorString("oops");
+        parser.wrap(errFrame, 0, errFrame.length);
+        Object err = parser.getResult();
+        assertTrue(err instanceof XException);
+        assertEquals("oops", ((XException) err).getMessage());
+        try {
+            parser.wrap(frame, 0, frame.length - 1);
+            fail("the frame is truncated");
+        } catch (XException ignore) {
+        }
+    }
+
+    @Test
+    public void mixedFraming() throws Exception {
+        Discovery d0 = new Discovery("d0",
+            new DiscoveryConfig(
+                "lo0", IPType.v4, 17080, 18080, 18080,
+                32, 18080, 18080,
+                new TimeoutConfig(5, 1050, 5, 1050, 2000),
+                new HealthCheckConfig(1000, 500, 2, 3)
+            ));
+        holder.add(d0);
+
+        // a search message from an old version node, without the framing element
+        byte[] search = Serializer.from(new Object[]{1, "search", "old", 18089, 18089, "0".repeat(MembershipDigest.HEX_LENGTH)});
+        try (DatagramSocket sock = new DatagramSocket(new InetSocketAddress("127.0.0.1", 18089))) {
+            sock.setSoTimeout(1000);
+            sock.send(new DatagramPacket(search, search.length, new InetSocketAddress("127.0.0.1", 18080)));
+            DatagramPacket inform = new DatagramPacket(new byte[1024], 1024);
+            sock.receive(inform);
+            assertEquals("inform is RESP", '*', inform.getData()[0]);
+
+            // a search message from a new version node
+            search = Serializer.from(new Object[]{1, "search", "new", 18089, 18089, "0".repeat(MembershipDigest.HEX_LENGTH), 2});
+            sock.send(new DatagramPacket(search, search.length, new InetSocketAddress("127.0.0.1", 18080)));
+            inform = new DatagramPacket(new byte[1024], 1024);
+            sock.receive(inform);
+            assertEquals("inform is binary", BinarySerializer.VERSION, inform.getData()[0]);
+        }
+
+        // the tcp port serves both RESP and binary requests
+        Object[] req = {1, "nodes", Collections.emptyList()};
+        for (boolean binary : new boolean[]{false, true}) {
+            try (Socket sock = new Socket("127.0.0.1", 18080)) {
+                sock.setSoTimeout(1000);
+                sock.getOutputStream().write(binary ? BinarySerializer.from(req) : Serializer.from(req));
+                int first = sock.getInputStream().read();
+                assertEquals(binary ? BinarySerializer.VERSION : '*', first);
+            }
+        }
+    }
+
+    @Test
+    public void mixedVersion() throws Exception {
+        Discovery d0 = new Discovery("d0",
+            new DiscoveryConfig(
+                "lo0", IPType.v4, 17080, 18080, 18080,
+                32, 18080, 18080,
+                new TimeoutConfig(5, 1050, 5, 1050, 2000),
+                new HealthCheckConfig(1000, 500, 2, 3)
+            ));
+        holder.add(d0);
+
+        // an old version node only answers the search/inform messages, and never replies ping
+        ServerSocket tcp = new ServerSocket();
+        tcp.bind(new InetSocketAddress("127.0.0.1", 18089));
+        try (DatagramSocket sock = new DatagramSocket(new InetSocketAddress("127.0.0.1", 18089))) {
+            sock.setSoTimeout(100);
+            byte[] search = Serializer.from(new Object[]{1, "search", "old", 18089, 18089, "0".repeat(MembershipDigest.HEX_LENGTH)});
+            sock.send(new DatagramPacket(search, search.length, new InetSocketAddress("127.0.0.1", 18080)));
+            // then it sends its node list in RESP to the tcp port
+            Object[] req = {1, "nodes", Collections.singletonList(new Object[]{"old", "127.0.0.1", 18089, 18089, 1})};
+            try (Socket s = new Socket("127.0.0.1", 18080)) {
+                s.setSoTimeout(1000);
+                s.getOutputStream().write(Serializer.from(req));
+                assertEquals('*', s.getInputStream().read());
+            }
+
+            // UP by the tcp check, and not DOWN because of no ack
+            long begin = System.currentTimeMillis();
+            boolean up = false;
+            while (System.currentTimeMillis() - begin < 3000) {
+                up = up || isHealthy(d0, "old");
+                assertTrue("old should stay up", !up || isHealthy(d0, "old"));
+                DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+                try {
+                    sock.receive(p);
+                } catch (SocketTimeoutException ignore) {
+                    continue;
+                }
+                assertEquals("old node only receives RESP", '*', p.getData()[0]);
+            }
+            assertTrue("old should be up", up);
+
+            // DOWN when the tcp port is closed
+            tcp.close();
+            begin = System.currentTimeMillis();
+            while (isHealthy(d0, "old")) {
+                assertTrue("old should be down", System.currentTimeMillis() - begin < 5000);
+                Thread.sleep(50);
+            }
+        } finally {
+            tcp.close();
+        }
+    }
+
+    @Test
+    public void membershipDigest() throws Exception {
+        Node a = new Node("a", "127.0.0.1", 17080, 18080);
+        Node b = new Node("b", "127.0.0.1", 17081, 18081);
+        Node c = new Node("c", "127.0.0.1", 17082, 18082);
+
+        MembershipDigest d0 = new MembershipDigest();
+        String empty = d0.hex();
+        assertEquals(MembershipDigest.HEX_LENGTH, empty.length());
+        d0.add(a);
+        d0.add(b);
+        d0.add(c);
+
+        // the order does not matter
+        MembershipDigest d1 = new MembershipDigest();
+        d1.add(new Node("c", "127.0.0.1", 17082, 18082));
+        d1.add(new Node("a", "127.0.0.1", 17080, 18080));
+        d1.add(new Node("b", "127.0.0.1", 17081, 18081));
+        assertEquals(d0.hex(), d1.hex());
+        assertEquals(MembershipDigest.HEX_LENGTH, d0.hex().length());
+
+        // removing a node gets the digest of the remaining nodes
+        d0.remove(b);
+        MembershipDigest d2 = new MembershipDigest();
+        d2.add(a);
+        d2.add(c);
+        assertEquals(d2.hex(), d0.hex());
+        assertNotEquals(d1.hex(), d0.hex());
+
+        d0.remove(a);
+        d0.remove(c);
+        assertEquals(empty, d0.hex());
+    }
 }
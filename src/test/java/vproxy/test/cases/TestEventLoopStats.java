@@ -0,0 +1,72 @@
+package vproxy.test.cases;
+
+import vproxy.selector.SelectorEventLoop;
+import vproxy.selector.SelectorEventLoopStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestEventLoopStats {
+    private SelectorEventLoop loop;
+
+    @Before
+    public void setUp() throws Exception {
+        loop = SelectorEventLoop.open();
+        loop.loop(r -> new Thread(r, "EventLoop"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loop.close();
+    }
+
+    @Test
+    public void tasksAndWakeups() throws Exception {
+        SelectorEventLoopStats stats = loop.stats();
+        long iterations = stats.getIterations();
+        CountDownLatch latch = new CountDownLatch(10);
+        for (int i = 0; i < 10; ++i) {
+            loop.nextTick(latch::countDown);
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50); // wait for the round to finish
+
+        assertTrue(stats.getIterations() > iterations);
+        assertEquals(10, stats.getWakeups());
+        assertTrue(stats.getMaxQueueSize() >= 1);
+        assertTrue(stats.getMaxQueueSize() <= 10);
+        assertEquals(0, loop.queueSize());
+        assertTrue(stats.getSelectNanos() > 0);
+    }
+
+    @Test
+    public void slowTaskAndTimerLag() throws Exception {
+        SelectorEventLoopStats stats = loop.stats();
+        CountDownLatch latch = new CountDownLatch(1);
+        loop.nextTick(() -> {
+            loop.delay(1, latch::countDown);
+            loop.delay(60_000, () -> {
+            });
+            // the timers are pushed in next round, block the loop after that
+            loop.nextTick(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignore) {
+                }
+            });
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        assertTrue(stats.getMaxIterationNanos() >= 100_000_000L);
+        assertTrue(stats.getNonSelectNanos() >= 100_000_000L);
+        assertTrue(stats.getMaxTimerLagMillis() >= 90);
+        assertEquals(1, stats.getTimers());
+        assertTrue(stats.busyPercentage() > 0);
+    }
+}
@@ -0,0 +1,239 @@
+package vproxy.test.cases;
+
+import vproxy.app.Application;
+import vproxy.app.Config;
+import vproxy.app.Main;
+import vproxy.app.cmd.CmdResult;
+import vproxy.app.cmd.Command;
+import vproxy.app.cmd.SystemCommand;
+import vproxy.component.app.GracefulUpgrade;
+import vproxy.component.exception.XException;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.test.tool.Client;
+import vproxy.test.tool.EchoServer;
+import vproxy.util.BlockCallback;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestGracefulUpgrade {
+    private static final int lbPort = 19300;
+    private static final int echoPort = 20390;
+
+    private static SelectorEventLoop serverLoop;
+
+    private final List<Client> clients = new ArrayList<>();
+    private final CountDownLatch quit = new CountDownLatch(1);
+
+    @BeforeClass
+    public static void classSetUp() throws Exception {
+        if (Application.get() == null) {
+            Main.main(new String[]{"noStdIOController", "noLoadLast", "noSave"});
+        }
+        serverLoop = SelectorEventLoop.open();
+        serverLoop.loop(r -> new Thread(r, "serverLoop"));
+        new EchoServer(serverLoop, echoPort);
+    }
+
+    @AfterClass
+    public static void classTearDown() throws Exception {
+        serverLoop.close();
+    }
+
+    @Before
+    public void setUp() throws Throwable {
+        runOk("add event-loop-group elgu0");
+        runOk("add event-loop elu0 to event-loop-group elgu0");
+        runOk("add server-groups sgsu0");
+        runOk("add server-group sgu0 timeout 500 period 86400000 up 1 down 1 event-loop-group elgu0");
+        runOk("add server-group sgu0 to server-groups sgsu0 weight 10");
+        runOk("add server svru0 to server-group sgu0 address 127.0.0.1:" + echoPort + " weight 10");
+        runOk("add tcp-lb lbu0 acceptor-elg elgu0 event-loop-group elgu0 address 127.0.0.1:" + lbPort + " server-groups sgsu0");
+        for (ServerGroup.ServerHandle h : Application.get().serverGroupHolder.get("sgu0").getServerHandles()) {
+            h.healthy = true;
+        }
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        for (Client c : clients) {
+            c.close();
+        }
+        // wait until the drain is finished if it's not
+        assertTrue(quit.await(5, TimeUnit.SECONDS));
+        run("remove tcp-lb lbu0");
+        run("remove server-groups sgsu0");
+        run("remove server-group sgu0");
+        run("remove event-loop-group elgu0");
+    }
+
+    private static void run(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        try {
+            cb.block();
+        } catch (Throwable ignore) {
+            // the resources may not exist when cleaning up
+        }
+    }
+
+    private static void runOk(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        cb.block();
+    }
+
+    private static String listDrain() throws XException {
+        BlockCallback<CmdResult, XException> cb = new BlockCallback<>();
+        SystemCommand.handleSystemCall("System call: list drain", cb);
+        return cb.block().strResult;
+    }
+
+    private Client connect() throws IOException {
+        Client client = new Client(lbPort);
+        client.connect();
+        clients.add(client);
+        return client;
+    }
+
+    private void drain(int timeout) throws Exception {
+        BlockCallback<Void, RuntimeException> cb = new BlockCallback<>();
+        Application.get().controlEventLoop.getSelectorEventLoop().runOnLoop(() -> {
+            GracefulUpgrade.drain(timeout, quit::countDown);
+            cb.succeeded(null);
+        });
+        cb.block();
+    }
+
+    @Test
+    public void quitWhenDrained() throws Exception {
+        assertEquals("not draining", listDrain());
+        Client client = connect();
+        assertEquals("a", client.sendAndRecv("a", 1));
+
+        drain(60_000);
+        assertTrue(GracefulUpgrade.isDraining());
+        String status = listDrain();
+        assertTrue(status, status.startsWith("draining: 1/1 session(s) left, stopped accepting on 1 lb(s), "));
+
+        // stop accepting, but the existing session is kept
+        try {
+            connect();
+            fail();
+        } catch (ConnectException ignore) {
+        }
+        assertEquals("b", client.sendAndRecv("b", 1));
+        assertFalse("the session is still alive", quit.await(1500, TimeUnit.MILLISECONDS));
+
+        // drained when the session is closed
+        client.close();
+        assertTrue(quit.await(3, TimeUnit.SECONDS));
+        assertFalse(GracefulUpgrade.isDraining());
+        assertEquals("not draining", listDrain());
+    }
+
+    @Test
+    public void quitAtDeadline() throws Exception {
+        Client client = connect();
+        assertEquals("a", client.sendAndRecv("a", 1));
+
+        long begin = System.currentTimeMillis();
+        drain(1500);
+        // called repeatedly, the deadline is not reset
+        drain(60_000);
+        assertTrue(quit.await(4, TimeUnit.SECONDS));
+        long cost = System.currentTimeMillis() - begin;
+        assertTrue("quit too early: " + cost, cost >= 1400);
+        // the session is left as it is
+        assertEquals("b", client.sendAndRecv("b", 1));
+    }
+
+    @Test
+    public void quitWithoutSession() throws Exception {
+        drain(60_000);
+        assertTrue(quit.await(1, TimeUnit.SECONDS));
+        assertFalse(GracefulUpgrade.isDraining());
+    }
+
+    @Test
+    public void notifyWhenAllLoaded() throws Exception {
+        quit.countDown(); // no drain in this test
+
+        List<Long> notified = new ArrayList<>();
+        GracefulUpgrade.PendingLoads loads = new GracefulUpgrade.PendingLoads(notified::add);
+        loads.loadStarted();
+        loads.loadStarted();
+        loads.setOldPid(123);
+        loads.loadDone();
+        loads.loadDone();
+        assertTrue("the creator is not done yet", notified.isEmpty());
+        loads.loadDone();
+        assertEquals(List.of(123L), notified);
+
+        // not upgrading
+        notified.clear();
+        loads = new GracefulUpgrade.PendingLoads(notified::add);
+        loads.loadStarted();
+        loads.loadDone();
+        loads.loadDone();
+        assertTrue(notified.isEmpty());
+    }
+
+    @Test
+    public void readOldPid() throws Exception {
+        quit.countDown(); // no drain in this test
+
+        File pidFile = File.createTempFile("vproxy", ".pid");
+        pidFile.deleteOnExit();
+
+        long self = ProcessHandle.current().pid();
+        Files.writeString(pidFile.toPath(), self + "\n");
+        assertEquals(self, GracefulUpgrade.readOldPid(pidFile.getAbsolutePath()));
+
+        Files.writeString(pidFile.toPath(), "abc");
+        try {
+            GracefulUpgrade.readOldPid(pidFile.getAbsolutePath());
+            fail();
+        } catch (IOException e) {
+            assertEquals("invalid pid in " + pidFile.getAbsolutePath() + ": abc", e.getMessage());
+        }
+
+        Process p = new ProcessBuilder("true").start();
+        p.waitFor();
+        Files.writeString(pidFile.toPath(), "" + p.pid());
+        try {
+            GracefulUpgrade.readOldPid(pidFile.getAbsolutePath());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(" is not running"));
+        }
+    }
+
+    @Test
+    public void notifyOldProcessNotRunning() throws Exception {
+        quit.countDown(); // no drain in this test
+
+        Process p = new ProcessBuilder("true").start();
+        p.waitFor();
+        Config.upgrading = true;
+        try {
+            GracefulUpgrade.notifyOldProcess(p.pid());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("sending signal to " + p.pid() + " failed: "));
+        } finally {
+            assertFalse("the new process stops reusing ports", Config.upgrading);
+            Config.upgrading = false;
+        }
+    }
+}
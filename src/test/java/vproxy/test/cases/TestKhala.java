@@ -10,6 +10,7 @@ import vproxy.discovery.Discovery;
 import vproxy.discovery.DiscoveryConfig;
 import vproxy.discovery.Node;
 import vproxy.discovery.TimeoutConfig;
+import vproxy.redis.Serializer;
 import vproxy.test.tool.DiscoveryHolder;
 import vproxy.util.IPType;
 import org.junit.After;
@@ -21,6 +22,7 @@ import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestKhala {
     private DiscoveryHolder holder;
@@ -383,4 +385,94 @@ public class TestKhala {
         // assertEquals(1, nodes2.get(d1.localNode).size());
         assertEquals(1, nodes2.get(d2.localNode).size());
     }
+
+    @Test
+    public void digestSync() throws Exception {
+        final int count = 4;
+        final int services = 20;
+        Discovery[] ds = new Discovery[count];
+        Khala[] ks = new Khala[count];
+        for (int i = 0; i < count; ++i) {
+            ds[i] = new Discovery("d" + i, new DiscoveryConfig(
+                "lo0", IPType.v4,
+                17080 + i, 18080 + i, 18080 + i,
+                32, 18080, 18080 + count - 1,
+                new TimeoutConfig(
+                    200, Integer.MAX_VALUE,
+                    200, Integer.MAX_VALUE,
+                    3000),
+                new HealthCheckConfig(200, 500, 2, 3)
+            ));
+            holder.add(ds[i]);
+            ks[i] = new Khala(ds[i], new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        }
+        // k0 is the only nexus
+        ks[0].addLocal(new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.0", 9990));
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < services; ++j) {
+                ks[i].addLocal(new KhalaNode(KhalaNodeType.pylon, "s" + j, "z0", "127.0.0." + i, 10000 + j));
+            }
+        }
+
+        // wait until all nodes find each other and exchange the khala nodes
+        long begin = System.currentTimeMillis();
+        while (!converged(ds, ks, 0, services + 1)) {
+            assertTrue("converge in time", System.currentTimeMillis() - begin < 5000);
+            Thread.sleep(50);
+        }
+
+        // a sync round only sends the digest
+        int fullSize = 0;
+        for (Set<KhalaNode> set : ks[0].getKhalaNodes().values()) {
+            for (KhalaNode kn : set) {
+                fullSize += Serializer.from(new Object[]{kn.type.name(), kn.service, kn.zone, kn.address, kn.port}).length;
+            }
+        }
+        long before = ks[1].getSyncBytes();
+        ks[1].sync();
+        Thread.sleep(200);
+        long digestSize = ks[1].getSyncBytes() - before;
+        assertTrue(digestSize > 0);
+        assertTrue("digest is much smaller than the khala nodes: digest size = " + digestSize + ", size of all khala nodes = " + fullSize,
+            digestSize * 5 < fullSize);
+
+        // pylon changes are only sent to the nexus
+        ks[2].addLocal(new KhalaNode(KhalaNodeType.pylon, "new", "z0", "127.0.0.2", 11000));
+        Thread.sleep(200);
+        assertEquals(services + 1, ks[0].getKhalaNodes().get(ds[2].localNode).size());
+        assertEquals("not notified", services, ks[1].getKhalaNodes().get(ds[2].localNode).size());
+
+        // k1 learns the version of d2 from the nexus, and fetches d2
+        begin = System.nanoTime();
+        ks[1].sync();
+        while (ks[1].getKhalaNodes().get(ds[2].localNode).size() != services + 1) {
+            assertTrue("converge in time", System.nanoTime() - begin < 1_000_000_000L);
+            Thread.sleep(1);
+        }
+        assertEquals(services + 1, ks[1].getKhalaNodes().get(ds[0].localNode).size());
+        assertEquals(services, ks[1].getKhalaNodes().get(ds[3].localNode).size());
+
+        // remove the pylon, and sync from the nexus side
+        ks[2].removeLocal(new KhalaNode(KhalaNodeType.pylon, "new", "z0", "127.0.0.2", 11000));
+        Thread.sleep(200);
+        assertEquals(services, ks[0].getKhalaNodes().get(ds[2].localNode).size());
+        assertEquals(services + 1, ks[1].getKhalaNodes().get(ds[2].localNode).size());
+        ks[1].sync();
+        Thread.sleep(200);
+        assertEquals(services, ks[1].getKhalaNodes().get(ds[2].localNode).size());
+    }
+
+    private static boolean converged(Discovery[] ds, Khala[] ks, int nexus, int nexusCount) {
+        for (Khala k : ks) {
+            Map<Node, Set<KhalaNode>> nodes = k.getKhalaNodes();
+            if (nodes.size() != ds.length)
+                return false;
+            for (int i = 0; i < ds.length; ++i) {
+                Set<KhalaNode> set = nodes.get(ds[i].localNode);
+                if (set == null || set.size() != (i == nexus ? nexusCount : nexusCount - 1))
+                    return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,115 @@
+package vproxy.test.cases;
+
+import vproxy.util.LatencyHistogram;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestLatencyHistogram {
+    @Test
+    public void empty() {
+        LatencyHistogram.Snapshot s = new LatencyHistogram("h").snapshot();
+        assertEquals("h", s.name);
+        assertEquals(0, s.count);
+        assertEquals(0, s.mean());
+        assertEquals(0, s.percentile(99));
+        assertEquals(0, s.max);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram("h");
+        for (int i = 0; i < 8; ++i) {
+            h.record(i);
+        }
+        h.record(-5); // considered as 0
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(9, s.count);
+        assertEquals(28, s.sum);
+        assertEquals(7, s.max);
+        assertEquals(0, s.percentile(0));
+        assertEquals(3, s.percentile(50));
+        assertEquals(7, s.percentile(100));
+        assertEquals(5, s.countBelow(3));
+    }
+
+    @Test
+    public void percentileError() {
+        Random rand = new Random(7);
+        LatencyHistogram h = new LatencyHistogram("h");
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; ++i) {
+            // spread over several orders of magnitude
+            values[i] = (long) Math.pow(10, 1 + rand.nextDouble() * 6);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(values.length, s.count);
+        assertEquals(values[values.length - 1], s.max);
+        for (double p : new double[]{1, 10, 50, 90, 99, 99.9, 100}) {
+            long expected = values[(int) Math.ceil(values.length * p / 100) - 1];
+            long actual = s.percentile(p);
+            assertTrue("p" + p + " expected " + expected + " actual " + actual,
+                Math.abs(actual - expected) <= expected * 0.0625);
+        }
+    }
+
+    @Test
+    public void hugeValue() {
+        LatencyHistogram h = new LatencyHistogram("h");
+        h.record(Long.MAX_VALUE / 2);
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(1, s.count);
+        assertEquals(Long.MAX_VALUE / 2, s.max);
+        assertTrue(s.percentile(50) > 0);
+    }
+
+    @Test
+    public void mergeShards() throws Exception {
+        LatencyHistogram h = new LatencyHistogram("h");
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            final int n = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; ++i) {
+                    h.record(n * 100 + 1);
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(80000, s.count);
+        assertEquals(701, s.max);
+        long sum = 0;
+        for (int t = 0; t < threads.length; ++t) {
+            sum += (t * 100 + 1) * 10000L;
+        }
+        assertEquals(sum, s.sum);
+        assertEquals(10000, s.countBelow(1));
+    }
+
+    @Test
+    public void recordIntoParent() {
+        LatencyHistogram group = new LatencyHistogram("g");
+        LatencyHistogram a = new LatencyHistogram("a", group);
+        LatencyHistogram b = new LatencyHistogram("b", group);
+        a.record(10);
+        a.record(20);
+        b.record(30);
+        assertEquals(2, a.snapshot().count);
+        assertEquals(1, b.snapshot().count);
+        LatencyHistogram.Snapshot s = group.snapshot();
+        assertEquals(3, s.count);
+        assertEquals(60, s.sum);
+        assertEquals(30, s.max);
+    }
+}
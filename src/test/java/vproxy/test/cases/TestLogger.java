@@ -0,0 +1,88 @@
+package vproxy.test.cases;
+
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class TestLogger {
+    private PrintStream stdout;
+    private ByteArrayOutputStream out;
+
+    @Before
+    public void setUp() {
+        Logger.flush();
+        stdout = System.out;
+        out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true));
+    }
+
+    @After
+    public void tearDown() {
+        Logger.flush();
+        System.setOut(stdout);
+    }
+
+    @Test
+    public void writeInOrder() {
+        Logger.info(LogType.ALERT, "first message");
+        Logger.warn(LogType.INVALID_EXTERNAL_DATA, "second message");
+        Logger.error(LogType.IMPROPER_USE, "third message", new Exception("the-exception"));
+        Logger.flush();
+
+        String s = out.toString();
+        int first = s.indexOf("ALERT - \033[0mfirst message\n");
+        int second = s.indexOf("INVALID_EXTERNAL_DATA - \033[0msecond message\n");
+        int third = s.indexOf("vproxy.test.cases.TestLogger#writeInOrder(");
+        int ex = s.indexOf("java.lang.Exception: the-exception");
+        assertTrue(s, first >= 0);
+        assertTrue(s, second > first);
+        assertTrue(s, third > second);
+        assertTrue(s, s.indexOf("IMPROPER_USE - third message\n") > third);
+        assertTrue(s, ex > third);
+        assertTrue(s, s.matches("(?s).*\\[\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\.\\d{3}] .*"));
+    }
+
+    @Test
+    public void rateLimit() throws Exception {
+        long suppressed = Logger.suppressedCount();
+        // no limit by default
+        for (int i = 0; i < 3000; ++i) {
+            Logger.warn(LogType.CONN_ERROR, "no limit " + i);
+        }
+        assertEquals(suppressed, Logger.suppressedCount());
+
+        Logger.setRateLimit(1000);
+        try {
+            for (int i = 0; i < 3000; ++i) {
+                Logger.warn(LogType.CONN_ERROR, "burst " + i);
+            }
+            assertTrue(Logger.suppressedCount() - suppressed >= 1000);
+            suppressed = Logger.suppressedCount();
+            // errors and alerts are not limited
+            for (int i = 0; i < 1500; ++i) {
+                Logger.error(LogType.CONN_ERROR, "error " + i);
+                Logger.alert("alert " + i);
+            }
+            assertEquals(suppressed, Logger.suppressedCount());
+            // other types are not affected
+            Logger.warn(LogType.HEALTH_CHECK_CHANGE, "not suppressed");
+            Thread.sleep(1100); // wait for the suppressed logs to be reported
+            Logger.flush();
+        } finally {
+            Logger.setRateLimit(0);
+        }
+
+        String s = out.toString();
+        assertTrue(s.contains("HEALTH_CHECK_CHANGE - \033[0mnot suppressed\n"));
+        assertTrue(s.contains("CONN_ERROR - error 1499\n"));
+        assertTrue(s.contains("ALERT - \033[0malert 1499\n"));
+        assertTrue(s, s.matches("(?s).*CONN_ERROR - \033\\[0m\\d+ log records suppressed because of the rate limit of each log type\n.*"));
+    }
+}
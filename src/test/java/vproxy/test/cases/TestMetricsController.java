@@ -0,0 +1,167 @@
+package vproxy.test.cases;
+
+import vproxy.app.Application;
+import vproxy.app.Main;
+import vproxy.app.cmd.CmdResult;
+import vproxy.app.cmd.Command;
+import vproxy.util.BlockCallback;
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestMetricsController {
+    private static final int metricsPort = 19100;
+    private static final int lbPort = 19101;
+    private static final int serverCount = 1000; // the body is larger than the socket buffers, so the controller has to wait for writable events
+
+    @BeforeClass
+    public static void classSetUp() throws Throwable {
+        if (Application.get() == null) {
+            Main.main(new String[]{"noStdIOController", "noLoadLast", "noSave"});
+        }
+        runOk("add event-loop-group elgm0");
+        runOk("add event-loop elm0 to event-loop-group elgm0");
+        runOk("add server-groups sgsm0");
+        runOk("add server-group sgm0 timeout 500 period 86400000 up 1 down 1 event-loop-group elgm0");
+        runOk("add server-group sgm0 to server-groups sgsm0 weight 10");
+        for (int i = 0; i < serverCount; ++i) {
+            runOk("add server svrm" + i + " to server-group sgm0 address 127.0.0.1:" + (20200 + i) + " weight 10");
+        }
+        runOk("add tcp-lb lbm0 acceptor-elg elgm0 event-loop-group elgm0 address 127.0.0.1:" + lbPort + " server-groups sgsm0");
+        Application.get().metricsControllerHolder.add("mc0", new InetSocketAddress("127.0.0.1", metricsPort));
+    }
+
+    @AfterClass
+    public static void classTearDown() throws Throwable {
+        Application.get().metricsControllerHolder.removeAndStop("mc0");
+        runOk("remove tcp-lb lbm0");
+        runOk("remove server-groups sgsm0");
+        runOk("remove server-group sgm0");
+        runOk("remove event-loop-group elgm0");
+    }
+
+    private static void runOk(String line) throws Throwable {
+        BlockCallback<CmdResult, Throwable> cb = new BlockCallback<>();
+        Command.parseStrCmd(line).run(cb);
+        cb.block();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertNotEquals("unexpected eof", -1, b);
+            baos.write(b);
+        }
+        String line = baos.toString(StandardCharsets.UTF_8);
+        assertTrue("lines should end with \\r\\n: " + line, line.endsWith("\r"));
+        return line.substring(0, line.length() - 1);
+    }
+
+    private static byte[] readN(InputStream in, int n) throws IOException {
+        byte[] bytes = in.readNBytes(n);
+        assertEquals("unexpected eof", n, bytes.length);
+        return bytes;
+    }
+
+    @Test
+    public void scrape() throws Exception {
+        List<String> headers = new ArrayList<>();
+        List<Integer> chunks = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (Socket sock = new Socket()) {
+            sock.setReceiveBufferSize(1024); // let the out buffer of the controller fill up
+            sock.connect(new InetSocketAddress("127.0.0.1", metricsPort));
+            OutputStream out = sock.getOutputStream();
+            out.write(("" +
+                "GET /metrics HTTP/1.1\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "\r\n").getBytes());
+            out.flush();
+            Thread.sleep(200); // read slowly
+
+            InputStream in = sock.getInputStream();
+            assertEquals("HTTP/1.1 200 OK", readLine(in));
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                headers.add(line);
+            }
+            while (true) {
+                int size = Integer.parseInt(readLine(in), 16);
+                if (size == 0) {
+                    assertEquals("the last chunk", "", readLine(in));
+                    break;
+                }
+                chunks.add(size);
+                body.write(readN(in, size));
+                assertEquals("\r\n", new String(readN(in, 2)));
+            }
+        }
+
+        assertTrue(headers.toString(), headers.contains("Transfer-Encoding: chunked"));
+        assertTrue(headers.toString(), headers.contains("Content-Type: application/openmetrics-text; version=1.0.0; charset=utf-8"));
+        assertTrue("rendered in several chunks: " + chunks, chunks.size() > 1);
+        for (int size : chunks) {
+            // the chunk is flushed after reaching 16K, so it exceeds the size by at most one item
+            assertTrue("chunk too large: " + chunks, size < 16384 * 2);
+        }
+
+        String text = body.toString(StandardCharsets.UTF_8);
+        assertTrue(text.endsWith("\n# EOF\n"));
+        assertEquals("only one # EOF", text.indexOf("# EOF"), text.lastIndexOf("# EOF"));
+
+        assertTrue(text.contains("# TYPE vproxy_tcp_lb_sessions gauge\n"));
+        assertTrue(text.contains("# HELP vproxy_tcp_lb_sessions current sessions of the lb\n"));
+        assertTrue(text.contains("\nvproxy_tcp_lb_sessions{lb=\"lbm0\",kind=\"tcp-lb\"} 0\n"));
+        assertTrue(text.contains("# TYPE vproxy_tcp_lb_accepted_connections counter\n"));
+        assertTrue(text.contains("\nvproxy_tcp_lb_accepted_connections_total{lb=\"lbm0\",kind=\"tcp-lb\"} "));
+        assertTrue(text.contains("\nvproxy_tcp_lb_refused_connections_total{lb=\"lbm0\",kind=\"tcp-lb\",reason=\"max-conn\"} 0\n"));
+        assertTrue(text.contains("# TYPE vproxy_tcp_lb_latency_seconds histogram\n"));
+        assertTrue(text.contains("\nvproxy_tcp_lb_latency_seconds_bucket{lb=\"lbm0\",kind=\"tcp-lb\",type=\"connect\",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("\nvproxy_tcp_lb_latency_seconds_bucket{lb=\"lbm0\",kind=\"tcp-lb\",type=\"session\",le=\"+Inf\"} 0\n"));
+        assertTrue(text.contains("\nvproxy_tcp_lb_latency_seconds_count{lb=\"lbm0\",kind=\"tcp-lb\",type=\"first-byte\"} 0\n"));
+        assertTrue(text.contains("\nvproxy_server_group_latency_seconds_count{server_group=\"sgm0\",type=\"connect\"} 0\n"));
+        assertTrue(text.contains("\nvproxy_server_group_latency_seconds_bucket{server_group=\"sgm0\",type=\"health-check\",le=\"+Inf\"} "));
+        assertFalse("no latency of each server by default", text.contains("\nvproxy_server_latency_seconds_"));
+        assertTrue(text.contains("# TYPE vproxy_server_up gauge\n"));
+        for (int i = 0; i < serverCount; ++i) {
+            assertTrue("svrm" + i, text.contains("\nvproxy_server_up{server_group=\"sgm0\",server=\"svrm" + i + "\"} "));
+        }
+        assertTrue(text.contains("\nvproxy_event_loop_iterations_total{event_loop_group=\"elgm0\",event_loop=\"elm0\"} "));
+        assertTrue(text.contains("\nvproxy_event_loop_seconds_total{event_loop_group=\"elgm0\",event_loop=\"elm0\",phase=\"select\"} "));
+
+        // each family is rendered once with its type and help before the samples
+        for (String l : text.split("\n")) {
+            if (l.startsWith("# TYPE ")) {
+                String name = l.split(" ")[2];
+                assertEquals(l, text.indexOf(l), text.lastIndexOf(l));
+                assertTrue(l, text.contains(l + "\n# HELP " + name + " "));
+            } else if (!l.startsWith("#")) {
+                assertTrue(l, l.matches("vproxy_[a-z_]+\\{.+} -?[0-9.E]+"));
+            }
+        }
+    }
+
+    @Test
+    public void notFound() throws Exception {
+        try (Socket sock = new Socket()) {
+            sock.connect(new InetSocketAddress("127.0.0.1", metricsPort));
+            sock.getOutputStream().write(("" +
+                "GET /foo HTTP/1.1\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "\r\n").getBytes());
+            InputStream in = sock.getInputStream();
+            assertEquals("HTTP/1.1 404 Not Found", readLine(in));
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package vproxy.test.cases;
 
+import vproxy.dns.Hosts;
+import vproxy.dns.ResolvConf;
 import vproxy.dns.Resolver;
 import vproxy.selector.SelectorEventLoop;
+import vproxy.test.tool.DNSServer;
 import vproxy.util.BlockCallback;
 import vproxy.util.Utils;
 import org.junit.After;
@@ -11,13 +14,18 @@ import org.junit.Test;
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class TestResolver {
+    private static final int dnsPort = 19053;
+
     private SelectorEventLoop loop;
     private Resolver resolver;
 
@@ -87,4 +95,146 @@ public class TestResolver {
 
         assertEquals("should still be 1 cache because already cached", 1, resolver.cacheCount());
     }
+
+    private DNSServer dnsServer;
+    private Resolver dnsResolver;
+
+    private void startDNS() throws Exception {
+        dnsServer = new DNSServer(dnsPort);
+        dnsServer.records.put("cached.test", Collections.singletonList(InetAddress.getByName("10.0.0.1")));
+        dnsServer.ttl = 1;
+        dnsServer.negativeTTL = 1;
+        dnsResolver = new Resolver("TestResolverDNS",
+            new ResolvConf(Collections.singletonList(new InetSocketAddress("127.0.0.1", dnsPort)),
+                Collections.emptyList(), 1, 500, 1),
+            Hosts.parse(Collections.emptyList()));
+        dnsResolver.minTTL = 0;
+        dnsResolver.start();
+    }
+
+    private void stopDNS() throws Exception {
+        dnsResolver.stop();
+        dnsServer.close();
+    }
+
+    private InetAddress resolveDNS(String host) throws UnknownHostException {
+        BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+        dnsResolver.resolve(host, cb);
+        return cb.block();
+    }
+
+    private Resolver.Cache getDNSCache() {
+        List<Resolver.Cache> cacheList = new LinkedList<>();
+        dnsResolver.copyCache(cacheList);
+        return cacheList.isEmpty() ? null : cacheList.get(0);
+    }
+
+    @Test
+    public void ttlFromNameServer() throws Exception {
+        startDNS();
+        try {
+            dnsServer.ttl = 100;
+            dnsResolver.maxTTL = 3000;
+            resolveDNS("cached.test");
+            assertEquals("clamped to maxTTL", 3000, getDNSCache().ttl);
+            dnsResolver.clearCache();
+
+            dnsServer.ttl = 1;
+            resolveDNS("cached.test");
+            assertEquals(1000, getDNSCache().ttl);
+            Thread.sleep(1500);
+            assertEquals("expired and not used", 0, dnsResolver.cacheCount());
+        } finally {
+            stopDNS();
+        }
+    }
+
+    @Test
+    public void negativeCache() throws Exception {
+        startDNS();
+        try {
+            for (int i = 0; i < 3; ++i) {
+                try {
+                    resolveDNS("not-exist.test");
+                    fail();
+                } catch (UnknownHostException ignore) {
+                }
+            }
+            assertEquals("only the first lookup sends A and AAAA", 2, dnsServer.udpQueries.get());
+            assertEquals(1, dnsResolver.negativeCacheCount());
+
+            Thread.sleep(1500);
+            assertEquals(0, dnsResolver.negativeCacheCount());
+            try {
+                resolveDNS("not-exist.test");
+                fail();
+            } catch (UnknownHostException ignore) {
+            }
+            assertEquals(4, dnsServer.udpQueries.get());
+        } finally {
+            stopDNS();
+        }
+    }
+
+    @Test
+    public void coalesceConcurrentLookups() throws Exception {
+        startDNS();
+        try {
+            dnsServer.delay = 100;
+            List<BlockCallback<InetAddress, UnknownHostException>> cbs = new ArrayList<>();
+            for (int i = 0; i < 50; ++i) {
+                BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+                dnsResolver.resolve("cached.test", cb);
+                cbs.add(cb);
+            }
+            for (BlockCallback<InetAddress, UnknownHostException> cb : cbs) {
+                assertEquals("10.0.0.1", Utils.ipStr(cb.block().getAddress()));
+            }
+            assertEquals("one lookup for all", 2, dnsServer.udpQueries.get());
+        } finally {
+            stopDNS();
+        }
+    }
+
+    @Test
+    public void prefetchHotRecords() throws Exception {
+        startDNS();
+        try {
+            dnsServer.ttl = 2;
+            resolveDNS("cached.test");
+            Resolver.Cache first = getDNSCache();
+            // keep reading the record, it should be refreshed before expiring
+            long begin = System.currentTimeMillis();
+            while (System.currentTimeMillis() - begin < 3000) {
+                resolveDNS("cached.test");
+                assertNotNull("should never miss", getDNSCache());
+                Thread.sleep(20);
+            }
+            assertNotSame(first, getDNSCache());
+            assertTrue("refreshed in background", dnsServer.udpQueries.get() >= 4);
+        } finally {
+            stopDNS();
+        }
+    }
+
+    @Test
+    public void serveStaleWhileRevalidate() throws Exception {
+        startDNS();
+        try {
+            dnsResolver.staleTTL = 2000;
+            resolveDNS("cached.test");
+            resolveDNS("cached.test"); // make it in use
+            dnsServer.dropFirst = Integer.MAX_VALUE; // the name server is down
+            Thread.sleep(1500);
+            Resolver.Cache c = getDNSCache();
+            assertNotNull("still cached", c);
+            assertTrue(c.isStale());
+            assertEquals("10.0.0.1", Utils.ipStr(resolveDNS("cached.test").getAddress()));
+
+            Thread.sleep(2000);
+            assertEquals("removed after stale ttl", 0, dnsResolver.cacheCount());
+        } finally {
+            stopDNS();
+        }
+    }
 }
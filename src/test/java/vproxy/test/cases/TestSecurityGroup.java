@@ -0,0 +1,163 @@
+package vproxy.test.cases;
+
+import vproxy.component.secure.SecurityGroup;
+import vproxy.component.secure.SecurityGroupRule;
+import vproxy.connection.Protocol;
+import vproxy.util.Utils;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestSecurityGroup {
+    // the original implementation: check rules one by one
+    private static boolean linearAllow(SecurityGroup secg, Protocol protocol, InetAddress address, int port) {
+        for (SecurityGroupRule rule : secg.getRules()) {
+            if (rule.protocol != protocol)
+                continue;
+            if (rule.match(address, port))
+                return rule.allow;
+        }
+        return secg.defaultAllow;
+    }
+
+    private static SecurityGroupRule rule(String alias, String net, int minPort, int maxPort, boolean allow) {
+        String[] arr = net.split("/");
+        return new SecurityGroupRule(alias,
+            Utils.blockParseAddress(arr[0]), Utils.parseMask(Integer.parseInt(arr[1])),
+            Protocol.TCP, minPort, maxPort, allow);
+    }
+
+    private static boolean allow(SecurityGroup secg, String ip, int port) throws Exception {
+        return secg.allow(Protocol.TCP, InetAddress.getByName(ip), port);
+    }
+
+    @Test
+    public void firstMatch() throws Exception {
+        SecurityGroup secg = new SecurityGroup("secg", true);
+        // the shorter prefix comes first, so it wins over the longer one
+        secg.addRule(rule("r0", "10.0.0.0/8", 80, 80, false));
+        secg.addRule(rule("r1", "10.1.0.0/16", 0, 65535, true));
+        secg.addRule(rule("r2", "10.1.2.0/24", 1, 1000, false));
+
+        assertFalse(allow(secg, "10.1.2.3", 80));
+        assertFalse(allow(secg, "10.2.0.1", 80));
+        assertTrue(allow(secg, "10.1.2.3", 81));
+        assertTrue("r1 comes before r2", allow(secg, "10.1.2.3", 443));
+        assertTrue("default", allow(secg, "10.2.0.1", 443));
+
+        secg.removeRule("r0");
+        assertTrue(allow(secg, "10.1.2.3", 80));
+        assertTrue(allow(secg, "10.2.0.1", 80));
+        secg.removeRule("r1");
+        assertFalse(allow(secg, "10.1.2.3", 80));
+        assertTrue(allow(secg, "10.1.3.3", 80));
+
+        assertTrue("udp has no rules", secg.allow(Protocol.UDP, InetAddress.getByName("10.1.2.3"), 80));
+    }
+
+    @Test
+    public void mixedIpv4AndIpv6() throws Exception {
+        SecurityGroup secg = new SecurityGroup("secg", false);
+        secg.addRule(rule("r0", "127.0.0.0/8", 0, 65535, true));
+        secg.addRule(rule("r1", "[0000:0000:0000:0000:0000:ffff:c0a8:0000]/112", 0, 65535, true));
+        secg.addRule(rule("r2", "[fd00:0000:0000:0000:0000:0000:0000:0000]/8", 0, 65535, true));
+        secg.addRule(rule("r3", "[2001:0db8:0000:0000:0000:0000:0000:0000]/32", 8080, 8080, true));
+
+        assertTrue("v4 input, v4 rule", allow(secg, "127.0.0.1", 1));
+        assertTrue("v6 input compatible with v4, v4 rule", allow(secg, "::7f00:1", 1));
+        assertTrue("v4 input, v6 rule mapped from v4", allow(secg, "192.168.1.1", 1));
+        assertFalse(allow(secg, "192.169.1.1", 1));
+        assertTrue("v6 input, v6 rule", allow(secg, "fd12::1", 1));
+        assertTrue("v6 input, v6 rule with mask <= 32", allow(secg, "2001:db8::1", 8080));
+        assertFalse(allow(secg, "2001:db8::1", 8081));
+        assertFalse(allow(secg, "2001:db9::1", 8080));
+        assertFalse(allow(secg, "10.0.0.1", 1));
+    }
+
+    @Test
+    public void sameAsLinear() throws Exception {
+        Random rand = new Random(42);
+        SecurityGroup secg = new SecurityGroup("secg", true);
+        for (int i = 0; i < 2000; ++i) {
+            byte[] ip;
+            int mask;
+            if (rand.nextInt(4) == 0) {
+                ip = new byte[16];
+                if (rand.nextBoolean()) {
+                    // ipv4 mapped
+                    ip[10] = (byte) 0xff;
+                    ip[11] = (byte) 0xff;
+                    ip[12] = (byte) (10 + rand.nextInt(2));
+                    ip[13] = (byte) rand.nextInt(4);
+                    ip[14] = (byte) rand.nextInt(256);
+                    mask = 96 + rand.nextInt(33);
+                } else {
+                    ip[0] = (byte) 0xfd;
+                    ip[1] = (byte) rand.nextInt(4);
+                    ip[2] = (byte) rand.nextInt(256);
+                    mask = 8 + rand.nextInt(40);
+                }
+            } else {
+                ip = new byte[]{(byte) (10 + rand.nextInt(2)), (byte) rand.nextInt(4), (byte) rand.nextInt(256), (byte) rand.nextInt(256)};
+                mask = rand.nextInt(33);
+            }
+            byte[] bmask = Utils.parseMask(mask);
+            for (int j = 0; j < ip.length; ++j) {
+                ip[j] &= j < bmask.length ? bmask[j] : 0;
+            }
+            int minPort = rand.nextInt(1000);
+            int maxPort = minPort + rand.nextInt(1000);
+            try {
+                secg.addRule(new SecurityGroupRule("r" + i, ip, bmask, Protocol.TCP, minPort, maxPort, rand.nextBoolean()));
+            } catch (Exception ignore) {
+                // duplicated network and port range
+            }
+        }
+        List<SecurityGroupRule> rules = secg.getRules();
+        assertTrue(rules.size() > 1000);
+
+        for (int i = 0; i < 20000; ++i) {
+            byte[] ip;
+            int r = rand.nextInt(3);
+            if (r == 0) {
+                ip = new byte[16];
+                ip[0] = (byte) 0xfd;
+                ip[1] = (byte) rand.nextInt(4);
+                ip[2] = (byte) rand.nextInt(256);
+                ip[15] = (byte) rand.nextInt(256);
+            } else if (r == 1) {
+                // ipv4 compatible, which is not converted into Inet4Address
+                ip = new byte[16];
+                ip[12] = (byte) (10 + rand.nextInt(2));
+                ip[13] = (byte) rand.nextInt(4);
+                ip[14] = (byte) rand.nextInt(256);
+                ip[15] = (byte) rand.nextInt(256);
+            } else {
+                ip = new byte[]{(byte) (10 + rand.nextInt(2)), (byte) rand.nextInt(4), (byte) rand.nextInt(256), (byte) rand.nextInt(256)};
+            }
+            InetAddress address = InetAddress.getByAddress(ip);
+            int port = rand.nextInt(2000);
+            assertEquals("check " + address + ":" + port,
+                linearAllow(secg, Protocol.TCP, address, port), secg.allow(Protocol.TCP, address, port));
+        }
+    }
+
+    @Test
+    public void irregularMask() throws Exception {
+        SecurityGroup secg = new SecurityGroup("secg", true);
+        // not a valid network, should behave the same as Utils.maskMatch
+        secg.addRule(new SecurityGroupRule("r0",
+            Utils.blockParseAddress("10.0.0.1"), Utils.parseMask(8), Protocol.TCP, 0, 65535, false));
+        secg.addRule(new SecurityGroupRule("r1",
+            Utils.blockParseAddress("10.0.0.0"), new byte[]{(byte) 0xff, 0, (byte) 0xff, 0}, Protocol.TCP, 0, 65535, false));
+        for (String ip : new String[]{"10.0.0.1", "10.5.0.7", "10.5.1.7", "11.0.0.1"}) {
+            InetAddress address = InetAddress.getByName(ip);
+            assertEquals(ip, linearAllow(secg, Protocol.TCP, address, 80), secg.allow(Protocol.TCP, address, 80));
+        }
+        assertFalse(allow(secg, "10.5.0.7", 80));
+    }
+}
@@ -4,14 +4,18 @@ import vproxy.app.Config;
 import vproxy.component.app.TcpLB;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.proxy.Session;
 import vproxy.component.secure.SecurityGroup;
 import vproxy.component.secure.SecurityGroupRule;
 import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.OutlierDetectionConfig;
 import vproxy.component.svrgroup.ServerGroup;
 import vproxy.component.svrgroup.ServerGroups;
+import vproxy.component.svrgroup.ServerHostNameIndex;
 import vproxy.connection.BindServer;
 import vproxy.connection.Connection;
+import vproxy.connection.ConnectionTrace;
 import vproxy.connection.NetEventLoop;
 import vproxy.connection.Protocol;
 import vproxy.selector.SelectorEventLoop;
@@ -19,14 +23,21 @@ import vproxy.test.tool.CaseUtils;
 import vproxy.test.tool.Client;
 import vproxy.test.tool.EchoServer;
 import vproxy.test.tool.IdServer;
+import vproxy.util.AccessLog;
+import vproxy.util.LatencyHistogram;
 import vproxy.util.Utils;
 import org.junit.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.*;
 
@@ -118,6 +129,22 @@ public class TestTcpLB {
         }
     }
 
+    // add sgEcho into sgs0 and wait until the echo server is UP
+    private ServerGroup.ServerHandle waitEchoUp() throws Exception {
+        sgs0.add(sgEcho, 10);
+        ServerGroup.ServerHandle echo = sgEcho.getServerHandles().get(0);
+        for (int i = 0; i < 100 && !echo.healthy; ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("the echo server should be UP", echo.healthy);
+        return echo;
+    }
+
+    // the health check is disabled, the test sets the servers' health itself
+    private ServerGroup newSgWithoutHealthCheck() throws Exception {
+        return new ServerGroup("sg2", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+    }
+
     @Test
     public void simpleProxy() throws Exception {
         // add sgEcho into sgs0
@@ -636,6 +663,267 @@ public class TestTcpLB {
         // this show work properly
     }
 
+    @Test
+    public void connectionLimit() throws Exception {
+        sgs0.add(sg0, 10);
+        lb0.connectionLimiter.setMaxConnections(2);
+
+        Client client1 = new Client(lbPort);
+        client1.connect();
+        clients.add(client1);
+        client1.sendAndRecv("a", 1);
+        Client client2 = new Client(lbPort);
+        client2.connect();
+        clients.add(client2);
+        client2.sendAndRecv("b", 1);
+
+        Client client3 = new Client(lbPort);
+        client3.connect(); // this is ok because it's not reached the lb yet
+        clients.add(client3);
+        try {
+            client3.sendAndRecv("c", 1);
+            fail("should be refused by max-conn");
+        } catch (IOException ignore) {
+        }
+        assertEquals(1, lb0.connectionLimiter.getMaxConnRefusedCount());
+
+        // release one
+        client1.close();
+        Thread.sleep(200);
+        Client client4 = new Client(lbPort);
+        client4.connect();
+        clients.add(client4);
+        client4.sendAndRecv("d", 1);
+        assertEquals(2, lb0.connectionLimiter.connections(InetAddress.getByName("127.0.0.1")));
+
+        // limit the rate
+        lb0.connectionLimiter.setMaxConnections(0);
+        lb0.connectionLimiter.setRate(2);
+        int ok = 0;
+        for (int i = 0; i < 5; ++i) {
+            Client c = new Client(lbPort);
+            c.connect();
+            clients.add(c);
+            try {
+                c.sendAndRecv("e", 1);
+                ++ok;
+            } catch (IOException ignore) {
+            }
+        }
+        assertEquals("burst is 2", 2, ok);
+        assertEquals(3, lb0.connectionLimiter.getRateRefusedCount());
+    }
+
+    @Test
+    public void recordLatency() throws Exception {
+        ServerGroup.ServerHandle echo = waitEchoUp();
+
+        for (int i = 0; i < 3; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            client.sendAndRecv("hello", 5);
+            client.close();
+        }
+        Thread.sleep(100);
+
+        for (LatencyHistogram h : lb0.latency.histograms()) {
+            assertEquals(h.name + " of lb", 3, h.snapshot().count);
+        }
+        // only the group records by default
+        assertNull(echo.latency);
+        assertNull(echo.healthCheckLatency);
+        for (LatencyHistogram h : sgEcho.latency.histograms()) {
+            assertEquals(h.name + " of server group", 3, h.snapshot().count);
+        }
+        assertTrue("health check rtt recorded", sgEcho.healthCheckLatency.snapshot().count >= 1);
+        LatencyHistogram.Snapshot session = lb0.latency.session.snapshot();
+        LatencyHistogram.Snapshot connect = lb0.latency.connect.snapshot();
+        assertTrue("session lasts longer than connecting", session.max >= connect.max);
+    }
+
+    @Test
+    public void recordServerLatency() throws Exception {
+        ServerGroup sg;
+        Config.serverLatency = true;
+        try {
+            sg = new ServerGroup("sgEcho2", elg0, new HealthCheckConfig(400, 1000, 1, 3), Method.wrr);
+            sg.add("echo", new InetSocketAddress("127.0.0.1", 20080), 10);
+        } finally {
+            Config.serverLatency = false;
+        }
+        sgs0.add(sg, 10);
+        ServerGroup.ServerHandle echo = sg.getServerHandles().get(0);
+        for (int i = 0; i < 100 && !echo.healthy; ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("the echo server should be UP", echo.healthy);
+
+        for (int i = 0; i < 3; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            client.sendAndRecv("hello", 5);
+            client.close();
+        }
+        Thread.sleep(100);
+
+        for (LatencyHistogram h : echo.latency.histograms()) {
+            assertEquals(h.name + " of server", 3, h.snapshot().count);
+        }
+        for (LatencyHistogram h : sg.latency.histograms()) {
+            assertEquals(h.name + " of server group", 3, h.snapshot().count);
+        }
+        long checks = echo.healthCheckLatency.snapshot().count;
+        assertTrue("health check rtt recorded", checks >= 1);
+        assertTrue(sg.healthCheckLatency.snapshot().count >= checks);
+    }
+
+    @Test
+    public void accessLog() throws Exception {
+        waitEchoUp();
+
+        File f = File.createTempFile("access", ".log");
+        f.deleteOnExit();
+        AccessLog.start(f.getAbsolutePath(), 1, AccessLog.DEFAULT_MAX_FILE_SIZE, AccessLog.DEFAULT_MAX_FILES);
+        try {
+            Client client = new Client(lbPort);
+            client.connect();
+            client.sendAndRecv("hello", 5);
+            client.close();
+            Thread.sleep(100);
+        } finally {
+            AccessLog.stop();
+        }
+
+        List<String> lines = Files.readAllLines(f.toPath());
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line, line.contains("\"type\":\"session\",\"listen\":\"127.0.0.1:" + lbPort + "\""));
+        assertTrue(line, line.contains("\"backend\":\"127.0.0.1:20080\""));
+        assertTrue(line, line.contains("\"from_client\":5,\"to_client\":5,"));
+        assertTrue(line, line.contains("\"close\":\"client-closed\""));
+    }
+
+    @Test
+    public void connectionTrace() throws Exception {
+        waitEchoUp();
+
+        // not traced
+        Client client0 = new Client(lbPort);
+        client0.connect();
+        clients.add(client0);
+        client0.sendAndRecv("hello", 5);
+
+        ConnectionTrace.network(Utils.blockParseAddress("127.0.0.0"), Utils.parseMask(8));
+        Client client1 = new Client(lbPort);
+        try {
+            client1.connect();
+            clients.add(client1);
+            client1.sendAndRecv("hello", 5);
+        } finally {
+            ConnectionTrace.disable();
+        }
+        Thread.sleep(100);
+
+        List<Session> sessions = new LinkedList<>();
+        lb0.copySessions(sessions);
+        assertEquals(2, sessions.size());
+        Session s0 = sessions.stream().filter(s -> s.active.getFromRemoteBytes() == 5 && s.active.getTrace() == null).findFirst().get();
+        Session s1 = sessions.stream().filter(s -> s.active.getTrace() != null).findFirst().get();
+        assertNull(s0.passive.getTrace());
+
+        List<String> frontend = s1.active.getTrace().dump();
+        assertTrue(frontend.toString(), frontend.get(0).matches("\\+\\d+us accepted remote-port=\\d+ local-port=" + lbPort));
+        assertTrue(frontend.toString(), frontend.stream().anyMatch(l -> l.matches(".* read bytes=5 in-buffer-used=\\d+")));
+        List<String> backend = s1.passive.getTrace().dump();
+        assertTrue(backend.toString(), backend.get(0).endsWith("connecting remote-port=20080"));
+        assertTrue(backend.toString(), backend.stream().anyMatch(l -> l.endsWith(" connected")));
+        assertTrue(backend.toString(), backend.stream().anyMatch(l -> l.matches(".* read bytes=5 in-buffer-used=\\d+")));
+
+        client1.close();
+        Thread.sleep(100);
+        frontend = s1.active.getTrace().dump();
+        assertTrue(frontend.toString(), frontend.get(frontend.size() - 1).endsWith(" removed"));
+        assertTrue(frontend.toString(), frontend.stream().anyMatch(l -> l.endsWith(" eof out-buffer-used=0")));
+    }
+
+    @Test
+    public void acceptInBatch() throws Exception {
+        sgs0.add(sg0, 10);
+        int batch = Config.acceptBatch;
+        Config.acceptBatch = 1;
+        try {
+            // all pending connections should be accepted in the following loop rounds
+            List<Client> list = new LinkedList<>();
+            for (int i = 0; i < 20; ++i) {
+                Client c = new Client(lbPort);
+                c.connect();
+                clients.add(c);
+                list.add(c);
+            }
+            for (Client c : list) {
+                c.sendAndRecv("a", 1);
+            }
+        } finally {
+            Config.acceptBatch = batch;
+        }
+    }
+
+    @Test
+    public void refuseWhenWorkerBusy() throws Exception {
+        EventLoopGroup worker = new EventLoopGroup("worker");
+        worker.add("w0");
+        TcpLB lb1 = new TcpLB("lb1", elg0, worker,
+            new InetSocketAddress("127.0.0.1", lbPort + 1), sgs0,
+            Config.tcpTimeout, 16384, 16384, secg0);
+        lb1.start();
+        sgs0.add(sg0, 10);
+
+        int limit = Config.workerQueueLimit;
+        Config.workerQueueLimit = 5;
+        SelectorEventLoop w0 = worker.get("w0").getSelectorEventLoop();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // block the worker loop and make a lot of pending events
+            w0.runOnLoop(() -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            });
+            blocked.await();
+            for (int i = 0; i < 10; ++i) {
+                w0.nextTick(() -> {
+                });
+            }
+            assertEquals(10, w0.queueSize());
+
+            Client client1 = new Client(lbPort + 1);
+            client1.connect();
+            clients.add(client1);
+            try {
+                client1.sendAndRecv("a", 1);
+                fail("should be refused because the worker is busy");
+            } catch (IOException ignore) {
+            }
+
+            release.countDown();
+            while (w0.queueSize() != 0) {
+                Thread.sleep(10);
+            }
+            Client client2 = new Client(lbPort + 1);
+            client2.connect();
+            clients.add(client2);
+            client2.sendAndRecv("b", 1);
+        } finally {
+            release.countDown();
+            Config.workerQueueLimit = limit;
+            lb1.destroy();
+            worker.close();
+        }
+    }
+
     @Test
     public void forbidOnRunning() throws Exception {
         sgs0.add(sg0, 10);
@@ -713,4 +1001,208 @@ public class TestTcpLB {
         assertNotSame("the old server is removed", old, list.get(0));
         assertFalse("the new server is not logic deleted", list.get(0).isLogicDelete());
     }
+
+    @Test
+    public void replaceIpByHostName() throws Exception {
+        ServerGroup sg2 = newSgWithoutHealthCheck();
+        sg2.add("h0", "host.test", new InetSocketAddress("127.0.0.1", 19080), 10);
+        sg2.add("h1", "host.test", new InetSocketAddress("127.0.0.1", 19081), 10);
+        sg2.add("h2", "127.0.0.1", new InetSocketAddress("127.0.0.1", 19082), 10); // ip is not indexed
+        try {
+            Map<ServerGroup, List<ServerGroup.ServerHandle>> indexed = ServerHostNameIndex.lookup("host.test");
+            assertEquals(1, indexed.size());
+            assertEquals(2, indexed.get(sg2).size());
+            assertTrue(ServerHostNameIndex.lookup("127.0.0.1").isEmpty());
+
+            // replace both servers at once
+            Map<String, InetAddress> newIps = new LinkedHashMap<>();
+            newIps.put("h0", InetAddress.getByName("127.1.2.3"));
+            newIps.put("h1", InetAddress.getByName("127.1.2.4"));
+            newIps.put("not-exist", InetAddress.getByName("127.1.2.5"));
+            sg2.replaceIp(newIps);
+            List<ServerGroup.ServerHandle> list = sg2.getServerHandles();
+            assertEquals(5, list.size());
+            assertTrue(list.get(0).isLogicDelete());
+            assertTrue(list.get(1).isLogicDelete());
+            assertEquals(new InetSocketAddress("127.1.2.3", 19080), list.get(3).server);
+            assertEquals("host.test", list.get(3).hostName);
+            assertEquals(new InetSocketAddress("127.1.2.4", 19081), list.get(4).server);
+            assertEquals(4, ServerHostNameIndex.lookup("host.test").get(sg2).size());
+
+            sg2.remove("h0");
+            assertEquals(2, ServerHostNameIndex.lookup("host.test").get(sg2).size());
+        } finally {
+            sg2.destroy();
+        }
+        assertTrue(ServerHostNameIndex.lookup("host.test").isEmpty());
+    }
+
+    @Test
+    public void outlierDetection() throws Exception {
+        ServerGroup sg2 = newSgWithoutHealthCheck();
+        sg2.setOutlierDetectionConfig(new OutlierDetectionConfig(2, 50, 20, 3, 10_000, 300, 1000, 50));
+        ServerGroup.ServerHandle good = sg2.add("good", new InetSocketAddress("127.0.0.1", 19080), 10);
+        ServerGroup.ServerHandle bad = sg2.add("bad", new InetSocketAddress("127.0.0.1", 19999/*nothing listening*/), 10);
+        good.healthy = true;
+        bad.healthy = true;
+        sgs0.add(sg2, 10);
+        try {
+            int failures = 0;
+            for (int i = 0; i < 10; ++i) {
+                Client client = new Client(lbPort);
+                client.connect();
+                clients.add(client);
+                try {
+                    assertEquals("0", client.sendAndRecv("anything", 1));
+                } catch (IOException e) {
+                    ++failures;
+                }
+            }
+            // ejected after 2 consecutive connect failures
+            assertEquals(2, failures);
+            assertTrue(bad.isEjected());
+            assertTrue(bad.healthy);
+
+            // the good one cannot be ejected because at most 50% servers can be ejected
+            for (int i = 0; i < 10; ++i) {
+                good.makeConnector().connectionFailed();
+            }
+            assertFalse(good.isEjected());
+
+            // re-admitted after the ejection time
+            Thread.sleep(400);
+            assertFalse(bad.isEjected());
+
+            // ejected for a longer time the next time
+            bad.makeConnector().connectionFailed();
+            bad.makeConnector().connectionFailed();
+            assertTrue(bad.isEjected());
+            Thread.sleep(400);
+            assertTrue(bad.isEjected());
+
+            // disable
+            sg2.setOutlierDetectionConfig(null);
+            assertFalse(bad.isEjected());
+        } finally {
+            sgs0.remove(sg2);
+            sg2.destroy();
+        }
+    }
+
+    @Test
+    public void routeDuringConfigChange() throws Exception {
+        sgs0.add(sg0, 10);
+        // svr0 and svr1 are always there, so a server should always be returned
+        Thread t = new Thread(() -> {
+            Method[] methods = {Method.wrr, Method.wlc, Method.source};
+            try {
+                for (int i = 0; i < 300; ++i) {
+                    ServerGroup.ServerHandle h = sg0.add("tmp" + i, new InetSocketAddress("127.0.0.1", 19082), 1 + i % 5);
+                    h.healthy = true;
+                    sg0.getServerHandles().get(0).setWeight(5 + i % 10);
+                    sg0.setMethod(methods[i % methods.length]);
+                    if (i % 2 == 0) {
+                        sgs0.add(sg1, i % 3);
+                    } else {
+                        sgs0.remove(sg1);
+                    }
+                    sg0.remove("tmp" + i);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        InetSocketAddress source = new InetSocketAddress("127.0.0.1", 12345);
+        while (t.isAlive()) {
+            assertNotNull(sgs0.next(source));
+        }
+        t.join();
+        assertEquals(2, sg0.getServerHandles().size());
+        assertEquals(Method.source, sg0.getMethod()); // 299 % 3 == 2
+        assertEquals(1, sgs0.getServerGroups().size());
+    }
+
+    @Test
+    public void batchChange() throws Exception {
+        sgs0.add(sg0, 10);
+        sg0.beginBatch();
+        sg0.remove("svr0");
+        sg0.remove("svr1");
+        for (int i = 0; i < 100; ++i) {
+            ServerGroup.ServerHandle h = sg0.add("tmp" + i, new InetSocketAddress("127.0.0.1", 19082), 10);
+            h.healthy = true;
+        }
+        // aliases are still checked in the batch
+        try {
+            sg0.add("tmp0", new InetSocketAddress("127.0.0.1", 19082), 10);
+            fail();
+        } catch (AlreadyExistException ignore) {
+        }
+        sg0.remove("tmp0");
+        sg0.add("tmp0", new InetSocketAddress("127.0.0.1", 19082), 10).healthy = true;
+        sg0.replaceIp("tmp1", InetAddress.getByName("127.0.0.1"));
+        assertEquals("the replaced server is kept until the new one is up", 101, sg0.getServerHandles().size());
+        sg0.remove("tmp1");
+        sg0.add("tmp1", new InetSocketAddress("127.0.0.1", 19082), 10).healthy = true;
+        sg0.setMethod(Method.wlc);
+        // changes are visible to the commands
+        assertEquals(100, sg0.getServerHandles().size());
+        assertEquals(Method.wlc, sg0.getMethod());
+        // but not used by the load balancer before committed
+        InetSocketAddress source = new InetSocketAddress("127.0.0.1", 12345);
+        for (int i = 0; i < 10; ++i) {
+            int port = sgs0.next(source).remote.getPort();
+            assertTrue(port == 19080 || port == 19081);
+        }
+        sg0.commitBatch();
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(19082, sgs0.next(source).remote.getPort());
+        }
+        try {
+            sg0.commitBatch();
+            fail();
+        } catch (IllegalStateException ignore) {
+        }
+    }
+
+    @Test
+    public void takeOverWhenUpgrading() throws Exception {
+        waitEchoUp();
+        Client old = new Client(lbPort);
+        old.connect();
+        clients.add(old);
+        assertEquals("a", old.sendAndRecv("a", 1));
+
+        TcpLB lb1 = new TcpLB("lb1", elg0, elg0,
+            new InetSocketAddress("127.0.0.1", lbPort), sgs0,
+            Config.tcpTimeout, 16384, 16384, secg0);
+        try {
+            lb1.start();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("bind failed"));
+        }
+        try {
+            Config.upgrading = true;
+            try {
+                lb1.start();
+            } finally {
+                Config.upgrading = false;
+            }
+
+            // stop accepting, but the existing session is kept
+            lb0.stop();
+            assertTrue(lb0.servers.isEmpty());
+            assertEquals("b", old.sendAndRecv("b", 1));
+            // new connections go to lb1
+            Client client = new Client(lbPort);
+            client.connect();
+            clients.add(client);
+            assertEquals("c", client.sendAndRecv("c", 1));
+            assertEquals(1, lb1.sessionCount());
+        } finally {
+            lb1.destroy();
+        }
+    }
 }
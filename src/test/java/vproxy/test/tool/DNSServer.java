@@ -0,0 +1,160 @@
+package vproxy.test.tool;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a stand-in dns server for testing, serves A/AAAA records via udp and tcp
+public class DNSServer {
+    public final Map<String, List<InetAddress>> records = new ConcurrentHashMap<>();
+    public volatile int ttl = 30;
+    public volatile int negativeTTL = 5;
+    public volatile int dropFirst = 0; // drop the first n udp queries
+    public volatile boolean truncate = false; // respond TC via udp
+    public volatile int delay = 0; // millis to wait before responding
+    public final AtomicInteger udpQueries = new AtomicInteger();
+    public final AtomicInteger tcpQueries = new AtomicInteger();
+
+    private final DatagramSocket udp;
+    private final ServerSocket tcp;
+    private final Thread udpThread;
+    private final Thread tcpThread;
+
+    public DNSServer(int port) throws IOException {
+        udp = new DatagramSocket(new InetSocketAddress("127.0.0.1", port));
+        tcp = new ServerSocket();
+        tcp.bind(new InetSocketAddress("127.0.0.1", port));
+        udpThread = new Thread(this::udpLoop, "DNSServer-udp");
+        tcpThread = new Thread(this::tcpLoop, "DNSServer-tcp");
+        udpThread.start();
+        tcpThread.start();
+    }
+
+    private void udpLoop() {
+        byte[] buf = new byte[512];
+        while (!udp.isClosed()) {
+            DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+            try {
+                udp.receive(pkt);
+            } catch (IOException e) {
+                continue;
+            }
+            int n = udpQueries.incrementAndGet();
+            if (n <= dropFirst)
+                continue;
+            byte[] resp = respond(buf, pkt.getLength(), truncate);
+            try {
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                udp.send(new DatagramPacket(resp, resp.length, pkt.getSocketAddress()));
+            } catch (IOException | InterruptedException ignore) {
+            }
+        }
+    }
+
+    private void tcpLoop() {
+        while (!tcp.isClosed()) {
+            try (Socket sock = tcp.accept()) {
+                DataInputStream in = new DataInputStream(sock.getInputStream());
+                int len = in.readUnsignedShort();
+                byte[] buf = new byte[len];
+                in.readFully(buf);
+                tcpQueries.incrementAndGet();
+                byte[] resp = respond(buf, len, false);
+                OutputStream out = sock.getOutputStream();
+                out.write(new byte[]{(byte) (resp.length >> 8), (byte) resp.length});
+                out.write(resp);
+                out.flush();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private byte[] respond(byte[] query, int len, boolean tc) {
+        ByteBuffer q = ByteBuffer.wrap(query, 0, len);
+        int id = q.getShort() & 0xffff;
+        q.position(12);
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int l = q.get() & 0xff;
+            if (l == 0)
+                break;
+            if (sb.length() > 0)
+                sb.append('.');
+            for (int i = 0; i < l; ++i)
+                sb.append((char) q.get());
+        }
+        int qtype = q.getShort() & 0xffff;
+        q.getShort(); // class
+        int questionEnd = q.position();
+
+        List<InetAddress> addrs = records.get(sb.toString().toLowerCase());
+        int rcode = addrs == null ? 3 : 0;
+        ByteBuffer resp = ByteBuffer.allocate(4096);
+        resp.putShort((short) id);
+        resp.putShort((short) (0x8180 | (tc ? 0x0200 : 0) | rcode));
+        resp.putShort((short) 1);
+        int ancountPos = resp.position();
+        resp.putShort((short) 0);
+        resp.putShort((short) (addrs == null ? 1 : 0));
+        resp.putShort((short) 0);
+        resp.put(query, 12, questionEnd - 12);
+        if (tc) {
+            return finish(resp);
+        }
+        if (addrs == null) {
+            // SOA in authority
+            resp.putShort((short) 0xc00c);
+            resp.putShort((short) 6);
+            resp.putShort((short) 1);
+            resp.putInt(negativeTTL);
+            resp.putShort((short) 22);
+            resp.put((byte) 0);
+            resp.put((byte) 0);
+            resp.putInt(1);
+            resp.putInt(3600);
+            resp.putInt(600);
+            resp.putInt(86400);
+            resp.putInt(negativeTTL);
+            return finish(resp);
+        }
+        int ancount = 0;
+        for (InetAddress a : addrs) {
+            boolean v4 = a instanceof Inet4Address;
+            if ((qtype == 1 && !v4) || (qtype == 28 && v4))
+                continue;
+            ++ancount;
+            resp.putShort((short) 0xc00c);
+            resp.putShort((short) qtype);
+            resp.putShort((short) 1);
+            resp.putInt(ttl);
+            byte[] b = a.getAddress();
+            resp.putShort((short) b.length);
+            resp.put(b);
+        }
+        resp.putShort(ancountPos, (short) ancount);
+        return finish(resp);
+    }
+
+    private static byte[] finish(ByteBuffer resp) {
+        byte[] ret = new byte[resp.position()];
+        resp.flip();
+        resp.get(ret);
+        return ret;
+    }
+
+    public void close() throws Exception {
+        udp.close();
+        tcp.close();
+        // wait for the threads to exit to make sure the ports are released
+        udpThread.join();
+        tcpThread.join();
+    }
+}
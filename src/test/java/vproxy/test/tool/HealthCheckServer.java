@@ -0,0 +1,83 @@
+package vproxy.test.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a blocking server responding to http GET or resp PING
+// responses are written after the whole request is received
+public class HealthCheckServer {
+    private final ServerSocket server;
+    private final boolean http;
+    private volatile String httpStatus = "200 OK";
+    private volatile String httpBody = "ok";
+    public final AtomicInteger accepted = new AtomicInteger(0);
+
+    public HealthCheckServer(int port, boolean http) throws IOException {
+        this.http = http;
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", port));
+        Thread t = new Thread(this::accept, "health-check-server-" + port);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void setHttpResponse(String status, String body) {
+        this.httpStatus = status;
+        this.httpBody = body;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            Socket sock;
+            try {
+                sock = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            accepted.incrementAndGet();
+            Thread t = new Thread(() -> serve(sock));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(Socket sock) {
+        try (sock) {
+            InputStream in = sock.getInputStream();
+            OutputStream out = sock.getOutputStream();
+            String end = http ? "\r\n\r\n" : "PING\r\n";
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                sb.append((char) b);
+                if (sb.toString().endsWith(end)) {
+                    sb.setLength(0);
+                    out.write(response().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            }
+        } catch (IOException ignore) {
+        }
+    }
+
+    private String response() {
+        if (!http) {
+            return "+PONG\r\n";
+        }
+        return "" +
+            "HTTP/1.1 " + httpStatus + "\r\n" +
+            "Content-Length: " + httpBody.length() + "\r\n" +
+            "\r\n" +
+            httpBody;
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+}